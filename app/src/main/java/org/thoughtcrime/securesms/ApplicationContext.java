@@ -53,6 +53,7 @@ import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger;
 import org.thoughtcrime.securesms.logging.LogSecretProvider;
 import org.thoughtcrime.securesms.messageprocessingalarm.MessageProcessReceiver;
 import org.thoughtcrime.securesms.migrations.ApplicationMigrations;
+import org.thoughtcrime.securesms.mms.GlideApp;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
@@ -80,7 +81,9 @@ import org.webrtc.voiceengine.WebRtcAudioManager;
 import org.webrtc.voiceengine.WebRtcAudioUtils;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 
+import java.io.File;
 import java.security.Security;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -120,21 +123,24 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
                                 Log.i(TAG, "onCreate()");
                             })
                             .addBlocking("crash-handling", this::initializeCrashHandling)
-                            .addBlocking("eat-db", () -> DatabaseFactory.getInstance(this))
+                            .addBlockingInBackground("eat-db", () -> DatabaseFactory.getInstance(this))
                             .addBlocking("app-dependencies", this::initializeAppDependencies)
-                            .addBlocking("notification-channels", () -> NotificationChannels.create(this))
-                            .addBlocking("first-launch", this::initializeFirstEverAppLaunch)
-                            .addBlocking("app-migrations", this::initializeApplicationMigrations)
+                            .addBlockingInBackground("key-value-store", SignalStore::preload)
+                            .addBlockingInBackground("job-manager", ApplicationDependencies::getJobManager, "eat-db")
+                            .addBlockingInBackground("glide", () -> GlideApp.get(this))
                             .addBlocking("ring-rtc", this::initializeRingRtc)
-                            .addBlocking("mark-registration", () -> RegistrationUtil.maybeMarkRegistrationComplete(this))
-                            .addBlocking("lifecycle-observer", () -> ApplicationDependencies.getAppForegroundObserver().addListener(this))
-                            .addBlocking("message-retriever", this::initializeMessageRetrieval)
-                            .addBlocking("dynamic-theme", () -> DynamicTheme.setDefaultDayNightMode(this))
                             .addBlocking("vector-compat", () -> {
                               if (Build.VERSION.SDK_INT < 21) {
                                 AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
                               }
                             })
+                            .addBlocking("notification-channels", () -> NotificationChannels.create(this))
+                            .addBlocking("first-launch", this::initializeFirstEverAppLaunch, "eat-db", "key-value-store")
+                            .addBlocking("app-migrations", this::initializeApplicationMigrations, "job-manager")
+                            .addBlocking("mark-registration", () -> RegistrationUtil.maybeMarkRegistrationComplete(this))
+                            .addBlocking("lifecycle-observer", () -> ApplicationDependencies.getAppForegroundObserver().addListener(this))
+                            .addBlocking("message-retriever", this::initializeMessageRetrieval)
+                            .addBlocking("dynamic-theme", () -> DynamicTheme.setDefaultDayNightMode(this))
                             .addBlocking("proxy-init", () -> {
                               if (SignalStore.proxy().isProxyEnabled()) {
                                 Log.w(TAG, "Proxy detected. Enabling Conscrypt.setUseEngineSocketByDefault()");
@@ -143,6 +149,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
                             })
                             .addBlocking("blob-provider", this::initializeBlobProvider)
                             .addBlocking("feature-flags", FeatureFlags::init)
+                            .addNonBlocking(this::initializeTracing)
                             .addNonBlocking(this::initializeRevealableMessageManager)
                             .addNonBlocking(this::initializeGcmCheck)
                             .addNonBlocking(this::initializeSignedPreKeyCheck)
@@ -234,6 +241,21 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     SignalProtocolLoggerProvider.setProvider(new CustomSignalProtocolLogger());
   }
 
+  private void initializeTracing() {
+    int samplePercent = FeatureFlags.traceStreamingSamplePercent();
+
+    if (samplePercent <= 0) {
+      return;
+    }
+
+    Set<String> categories = FeatureFlags.traceCategories();
+
+    Tracer.getInstance().startStreaming(new File(getCacheDir(), "trace"),
+                                        LogSecretProvider.getOrCreateAttachmentSecret(this),
+                                        samplePercent / 100f,
+                                        categories.isEmpty() ? null : categories);
+  }
+
   private void initializeCrashHandling() {
     final Thread.UncaughtExceptionHandler originalHandler = Thread.getDefaultUncaughtExceptionHandler();
     Thread.setDefaultUncaughtExceptionHandler(new SignalUncaughtExceptionHandler(originalHandler));
@@ -0,0 +1,685 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
+import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes the encrypted frames of a backup as a pipeline, so that serialization, attachment
+ * decryption, frame encryption and I/O all overlap.
+ *
+ * The exporter thread hands over frames and attachments in backup order. Attachments are read
+ * and decrypted on a worker pool. A sequencer thread takes the results back in order and assigns
+ * each one its CTR counter. Counters have to follow the order frames are actually written in, so
+ * an attachment that fails to read must be resolved before anything after it gets a counter.
+ * Frames are then encrypted and MAC'd on the worker pool, and a writer thread writes them out in
+ * order.
+ *
+ * Attachments too large to hold in memory are streamed through by the writer thread instead.
+ */
+final class BackupFrameOutputStream extends FullBackupBase.BackupStream implements Closeable {
+
+  private static final String TAG = Log.tag(BackupFrameOutputStream.class);
+
+  private static final int QUEUE_CAPACITY    = 64;
+  private static final int MAX_BUFFERED_SIZE = 1024 * 1024;
+  private static final int BUFFER_BUDGET_KB  = 8 * 1024;
+  private static final int MAC_LENGTH        = 10;
+
+  private final OutputStream                      outputStream;
+  private final byte[]                            cipherKey;
+  private final byte[]                            macKey;
+  private final byte[]                            iv;
+  private final ExecutorService                   workers;
+  private final BlockingQueue<Future<Plaintext>>  plaintextQueue;
+  private final BlockingQueue<Future<Ciphertext>> ciphertextQueue;
+  private final Semaphore                         bufferBudget;
+  private final ThreadLocal<FrameCipher>          frameCiphers;
+  private final Thread                            sequencer;
+  private final Thread                            writer;
+  private final Stats                             stats;
+
+  private volatile Throwable failure;
+  private volatile boolean   aborted;
+
+  private int     counter;
+  private boolean endEnqueued;
+  private boolean stopped;
+
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, int formatVersion) throws IOException {
+    byte[]   salt    = Util.getSecretBytes(32);
+    byte[]   key     = getBackupKey(passphrase, salt);
+    byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+    byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+    this.cipherKey       = split[0];
+    this.macKey          = split[1];
+    this.outputStream    = output;
+    this.iv              = Util.getSecretBytes(16);
+    this.counter         = Conversions.byteArrayToInt(iv);
+    this.workers         = SignalExecutors.newCachedBoundedExecutor("signal-BackupWorker", 1, SignalExecutors.getIdealThreadCount());
+    this.plaintextQueue  = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    this.ciphertextQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    this.bufferBudget    = new Semaphore(BUFFER_BUDGET_KB);
+    this.stats           = new Stats();
+    this.frameCiphers    = new ThreadLocal<FrameCipher>() {
+      @Override
+      protected FrameCipher initialValue() {
+        return new FrameCipher();
+      }
+    };
+
+    byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                       .setIv(ByteString.copyFrom(iv))
+                                                                                       .setSalt(ByteString.copyFrom(salt))
+                                                                                       .setVersion(formatVersion))
+                                            .build().toByteArray();
+
+    outputStream.write(Conversions.intToByteArray(header.length));
+    outputStream.write(header);
+
+    this.sequencer = new Thread(this::runSequencer, "signal-BackupSequencer");
+    this.writer    = new Thread(this::runWriter, "signal-BackupWriter");
+
+    sequencer.start();
+    writer.start();
+  }
+
+  public void write(BackupProtos.SharedPreference preference) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+  }
+
+  public void write(BackupProtos.KeyValue keyValue) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+  }
+
+  public void write(BackupProtos.SqlStatement statement) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+  }
+
+  public void write(@NonNull String avatarName, @NonNull StreamSource source, long size) throws IOException {
+    writeStream(BackupProtos.BackupFrame.newBuilder()
+                                        .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                      .setRecipientId(avatarName)
+                                                                      .setLength(Util.toIntExact(size))
+                                                                      .build())
+                                        .build(),
+                source,
+                size);
+  }
+
+  public void write(@NonNull AttachmentId attachmentId, @NonNull StreamSource source, long size) throws IOException {
+    writeStream(BackupProtos.BackupFrame.newBuilder()
+                                        .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                              .setRowId(attachmentId.getRowId())
+                                                                              .setAttachmentId(attachmentId.getUniqueId())
+                                                                              .setLength(Util.toIntExact(size))
+                                                                              .build())
+                                        .build(),
+                source,
+                size);
+  }
+
+  public void writeSticker(long rowId, @NonNull StreamSource source, long size) throws IOException {
+    writeStream(BackupProtos.BackupFrame.newBuilder()
+                                        .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                        .setRowId(rowId)
+                                                                        .setLength(Util.toIntExact(size))
+                                                                        .build())
+                                        .build(),
+                source,
+                size);
+  }
+
+  void writeDatabaseVersion(int version) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                       .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                       .build());
+  }
+
+  /**
+   * Writes the final frame and blocks until everything before it has made it to the underlying
+   * stream.
+   */
+  void writeEnd() throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    enqueue(new SettableFuture<>(Plaintext.END));
+
+    endEnqueued = true;
+
+    stop();
+    throwIfFailed();
+
+    Log.i(TAG, stats.toString());
+  }
+
+  /**
+   * Stops the pipeline without closing the underlying stream. Anything not yet written is
+   * discarded. Does nothing if {@link #writeEnd()} already completed.
+   */
+  void stop() {
+    if (stopped) {
+      return;
+    }
+
+    stopped = true;
+
+    if (!endEnqueued) {
+      aborted = true;
+
+      try {
+        plaintextQueue.put(new SettableFuture<>(Plaintext.END));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    try {
+      sequencer.join();
+      writer.join();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } finally {
+      workers.shutdown();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stop();
+    outputStream.close();
+  }
+
+  private void writeFrame(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+    enqueue(new SettableFuture<>(Plaintext.frame(frame)));
+  }
+
+  private void writeStream(@NonNull BackupProtos.BackupFrame header, @NonNull StreamSource source, long size) throws IOException {
+    if (size <= MAX_BUFFERED_SIZE) {
+      int permits = (int) ((size + 1023) / 1024);
+
+      acquireBuffer(permits);
+      enqueue(workers.submit(() -> readAttachment(header, source, (int) size, permits)));
+    } else {
+      enqueue(workers.submit(() -> openAttachment(header, source, size)));
+    }
+  }
+
+  /**
+   * Polls so that the exporter doesn't hang if the pipeline has failed and stopped draining.
+   */
+  private void enqueue(@NonNull Future<Plaintext> plaintext) throws IOException {
+    throwIfFailed();
+
+    long startTime = System.nanoTime();
+
+    try {
+      while (!plaintextQueue.offer(plaintext, 100, TimeUnit.MILLISECONDS)) {
+        throwIfFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    stats.producer.record(0, System.nanoTime() - startTime);
+  }
+
+  /**
+   * Bounds how much attachment data can be held in memory at once. Polls so that the exporter
+   * doesn't hang if the writer has failed and stopped releasing buffers.
+   */
+  private void acquireBuffer(int permits) throws IOException {
+    long startTime = System.nanoTime();
+
+    try {
+      while (!bufferBudget.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+        throwIfFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    stats.producer.record(0, System.nanoTime() - startTime);
+  }
+
+  private void throwIfFailed() throws IOException {
+    Throwable throwable = failure;
+
+    if (throwable instanceof IOException) {
+      throw new IOException(throwable);
+    } else if (throwable != null) {
+      throw new AssertionError(throwable);
+    }
+  }
+
+  private void fail(@NonNull Throwable throwable) {
+    Log.w(TAG, "Backup pipeline failed!", throwable);
+
+    if (failure == null) {
+      failure = throwable;
+    }
+
+    aborted = true;
+  }
+
+  /**
+   * Runs on a worker.
+   */
+  private @NonNull Plaintext readAttachment(@NonNull BackupProtos.BackupFrame header, @NonNull StreamSource source, int size, int permits) {
+    long startTime = System.nanoTime();
+
+    try (InputStream inputStream = source.open()) {
+      byte[] data = new byte[size];
+      StreamUtil.readFully(inputStream, data, size);
+
+      if (inputStream.read() != -1) {
+        Log.w(TAG, "Size mismatch! Stream is longer than " + size + " bytes. Skipping.");
+        return Plaintext.skipped(permits);
+      }
+
+      stats.decrypt.record(size, System.nanoTime() - startTime);
+
+      return Plaintext.buffered(header, data, permits);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return Plaintext.skipped(permits);
+    }
+  }
+
+  /**
+   * Runs on a worker. Opening the stream up front means a missing file is skipped cleanly, rather
+   * than failing the backup once it reaches the writer.
+   */
+  private @NonNull Plaintext openAttachment(@NonNull BackupProtos.BackupFrame header, @NonNull StreamSource source, long size) {
+    try {
+      return Plaintext.streamed(header, source.open(), size);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return Plaintext.skipped(0);
+    }
+  }
+
+  /**
+   * Runs on a worker.
+   */
+  private @NonNull Ciphertext encrypt(@NonNull Plaintext plaintext, int frameCounter, int streamCounter) {
+    long        startTime = System.nanoTime();
+    FrameCipher cipher    = frameCiphers.get();
+    byte[]      frame     = cipher.encryptFrame(frameCounter, plaintext.frame.toByteArray());
+    byte[]      data      = plaintext.data != null ? cipher.encryptStream(streamCounter, plaintext.data) : null;
+
+    stats.encrypt.record(frame.length + (data != null ? data.length : 0), System.nanoTime() - startTime);
+
+    return new Ciphertext(frame, data, plaintext.stream, plaintext.size, streamCounter, plaintext.permits);
+  }
+
+  /**
+   * Keeps draining until it sees the end, even after a failure, so that neither the exporter nor
+   * {@link #stop()} can be left blocked on a full queue.
+   */
+  private void runSequencer() {
+    try {
+      while (true) {
+        Plaintext plaintext = await(plaintextQueue.take(), Plaintext.skipped(0));
+
+        if (plaintext == Plaintext.END) {
+          break;
+        }
+
+        if (aborted || plaintext.frame == null) {
+          discard(plaintext);
+          continue;
+        }
+
+        try {
+          int frameCounter  = counter++;
+          int streamCounter = plaintext.hasBody() ? counter++ : 0;
+
+          ciphertextQueue.put(workers.submit(() -> encrypt(plaintext, frameCounter, streamCounter)));
+        } catch (RuntimeException e) {
+          fail(e);
+          discard(plaintext);
+        }
+      }
+
+      ciphertextQueue.put(new SettableFuture<>(Ciphertext.END));
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void runWriter() {
+    try {
+      while (true) {
+        Ciphertext ciphertext = await(ciphertextQueue.take(), null);
+
+        if (ciphertext == Ciphertext.END) {
+          break;
+        }
+
+        if (ciphertext == null) {
+          continue;
+        }
+
+        try {
+          if (!aborted) {
+            write(ciphertext);
+          }
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        } finally {
+          StreamUtil.close(ciphertext.stream);
+          bufferBudget.release(ciphertext.permits);
+        }
+      }
+
+      if (!aborted) {
+        outputStream.flush();
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void discard(@NonNull Plaintext plaintext) {
+    StreamUtil.close(plaintext.stream);
+    bufferBudget.release(plaintext.permits);
+  }
+
+  private void write(@NonNull Ciphertext ciphertext) throws IOException {
+    long startTime = System.nanoTime();
+    long written   = ciphertext.frame.length;
+
+    outputStream.write(ciphertext.frame);
+
+    if (ciphertext.data != null) {
+      outputStream.write(ciphertext.data);
+      written += ciphertext.data.length;
+    } else if (ciphertext.stream != null) {
+      long total = frameCiphers.get().writeStream(ciphertext.streamCounter, ciphertext.stream, outputStream);
+
+      if (total != ciphertext.size) {
+        throw new IOException("Size mismatch!");
+      }
+
+      written += total + MAC_LENGTH;
+    }
+
+    stats.write.record(written, System.nanoTime() - startTime);
+  }
+
+  private @Nullable <T> T await(@NonNull Future<T> future, @Nullable T fallback) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      fail(e.getCause() != null ? e.getCause() : e);
+      return fallback;
+    } catch (CancellationException e) {
+      fail(e);
+      return fallback;
+    }
+  }
+
+  interface StreamSource {
+    @NonNull InputStream open() throws IOException;
+  }
+
+  /**
+   * Per-thread cipher state. Every frame gets its own IV, so frames can be encrypted on any thread
+   * in any order, as long as their counters were assigned in write order.
+   */
+  private final class FrameCipher {
+
+    private final Cipher cipher;
+    private final Mac    mac;
+
+    private FrameCipher() {
+      try {
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac    = Mac.getInstance("HmacSHA256");
+
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    /**
+     * @return The length-prefixed ciphertext of the frame, followed by its truncated MAC.
+     */
+    @NonNull byte[] encryptFrame(int counter, @NonNull byte[] plaintext) {
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(ivFor(counter)));
+
+        byte[] frameCiphertext = cipher.doFinal(plaintext);
+        byte[] frameMac        = mac.doFinal(frameCiphertext);
+        byte[] output          = new byte[4 + frameCiphertext.length + MAC_LENGTH];
+
+        Conversions.intToByteArray(output, 0, frameCiphertext.length + MAC_LENGTH);
+        System.arraycopy(frameCiphertext, 0, output, 4, frameCiphertext.length);
+        System.arraycopy(frameMac, 0, output, 4 + frameCiphertext.length, MAC_LENGTH);
+
+        return output;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    /**
+     * @return The ciphertext of an attachment body, followed by its truncated MAC.
+     */
+    @NonNull byte[] encryptStream(int counter, @NonNull byte[] plaintext) {
+      try {
+        byte[] streamIv = ivFor(counter);
+
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(streamIv));
+        mac.update(streamIv);
+
+        byte[] output = new byte[plaintext.length + MAC_LENGTH];
+        int    length = cipher.doFinal(plaintext, 0, plaintext.length, output, 0);
+
+        mac.update(output, 0, length);
+        System.arraycopy(mac.doFinal(), 0, output, length, MAC_LENGTH);
+
+        return output;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    /**
+     * @return The amount of data written from the provided InputStream.
+     */
+    long writeStream(int counter, @NonNull InputStream inputStream, @NonNull OutputStream out) throws IOException {
+      try {
+        byte[] streamIv = ivFor(counter);
+
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(streamIv));
+        mac.update(streamIv);
+
+        byte[] buffer = new byte[8192];
+        long   total  = 0;
+
+        int read;
+
+        while ((read = inputStream.read(buffer)) != -1) {
+          byte[] ciphertext = cipher.update(buffer, 0, read);
+
+          if (ciphertext != null) {
+            out.write(ciphertext);
+            mac.update(ciphertext);
+          }
+
+          total += read;
+        }
+
+        byte[] remainder = cipher.doFinal();
+        out.write(remainder);
+        mac.update(remainder);
+
+        byte[] attachmentDigest = mac.doFinal();
+        out.write(attachmentDigest, 0, MAC_LENGTH);
+
+        return total;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private @NonNull byte[] ivFor(int counter) {
+      byte[] frameIv = iv.clone();
+      Conversions.intToByteArray(frameIv, 0, counter);
+      return frameIv;
+    }
+  }
+
+  private static final class Plaintext {
+
+    static final Plaintext END = new Plaintext(null, null, null, 0, 0);
+
+    private final BackupProtos.BackupFrame frame;
+    private final byte[]                   data;
+    private final InputStream              stream;
+    private final long                     size;
+    private final int                      permits;
+
+    static @NonNull Plaintext frame(@NonNull BackupProtos.BackupFrame frame) {
+      return new Plaintext(frame, null, null, 0, 0);
+    }
+
+    static @NonNull Plaintext buffered(@NonNull BackupProtos.BackupFrame header, @NonNull byte[] data, int permits) {
+      return new Plaintext(header, data, null, data.length, permits);
+    }
+
+    static @NonNull Plaintext streamed(@NonNull BackupProtos.BackupFrame header, @NonNull InputStream stream, long size) {
+      return new Plaintext(header, null, stream, size, 0);
+    }
+
+    /**
+     * An attachment that couldn't be read. Nothing is written for it.
+     */
+    static @NonNull Plaintext skipped(int permits) {
+      return new Plaintext(null, null, null, 0, permits);
+    }
+
+    private Plaintext(@Nullable BackupProtos.BackupFrame frame, @Nullable byte[] data, @Nullable InputStream stream, long size, int permits) {
+      this.frame   = frame;
+      this.data    = data;
+      this.stream  = stream;
+      this.size    = size;
+      this.permits = permits;
+    }
+
+    boolean hasBody() {
+      return data != null || stream != null;
+    }
+  }
+
+  private static final class Ciphertext {
+
+    static final Ciphertext END = new Ciphertext(new byte[0], null, null, 0, 0, 0);
+
+    private final byte[]      frame;
+    private final byte[]      data;
+    private final InputStream stream;
+    private final long        size;
+    private final int         streamCounter;
+    private final int         permits;
+
+    private Ciphertext(@NonNull byte[] frame, @Nullable byte[] data, @Nullable InputStream stream, long size, int streamCounter, int permits) {
+      this.frame         = frame;
+      this.data          = data;
+      this.stream        = stream;
+      this.size          = size;
+      this.streamCounter = streamCounter;
+      this.permits       = permits;
+    }
+  }
+
+  /**
+   * Throughput of each stage. Time is summed across all threads working on a stage, so the rates
+   * are per thread. For the producer, time is how long the exporter spent blocked on the pipeline.
+   */
+  private static final class Stats {
+
+    private final Stage producer = new Stage("blocked");
+    private final Stage decrypt  = new Stage("decrypt");
+    private final Stage encrypt  = new Stage("encrypt");
+    private final Stage write    = new Stage("write");
+
+    @Override
+    public @NonNull String toString() {
+      return "[Backup Pipeline] " + decrypt + "  " + encrypt + "  " + write + "  " + producer;
+    }
+  }
+
+  private static final class Stage {
+
+    private final String     name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private Stage(@NonNull String name) {
+      this.name = name;
+    }
+
+    void record(long byteCount, long durationNanos) {
+      count.incrementAndGet();
+      bytes.addAndGet(byteCount);
+      nanos.addAndGet(durationNanos);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      long ms = TimeUnit.NANOSECONDS.toMillis(nanos.get());
+      long kb = bytes.get() / 1024;
+
+      if (kb == 0) {
+        return name + ": " + count.get() + " ops, " + ms + " ms";
+      }
+
+      return name + ": " + count.get() + " ops, " + kb + " KB, " + ms + " ms (" + (kb * 1000 / Math.max(ms, 1)) + " KB/s)";
+    }
+  }
+}
@@ -16,6 +16,20 @@ public abstract class FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(FullBackupBase.class);
 
+  /**
+   * Written to the backup header, so the importer can tell how the backup was written independently
+   * of the database version. Importers reject backups with a newer format than their own. Importers
+   * from before the header had a version ignore it, but they also reject the newer database version
+   * that every backup with a version comes from.
+   */
+  static final int BACKUP_FORMAT_VERSION = 1;
+
+  /**
+   * The first format in which attachments that share a {@link org.thoughtcrime.securesms.database.AttachmentDatabase#DATA_HASH}
+   * are only written once.
+   */
+  static final int DEDUPLICATED_ATTACHMENTS_FORMAT = 1;
+
   static class BackupStream {
     static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
       try {
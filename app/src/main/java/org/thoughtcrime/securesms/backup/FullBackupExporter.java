@@ -16,7 +16,6 @@ import com.google.protobuf.ByteString;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
-import org.signal.core.util.Conversions;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
@@ -29,6 +28,7 @@ import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.SessionDatabase;
 import org.thoughtcrime.securesms.database.SignedPreKeyDatabase;
@@ -41,31 +41,18 @@ import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.libsignal.kdf.HKDFv3;
-import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 public class FullBackupExporter extends FullBackupBase {
 
   private static final String TAG = Log.tag(FullBackupExporter.class);
@@ -75,7 +62,8 @@ public class FullBackupExporter extends FullBackupBase {
     OneTimePreKeyDatabase.TABLE_NAME,
     SessionDatabase.TABLE_NAME,
     SearchDatabase.SMS_FTS_TABLE_NAME,
-    SearchDatabase.MMS_FTS_TABLE_NAME
+    SearchDatabase.MMS_FTS_TABLE_NAME,
+    RecipientDatabase.FTS_TABLE_NAME
   );
 
   public static void export(@NonNull Context context,
@@ -124,8 +112,9 @@ public class FullBackupExporter extends FullBackupBase {
                                      @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(fileOutputStream, passphrase);
-    int                     count        = 0;
+    BackupFrameOutputStream outputStream      = new BackupFrameOutputStream(fileOutputStream, passphrase, BACKUP_FORMAT_VERSION);
+    Set<String>             writtenDataHashes = BACKUP_FORMAT_VERSION >= DEDUPLICATED_ATTACHMENTS_FORMAT ? new HashSet<>() : null;
+    int                     count             = 0;
 
     try {
       outputStream.writeDatabaseVersion(input.getVersion());
@@ -145,7 +134,7 @@ public class FullBackupExporter extends FullBackupBase {
         } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, cancellationSignal);
         } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, writtenDataHashes, innerCount), count, cancellationSignal);
         } else if (table.equals(StickerDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
         } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
@@ -176,17 +165,21 @@ public class FullBackupExporter extends FullBackupBase {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
           EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-          outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
+          outputStream.write(avatar.getFilename(), avatar::getInputStream, avatar.getLength());
         }
       }
 
       stopwatch.split("avatars");
-      stopwatch.stop(TAG);
 
       outputStream.writeEnd();
+
+      stopwatch.split("flush");
+      stopwatch.stop(TAG);
     } finally {
       if (closeOutputStream) {
         outputStream.close();
+      } else {
+        outputStream.stop();
       }
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
     }
@@ -211,10 +204,11 @@ public class FullBackupExporter extends FullBackupBase {
 
         if (sql != null) {
 
-          boolean isSmsFtsSecretTable = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
-          boolean isMmsFtsSecretTable = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          boolean isSmsFtsSecretTable       = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
+          boolean isMmsFtsSecretTable       = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          boolean isRecipientFtsSecretTable = name != null && !name.equals(RecipientDatabase.FTS_TABLE_NAME) && name.startsWith(RecipientDatabase.FTS_TABLE_NAME);
 
-          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable) {
+          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable && !isRecipientFtsSecretTable) {
             if ("table".equals(type)) {
               tables.add(name);
             }
@@ -286,14 +280,27 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count) {
+  /**
+   * Attachments that share a {@link AttachmentDatabase#DATA_HASH} share a file on disk, so only the
+   * first of them is written. The importer points the rest at the restored file.
+   *
+   * @param writtenDataHashes The data hashes written so far, or null if every attachment should be
+   *                          written.
+   */
+  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
+                                      @NonNull Cursor cursor,
+                                      @NonNull BackupFrameOutputStream outputStream,
+                                      @Nullable Set<String> writtenDataHashes,
+                                      int count)
+  {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
       long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
 
-      String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
-      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+      String data     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
+      String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_HASH));
+      byte[] random   = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
 
       if (!TextUtils.isEmpty(data)) {
         long fileLength = new File(data).length();
@@ -306,13 +313,17 @@ public class FullBackupExporter extends FullBackupBase {
       }
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream;
+        if (writtenDataHashes != null && dataHash != null && !writtenDataHashes.add(dataHash)) {
+          return count;
+        }
+
+        BackupFrameOutputStream.StreamSource source;
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+        if (random != null && random.length == 32) source = () -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+        else                                       source = () -> ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
 
         EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+        outputStream.write(new AttachmentId(rowId, uniqueId), source, size);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -331,8 +342,7 @@ public class FullBackupExporter extends FullBackupBase {
 
       if (!TextUtils.isEmpty(data) && size > 0) {
         EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-        InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        outputStream.writeSticker(rowId, inputStream, size);
+        outputStream.writeSticker(rowId, () -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0), size);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -422,172 +432,6 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
-
-  private static class BackupFrameOutputStream extends BackupStream {
-
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
-
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
-
-    private byte[] iv;
-    private int    counter;
-
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
-
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
-    }
-
-    public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
-    }
-
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
-    }
-
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setRecipientId(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                  .setRowId(rowId)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
-    }
-
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
-    }
-
-    /**
-     * @return The amount of data written from the provided InputStream.
-     */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-
-          total += read;
-        }
-
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
-
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
-
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-
-    public void close() throws IOException {
-      outputStream.close();
-    }
-  }
-
   public interface PostProcessor {
     int postProcess(@NonNull Cursor cursor, int count);
   }
@@ -10,6 +10,7 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
@@ -17,6 +18,7 @@ import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
 import org.thoughtcrime.securesms.backup.BackupProtos.DatabaseVersion;
@@ -27,6 +29,7 @@ import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.StickerDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -49,10 +52,13 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -80,12 +86,18 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    int                        count               = 0;
+    Map<String, ContentValues> restoredDataHashes  = null;
+    Set<AttachmentId>          restoredAttachments = new HashSet<>();
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
     try {
       BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
 
+      if (inputStream.getFormatVersion() >= DEDUPLICATED_ATTACHMENTS_FORMAT) {
+        restoredDataHashes = new HashMap<>();
+      }
+
       db.beginTransaction();
       keyValueDatabase.beginTransaction();
 
@@ -100,13 +112,17 @@ public class FullBackupImporter extends FullBackupBase {
         if      (frame.hasVersion())    processVersion(db, frame.getVersion());
         else if (frame.hasStatement())  processStatement(db, frame.getStatement());
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, restoredDataHashes, restoredAttachments);
         else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
         else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
         else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
         else                            count--;
       }
 
+      if (restoredDataHashes != null) {
+        restoreDeduplicatedAttachments(db, restoredDataHashes, restoredAttachments);
+      }
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -134,11 +150,12 @@ public class FullBackupImporter extends FullBackupBase {
   }
 
   private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
+    boolean isForSmsFtsSecretTable       = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
+    boolean isForMmsFtsSecretTable       = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+    boolean isForRecipientFtsSecretTable = statement.getStatement().contains(RecipientDatabase.FTS_TABLE_NAME + "_");
+    boolean isForSqliteSecretTable       = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
 
-    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
+    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForRecipientFtsSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
       return;
     }
@@ -157,9 +174,17 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.getStatement());
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context,
+                                        @NonNull AttachmentSecret attachmentSecret,
+                                        @NonNull SQLiteDatabase db,
+                                        @NonNull Attachment attachment,
+                                        BackupRecordInputStream inputStream,
+                                        @Nullable Map<String, ContentValues> restoredDataHashes,
+                                        @NonNull Set<AttachmentId> restoredAttachments)
       throws IOException
   {
+    AttachmentId attachmentId = new AttachmentId(attachment.getRowId(), attachment.getAttachmentId());
+
     File                       partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File                       dataFile       = File.createTempFile("part", ".mms", partsDirectory);
     Pair<byte[], OutputStream> output         = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
@@ -180,7 +205,78 @@ public class FullBackupImporter extends FullBackupBase {
 
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
-              new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+              attachmentId.toStrings());
+
+    boolean restored = contentValues.getAsString(AttachmentDatabase.DATA) != null;
+
+    if (restored) {
+      restoredAttachments.add(attachmentId);
+    }
+
+    if (restoredDataHashes == null) {
+      return;
+    }
+
+    String dataHash = getDataHash(db, attachmentId);
+
+    if (dataHash != null) {
+      ContentValues existing = restoredDataHashes.get(dataHash);
+
+      if (existing == null || (restored && existing.getAsString(AttachmentDatabase.DATA) == null)) {
+        restoredDataHashes.put(dataHash, contentValues);
+      }
+    }
+  }
+
+  private static @Nullable String getDataHash(@NonNull SQLiteDatabase db, @NonNull AttachmentId attachmentId) {
+    String[] projection = new String[] { AttachmentDatabase.DATA_HASH };
+    String   where      = AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?";
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, projection, where, attachmentId.toStrings(), null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getString(0);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * The exporter only writes one copy of attachments that share a data hash. Everything that wasn't
+   * restored from its own copy gets pointed at the first copy that was restored for its hash. If
+   * none of them could be, they're all cleared, rather than left pointing at files that don't exist.
+   */
+  private static void restoreDeduplicatedAttachments(@NonNull SQLiteDatabase db,
+                                                     @NonNull Map<String, ContentValues> restoredDataHashes,
+                                                     @NonNull Set<AttachmentId> restoredAttachments)
+  {
+    String[] projection = new String[] { AttachmentDatabase.ROW_ID, AttachmentDatabase.UNIQUE_ID };
+    String   where      = AttachmentDatabase.DATA_HASH + " = ?";
+    int      restored   = 0;
+    int      cleared    = 0;
+
+    for (Map.Entry<String, ContentValues> entry : restoredDataHashes.entrySet()) {
+      boolean hasData = entry.getValue().getAsString(AttachmentDatabase.DATA) != null;
+
+      try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, projection, where, new String[] { entry.getKey() }, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          AttachmentId attachmentId = new AttachmentId(cursor.getLong(0), cursor.getLong(1));
+
+          if (!restoredAttachments.contains(attachmentId)) {
+            db.update(AttachmentDatabase.TABLE_NAME, entry.getValue(),
+                      AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
+                      attachmentId.toStrings());
+
+            if (hasData) restored++;
+            else         cleared++;
+          }
+        }
+      }
+    }
+
+    if (restored > 0 || cleared > 0) {
+      Log.i(TAG, "Pointed " + restored + " deduplicated attachments at their restored files. Cleared " + cleared + " that had no restored copy.");
+    }
   }
 
   private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
@@ -280,6 +376,8 @@ public class FullBackupImporter extends FullBackupBase {
     private final byte[] cipherKey;
     private final byte[] macKey;
 
+    private final int formatVersion;
+
     private byte[] iv;
     private int    counter;
 
@@ -302,7 +400,12 @@ public class FullBackupImporter extends FullBackupBase {
 
         BackupProtos.Header header = frame.getHeader();
 
-        this.iv = header.getIv().toByteArray();
+        if (header.getVersion() > BACKUP_FORMAT_VERSION) {
+          throw new DatabaseDowngradeException("Tried to import a backup with format " + header.getVersion() + ", but only up to " + BACKUP_FORMAT_VERSION + " is supported");
+        }
+
+        this.formatVersion = header.getVersion();
+        this.iv            = header.getIv().toByteArray();
 
         if (iv.length != 16) {
           throw new IOException("Invalid IV length!");
@@ -325,6 +428,13 @@ public class FullBackupImporter extends FullBackupBase {
       }
     }
 
+    /**
+     * @return The format the backup was written in, or 0 if it was written before the header had one.
+     */
+    int getFormatVersion() {
+      return formatVersion;
+    }
+
     BackupFrame readFrame() throws IOException {
       return readFrame(in);
     }
@@ -411,7 +521,11 @@ public class FullBackupImporter extends FullBackupBase {
 
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
-      super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
+      this("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
+    }
+
+    DatabaseDowngradeException(@NonNull String message) {
+      super(message);
     }
   }
 }
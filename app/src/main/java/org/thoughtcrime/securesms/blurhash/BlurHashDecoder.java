@@ -25,7 +25,10 @@ import android.graphics.Color;
 
 import androidx.annotation.Nullable;
 
-import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
+import java.util.Arrays;
+
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.cosineTable;
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGBFast;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
@@ -86,28 +89,50 @@ class BlurHashDecoder {
     };
   }
 
+  /**
+   * Like the encoder, the basis functions are separable: for each row the vertical components are
+   * folded into one color per horizontal component, leaving a short sum per pixel. Cosines come
+   * from per-axis tables and the pixels are written in one pass.
+   */
   private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    double[] cosX      = cosineTable(numCompX, width);
+    double[] cosY      = cosineTable(numCompY, height);
+    double[] rowColors = new double[numCompX * 3];
+    int[]    pixels    = new int[width * height];
+
     for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
+      Arrays.fill(rowColors, 0);
+
+      for (int j = 0; j < numCompY; j++) {
+        double basis = cosY[y * numCompY + j];
+
+        for (int i = 0; i < numCompX; i++) {
+          double[] color = colors[j * numCompX + i];
+          rowColors[i * 3]     += color[0] * basis;
+          rowColors[i * 3 + 1] += color[1] * basis;
+          rowColors[i * 3 + 2] += color[2] * basis;
+        }
+      }
 
+      for (int x = 0, offset = y * width; x < width; x++) {
         double r = 0f;
         double g = 0f;
         double b = 0f;
 
-        for (int j = 0; j < numCompY; j++) {
-          for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
-          }
+        for (int i = 0, c = x * numCompX; i < numCompX; i++) {
+          double basis = cosX[c + i];
+          r += rowColors[i * 3]     * basis;
+          g += rowColors[i * 3 + 1] * basis;
+          b += rowColors[i * 3 + 2] * basis;
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+
+        pixels[offset + x] = Color.rgb(linearTosRGBFast(r), linearTosRGBFast(g), linearTosRGBFast(b));
       }
     }
 
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+
     return bitmap;
   }
 }
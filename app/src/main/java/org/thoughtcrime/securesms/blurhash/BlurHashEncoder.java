@@ -27,8 +27,14 @@ import android.graphics.BitmapFactory;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.signal.core.util.concurrent.SignalExecutors;
+
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.cosineTable;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.max;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
@@ -36,6 +42,10 @@ import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
 public final class BlurHashEncoder {
 
+  /** Images with at least this many pixels are split into bands of rows and encoded in parallel. */
+  private static final int PARALLEL_PIXEL_THRESHOLD = 256 * 256;
+  private static final int MIN_ROWS_PER_BAND        = 32;
+
   private BlurHashEncoder() {
   }
 
@@ -65,7 +75,7 @@ public final class BlurHashEncoder {
     return encode(pixels, width, height, componentX, componentY);
   }
 
-  private static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
+  static String encode(int[] pixels, int width, int height, int componentX, int componentY) {
 
     if (componentX < 1 || componentX > 9 || componentY < 1 || componentY > 9) {
       throw new IllegalArgumentException("Blur hash must have between 1 and 9 components");
@@ -74,15 +84,7 @@ public final class BlurHashEncoder {
       throw new IllegalArgumentException("Width and height must match the pixels array");
     }
 
-    double[][] factors = new double[componentX * componentY][3];
-    for (int j = 0; j < componentY; j++) {
-      for (int i = 0; i < componentX; i++) {
-        double normalisation = i == 0 && j == 0 ? 1 : 2;
-        applyBasisFunction(pixels, width, height,
-            normalisation, i, j,
-            factors, j * componentX + i);
-      }
-    }
+    double[][] factors = computeFactors(pixels, width, height, componentX, componentY);
 
     char[] hash = new char[1 + 1 + 4 + 2 * (factors.length - 1)]; // size flag + max AC + DC + 2 * AC components
 
@@ -109,26 +111,149 @@ public final class BlurHashEncoder {
     return new String(hash);
   }
 
-  private static void applyBasisFunction(int[] pixels, int width, int height,
-                                         double normalisation, int i, int j,
-                                         double[][] factors, int index)
+  /**
+   * The basis functions are separable, so each row is first reduced to one sum per horizontal
+   * component, and those sums are then folded into every vertical component. Pixels are visited
+   * once, in memory order, and the cosines come from per-axis tables.
+   */
+  private static double[][] computeFactors(int[] pixels, int width, int height, int componentX, int componentY) {
+    double[]   cosX  = cosineTable(componentX, width);
+    double[]   cosY  = cosineTable(componentY, height);
+    int        bands = getBandCount(width, height);
+    double[][] sums;
+
+    if (bands == 1) {
+      sums = new double[][] { computeBand(pixels, width, 0, height, componentX, componentY, cosX, cosY) };
+    } else {
+      sums = computeBandsInParallel(pixels, width, height, bands, componentX, componentY, cosX, cosY);
+    }
+
+    double[][] factors = new double[componentX * componentY][3];
+    double     scale   = 1.0 / (width * height);
+
+    for (int k = 0; k < factors.length; k++) {
+      double normalisation = k == 0 ? 1 : 2;
+
+      for (double[] band : sums) {
+        factors[k][0] += band[k * 3];
+        factors[k][1] += band[k * 3 + 1];
+        factors[k][2] += band[k * 3 + 2];
+      }
+
+      factors[k][0] *= normalisation * scale;
+      factors[k][1] *= normalisation * scale;
+      factors[k][2] *= normalisation * scale;
+    }
+
+    return factors;
+  }
+
+  /**
+   * @return Unnormalised sums for rows [startRow, endRow), as r, g, b triples for each component.
+   */
+  private static double[] computeBand(int[] pixels, int width, int startRow, int endRow,
+                                      int componentX, int componentY,
+                                      double[] cosX, double[] cosY)
   {
-    double r = 0, g = 0, b = 0;
-    for (int x = 0; x < width; x++) {
-      for (int y = 0; y < height; y++) {
-        double basis = normalisation
-                     * Math.cos((Math.PI * i * x) / width)
-                     * Math.cos((Math.PI * j * y) / height);
-        int pixel = pixels[y * width + x];
-        r += basis * sRGBToLinear((pixel >> 16) & 0xff);
-        g += basis * sRGBToLinear((pixel >> 8)  & 0xff);
-        b += basis * sRGBToLinear( pixel        & 0xff);
+    double[] sums    = new double[componentX * componentY * 3];
+    double[] rowSums = new double[componentX * 3];
+
+    for (int y = startRow; y < endRow; y++) {
+      Arrays.fill(rowSums, 0);
+
+      for (int x = 0, offset = y * width; x < width; x++) {
+        int    pixel = pixels[offset + x];
+        double r     = sRGBToLinear((pixel >> 16) & 0xff);
+        double g     = sRGBToLinear((pixel >> 8)  & 0xff);
+        double b     = sRGBToLinear( pixel        & 0xff);
+
+        for (int i = 0, c = x * componentX; i < componentX; i++) {
+          double basis = cosX[c + i];
+          rowSums[i * 3]     += basis * r;
+          rowSums[i * 3 + 1] += basis * g;
+          rowSums[i * 3 + 2] += basis * b;
+        }
+      }
+
+      for (int j = 0; j < componentY; j++) {
+        double basis = cosY[y * componentY + j];
+
+        for (int i = 0; i < componentX; i++) {
+          int k = (j * componentX + i) * 3;
+          sums[k]     += basis * rowSums[i * 3];
+          sums[k + 1] += basis * rowSums[i * 3 + 1];
+          sums[k + 2] += basis * rowSums[i * 3 + 2];
+        }
       }
     }
-    double scale = 1.0 / (width * height);
-    factors[index][0] = r * scale;
-    factors[index][1] = g * scale;
-    factors[index][2] = b * scale;
+
+    return sums;
+  }
+
+  /**
+   * Bands are claimed by whichever thread gets to them first, including the calling thread, so
+   * this finishes even if every {@link SignalExecutors#BOUNDED} thread is busy. Band results are
+   * kept separate and summed in order, so the hash doesn't depend on scheduling.
+   */
+  private static double[][] computeBandsInParallel(int[] pixels, int width, int height, int bands,
+                                                   int componentX, int componentY,
+                                                   double[] cosX, double[] cosY)
+  {
+    double[][]     sums      = new double[bands][];
+    int            bandSize  = (height + bands - 1) / bands;
+    AtomicInteger  nextBand  = new AtomicInteger();
+    CountDownLatch completed = new CountDownLatch(bands);
+
+    Runnable worker = () -> {
+      int band;
+
+      while ((band = nextBand.getAndIncrement()) < bands) {
+        try {
+          int startRow = band * bandSize;
+          int endRow   = Math.min(height, startRow + bandSize);
+
+          sums[band] = computeBand(pixels, width, startRow, endRow, componentX, componentY, cosX, cosY);
+        } finally {
+          completed.countDown();
+        }
+      }
+    };
+
+    for (int i = 1, helpers = Math.min(bands, SignalExecutors.getIdealThreadCount()); i < helpers; i++) {
+      SignalExecutors.BOUNDED.execute(worker);
+    }
+
+    worker.run();
+
+    boolean interrupted = false;
+
+    while (completed.getCount() > 0) {
+      try {
+        completed.await();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (double[] band : sums) {
+      if (band == null) {
+        throw new AssertionError("A band failed to encode!");
+      }
+    }
+
+    return sums;
+  }
+
+  private static int getBandCount(int width, int height) {
+    if (width * height < PARALLEL_PIXEL_THRESHOLD) {
+      return 1;
+    }
+
+    return Math.max(1, Math.min(SignalExecutors.getIdealThreadCount() * 2, height / MIN_ROWS_PER_BAND));
   }
 
   private static long encodeDC(double[] value) {
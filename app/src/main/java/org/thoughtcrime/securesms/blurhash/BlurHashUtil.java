@@ -22,12 +22,24 @@ package org.thoughtcrime.securesms.blurhash;
 
 final class BlurHashUtil {
 
+  private static final double[] SRGB_TO_LINEAR    = new double[256];
+  private static final double[] LINEAR_THRESHOLDS = new double[255];
+
+  static {
+    for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+      SRGB_TO_LINEAR[i] = computeSRGBToLinear(i);
+    }
+
+    for (int i = 0; i < LINEAR_THRESHOLDS.length; i++) {
+      LINEAR_THRESHOLDS[i] = computeLinearThreshold(i + 1);
+    }
+  }
+
   static double sRGBToLinear(long value) {
-    double v = value / 255.0;
-    if (v <= 0.04045) {
-      return v / 12.92;
+    if (value >= 0 && value < SRGB_TO_LINEAR.length) {
+      return SRGB_TO_LINEAR[(int) value];
     } else {
-      return Math.pow((v + 0.055) / 1.055, 2.4);
+      return computeSRGBToLinear(value);
     }
   }
 
@@ -40,10 +52,73 @@ final class BlurHashUtil {
     }
   }
 
+  /**
+   * Same result as {@link #linearTosRGB(double)}, but found by a binary search over precomputed
+   * thresholds rather than with {@link Math#pow}.
+   */
+  static int linearTosRGBFast(double value) {
+    int low  = 0;
+    int high = LINEAR_THRESHOLDS.length;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+
+      if (LINEAR_THRESHOLDS[mid] <= value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  private static double computeSRGBToLinear(long value) {
+    double v = value / 255.0;
+    if (v <= 0.04045) {
+      return v / 12.92;
+    } else {
+      return Math.pow((v + 0.055) / 1.055, 2.4);
+    }
+  }
+
+  /**
+   * @return The smallest linear value that {@link #linearTosRGB(double)} maps to at least the target.
+   */
+  private static double computeLinearThreshold(int target) {
+    double s         = (target - 0.5) / 255.0;
+    double threshold = s <= 0.04045 ? s / 12.92 : Math.pow((s + 0.055) / 1.055, 2.4);
+
+    while (linearTosRGB(threshold) < target) {
+      threshold = Math.nextUp(threshold);
+    }
+
+    while (linearTosRGB(Math.nextAfter(threshold, Double.NEGATIVE_INFINITY)) >= target) {
+      threshold = Math.nextAfter(threshold, Double.NEGATIVE_INFINITY);
+    }
+
+    return threshold;
+  }
+
   static double signPow(double val, double exp) {
     return Math.copySign(Math.pow(Math.abs(val), exp), val);
   }
 
+  /**
+   * @return cos(PI * component * position / size), indexed by [position * components + component].
+   */
+  static double[] cosineTable(int components, int size) {
+    double[] table = new double[size * components];
+
+    for (int position = 0; position < size; position++) {
+      for (int component = 0; component < components; component++) {
+        table[position * components + component] = Math.cos(Math.PI * component * position / size);
+      }
+    }
+
+    return table;
+  }
+
   static double max(double[][] values, int from, int endExclusive) {
     double result = Double.NEGATIVE_INFINITY;
     for (int i = from; i < endExclusive; i++) {
@@ -59,7 +59,7 @@ class ConversationDataSource implements PagedDataSource<ConversationMessage> {
     List<MessageRecord> records       = new ArrayList<>(length);
     MentionHelper       mentionHelper = new MentionHelper();
 
-    try (MmsSmsDatabase.Reader reader = MmsSmsDatabase.readerFor(db.getConversation(threadId, start, length))) {
+    try (MmsSmsDatabase.Reader reader = db.getConversationPage(threadId, start, length)) {
       MessageRecord record;
       while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
         records.add(record);
@@ -0,0 +1,254 @@
+package org.thoughtcrime.securesms.crypto;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.Conversions;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random-access decryption of files written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * The files are AES-CTR encrypted with a zero IV, so the counter for any 16-byte block is just its
+ * index. Seeking is therefore a matter of computing the counter for the block containing the
+ * requested position, rather than decrypting everything before it. The key is derived once and the
+ * file is kept open, and reads use positional {@link FileChannel} I/O, so concurrent readers don't
+ * share a file pointer.
+ */
+public final class ModernDecryptingPartChannel implements Closeable {
+
+  private static final int BLOCK_SIZE  = 16;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final FileInputStream inputStream;
+  private final FileChannel     channel;
+  private final SecretKeySpec   key;
+  private final long            dataOffset;
+
+  /**
+   * For files that store their random key material in a 32 byte header, like blobs and avatars.
+   */
+  public static ModernDecryptingPartChannel open(@NonNull AttachmentSecret attachmentSecret, @NonNull File file) throws IOException {
+    FileInputStream inputStream = new FileInputStream(file);
+    byte[]          random      = new byte[32];
+
+    try {
+      if (readFully(inputStream.getChannel(), ByteBuffer.wrap(random), 0) != random.length) {
+        throw new EOFException("Prematurely reached end of file!");
+      }
+    } catch (IOException e) {
+      inputStream.close();
+      throw e;
+    }
+
+    return new ModernDecryptingPartChannel(attachmentSecret, random, inputStream, random.length);
+  }
+
+  /**
+   * For files whose random key material is stored elsewhere, like attachments.
+   */
+  public static ModernDecryptingPartChannel open(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file) throws IOException {
+    return new ModernDecryptingPartChannel(attachmentSecret, random, new FileInputStream(file), 0);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull FileInputStream inputStream, long dataOffset)
+      throws IOException
+  {
+    this.inputStream = inputStream;
+    this.channel     = inputStream.getChannel();
+    this.dataOffset  = dataOffset;
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key = new SecretKeySpec(mac.doFinal(random), "AES");
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return The current plaintext length. May grow if the file is still being written.
+   */
+  public long size() throws IOException {
+    return Math.max(0, channel.size() - dataOffset);
+  }
+
+  /**
+   * Decrypts up to {@code length} bytes starting at the plaintext {@code position}. Safe to call
+   * from multiple threads at once.
+   *
+   * @return The number of bytes read, or -1 if the position is at or past the end.
+   */
+  public int read(long position, @NonNull byte[] out, int offset, int length) throws IOException {
+    long size = size();
+
+    if (position >= size) {
+      return -1;
+    }
+
+    length = (int) Math.min(length, size - position);
+
+    if (length <= 0) {
+      return 0;
+    }
+
+    long   blockIndex = position / BLOCK_SIZE;
+    int    skip       = (int) (position % BLOCK_SIZE);
+    byte[] ciphertext = new byte[skip + length];
+
+    int read = readFully(channel, ByteBuffer.wrap(ciphertext), dataOffset + blockIndex * BLOCK_SIZE);
+
+    if (read <= skip) {
+      return -1;
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counterFor(blockIndex)));
+
+      byte[] plaintext = new byte[read];
+      cipher.doFinal(ciphertext, 0, read, plaintext, 0);
+
+      System.arraycopy(plaintext, skip, out, offset, read - skip);
+
+      return read - skip;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException |
+             ShortBufferException | IllegalBlockSizeException | BadPaddingException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return A sequential stream starting at the provided plaintext position. The stream shares
+   *         this channel, so closing the stream does not close the channel.
+   */
+  public @NonNull InputStream createInputStream(long position) {
+    return new ChannelInputStream(position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    inputStream.close();
+  }
+
+  private static @NonNull byte[] counterFor(long blockIndex) {
+    byte[] iv = new byte[16];
+    Conversions.longToByteArray(iv, 8, blockIndex);
+    return iv;
+  }
+
+  /**
+   * Reads until the buffer is full or the end of the file is reached.
+   *
+   * @return The number of bytes read.
+   */
+  private static int readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+    int total = 0;
+
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+
+      if (read == -1) {
+        break;
+      }
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  private final class ChannelInputStream extends InputStream {
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private long position;
+    private int  bufferOffset;
+    private int  bufferLength;
+
+    private ChannelInputStream(long position) {
+      this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int    read   = read(single, 0, 1);
+
+      return read == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] out, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      if (bufferOffset == bufferLength) {
+        int read = ModernDecryptingPartChannel.this.read(position, buffer, 0, buffer.length);
+
+        if (read == -1) {
+          return -1;
+        }
+
+        bufferOffset = 0;
+        bufferLength = read;
+      }
+
+      int count = Math.min(length, bufferLength - bufferOffset);
+      System.arraycopy(buffer, bufferOffset, out, offset, count);
+
+      bufferOffset += count;
+      position     += count;
+
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+
+      long skipped  = Math.min(n, Math.max(0, size() - position));
+      long buffered = bufferLength - bufferOffset;
+
+      if (skipped < buffered) {
+        bufferOffset += skipped;
+      } else {
+        bufferOffset = 0;
+        bufferLength = 0;
+      }
+
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return bufferLength - bufferOffset;
+    }
+  }
+}
@@ -59,6 +59,7 @@ import org.thoughtcrime.securesms.util.FileUtils;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
+import org.thoughtcrime.securesms.util.SqlUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -269,6 +270,39 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the attachments for many messages with a single query, rather than decoding a JSON
+   * array of them for every message row.
+   *
+   * @return A map of message id to its attachments. Messages without attachments are absent.
+   */
+  public @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull Collection<Long> mmsIds) {
+    Map<Long, List<DatabaseAttachment>> results = new HashMap<>();
+
+    if (mmsIds.isEmpty()) {
+      return results;
+    }
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    SqlUtil.Query  query    = SqlUtil.buildCollectionQuery(MMS_ID, mmsIds);
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, query.getWhere(), query.getWhereArgs(), null, null, MMS_ID + " ASC, " + UNIQUE_ID + " ASC, " + ROW_ID + " ASC")) {
+      while (cursor != null && cursor.moveToNext()) {
+        long                     mmsId       = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        List<DatabaseAttachment> attachments = results.get(mmsId);
+
+        if (attachments == null) {
+          attachments = new LinkedList<>();
+          results.put(mmsId, attachments);
+        }
+
+        attachments.addAll(getAttachment(cursor));
+      }
+    }
+
+    return results;
+  }
+
   public boolean hasAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
@@ -1024,12 +1058,22 @@ public class AttachmentDatabase extends Database {
                                               @Nullable AttachmentId attachmentId)
       throws MmsException
   {
+    File dataFile;
+
     try {
-      File dataFile = newFile();
-      return setAttachmentData(dataFile, in, attachmentId);
+      dataFile = newFile();
     } catch (IOException e) {
       throw new MmsException(e);
     }
+
+    try {
+      return setAttachmentData(dataFile, in, attachmentId);
+    } catch (MmsException e) {
+      if (dataFile.exists() && !dataFile.delete()) {
+        Log.w(TAG, "[setAttachmentData] Failed to delete partially written file. " + dataFile.getAbsolutePath());
+      }
+      throw e;
+    }
   }
 
   public File newFile() throws IOException {
@@ -40,7 +40,7 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(Set<Long> threadIds) {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadIds);
+    runPostTransaction(() -> ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadIds));
 
     for (long threadId : threadIds) {
       notifyConversationListeners(threadId);
@@ -48,27 +48,31 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId);
+      context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    });
 
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
     notifyVerboseConversationListeners(threadId);
   }
 
   protected void notifyVerboseConversationListeners(long threadId) {
-    ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(threadId);
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(threadId);
+      context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    });
   }
 
   protected void notifyConversationListListeners() {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListListeners();
+    runPostTransaction(() -> ApplicationDependencies.getDatabaseObserver().notifyConversationListListeners());
   }
 
   protected void notifyStickerListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null));
   }
 
   protected void notifyStickerPackListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null));
   }
 
   @Deprecated
@@ -103,7 +107,16 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null));
+  }
+
+  /**
+   * Listeners re-query on other threads, which read from connections that can't see a transaction
+   * until it's committed. Notifying them from inside one would have them load the old data and then
+   * miss the change, so notifications wait for the current thread's transaction to end.
+   */
+  private void runPostTransaction(@NonNull Runnable notification) {
+    databaseHelper.getWritableDatabase().runPostTransaction(notification);
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
@@ -257,6 +257,14 @@ public class DatabaseFactory {
     return databaseHelper.getWritableDatabase().getSqlCipherDatabase();
   }
 
+  /**
+   * Unlike {@link #getRawDatabase()}, transactions made through this are traced and schedule WAL
+   * checkpoints like those made by the individual databases.
+   */
+  public org.thoughtcrime.securesms.database.SQLiteDatabase getWritableDatabase() {
+    return databaseHelper.getWritableDatabase();
+  }
+
   public boolean hasTable(String table) {
     return SqlUtil.tableExists(databaseHelper.getReadableDatabase().getSqlCipherDatabase(), table);
   }
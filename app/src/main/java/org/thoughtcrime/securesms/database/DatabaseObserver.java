@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.database;
 
 import android.app.Application;
+import android.os.Handler;
 
 import androidx.annotation.NonNull;
 
@@ -13,16 +14,26 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link Database}. We should move to this over time.
+ *
+ * Notifications are coalesced: everything requested within a short window is merged per thread,
+ * payment, or list, and each observer (and content URI) is notified at most once when the window
+ * closes. This keeps bursts of writes, like a large sync, from re-running the same queries over and
+ * over.
  */
 public final class DatabaseObserver {
 
+  private static final long DEFAULT_COALESCE_WINDOW_MS = 32;
+
   private final Application application;
   private final Executor    executor;
+  private final Handler     handler;
+  private final long        coalesceWindowMs;
 
   private final Set<Observer>            conversationListObservers;
   private final Map<Long, Set<Observer>> conversationObservers;
@@ -30,14 +41,30 @@ public final class DatabaseObserver {
   private final Map<UUID, Set<Observer>> paymentObservers;
   private final Set<Observer>            allPaymentsObservers;
 
+  private final PendingNotifications pending;
+  private final AtomicLong           requestedNotifications;
+  private final AtomicLong           deliveredNotifications;
+
   public DatabaseObserver(Application application) {
+    this(application, DEFAULT_COALESCE_WINDOW_MS);
+  }
+
+  /**
+   * @param coalesceWindowMs How long to collect notifications for before dispatching them.
+   */
+  public DatabaseObserver(Application application, long coalesceWindowMs) {
     this.application                  = application;
     this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.handler                      = new Handler(SignalExecutors.getAndStartHandlerThread("signal-DatabaseObserver").getLooper());
+    this.coalesceWindowMs             = coalesceWindowMs;
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
     this.paymentObservers             = new HashMap<>();
     this.allPaymentsObservers         = new HashSet<>();
+    this.pending                      = new PendingNotifications();
+    this.requestedNotifications       = new AtomicLong();
+    this.deliveredNotifications       = new AtomicLong();
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -80,55 +107,131 @@ public final class DatabaseObserver {
   }
 
   public void notifyConversationListeners(Set<Long> threadIds) {
-    executor.execute(() -> {
+    synchronized (pending) {
       for (long threadId : threadIds) {
-        notifyMapped(conversationObservers, threadId);
-        notifyMapped(verboseConversationObservers, threadId);
+        pending.conversations.add(threadId);
+        pending.verboseConversations.add(threadId);
       }
-    });
-
-    for (long threadId : threadIds) {
-      application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
-      application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
     }
+
+    onNotificationsRequested(threadIds.size() * 2);
   }
 
   public void notifyConversationListeners(long threadId) {
-    executor.execute(() -> {
-      notifyMapped(conversationObservers, threadId);
-      notifyMapped(verboseConversationObservers, threadId);
-    });
+    synchronized (pending) {
+      pending.conversations.add(threadId);
+      pending.verboseConversations.add(threadId);
+    }
 
-    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
-    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    onNotificationsRequested(2);
   }
 
   public void notifyVerboseConversationListeners(long threadId) {
-    executor.execute(() -> {
-      notifyMapped(verboseConversationObservers, threadId);
-    });
+    synchronized (pending) {
+      pending.verboseConversations.add(threadId);
+    }
 
-    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    onNotificationsRequested(1);
   }
 
   public void notifyConversationListListeners() {
-    executor.execute(() -> {
-      for (Observer listener : conversationListObservers) {
-        listener.onChanged();
-      }
-    });
+    synchronized (pending) {
+      pending.conversationList = true;
+    }
+
+    onNotificationsRequested(1);
   }
 
   public void notifyPaymentListeners(@NonNull UUID paymentId) {
-    executor.execute(() -> {
-      notifyMapped(paymentObservers, paymentId);
-    });
+    synchronized (pending) {
+      pending.payments.add(paymentId);
+    }
+
+    onNotificationsRequested(1);
   }
 
   public void notifyAllPaymentsListeners() {
+    synchronized (pending) {
+      pending.allPayments = true;
+    }
+
+    onNotificationsRequested(1);
+  }
+
+  /**
+   * @return How many notifications have been requested and actually delivered. Anything requested
+   *         but not delivered was merged into another notification for the same target.
+   */
+  public @NonNull Stats getStats() {
+    long requested = requestedNotifications.get();
+    long delivered = deliveredNotifications.get();
+
+    return new Stats(delivered, Math.max(0, requested - delivered));
+  }
+
+  private void onNotificationsRequested(int count) {
+    requestedNotifications.addAndGet(count);
+
+    boolean schedule;
+
+    synchronized (pending) {
+      schedule = !pending.scheduled;
+      pending.scheduled = true;
+    }
+
+    if (schedule) {
+      handler.postDelayed(this::dispatchPending, coalesceWindowMs);
+    }
+  }
+
+  private void dispatchPending() {
+    Set<Long> conversations;
+    Set<Long> verboseConversations;
+    Set<UUID> payments;
+    boolean   conversationList;
+    boolean   allPayments;
+
+    synchronized (pending) {
+      conversations        = new HashSet<>(pending.conversations);
+      verboseConversations = new HashSet<>(pending.verboseConversations);
+      payments             = new HashSet<>(pending.payments);
+      conversationList     = pending.conversationList;
+      allPayments          = pending.allPayments;
+
+      pending.clear();
+    }
+
+    deliveredNotifications.addAndGet(conversations.size() + verboseConversations.size() + payments.size() + (conversationList ? 1 : 0) + (allPayments ? 1 : 0));
+
     executor.execute(() -> {
-      notifySet(allPaymentsObservers);
+      for (long threadId : conversations) {
+        notifyMapped(conversationObservers, threadId);
+      }
+
+      for (long threadId : verboseConversations) {
+        notifyMapped(verboseConversationObservers, threadId);
+      }
+
+      for (UUID paymentId : payments) {
+        notifyMapped(paymentObservers, paymentId);
+      }
+
+      if (conversationList) {
+        notifySet(conversationListObservers);
+      }
+
+      if (allPayments) {
+        notifySet(allPaymentsObservers);
+      }
     });
+
+    for (long threadId : conversations) {
+      application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    }
+
+    for (long threadId : verboseConversations) {
+      application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    }
   }
 
   private <K> void registerMapped(@NonNull Map<K, Set<Observer>> map, @NonNull K key, @NonNull Observer listener) {
@@ -164,6 +267,51 @@ public final class DatabaseObserver {
     }
   }
 
+  public static final class Stats {
+    private final long delivered;
+    private final long suppressed;
+
+    private Stats(long delivered, long suppressed) {
+      this.delivered  = delivered;
+      this.suppressed = suppressed;
+    }
+
+    public long getDelivered() {
+      return delivered;
+    }
+
+    public long getSuppressed() {
+      return suppressed;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "Stats{delivered=" + delivered + ", suppressed=" + suppressed + "}";
+    }
+  }
+
+  /**
+   * Everything that has been requested since the last dispatch. Guarded by its own monitor.
+   */
+  private static final class PendingNotifications {
+    private final Set<Long> conversations        = new HashSet<>();
+    private final Set<Long> verboseConversations = new HashSet<>();
+    private final Set<UUID> payments             = new HashSet<>();
+
+    private boolean conversationList;
+    private boolean allPayments;
+    private boolean scheduled;
+
+    void clear() {
+      conversations.clear();
+      verboseConversations.clear();
+      payments.clear();
+      conversationList = false;
+      allPayments      = false;
+      scheduled        = false;
+    }
+  }
+
   public interface Observer {
     /**
      * Called when the relevant data changes. Executed on a serial executor, so don't do any
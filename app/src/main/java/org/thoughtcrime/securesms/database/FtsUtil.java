@@ -0,0 +1,72 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Helpers for building FTS5 queries out of what a user typed.
+ */
+public final class FtsUtil {
+
+  private FtsUtil() {}
+
+  /**
+   * Builds a query that matches rows where every word of the input is the start of a token in one
+   * of the columns. Each word is quoted, so characters with meaning in the FTS query syntax are
+   * treated as text.
+   *
+   * Ex:
+   *   jo sm -> {name email} : "jo"* AND {name email} : "sm"*
+   *
+   * @return The query, or null if no word has a letter or digit in it, in which case the tokenizer
+   *         would produce nothing to match against.
+   */
+  public static @Nullable String createPrefixQuery(@NonNull String input, @NonNull String... columns) {
+    StringBuilder columnFilter = new StringBuilder("{");
+
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) columnFilter.append(' ');
+      columnFilter.append(columns[i]);
+    }
+
+    columnFilter.append("} : ");
+
+    StringBuilder query = new StringBuilder();
+
+    for (String word : input.trim().split("\\s+")) {
+      if (!hasLetterOrDigit(word)) {
+        continue;
+      }
+
+      if (query.length() > 0) {
+        query.append(" AND ");
+      }
+
+      query.append(columnFilter).append('"').append(word.replace("\"", "\"\"")).append("\"*");
+    }
+
+    return query.length() > 0 ? query.toString() : null;
+  }
+
+  static boolean hasDigit(@NonNull String input) {
+    for (int i = 0; i < input.length(); i++) {
+      if (Character.isDigit(input.charAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasLetterOrDigit(@NonNull String word) {
+    for (int i = 0; i < word.length(); ) {
+      int codePoint = word.codePointAt(i);
+
+      if (Character.isLetterOrDigit(codePoint)) {
+        return true;
+      }
+
+      i += Character.charCount(codePoint);
+    }
+    return false;
+  }
+}
@@ -8,6 +8,7 @@ import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
@@ -100,10 +101,22 @@ public final class GroupDatabase extends Database {
                                                                                   EXPECTED_V2_ID        + " TEXT DEFAULT NULL, " +
                                                                                   UNMIGRATED_V1_MEMBERS + " TEXT DEFAULT NULL);";
 
+  /* Membership table, one row per member of each group, mirroring the MEMBERS column */
+          static final String MEMBERSHIP_TABLE_NAME   = "group_membership";
+  private static final String MEMBERSHIP_ID           = "_id";
+  private static final String MEMBERSHIP_GROUP_ID     = "group_id";
+          static final String MEMBERSHIP_RECIPIENT_ID = "recipient_id";
+
+  public static final String CREATE_MEMBERSHIP_TABLE = "CREATE TABLE " + MEMBERSHIP_TABLE_NAME + " (" + MEMBERSHIP_ID           + " INTEGER PRIMARY KEY, " +
+                                                                                                      MEMBERSHIP_GROUP_ID     + " TEXT NOT NULL, " +
+                                                                                                      MEMBERSHIP_RECIPIENT_ID + " INTEGER NOT NULL, " +
+                                                                                                      "UNIQUE(" + MEMBERSHIP_GROUP_ID + ", " + MEMBERSHIP_RECIPIENT_ID + ") ON CONFLICT IGNORE);";
+
   public static final String[] CREATE_INDEXS = {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_id_index ON " + TABLE_NAME + " (" + GROUP_ID + ");",
       "CREATE UNIQUE INDEX IF NOT EXISTS group_recipient_id_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");",
-      "CREATE UNIQUE INDEX IF NOT EXISTS expected_v2_id_index ON " + TABLE_NAME + " (" + EXPECTED_V2_ID + ");"
+      "CREATE UNIQUE INDEX IF NOT EXISTS expected_v2_id_index ON " + TABLE_NAME + " (" + EXPECTED_V2_ID + ");",
+      "CREATE INDEX IF NOT EXISTS group_membership_recipient_id_index ON " + MEMBERSHIP_TABLE_NAME + " (" + MEMBERSHIP_RECIPIENT_ID + ", " + MEMBERSHIP_GROUP_ID + ");"
   };
 
   private static final String[] GROUP_PROJECTION = {
@@ -295,10 +308,24 @@ public final class GroupDatabase extends Database {
 
   @WorkerThread
   public @NonNull List<GroupRecord> getGroupsContainingMember(@NonNull RecipientId recipientId, boolean pushOnly, boolean includeInactive) {
+    return getGroupsContainingAnyMember(Collections.singleton(recipientId), pushOnly, includeInactive);
+  }
+
+  /**
+   * @return Every group that has at least one of the recipients as a member, most recently active
+   *         thread first.
+   */
+  @WorkerThread
+  public @NonNull List<GroupRecord> getGroupsContainingAnyMember(@NonNull Collection<RecipientId> recipientIds, boolean pushOnly, boolean includeInactive) {
+    if (recipientIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+
     SQLiteDatabase database   = databaseHelper.getReadableDatabase();
+    SqlUtil.Query  members    = SqlUtil.buildCollectionQuery(MEMBERSHIP_RECIPIENT_ID, recipientIds);
     String         table      = TABLE_NAME + " INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + TABLE_NAME + "." + RECIPIENT_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID;
-    String         query      = MEMBERS + " LIKE ?";
-    String[]       args       = SqlUtil.buildArgs("%" + recipientId.serialize() + "%");
+    String         query      = TABLE_NAME + "." + GROUP_ID + " IN (SELECT " + MEMBERSHIP_GROUP_ID + " FROM " + MEMBERSHIP_TABLE_NAME + " WHERE " + members.getWhere() + ")";
+    String[]       args       = members.getWhereArgs();
     String         orderBy    = ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.DATE + " DESC";
 
     if (pushOnly) {
@@ -315,11 +342,7 @@ public final class GroupDatabase extends Database {
 
     try (Cursor cursor = database.query(table, null, query, args, null, null, orderBy)) {
       while (cursor != null && cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-
-        if (RecipientId.serializedListContains(serializedMembers, recipientId)) {
-          groups.add(new Reader(cursor).getCurrent());
-        }
+        groups.add(new Reader(cursor).getCurrent());
       }
     }
 
@@ -462,7 +485,17 @@ public final class GroupDatabase extends Database {
       }
     }
 
-    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      if (db.insert(TABLE_NAME, null, contentValues) != -1) {
+        updateMemberships(db, groupId, groupMembers);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     if (groupState != null && groupState.hasDisappearingMessagesTimer()) {
       recipientDatabase.setExpireMessages(groupRecipientId, groupState.getDisappearingMessagesTimer().getDuration());
@@ -542,6 +575,8 @@ public final class GroupDatabase extends Database {
         throw new AssertionError();
       }
 
+      db.delete(MEMBERSHIP_TABLE_NAME, MEMBERSHIP_GROUP_ID + " = ?", SqlUtil.buildArgs(groupIdV1));
+
       DatabaseFactory.getRecipientDatabase(context).updateGroupId(groupIdV1, groupIdV2);
 
       update(groupMasterKey, decryptedGroup);
@@ -596,9 +631,18 @@ public final class GroupDatabase extends Database {
     contentValues.put(MEMBERS, RecipientId.toSerializedList(groupMembers));
     contentValues.put(ACTIVE, gv2GroupActive(decryptedGroup) ? 1 : 0);
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues,
-                                                GROUP_ID + " = ?",
-                                                new String[]{ groupId.toString() });
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      db.update(TABLE_NAME, contentValues,
+                GROUP_ID + " = ?",
+                new String[]{ groupId.toString() });
+      updateMemberships(db, groupId, groupMembers);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     if (decryptedGroup.hasDisappearingMessagesTimer()) {
       recipientDatabase.setExpireMessages(groupRecipientId, decryptedGroup.getDisappearingMessagesTimer().getDuration());
@@ -656,8 +700,17 @@ public final class GroupDatabase extends Database {
     contents.put(MEMBERS, RecipientId.toSerializedList(members));
     contents.put(ACTIVE, 1);
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {groupId.toString()});
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      db.update(TABLE_NAME, contents, GROUP_ID + " = ?",
+                new String[] {groupId.toString()});
+      updateMemberships(db, groupId, members);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     RecipientId groupRecipient = DatabaseFactory.getRecipientDatabase(context).getOrInsertFromGroupId(groupId);
     Recipient.live(groupRecipient).refresh();
@@ -670,8 +723,17 @@ public final class GroupDatabase extends Database {
     ContentValues contents = new ContentValues();
     contents.put(MEMBERS, RecipientId.toSerializedList(currentMembers));
 
-    databaseHelper.getWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {groupId.toString()});
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      db.update(TABLE_NAME, contents, GROUP_ID + " = ?",
+                new String[] {groupId.toString()});
+      updateMemberships(db, groupId, currentMembers);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     RecipientId groupRecipient = DatabaseFactory.getRecipientDatabase(context).getOrInsertFromGroupId(groupId);
     Recipient.live(groupRecipient).refresh();
@@ -720,18 +782,41 @@ public final class GroupDatabase extends Database {
   @WorkerThread
   public boolean isCurrentMember(@NonNull GroupId.Push groupId, @NonNull RecipientId recipientId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    String         query    = MEMBERSHIP_GROUP_ID + " = ? AND " + MEMBERSHIP_RECIPIENT_ID + " = ?";
 
-    try (Cursor cursor = database.query(TABLE_NAME, new String[] {MEMBERS},
-                                        GROUP_ID + " = ?", new String[] {groupId.toString()},
-                                        null, null, null))
+    try (Cursor cursor = database.query(MEMBERSHIP_TABLE_NAME, new String[] {MEMBERSHIP_ID},
+                                        query, SqlUtil.buildArgs(groupId, recipientId),
+                                        null, null, null, "1"))
     {
-      if (cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-        return RecipientId.serializedListContains(serializedMembers, recipientId);
-      } else {
-        return false;
+      return cursor.moveToNext();
+    }
+  }
+
+  /**
+   * Brings the membership rows for a group in line with its member list, only touching the rows
+   * that changed. Must be called in the same transaction as the write to {@link #MEMBERS}.
+   */
+  @VisibleForTesting
+  static void updateMemberships(@NonNull SQLiteDatabase db, @NonNull GroupId groupId, @NonNull Collection<RecipientId> members) {
+    Set<RecipientId> existing = new HashSet<>();
+    Set<RecipientId> wanted   = new HashSet<>(members);
+
+    try (Cursor cursor = db.query(MEMBERSHIP_TABLE_NAME, new String[] {MEMBERSHIP_RECIPIENT_ID}, MEMBERSHIP_GROUP_ID + " = ?", SqlUtil.buildArgs(groupId), null, null, null)) {
+      while (cursor.moveToNext()) {
+        existing.add(RecipientId.from(CursorUtil.requireLong(cursor, MEMBERSHIP_RECIPIENT_ID)));
       }
     }
+
+    for (RecipientId removed : SetUtil.difference(existing, wanted)) {
+      db.delete(MEMBERSHIP_TABLE_NAME, MEMBERSHIP_GROUP_ID + " = ? AND " + MEMBERSHIP_RECIPIENT_ID + " = ?", SqlUtil.buildArgs(groupId, removed));
+    }
+
+    for (RecipientId added : SetUtil.difference(wanted, existing)) {
+      ContentValues values = new ContentValues(2);
+      values.put(MEMBERSHIP_GROUP_ID, groupId.toString());
+      values.put(MEMBERSHIP_RECIPIENT_ID, added.serialize());
+      db.insert(MEMBERSHIP_TABLE_NAME, null, values);
+    }
   }
 
 
@@ -1838,6 +1838,15 @@ public class MmsDatabase extends MessageDatabase {
     return new Reader(cursor);
   }
 
+  /**
+   * @param attachments Attachments for every media message in the cursor, keyed by message id, as
+   *                    from {@link AttachmentDatabase#getAttachmentsForMessages(Collection)}. The
+   *                    cursor's attachment JSON column is ignored.
+   */
+  public static Reader readerFor(Cursor cursor, @NonNull Map<Long, List<DatabaseAttachment>> attachments) {
+    return new Reader(cursor, attachments);
+  }
+
   public static OutgoingMessageReader readerFor(OutgoingMediaMessage message, long threadId) {
     return new OutgoingMessageReader(message, threadId);
   }
@@ -1918,12 +1927,18 @@ public class MmsDatabase extends MessageDatabase {
 
   public static class Reader implements MessageDatabase.Reader {
 
-    private final Cursor  cursor;
-    private final Context context;
+    private final Cursor                              cursor;
+    private final Context                             context;
+    private final Map<Long, List<DatabaseAttachment>> preloadedAttachments;
 
     public Reader(Cursor cursor) {
-      this.cursor  = cursor;
-      this.context = ApplicationDependencies.getApplication();
+      this(cursor, null);
+    }
+
+    private Reader(Cursor cursor, @Nullable Map<Long, List<DatabaseAttachment>> preloadedAttachments) {
+      this.cursor               = cursor;
+      this.context              = ApplicationDependencies.getApplication();
+      this.preloadedAttachments = preloadedAttachments;
     }
 
     @Override
@@ -2022,13 +2037,13 @@ public class MmsDatabase extends MessageDatabase {
       Recipient                 recipient          = Recipient.live(RecipientId.from(recipientId)).get();
       List<IdentityKeyMismatch> mismatches         = getMismatchedIdentities(mismatchDocument);
       List<NetworkFailure>      networkFailures    = getFailures(networkDocument);
-      List<DatabaseAttachment>  attachments        = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+      List<DatabaseAttachment>  attachments        = getAttachments(cursor, id);
       List<Contact>             contacts           = getSharedContacts(cursor, attachments);
       Set<Attachment>           contactAttachments = Stream.of(contacts).map(Contact::getAvatarAttachment).withoutNulls().collect(Collectors.toSet());
       List<LinkPreview>         previews           = getLinkPreviews(cursor, attachments);
       Set<Attachment>           previewAttachments = Stream.of(previews).filter(lp -> lp.getThumbnail().isPresent()).map(lp -> lp.getThumbnail().get()).collect(Collectors.toSet());
       SlideDeck                 slideDeck          = getSlideDeck(Stream.of(attachments).filterNot(contactAttachments::contains).filterNot(previewAttachments::contains).toList());
-      Quote                     quote              = getQuote(cursor);
+      Quote                     quote              = getQuote(cursor, attachments);
 
       return new MediaMmsMessageRecord(id, recipient, recipient,
                                        addressDeviceId, dateSent, dateReceived, dateServer, deliveryReceiptCount,
@@ -2070,13 +2085,21 @@ public class MmsDatabase extends MessageDatabase {
       return new SlideDeck(context, messageAttachments);
     }
 
-    private @Nullable Quote getQuote(@NonNull Cursor cursor) {
+    private @NonNull List<DatabaseAttachment> getAttachments(@NonNull Cursor cursor, long id) {
+      if (preloadedAttachments != null) {
+        List<DatabaseAttachment> attachments = preloadedAttachments.get(id);
+        return attachments != null ? attachments : Collections.emptyList();
+      }
+
+      return DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
+    }
+
+    private @Nullable Quote getQuote(@NonNull Cursor cursor, @NonNull List<DatabaseAttachment> attachments) {
       long                       quoteId          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_ID));
       long                       quoteAuthor      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_AUTHOR));
       CharSequence               quoteText        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_BODY));
       boolean                    quoteMissing     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_MISSING)) == 1;
       List<Mention>              quoteMentions    = parseQuoteMentions(context, cursor);
-      List<DatabaseAttachment>   attachments      = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
       List<? extends Attachment> quoteAttachments = Stream.of(attachments).filter(Attachment::isQuote).toList();
       SlideDeck                  quoteDeck        = new SlideDeck(context, quoteAttachments);
 
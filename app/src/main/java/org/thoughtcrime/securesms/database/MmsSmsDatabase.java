@@ -27,6 +27,7 @@ import com.annimon.stream.Stream;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.MessageDatabase.ThreadUpdate;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -35,13 +36,16 @@ import org.thoughtcrime.securesms.notifications.v2.MessageNotifierV2;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.SqlUtil;
 import org.whispersystems.libsignal.util.Pair;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -137,15 +141,7 @@ public class MmsSmsDatabase extends Database {
   }
 
   public int getMessagePositionOnOrAfterTimestamp(long threadId, long timestamp) {
-    String[] projection = new String[] { "COUNT(*)" };
-    String   selection  = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + timestamp;
-
-    try (Cursor cursor = queryTables(projection, selection, null, null)) {
-      if (cursor != null && cursor.moveToNext()) {
-        return cursor.getInt(0);
-      }
-    }
-    return 0;
+    return getMessageCountInThread(threadId, " >= ", timestamp);
   }
 
   public @Nullable MessageRecord getMessageFor(long timestamp, RecipientId author) {
@@ -195,6 +191,32 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0, 0);
   }
 
+  /**
+   * Reads the same messages as {@link #getConversation(long, long, long)}, but loads the
+   * attachments for the whole page with one query on the attachment table's message id index,
+   * instead of building and parsing a JSON array of them for every media message.
+   */
+  public @NonNull Reader getConversationPage(long threadId, long offset, long limit) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+
+    Cursor     cursor = queryTables(PROJECTION, selection, order, limitStr, false);
+    List<Long> mmsIds = new ArrayList<>();
+
+    setNotifyConversationListeners(cursor, threadId);
+
+    while (cursor.moveToNext()) {
+      if (MMS_TRANSPORT.equals(CursorUtil.requireString(cursor, TRANSPORT))) {
+        mmsIds.add(CursorUtil.requireLong(cursor, MmsSmsColumns.ID));
+      }
+    }
+
+    cursor.moveToPosition(-1);
+
+    return new Reader(cursor, DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessages(mmsIds));
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -220,6 +242,13 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getMessagesForNotificationState(Collection<MessageNotifierV2.StickyThread> stickyThreads) {
+    return getMessagesForNotificationState(stickyThreads, null);
+  }
+
+  /**
+   * @param threadIds If non-null, only messages in these threads are returned.
+   */
+  public Cursor getMessagesForNotificationState(Collection<MessageNotifierV2.StickyThread> stickyThreads, @Nullable Collection<Long> threadIds) {
     StringBuilder stickyQuery = new StringBuilder();
     for (MessageNotifierV2.StickyThread stickyThread : stickyThreads) {
       if (stickyQuery.length() > 0) {
@@ -238,7 +267,13 @@ public class MmsSmsDatabase extends Database {
     String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection = MmsSmsColumns.NOTIFIED + " = 0 AND (" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1" + (stickyQuery.length() > 0 ? " OR (" + stickyQuery.toString() + ")" : "") + ")";
 
-    return queryTables(PROJECTION, selection, order, null);
+    if (threadIds == null) {
+      return queryTables(PROJECTION, selection, order, null);
+    }
+
+    SqlUtil.Query threadQuery = SqlUtil.buildCollectionQuery(MmsSmsColumns.THREAD_ID, threadIds);
+
+    return queryTables(PROJECTION, selection + " AND " + threadQuery.getWhere(), threadQuery.getWhereArgs(), order, null, true);
   }
 
   public int getUnreadCount(long threadId) {
@@ -463,45 +498,37 @@ public class MmsSmsDatabase extends Database {
   }
 
   public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull RecipientId recipientId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.RECIPIENT_ID, MmsSmsColumns.REMOTE_DELETED}, selection, order, null)) {
-      boolean isOwnNumber = Recipient.resolved(recipientId).isSelf();
-
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches     = cursor.getLong(0) == quoteId;
-        boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
-
-        if (quoteIdMatches && (recipientIdMatches || isOwnNumber)) {
-          if (CursorUtil.requireBoolean(cursor, MmsSmsColumns.REMOTE_DELETED)) {
-            return -1;
-          } else {
-            return cursor.getPosition();
-          }
-        }
-      }
-    }
-    return -1;
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_SENT + " = " + quoteId;
+    return getPositionOfFirstMatch(threadId, selection, recipientId);
   }
 
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " = " + receivedTimestamp;
+    return getPositionOfFirstMatch(threadId, selection, recipientId);
+  }
+
+  /**
+   * Finds the newest message matching the selection that was sent by the provided recipient, and
+   * returns its position in the conversation. The selection is expected to narrow things down to a
+   * handful of rows, so the position itself comes from an index-only count rather than walking the
+   * whole thread.
+   *
+   * @return The position, or -1 if there is no match or the match was remotely deleted.
+   */
+  private int getPositionOfFirstMatch(long threadId, @NonNull String selection, @NonNull RecipientId recipientId) {
+    String order = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
 
     try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.RECIPIENT_ID, MmsSmsColumns.REMOTE_DELETED}, selection, order, null)) {
       boolean isOwnNumber = Recipient.resolved(recipientId).isSelf();
 
       while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches   = cursor.getLong(0) == receivedTimestamp;
         boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
 
-
-        if (timestampMatches && (recipientIdMatches || isOwnNumber)) {
+        if (recipientIdMatches || isOwnNumber) {
           if (CursorUtil.requireBoolean(cursor, MmsSmsColumns.REMOTE_DELETED)) {
             return -1;
           } else {
-            return cursor.getPosition();
+            return getMessageCountInThread(threadId, " > ", cursor.getLong(0));
           }
         }
       }
@@ -522,16 +549,38 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
-                       MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+    return getMessageCountInThread(threadId, " > ", receivedTimestamp);
+  }
+
+  /**
+   * Counts the messages in a thread whose received timestamp compares to the provided one. Each
+   * table is counted separately so the count can be answered from its (thread_id, date_received)
+   * index alone, without building any message rows.
+   *
+   * Messages that share a received timestamp have no defined order relative to each other in
+   * {@link #getConversation(long)}, so positions derived from this are exact except among those.
+   */
+  private int getMessageCountInThread(long threadId, @NonNull String comparison, long receivedTimestamp) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String[]       args  = SqlUtil.buildArgs(threadId, receivedTimestamp);
+    int            count = 0;
+
+    String smsQuery = "SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + comparison + "?";
+    String mmsQuery = "SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + comparison + "?";
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
+    try (Cursor cursor = db.rawQuery(smsQuery, args)) {
       if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0);
+        count += cursor.getInt(0);
       }
     }
-    return -1;
+
+    try (Cursor cursor = db.rawQuery(mmsQuery, args)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        count += cursor.getInt(0);
+      }
+    }
+
+    return count;
   }
 
   public long getTimestampForFirstMessageAfterDate(long date) {
@@ -565,12 +614,29 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, order, limit, true);
+  }
+
+  /**
+   * @param includeAttachments Whether media messages should carry their attachments as a JSON
+   *                           array. If not, the caller has to load them separately.
+   */
+  private Cursor queryTables(String[] projection, String selection, String order, String limit, boolean includeAttachments) {
+    return queryTables(projection, selection, null, order, limit, includeAttachments);
+  }
+
+  /**
+   * @param selectionArgs Arguments for the selection. The selection is used once per table, so
+   *                      they're bound twice.
+   */
+  private Cursor queryTables(String[] projection, String selection, @Nullable String[] selectionArgs, String order, String limit, boolean includeAttachments) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              !includeAttachments ? "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS :
                               "json_group_array(json_object(" +
                               "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
                               "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
@@ -673,9 +739,13 @@ public class MmsSmsDatabase extends Database {
     smsQueryBuilder.setDistinct(true);
 
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    if (includeAttachments) {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
+                                AttachmentDatabase.TABLE_NAME +
+                                " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    } else {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
+    }
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -749,8 +819,10 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(MmsDatabase.REMOTE_DELETED);
     smsColumnsPresent.add(MmsSmsColumns.NOTIFIED_TIMESTAMP);
 
+    String mmsGroupBy = includeAttachments ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null;
+
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, mmsGroupBy, null);
     @SuppressWarnings("deprecation")
     String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
 
@@ -763,8 +835,16 @@ public class MmsSmsDatabase extends Database {
     @SuppressWarnings("deprecation")
     String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
 
+    String[] unionArgs = null;
+
+    if (selectionArgs != null) {
+      unionArgs = new String[selectionArgs.length * 2];
+      System.arraycopy(selectionArgs, 0, unionArgs, 0, selectionArgs.length);
+      System.arraycopy(selectionArgs, 0, unionArgs, selectionArgs.length, selectionArgs.length);
+    }
+
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return db.rawQuery(query, unionArgs);
   }
 
   public static Reader readerFor(@NonNull Cursor cursor) {
@@ -773,12 +853,18 @@ public class MmsSmsDatabase extends Database {
 
   public static class Reader implements Closeable {
 
-    private final Cursor                 cursor;
-    private       SmsDatabase.Reader     smsReader;
-    private       MmsDatabase.Reader     mmsReader;
+    private final Cursor                              cursor;
+    private final Map<Long, List<DatabaseAttachment>> attachments;
+    private       SmsDatabase.Reader                  smsReader;
+    private       MmsDatabase.Reader                  mmsReader;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this(cursor, null);
+    }
+
+    private Reader(Cursor cursor, @Nullable Map<Long, List<DatabaseAttachment>> attachments) {
+      this.cursor      = cursor;
+      this.attachments = attachments;
     }
 
     private SmsDatabase.Reader getSmsReader() {
@@ -791,7 +877,7 @@ public class MmsSmsDatabase extends Database {
 
     private MmsDatabase.Reader getMmsReader() {
       if (mmsReader == null) {
-        mmsReader = MmsDatabase.readerFor(cursor);
+        mmsReader = attachments != null ? MmsDatabase.readerFor(cursor, attachments) : MmsDatabase.readerFor(cursor);
       }
 
       return mmsReader;
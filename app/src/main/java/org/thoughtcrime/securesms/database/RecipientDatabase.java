@@ -95,6 +95,9 @@ public class RecipientDatabase extends Database {
 
   private static final String TAG = Log.tag(RecipientDatabase.class);
 
+  /** SQLite limits the number of bound arguments per statement, so bulk lookups are chunked. */
+  private static final int MAX_BULK_QUERY_SIZE = 500;
+
           static final String TABLE_NAME                = "recipient";
   public  static final String ID                        = "_id";
   private static final String UUID                      = "uuid";
@@ -190,6 +193,28 @@ public class RecipientDatabase extends Database {
       "CREATE INDEX IF NOT EXISTS recipient_group_type_index ON " + TABLE_NAME + " (" + GROUP_TYPE + ");",
   };
 
+  /** Full text index over the columns contact search matches against. Case and accents are folded by the tokenizer. */
+  public  static final String   FTS_TABLE_NAME   = "recipient_fts";
+  private static final String[] FTS_NAME_COLUMNS = new String[]{ SYSTEM_JOINED_NAME, PROFILE_JOINED_NAME, PROFILE_GIVEN_NAME, USERNAME };
+  private static final String   FTS_COLUMNS      = SYSTEM_JOINED_NAME + ", " + PROFILE_JOINED_NAME + ", " + PROFILE_GIVEN_NAME + ", " + USERNAME + ", " + PHONE + ", " + EMAIL;
+  private static final String   FTS_NEW_VALUES   = "new." + SYSTEM_JOINED_NAME + ", new." + PROFILE_JOINED_NAME + ", new." + PROFILE_GIVEN_NAME + ", new." + USERNAME + ", new." + PHONE + ", new." + EMAIL;
+  private static final String   FTS_OLD_VALUES   = "old." + SYSTEM_JOINED_NAME + ", old." + PROFILE_JOINED_NAME + ", old." + PROFILE_GIVEN_NAME + ", old." + USERNAME + ", old." + PHONE + ", old." + EMAIL;
+
+  public static final String[] CREATE_FTS = new String[] {
+      "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts5(" + FTS_COLUMNS + ", content=" + TABLE_NAME + ", content_rowid=" + ID + ", tokenize='unicode61 remove_diacritics 1');",
+
+      "CREATE TRIGGER recipient_ai AFTER INSERT ON " + TABLE_NAME + " BEGIN\n" +
+          "  INSERT INTO " + FTS_TABLE_NAME + "(rowid, " + FTS_COLUMNS + ") VALUES (new." + ID + ", " + FTS_NEW_VALUES + ");\n" +
+          "END;",
+      "CREATE TRIGGER recipient_ad AFTER DELETE ON " + TABLE_NAME + " BEGIN\n" +
+          "  INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ", rowid, " + FTS_COLUMNS + ") VALUES ('delete', old." + ID + ", " + FTS_OLD_VALUES + ");\n" +
+          "END;",
+      "CREATE TRIGGER recipient_au AFTER UPDATE OF " + FTS_COLUMNS + " ON " + TABLE_NAME + " BEGIN\n" +
+          "  INSERT INTO " + FTS_TABLE_NAME + "(" + FTS_TABLE_NAME + ", rowid, " + FTS_COLUMNS + ") VALUES ('delete', old." + ID + ", " + FTS_OLD_VALUES + ");\n" +
+          "  INSERT INTO " + FTS_TABLE_NAME + "(rowid, " + FTS_COLUMNS + ") VALUES (new." + ID + ", " + FTS_NEW_VALUES + ");\n" +
+          "END;"
+  };
+
   public enum VibrateState {
     DEFAULT(0), ENABLED(1), DISABLED(2);
 
@@ -688,16 +713,48 @@ public class RecipientDatabase extends Database {
     try (Cursor cursor = database.query(TABLE_NAME, RECIPIENT_PROJECTION, query, args, null, null, null)) {
       if (cursor != null && cursor.moveToNext()) {
         return getRecipientSettings(context, cursor);
-      } else {
-        Optional<RecipientId> remapped = RemappedRecords.getInstance().getRecipient(context, id);
-        if (remapped.isPresent()) {
-          Log.w(TAG, "Missing recipient for " + id + ", but found it in the remapped records as " + remapped.get());
-          return getRecipientSettings(remapped.get());
-        } else {
-          throw new MissingRecipientException(id);
+      }
+    }
+
+    // The read connections don't wait for transactions on other threads, so a recipient inserted in
+    // one that hasn't been committed yet is missing there. The writer waits for it.
+    try (Cursor cursor = database.queryOnWriter(TABLE_NAME, RECIPIENT_PROJECTION, query, args, null, null, null)) {
+      if (cursor != null && cursor.moveToNext()) {
+        return getRecipientSettings(context, cursor);
+      }
+    }
+
+    Optional<RecipientId> remapped = RemappedRecords.getInstance().getRecipient(context, id);
+    if (remapped.isPresent()) {
+      Log.w(TAG, "Missing recipient for " + id + ", but found it in the remapped records as " + remapped.get());
+      return getRecipientSettings(remapped.get());
+    } else {
+      throw new MissingRecipientException(id);
+    }
+  }
+
+  /**
+   * Bulk version of {@link #getRecipientSettings(RecipientId)}. IDs that can't be found are simply
+   * left out of the result, and it's up to the caller to decide how to handle them.
+   */
+  public @NonNull Map<RecipientId, RecipientSettings> getRecipientSettings(@NonNull Collection<RecipientId> ids) {
+    SQLiteDatabase                      database = databaseHelper.getReadableDatabase();
+    Map<RecipientId, RecipientSettings> results  = new HashMap<>(ids.size());
+    List<RecipientId>                   idList   = new ArrayList<>(ids);
+
+    for (int i = 0; i < idList.size(); i += MAX_BULK_QUERY_SIZE) {
+      List<RecipientId> chunk = idList.subList(i, Math.min(idList.size(), i + MAX_BULK_QUERY_SIZE));
+      SqlUtil.Query     query = SqlUtil.buildCollectionQuery(ID, chunk);
+
+      try (Cursor cursor = database.query(TABLE_NAME, RECIPIENT_PROJECTION, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          RecipientSettings settings = getRecipientSettings(context, cursor);
+          results.put(settings.getId(), settings);
         }
       }
     }
+
+    return results;
   }
 
   public @Nullable RecipientSettings getRecipientSettingsForSync(@NonNull RecipientId id) {
@@ -2251,24 +2308,18 @@ public class RecipientDatabase extends Database {
   }
 
   public @Nullable Cursor querySignalContacts(@NonNull String query, boolean includeSelf) {
-    query = buildCaseInsensitiveGlobPattern(query);
+    SearchSelection search = buildSearchSelection(query, concat(FTS_NAME_COLUMNS, PHONE), PHONE, SORT_NAME, USERNAME);
 
     String   selection = BLOCKED     + " = ? AND " +
                          REGISTERED  + " = ? AND " +
                          GROUP_ID    + " IS NULL AND " +
                          "(" + SYSTEM_JOINED_NAME + " NOT NULL OR " + PROFILE_SHARING + " = ?) AND " +
-                         "(" +
-                           PHONE     + " GLOB ? OR " +
-                           SORT_NAME + " GLOB ? OR " +
-                           USERNAME  + " GLOB ?" +
-                         ")";
-    String[] args;
+                         search.where;
+    String[] args      = concat(new String[] { "0", String.valueOf(RegisteredState.REGISTERED.getId()), "1" }, search.args);
 
-    if (includeSelf) {
-      args = new String[]{"0", String.valueOf(RegisteredState.REGISTERED.getId()), "1", query, query, query};
-    } else {
+    if (!includeSelf) {
       selection += " AND " + ID + " != ?";
-      args       = new String[] { "0", String.valueOf(RegisteredState.REGISTERED.getId()), "1", query, query, query, String.valueOf(Recipient.self().getId().toLong()) };
+      args       = SqlUtil.appendArg(args, String.valueOf(Recipient.self().getId().toLong()));
     }
 
     String   orderBy   = SORT_NAME + ", " + SYSTEM_JOINED_NAME + ", " + SEARCH_PROFILE_NAME + ", " + PHONE;
@@ -2289,35 +2340,25 @@ public class RecipientDatabase extends Database {
   }
 
   public @Nullable Cursor queryNonSignalContacts(@NonNull String query) {
-    query = buildCaseInsensitiveGlobPattern(query);
+    SearchSelection search = buildSearchSelection(query, new String[] { PHONE, EMAIL, SYSTEM_JOINED_NAME }, PHONE, EMAIL, SYSTEM_JOINED_NAME);
 
     String   selection = BLOCKED    + " = ? AND " +
                          REGISTERED + " != ? AND " +
                          GROUP_ID   + " IS NULL AND " +
                          SYSTEM_CONTACT_URI + " NOT NULL AND " +
                          "(" + PHONE + " NOT NULL OR " + EMAIL + " NOT NULL) AND " +
-                         "(" +
-                           PHONE              + " GLOB ? OR " +
-                           EMAIL              + " GLOB ? OR " +
-                           SYSTEM_JOINED_NAME + " GLOB ?" +
-                         ")";
-    String[] args      = new String[] { "0", String.valueOf(RegisteredState.REGISTERED.getId()), query, query, query };
+                         search.where;
+    String[] args      = concat(new String[] { "0", String.valueOf(RegisteredState.REGISTERED.getId()) }, search.args);
     String   orderBy   = SYSTEM_JOINED_NAME + ", " + PHONE;
 
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, SEARCH_PROJECTION, selection, args, null, null, orderBy);
   }
 
   public @Nullable Cursor queryAllContacts(@NonNull String query) {
-    query = buildCaseInsensitiveGlobPattern(query);
+    SearchSelection search = buildSearchSelection(query, concat(FTS_NAME_COLUMNS, PHONE, EMAIL), SORT_NAME, USERNAME, PHONE, EMAIL);
 
-    String   selection = BLOCKED + " = ? AND " +
-                         "(" +
-                           SORT_NAME + " GLOB ? OR " +
-                           USERNAME  + " GLOB ? OR " +
-                           PHONE     + " GLOB ? OR " +
-                           EMAIL     + " GLOB ?" +
-                         ")";
-    String[] args      = new String[] { "0", query, query, query, query };
+    String   selection = BLOCKED + " = ? AND " + search.where;
+    String[] args      = concat(new String[] { "0" }, search.args);
 
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, SEARCH_PROJECTION, selection, args, null, null, null);
   }
@@ -2326,20 +2367,31 @@ public class RecipientDatabase extends Database {
     return queryRecipientsForMentions(query, null);
   }
 
+  /**
+   * When limited to a set of recipients, such as the members of a group, the query is matched
+   * anywhere in the name with spaces ignored. Otherwise it goes through the full text index, which
+   * matches the start of each word.
+   */
   public @NonNull List<Recipient> queryRecipientsForMentions(@NonNull String query, @Nullable List<RecipientId> recipientIds) {
-    query = buildCaseInsensitiveGlobPattern(query);
+    String   selection;
+    String[] args;
 
-    String ids = null;
     if (Util.hasItems(recipientIds)) {
-      ids = TextUtils.join(",", Stream.of(recipientIds).map(RecipientId::serialize).toList());
-    }
+      String ids = TextUtils.join(",", Stream.of(recipientIds).map(RecipientId::serialize).toList());
 
-    String   selection = BLOCKED + " = 0 AND " +
-                         (ids != null ? ID + " IN (" + ids + ") AND " : "") +
-                         SORT_NAME  + " GLOB ?";
+      selection = BLOCKED + " = 0 AND " +
+                  ID + " IN (" + ids + ") AND " +
+                  SORT_NAME  + " GLOB ?";
+      args      = SqlUtil.buildArgs(buildCaseInsensitiveGlobPattern(query));
+    } else {
+      SearchSelection search = buildSearchSelection(query, FTS_NAME_COLUMNS, SORT_NAME);
+
+      selection = BLOCKED + " = 0 AND " + search.where;
+      args      = search.args;
+    }
 
     List<Recipient> recipients = new ArrayList<>();
-    try (RecipientDatabase.RecipientReader reader = new RecipientReader(databaseHelper.getReadableDatabase().query(TABLE_NAME, MENTION_SEARCH_PROJECTION, selection, SqlUtil.buildArgs(query), null, null, SORT_NAME))) {
+    try (RecipientDatabase.RecipientReader reader = new RecipientReader(databaseHelper.getReadableDatabase().query(TABLE_NAME, MENTION_SEARCH_PROJECTION, selection, args, null, null, SORT_NAME))) {
       Recipient recipient;
       while ((recipient = reader.getNext()) != null) {
         recipients.add(recipient);
@@ -2348,6 +2400,55 @@ public class RecipientDatabase extends Database {
     return recipients;
   }
 
+  /**
+   * Matches a search query against the full text index. Queries with digits also GLOB the phone
+   * column, so a number still matches when typed without its country code. Queries the index can't
+   * tokenize, like punctuation alone, fall back to a GLOB over the given columns.
+   *
+   * @param ftsColumns  Columns of {@link #FTS_TABLE_NAME} to match against.
+   * @param globColumns Columns (or aliases) of the recipient projection to match with the fallback.
+   */
+  private static @NonNull SearchSelection buildSearchSelection(@NonNull String query, @NonNull String[] ftsColumns, @NonNull String... globColumns) {
+    String ftsQuery = FtsUtil.createPrefixQuery(query, ftsColumns);
+
+    if (ftsQuery == null) {
+      String       glob  = buildCaseInsensitiveGlobPattern(query);
+      List<String> terms = new ArrayList<>(globColumns.length);
+      String[]     args  = new String[globColumns.length];
+
+      for (int i = 0; i < globColumns.length; i++) {
+        terms.add(globColumns[i] + " GLOB ?");
+        args[i] = glob;
+      }
+
+      return new SearchSelection("(" + TextUtils.join(" OR ", terms) + ")", args);
+    }
+
+    String where = ID + " IN (SELECT rowid FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?)";
+
+    if (FtsUtil.hasDigit(query) && Arrays.asList(globColumns).contains(PHONE)) {
+      return new SearchSelection("(" + where + " OR " + PHONE + " GLOB ?)", new String[] { ftsQuery, buildCaseInsensitiveGlobPattern(query) });
+    }
+
+    return new SearchSelection(where, new String[] { ftsQuery });
+  }
+
+  private static @NonNull String[] concat(@NonNull String[] first, @NonNull String... second) {
+    String[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static final class SearchSelection {
+    private final String   where;
+    private final String[] args;
+
+    private SearchSelection(@NonNull String where, @NonNull String[] args) {
+      this.where = where;
+      this.args  = args;
+    }
+  }
+
   /**
    * Builds a case-insensitive GLOB pattern for fuzzy text queries. Works with all unicode
    * characters.
@@ -2837,6 +2938,7 @@ public class RecipientDatabase extends Database {
       groupValues.put(GroupDatabase.MEMBERS, RecipientId.toSerializedList(newMembers));
       db.update(GroupDatabase.TABLE_NAME, groupValues, GroupDatabase.RECIPIENT_ID + " = ?", SqlUtil.buildArgs(group.getRecipientId()));
     }
+    db.delete(GroupDatabase.MEMBERSHIP_TABLE_NAME, GroupDatabase.MEMBERSHIP_RECIPIENT_ID + " = ?", SqlUtil.buildArgs(byE164));
 
     // Threads
     ThreadDatabase.MergeResult threadMerge = DatabaseFactory.getThreadDatabase(context).merge(byUuid, byE164);
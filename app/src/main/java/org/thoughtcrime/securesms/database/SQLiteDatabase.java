@@ -3,16 +3,23 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.ContentValues;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import net.sqlcipher.Cursor;
 import net.sqlcipher.SQLException;
 import net.sqlcipher.database.SQLiteQueryStats;
 import net.sqlcipher.database.SQLiteStatement;
 import net.sqlcipher.database.SQLiteTransactionListener;
 
+import org.signal.core.util.logging.Log;
 import org.signal.core.util.tracing.Tracer;
+import org.thoughtcrime.securesms.database.helpers.ReadConnectionPool;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -20,6 +27,16 @@ import java.util.Map;
  * This is a wrapper around {@link net.sqlcipher.database.SQLiteDatabase}. There's difficulties
  * making a subclass, so instead we just match the interface. Callers should just need to change
  * their import statements.
+ *
+ * If given a {@link ReadConnectionPool}, queries are sent to one of its connections, unless the
+ * current thread holds the lock on the wrapped connection (i.e. it's in a transaction), in which
+ * case they have to stay on the wrapped connection to see the uncommitted changes. Everything else
+ * always goes to the wrapped connection.
+ *
+ * Unlike the wrapped connection, the read connections don't wait for another thread's transaction
+ * to finish. They see what was last committed. Reads that have to see a write another thread may
+ * still have open should use {@link #queryOnWriter(String, String[], String, String[], String, String, String)},
+ * and anything that prompts other threads to read should use {@link #runPostTransaction(Runnable)}.
  */
 public class SQLiteDatabase {
 
@@ -35,12 +52,28 @@ public class SQLiteDatabase {
   private static final String KEY_THREAD = "thread";
   private static final String NAME_LOCK  = "LOCK";
 
+  private static final String TAG = Log.tag(SQLiteDatabase.class);
+
+  private static final long LOCK_WAIT_WARN_DURATION = 500;
+
   private final net.sqlcipher.database.SQLiteDatabase wrapped;
+  private final ReadConnectionPool                    readPool;
   private final Tracer                                tracer;
 
+  /** Tasks waiting for the current thread's outermost transaction to end. Null outside of one. */
+  private final ThreadLocal<List<Runnable>> postTransactionTasks = new ThreadLocal<>();
+
+  /** Name of the thread holding the wrapped connection's lock, for lock-wait warnings. */
+  private volatile String lockOwner;
+
   public SQLiteDatabase(net.sqlcipher.database.SQLiteDatabase wrapped) {
-    this.wrapped = wrapped;
-    this.tracer  = Tracer.getInstance();
+    this(wrapped, null);
+  }
+
+  public SQLiteDatabase(net.sqlcipher.database.SQLiteDatabase wrapped, @Nullable ReadConnectionPool readPool) {
+    this.wrapped  = wrapped;
+    this.readPool = readPool;
+    this.tracer   = Tracer.getInstance();
   }
 
   private void traceLockStart() {
@@ -49,6 +82,20 @@ public class SQLiteDatabase {
 
   private void traceLockEnd() {
     tracer.end(NAME_LOCK, Tracer.TrackId.DB_LOCK);
+
+    if (readPool != null && !wrapped.isDbLockedByCurrentThread()) {
+      readPool.onWrite();
+    }
+  }
+
+  private net.sqlcipher.database.SQLiteDatabase reader() {
+    if (readPool == null || wrapped.isDbLockedByCurrentThread()) {
+      return wrapped;
+    }
+
+    net.sqlcipher.database.SQLiteDatabase connection = readPool.getConnection();
+
+    return connection != null ? connection : wrapped;
   }
 
   private void trace(String methodName, Runnable runnable) {
@@ -103,6 +150,32 @@ public class SQLiteDatabase {
     return wrapped;
   }
 
+  /**
+   * Runs the task once the current thread's transaction has ended, or right away if it isn't in one.
+   * A transaction begun directly on {@link #getSqlCipherDatabase()} doesn't count.
+   */
+  public void runPostTransaction(@NonNull Runnable task) {
+    List<Runnable> tasks = postTransactionTasks.get();
+
+    if (tasks != null) {
+      tasks.add(task);
+    } else {
+      task.run();
+    }
+  }
+
+  private void runPostTransactionTasks() {
+    List<Runnable> tasks = postTransactionTasks.get();
+
+    if (tasks != null) {
+      postTransactionTasks.remove();
+
+      for (Runnable task : tasks) {
+        task.run();
+      }
+    }
+  }
+
   private interface Returnable<E> {
     E run();
   }
@@ -113,13 +186,39 @@ public class SQLiteDatabase {
   // =======================================================
 
   public void beginTransaction() {
+    boolean nested    = wrapped.isDbLockedByCurrentThread();
+    String  lastOwner = lockOwner;
+    long    startTime = System.currentTimeMillis();
+
     traceLockStart();
     trace("beginTransaction()", wrapped::beginTransaction);
+
+    if (!nested) {
+      long waited = System.currentTimeMillis() - startTime;
+
+      if (waited > LOCK_WAIT_WARN_DURATION) {
+        Log.w(TAG, "Waited " + waited + " ms for the database lock on " + Thread.currentThread().getName() + ". Last held by: " + lastOwner);
+      }
+
+      lockOwner = Thread.currentThread().getName();
+      postTransactionTasks.set(new ArrayList<>());
+    }
   }
 
   public void endTransaction() {
     trace("endTransaction()", wrapped::endTransaction);
+
+    boolean outermost = !wrapped.isDbLockedByCurrentThread();
+
+    if (outermost) {
+      lockOwner = null;
+    }
+
     traceLockEnd();
+
+    if (outermost) {
+      runPostTransactionTasks();
+    }
   }
 
   public void setTransactionSuccessful() {
@@ -127,35 +226,44 @@ public class SQLiteDatabase {
   }
 
   public Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("query(9)", table, selection, false, () -> wrapped.query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(9)", table, selection, false, () -> reader().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
   }
 
   public Cursor queryWithFactory(net.sqlcipher.database.SQLiteDatabase.CursorFactory cursorFactory, boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("queryWithFactory()", table, selection, false, () -> wrapped.queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("queryWithFactory()", table, selection, false, () -> reader().queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+  }
+
+  /**
+   * Like {@link #query(String, String[], String, String[], String, String, String)}, but always on the
+   * wrapped connection. If another thread is in a transaction, this waits for it to end, so the result
+   * includes whatever it committed.
+   */
+  public Cursor queryOnWriter(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
+    return traceSql("queryOnWriter()", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
-    return traceSql("query(7)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy));
+    return traceSql("query(7)", table, selection, false, () -> reader().query(table, columns, selection, selectionArgs, groupBy, having, orderBy));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("query(8)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(8)", table, selection, false, () -> reader().query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs) {
-    return traceSql("rawQuery(2a)", sql, false, () -> wrapped.rawQuery(sql, selectionArgs));
+    return traceSql("rawQuery(2a)", sql, false, () -> reader().rawQuery(sql, selectionArgs));
   }
 
   public Cursor rawQuery(String sql, Object[] args) {
-    return traceSql("rawQuery(2b)", sql, false,() -> wrapped.rawQuery(sql, args));
+    return traceSql("rawQuery(2b)", sql, false,() -> reader().rawQuery(sql, args));
   }
 
   public Cursor rawQueryWithFactory(net.sqlcipher.database.SQLiteDatabase.CursorFactory cursorFactory, String sql, String[] selectionArgs, String editTable) {
-    return traceSql("rawQueryWithFactory()", sql, false, () -> wrapped.rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable));
+    return traceSql("rawQueryWithFactory()", sql, false, () -> reader().rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs, int initialRead, int maxRead) {
-    return traceSql("rawQuery(4)", sql, false, () -> rawQuery(sql, selectionArgs, initialRead, maxRead));
+    return traceSql("rawQuery(4)", sql, false, () -> reader().rawQuery(sql, selectionArgs, initialRead, maxRead));
   }
 
   public long insert(String table, String nullColumnHack, ContentValues values) {
@@ -0,0 +1,199 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+import net.sqlcipher.database.SQLiteException;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.signal.core.util.tracing.Tracer;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed set of extra connections to a database in WAL mode that are only ever used for reads,
+ * so that queries don't have to wait on the single writer connection's lock.
+ *
+ * Connections are opened lazily, with the same hook as the writer so the cipher settings match.
+ * Callers never hand connections back, so {@link #getConnection()} just picks one that no other
+ * thread is currently using, if there is one. A connection is only opened when every open one is
+ * busy, and picking one never takes a lock.
+ *
+ * Also takes care of checkpointing the WAL shortly after writes, on a reader connection, so that
+ * the work rarely lands on a writer's commit. The thread for that is only started on the first
+ * write, and is stopped by {@link #close()}.
+ */
+public final class ReadConnectionPool {
+
+  private static final String TAG = Log.tag(ReadConnectionPool.class);
+
+  private static final long CHECKPOINT_DELAY         = 1000;
+  private static final long CHECKPOINT_WARN_DURATION = 250;
+
+  private final File                                 path;
+  private final String                               password;
+  private final SQLiteDatabaseHook                   hook;
+  private final AtomicReferenceArray<SQLiteDatabase> connections;
+  private final AtomicInteger                        nextConnection;
+  private final AtomicBoolean                        checkpointPending;
+
+  private HandlerThread checkpointThread;
+  private Handler       checkpointHandler;
+
+  private volatile boolean closed;
+
+  public ReadConnectionPool(@NonNull File path, @NonNull String password, @NonNull SQLiteDatabaseHook hook, int size) {
+    this.path              = path;
+    this.password          = password;
+    this.hook              = hook;
+    this.connections       = new AtomicReferenceArray<>(size);
+    this.nextConnection    = new AtomicInteger();
+    this.checkpointPending = new AtomicBoolean();
+  }
+
+  /**
+   * @return A connection to read from, or null if none could be opened, in which case the caller
+   *         should read from the writer instead.
+   */
+  public @Nullable SQLiteDatabase getConnection() {
+    if (closed) {
+      return null;
+    }
+
+    int            size     = connections.length();
+    int            start    = Math.abs(nextConnection.getAndIncrement() % size);
+    int            unopened = -1;
+    SQLiteDatabase busy     = null;
+
+    for (int i = 0; i < size; i++) {
+      int            index      = (start + i) % size;
+      SQLiteDatabase connection = connections.get(index);
+
+      if (connection == null) {
+        if (unopened == -1) {
+          unopened = index;
+        }
+      } else if (!connection.isDbLockedByOtherThreads()) {
+        return connection;
+      } else if (busy == null) {
+        busy = connection;
+      }
+    }
+
+    if (unopened != -1) {
+      SQLiteDatabase opened = openConnection(unopened);
+
+      if (opened != null) {
+        return opened;
+      }
+    }
+
+    return busy;
+  }
+
+  /**
+   * Called after something has been written. Schedules a passive checkpoint if there isn't one
+   * coming up already.
+   */
+  public void onWrite() {
+    if (!closed && checkpointPending.compareAndSet(false, true)) {
+      Handler handler = getCheckpointHandler();
+
+      if (handler != null) {
+        handler.postDelayed(this::checkpoint, CHECKPOINT_DELAY);
+      }
+    }
+  }
+
+  public synchronized void close() {
+    closed = true;
+
+    if (checkpointThread != null) {
+      checkpointHandler.removeCallbacksAndMessages(null);
+      checkpointThread.quit();
+      checkpointThread  = null;
+      checkpointHandler = null;
+    }
+
+    for (int i = 0; i < connections.length(); i++) {
+      SQLiteDatabase connection = connections.getAndSet(i, null);
+
+      if (connection != null) {
+        connection.close();
+      }
+    }
+  }
+
+  private void checkpoint() {
+    checkpointPending.set(false);
+
+    SQLiteDatabase connection = getConnection();
+
+    if (connection == null) {
+      return;
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    Tracer.getInstance().start("checkpoint()");
+    try (Cursor cursor = connection.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        long duration = System.currentTimeMillis() - startTime;
+
+        if (duration > CHECKPOINT_WARN_DURATION) {
+          Log.w(TAG, "Checkpoint took " + duration + " ms. Busy: " + cursor.getInt(0) + ", WAL frames: " + cursor.getInt(1) + ", checkpointed: " + cursor.getInt(2));
+        }
+      }
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Failed to checkpoint.", e);
+    } finally {
+      Tracer.getInstance().end("checkpoint()");
+    }
+  }
+
+  private synchronized @Nullable Handler getCheckpointHandler() {
+    if (closed) {
+      return null;
+    }
+
+    if (checkpointThread == null) {
+      checkpointThread  = SignalExecutors.getAndStartHandlerThread("signal-db-checkpoint");
+      checkpointHandler = new Handler(checkpointThread.getLooper());
+    }
+
+    return checkpointHandler;
+  }
+
+  private synchronized @Nullable SQLiteDatabase openConnection(int index) {
+    if (closed) {
+      return null;
+    }
+
+    SQLiteDatabase existing = connections.get(index);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    try {
+      SQLiteDatabase connection = SQLiteDatabase.openDatabase(path.getAbsolutePath(), password, null, SQLiteDatabase.OPEN_READWRITE, hook);
+      connection.rawExecSQL("PRAGMA query_only = 1;");
+
+      connections.set(index, connection);
+      return connection;
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Failed to open read connection " + index + ".", e);
+      return null;
+    }
+  }
+}
@@ -13,6 +13,8 @@ import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 import com.bumptech.glide.Glide;
@@ -180,18 +182,30 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
   private static final int CLEAN_REACTION_NOTIFICATIONS     = 96;
   private static final int STORAGE_SERVICE_REFACTOR         = 97;
   private static final int CLEAR_MMS_STORAGE_IDS            = 98;
+  private static final int GROUP_MEMBERSHIP                 = 99;
+  private static final int RECIPIENT_SEARCH_INDEX           = 100;
 
-  private static final int    DATABASE_VERSION = 98;
+  private static final int    DATABASE_VERSION = 100;
   private static final String DATABASE_NAME    = "signal.db";
+  private static final int    READ_CONNECTIONS = 4;
 
-  private final Context        context;
-  private final DatabaseSecret databaseSecret;
+  private final Context            context;
+  private final DatabaseSecret     databaseSecret;
+  private final ReadConnectionPool readConnectionPool;
+
+  private volatile boolean                                            writeAheadLoggingEnabled;
+  private volatile org.thoughtcrime.securesms.database.SQLiteDatabase wrapper;
 
   public SQLCipherOpenHelper(@NonNull Context context, @NonNull DatabaseSecret databaseSecret) {
-    super(context, DATABASE_NAME, null, DATABASE_VERSION, new SqlCipherDatabaseHook());
+    this(context, databaseSecret, new SqlCipherDatabaseHook());
+  }
+
+  private SQLCipherOpenHelper(@NonNull Context context, @NonNull DatabaseSecret databaseSecret, @NonNull SqlCipherDatabaseHook hook) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION, hook);
 
-    this.context        = context.getApplicationContext();
-    this.databaseSecret = databaseSecret;
+    this.context            = context.getApplicationContext();
+    this.databaseSecret     = databaseSecret;
+    this.readConnectionPool = new ReadConnectionPool(context.getDatabasePath(DATABASE_NAME), databaseSecret.asString(), hook, READ_CONNECTIONS);
   }
 
   @Override
@@ -204,6 +218,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     db.execSQL(DraftDatabase.CREATE_TABLE);
     db.execSQL(PushDatabase.CREATE_TABLE);
     db.execSQL(GroupDatabase.CREATE_TABLE);
+    db.execSQL(GroupDatabase.CREATE_MEMBERSHIP_TABLE);
     db.execSQL(RecipientDatabase.CREATE_TABLE);
     db.execSQL(GroupReceiptDatabase.CREATE_TABLE);
     db.execSQL(OneTimePreKeyDatabase.CREATE_TABLE);
@@ -214,6 +229,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     db.execSQL(MentionDatabase.CREATE_TABLE);
     db.execSQL(PaymentDatabase.CREATE_TABLE);
     executeStatements(db, SearchDatabase.CREATE_TABLE);
+    executeStatements(db, RecipientDatabase.CREATE_FTS);
     executeStatements(db, RemappedRecordsDatabase.CREATE_TABLE);
 
     executeStatements(db, RecipientDatabase.CREATE_INDEXS);
@@ -1448,6 +1464,38 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
         Log.d(TAG, "Cleared storageIds from " + deleteCount + " rows. They were either MMS groups or empty contacts.");
       }
 
+      if (oldVersion < GROUP_MEMBERSHIP) {
+        long start = System.currentTimeMillis();
+
+        db.execSQL("CREATE TABLE group_membership (_id INTEGER PRIMARY KEY, " +
+                                                  "group_id TEXT NOT NULL, " +
+                                                  "recipient_id INTEGER NOT NULL, " +
+                                                  "UNIQUE(group_id, recipient_id) ON CONFLICT IGNORE)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS group_membership_recipient_id_index ON group_membership (recipient_id, group_id)");
+
+        int rows = backfillGroupMemberships(db);
+
+        Log.d(TAG, "Created " + rows + " group membership rows in " + (System.currentTimeMillis() - start) + " ms.");
+      }
+
+      if (oldVersion < RECIPIENT_SEARCH_INDEX) {
+        db.execSQL("CREATE VIRTUAL TABLE recipient_fts USING fts5(system_display_name, profile_joined_name, signal_profile_name, username, phone, email, content=recipient, content_rowid=_id, tokenize='unicode61 remove_diacritics 1')");
+        db.execSQL("CREATE TRIGGER recipient_ai AFTER INSERT ON recipient BEGIN\n" +
+                   "  INSERT INTO recipient_fts(rowid, system_display_name, profile_joined_name, signal_profile_name, username, phone, email) VALUES (new._id, new.system_display_name, new.profile_joined_name, new.signal_profile_name, new.username, new.phone, new.email);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER recipient_ad AFTER DELETE ON recipient BEGIN\n" +
+                   "  INSERT INTO recipient_fts(recipient_fts, rowid, system_display_name, profile_joined_name, signal_profile_name, username, phone, email) VALUES ('delete', old._id, old.system_display_name, old.profile_joined_name, old.signal_profile_name, old.username, old.phone, old.email);\n" +
+                   "END;");
+        db.execSQL("CREATE TRIGGER recipient_au AFTER UPDATE OF system_display_name, profile_joined_name, signal_profile_name, username, phone, email ON recipient BEGIN\n" +
+                   "  INSERT INTO recipient_fts(recipient_fts, rowid, system_display_name, profile_joined_name, signal_profile_name, username, phone, email) VALUES ('delete', old._id, old.system_display_name, old.profile_joined_name, old.signal_profile_name, old.username, old.phone, old.email);\n" +
+                   "  INSERT INTO recipient_fts(rowid, system_display_name, profile_joined_name, signal_profile_name, username, phone, email) VALUES (new._id, new.system_display_name, new.profile_joined_name, new.signal_profile_name, new.username, new.phone, new.email);\n" +
+                   "END;");
+
+        long start = SystemClock.elapsedRealtime();
+        db.execSQL("INSERT INTO recipient_fts(recipient_fts) VALUES ('rebuild')");
+        Log.i(TAG, "Indexing recipients took " + (SystemClock.elapsedRealtime() - start) + " ms");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -1460,12 +1508,62 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     Log.i(TAG, "Upgrade complete. Took " + (System.currentTimeMillis() - startTime) + " ms.");
   }
 
+  /**
+   * Switches the database to WAL mode, which is what allows the {@link ReadConnectionPool} to read
+   * while a write is in progress. The journal mode is stored in the file, so this is a no-op after
+   * the first time. If it can't be enabled, everything keeps using the single connection, since
+   * readers in rollback journal mode would block the writer instead.
+   */
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    try (Cursor cursor = db.rawQuery("PRAGMA journal_mode = WAL", null)) {
+      String journalMode = cursor.moveToFirst() ? cursor.getString(0) : null;
+
+      writeAheadLoggingEnabled = "wal".equalsIgnoreCase(journalMode);
+
+      if (!writeAheadLoggingEnabled) {
+        Log.w(TAG, "Failed to enable WAL. Journal mode: " + journalMode);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    readConnectionPool.close();
+    super.close();
+  }
+
   public org.thoughtcrime.securesms.database.SQLiteDatabase getReadableDatabase() {
-    return new org.thoughtcrime.securesms.database.SQLiteDatabase(getReadableDatabase(databaseSecret.asString()));
+    return wrap(getReadableDatabase(databaseSecret.asString()));
   }
 
   public org.thoughtcrime.securesms.database.SQLiteDatabase getWritableDatabase() {
-    return new org.thoughtcrime.securesms.database.SQLiteDatabase(getWritableDatabase(databaseSecret.asString()));
+    return wrap(getWritableDatabase(databaseSecret.asString()));
+  }
+
+  /**
+   * Hands out the same wrapper for as long as the underlying connection stays the same, since the
+   * wrapper keeps track of who holds that connection's lock.
+   */
+  private org.thoughtcrime.securesms.database.SQLiteDatabase wrap(@NonNull SQLiteDatabase db) {
+    org.thoughtcrime.securesms.database.SQLiteDatabase current = wrapper;
+
+    if (current == null || current.getSqlCipherDatabase() != db) {
+      synchronized (this) {
+        current = wrapper;
+
+        if (current == null || current.getSqlCipherDatabase() != db) {
+          current = new org.thoughtcrime.securesms.database.SQLiteDatabase(db, getReadConnectionPool());
+          wrapper = current;
+        }
+      }
+    }
+
+    return current;
+  }
+
+  private @Nullable ReadConnectionPool getReadConnectionPool() {
+    return writeAheadLoggingEnabled ? readConnectionPool : null;
   }
 
   @Override
@@ -1485,6 +1583,38 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     return context.getDatabasePath(DATABASE_NAME);
   }
 
+  /**
+   * Fills the group_membership table from each group's serialized member list. Part of the
+   * {@link #GROUP_MEMBERSHIP} migration, so it only uses the column names as they were then.
+   *
+   * @return The number of membership rows written.
+   */
+  @VisibleForTesting
+  static int backfillGroupMemberships(@NonNull SQLiteDatabase db) {
+    int rows = 0;
+
+    try (Cursor cursor = db.query("groups", new String[] { "group_id", "members" }, "members NOT NULL AND members != ''", null, null, null, null)) {
+      while (cursor.moveToNext()) {
+        String groupId = cursor.getString(cursor.getColumnIndexOrThrow("group_id"));
+        String members = cursor.getString(cursor.getColumnIndexOrThrow("members"));
+
+        for (String member : members.split(",")) {
+          if (member.trim().isEmpty()) {
+            continue;
+          }
+
+          ContentValues values = new ContentValues(2);
+          values.put("group_id", groupId);
+          values.put("recipient_id", Long.parseLong(member.trim()));
+          db.insert("group_membership", null, values);
+          rows++;
+        }
+      }
+    }
+
+    return rows;
+  }
+
   private void executeStatements(SQLiteDatabase db, String[] statements) {
     for (String statement : statements)
       db.execSQL(statement);
@@ -103,6 +103,43 @@ class JobController {
     notifyAll();
   }
 
+  /**
+   * Submits several independent jobs at once. Each job is treated like its own single-job chain,
+   * but they are all persisted with a single storage write.
+   */
+  @WorkerThread
+  synchronized void submitNewJobs(@NonNull List<Job> jobs) {
+    List<List<Job>> accepted = new ArrayList<>(jobs.size());
+
+    for (Job job : jobs) {
+      if (exceedsMaximumInstances(job, accepted)) {
+        jobTracker.onStateChange(job, JobTracker.JobState.IGNORED);
+        Log.w(TAG, JobLogger.format(job, "Already at the max instance count. Factory limit: " + job.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + job.getParameters().getMaxInstancesForQueue() + ". Skipping."));
+      } else {
+        accepted.add(Collections.singletonList(job));
+      }
+    }
+
+    if (accepted.isEmpty()) {
+      return;
+    }
+
+    List<FullSpec> fullSpecs = new ArrayList<>(accepted.size());
+
+    for (List<Job> jobList : accepted) {
+      fullSpecs.add(buildFullSpec(jobList.get(0), Collections.emptyList()));
+    }
+
+    jobStorage.insertJobs(fullSpecs);
+
+    for (List<Job> jobList : accepted) {
+      scheduleJobs(jobList);
+    }
+
+    triggerOnSubmit(accepted);
+    notifyAll();
+  }
+
   @WorkerThread
   synchronized void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
     List<List<Job>> chain = Collections.singletonList(Collections.singletonList(job));
@@ -323,25 +360,32 @@ class JobController {
   @WorkerThread
   private boolean chainExceedsMaximumInstances(@NonNull List<List<Job>> chain) {
     if (chain.size() == 1 && chain.get(0).size() == 1) {
-      Job solo = chain.get(0).get(0);
+      return exceedsMaximumInstances(chain.get(0).get(0), Collections.emptyList());
+    }
 
-      boolean exceedsFactory = solo.getParameters().getMaxInstancesForFactory() != Job.Parameters.UNLIMITED &&
-                               jobStorage.getJobCountForFactory(solo.getFactoryKey()) >= solo.getParameters().getMaxInstancesForFactory();
+    return false;
+  }
 
-      if (exceedsFactory) {
-        return true;
-      }
+  /**
+   * @param pending Single-job chains that will be inserted in the same write as this job, and so
+   *                count toward its limits even though they aren't in storage yet.
+   */
+  private boolean exceedsMaximumInstances(@NonNull Job solo, @NonNull List<List<Job>> pending) {
+    String factoryKey = solo.getFactoryKey();
+    String queue      = solo.getParameters().getQueue();
 
-      boolean exceedsQueue   = solo.getParameters().getQueue() != null                                    &&
-                               solo.getParameters().getMaxInstancesForQueue() != Job.Parameters.UNLIMITED &&
-                               jobStorage.getJobCountForFactoryAndQueue(solo.getFactoryKey(), solo.getParameters().getQueue()) >= solo.getParameters().getMaxInstancesForQueue();
+    boolean exceedsFactory = solo.getParameters().getMaxInstancesForFactory() != Job.Parameters.UNLIMITED &&
+                             jobStorage.getJobCountForFactory(factoryKey) + Stream.of(pending).filter(p -> p.get(0).getFactoryKey().equals(factoryKey)).count() >= solo.getParameters().getMaxInstancesForFactory();
 
-      if (exceedsQueue) {
-        return true;
-      }
+    if (exceedsFactory) {
+      return true;
     }
 
-    return false;
+    boolean exceedsQueue   = queue != null                                                            &&
+                             solo.getParameters().getMaxInstancesForQueue() != Job.Parameters.UNLIMITED &&
+                             jobStorage.getJobCountForFactoryAndQueue(factoryKey, queue) + Stream.of(pending).filter(p -> p.get(0).getFactoryKey().equals(factoryKey) && queue.equals(p.get(0).getParameters().getQueue())).count() >= solo.getParameters().getMaxInstancesForQueue();
+
+    return exceedsQueue;
   }
 
   @WorkerThread
@@ -420,14 +464,12 @@ class JobController {
                                    .filter(predicate::shouldRun)
                                    .toList();
 
+    Map<String, Boolean> constraintsMet = new HashMap<>();
+
     for (JobSpec jobSpec : jobSpecs) {
       List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
 
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
+      if (Stream.of(constraintSpecs).allMatch(spec -> isConstraintMet(spec.getFactoryKey(), constraintsMet))) {
         return createJob(jobSpec, constraintSpecs);
       }
     }
@@ -435,6 +477,21 @@ class JobController {
     return null;
   }
 
+  /**
+   * Many jobs share the same few constraints, so each one is only instantiated and checked once
+   * per pass rather than once per candidate job.
+   */
+  private boolean isConstraintMet(@NonNull String factoryKey, @NonNull Map<String, Boolean> constraintsMet) {
+    Boolean met = constraintsMet.get(factoryKey);
+
+    if (met == null) {
+      met = constraintInstantiator.instantiate(factoryKey).isMet();
+      constraintsMet.put(factoryKey, met);
+    }
+
+    return met;
+  }
+
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
     Job.Parameters parameters = buildJobParameters(jobSpec, constraintSpecs);
 
@@ -150,6 +150,27 @@ public class JobManager implements ConstraintObserver.Notifier {
     new Chain(this, Collections.singletonList(job)).enqueue();
   }
 
+  /**
+   * Enqueues a set of independent jobs. Equivalent to calling {@link #add(Job)} for each one,
+   * except that they're all persisted together in a single write.
+   */
+  public void addAll(@NonNull List<? extends Job> jobs) {
+    if (jobs.isEmpty()) {
+      return;
+    }
+
+    for (Job job : jobs) {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    }
+
+    List<Job> copy = new ArrayList<>(jobs);
+
+    runOnExecutor(() -> {
+      jobController.submitNewJobs(copy);
+      jobController.wakeUp();
+    });
+  }
+
   /**
    * Enqueues a single job that depends on a collection of job ID's.
    */
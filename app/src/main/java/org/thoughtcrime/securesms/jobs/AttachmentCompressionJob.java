@@ -64,6 +64,16 @@ public final class AttachmentCompressionJob extends BaseJob {
   private static final String KEY_MMS                 = "mms";
   private static final String KEY_MMS_SUBSCRIPTION_ID = "mms_subscription_id";
 
+  private static final String VIDEO_TRANSCODE_QUEUE   = "VIDEO_TRANSCODE";
+  private static final String GENERIC_TRANSCODE_QUEUE = "GENERIC_TRANSCODE";
+
+  /**
+   * Image compression holds a full decoded bitmap plus its encoded bytes, so the number of images
+   * compressed at once is limited by heap size rather than by the number of job runners.
+   */
+  private static final long IMAGE_COMPRESSION_MEMORY_BUDGET = 64 * 1024 * 1024;
+  private static final int  MAX_IMAGE_COMPRESSION_LANES     = 3;
+
   private final AttachmentId attachmentId;
   private final boolean      mms;
   private final int          mmsSubscriptionId;
@@ -87,7 +97,7 @@ public final class AttachmentCompressionJob extends BaseJob {
                        .addConstraint(NetworkConstraint.KEY)
                        .setLifespan(TimeUnit.DAYS.toMillis(1))
                        .setMaxAttempts(Parameters.UNLIMITED)
-                       .setQueue(isVideoTranscode ? "VIDEO_TRANSCODE" : "GENERIC_TRANSCODE")
+                       .setQueue(getQueue(attachmentId, isVideoTranscode))
                        .build(),
          attachmentId,
          mms,
@@ -105,6 +115,30 @@ public final class AttachmentCompressionJob extends BaseJob {
     this.mmsSubscriptionId = mmsSubscriptionId;
   }
 
+  /**
+   * Video transcodes stay strictly one at a time. Images are spread over a few queues, so the
+   * photos in an album compress in parallel while a single send still keeps its relative order.
+   */
+  private static @NonNull String getQueue(@NonNull AttachmentId attachmentId, boolean isVideoTranscode) {
+    if (isVideoTranscode) {
+      return VIDEO_TRANSCODE_QUEUE;
+    }
+
+    int lanes = getImageCompressionLaneCount();
+
+    if (lanes == 1) {
+      return GENERIC_TRANSCODE_QUEUE;
+    }
+
+    return GENERIC_TRANSCODE_QUEUE + "_" + (attachmentId.getRowId() % lanes);
+  }
+
+  static int getImageCompressionLaneCount() {
+    long budgetLanes = Runtime.getRuntime().maxMemory() / IMAGE_COMPRESSION_MEMORY_BUDGET;
+
+    return (int) Math.max(1, Math.min(MAX_IMAGE_COMPRESSION_LANES, budgetLanes));
+  }
+
   @Override
   public @NonNull Data serialize() {
     return new Data.Builder().putLong(KEY_ROW_ID, attachmentId.getRowId())
@@ -119,6 +153,10 @@ public final class AttachmentCompressionJob extends BaseJob {
     return KEY;
   }
 
+  boolean isVideoTranscode() {
+    return VIDEO_TRANSCODE_QUEUE.equals(getParameters().getQueue());
+  }
+
   @Override
   protected boolean shouldTrace() {
     return true;
@@ -0,0 +1,70 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The jobs needed to get one outgoing attachment onto the CDN: compress, optionally fetch a
+ * resumable upload location, then encrypt and upload.
+ * <p>
+ * Each attachment gets its own chain, so the attachments of an album move through the steps
+ * independently of each other. For images the upload location is fetched while the image is still
+ * compressing, since it doesn't depend on the compressed bytes. Video transcodes can take long
+ * enough for the location to expire, so those still fetch it afterwards.
+ */
+public final class AttachmentUploadChain {
+
+  private final AttachmentCompressionJob compressionJob;
+  private final ResumableUploadSpecJob   resumableUploadSpecJob;
+  private final AttachmentUploadJob      uploadJob;
+
+  /**
+   * @param resumable Whether the upload should go through a {@link ResumableUploadSpecJob}.
+   */
+  public AttachmentUploadChain(@NonNull DatabaseAttachment attachment, boolean resumable) {
+    this.compressionJob         = AttachmentCompressionJob.fromAttachment(attachment, false, -1);
+    this.resumableUploadSpecJob = resumable ? new ResumableUploadSpecJob() : null;
+    this.uploadJob              = new AttachmentUploadJob(attachment.getAttachmentId());
+  }
+
+  public void enqueue(@NonNull JobManager jobManager) {
+    if (resumableUploadSpecJob == null) {
+      jobManager.startChain(compressionJob)
+                .then(uploadJob)
+                .enqueue();
+    } else if (compressionJob.isVideoTranscode()) {
+      jobManager.startChain(compressionJob)
+                .then(resumableUploadSpecJob)
+                .then(uploadJob)
+                .enqueue();
+    } else {
+      jobManager.startChain(Arrays.asList(compressionJob, resumableUploadSpecJob))
+                .then(uploadJob)
+                .enqueue();
+    }
+  }
+
+  public @NonNull String getUploadJobId() {
+    return uploadJob.getId();
+  }
+
+  public @NonNull List<String> getJobIds() {
+    List<Job>    jobs = resumableUploadSpecJob != null ? Arrays.asList(compressionJob, resumableUploadSpecJob, uploadJob)
+                                                       : Arrays.asList(compressionJob, uploadJob);
+    List<String> ids  = new ArrayList<>(jobs.size());
+
+    for (Job job : jobs) {
+      ids.add(job.getId());
+    }
+
+    return Collections.unmodifiableList(ids);
+  }
+}
@@ -15,35 +15,63 @@ import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+
+/**
+ * Keeps every job in memory, along with an index that makes finding the next runnable job cheap.
+ *
+ * Jobs are grouped by queue (or by ID for jobs without a queue) and ordered by creation time, so
+ * the head of each queue is always at hand. Heads that aren't running and have no outstanding
+ * dependencies are kept in a ready set ordered by their next run time. The index is updated as
+ * jobs are added, updated and removed, so picking the next job never has to look at the rest.
+ */
 public class FastJobStorage implements JobStorage {
 
   private static final String TAG = Log.tag(FastJobStorage.class);
 
   private final JobDatabase jobDatabase;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobs;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, Set<String>>          dependentsByJobId;
+  private final Map<String, Long>                 insertionOrder;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final Map<String, JobSpec>              readyHeadsByQueue;
+  private final TreeSet<JobSpec>                  readyHeads;
+  private final Comparator<JobSpec>               createdOrder;
+
+  private long nextInsertion;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
     this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
+    this.jobs                = new LinkedHashMap<>();
     this.constraintsByJobId  = new HashMap<>();
     this.dependenciesByJobId = new HashMap<>();
+    this.dependentsByJobId   = new HashMap<>();
+    this.insertionOrder      = new HashMap<>();
+    this.jobsByQueue         = new HashMap<>();
+    this.readyHeadsByQueue   = new HashMap<>();
+    this.createdOrder        = (j1, j2) -> {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      return result != 0 ? result : Long.compare(insertionOrder.get(j1.getId()), insertionOrder.get(j2.getId()));
+    };
+    this.readyHeads          = new TreeSet<>((j1, j2) -> {
+      int result = Long.compare(j1.getNextRunAttemptTime(), j2.getNextRunAttemptTime());
+      return result != 0 ? result : createdOrder.compare(j1, j2);
+    });
   }
 
   @Override
@@ -52,8 +80,6 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
-
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
       jobConstraints.add(constraintSpec);
@@ -64,6 +90,11 @@ public class FastJobStorage implements JobStorage {
       List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
       jobDependencies.add(dependencySpec);
       dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependent(dependencySpec);
+    }
+
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
     }
   }
 
@@ -75,110 +106,85 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
       constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), new LinkedList<>(fullSpec.getDependencySpecs()));
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependent(dependencySpec);
+      }
+
+      addJob(fullSpec.getJobSpec());
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobs.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobs.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    Optional<JobSpec> migrationJob = getMigrationJob();
+    JobSpec migrationJob = getQueueHead(Job.Parameters.MIGRATION_QUEUE_KEY);
 
-    if (migrationJob.isPresent() && !migrationJob.get().isRunning() && migrationJob.get().getNextRunAttemptTime() <= currentTime) {
-      return Collections.singletonList(migrationJob.get());
-    } else if (migrationJob.isPresent()) {
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
       return Collections.emptyList();
     } else {
-      return Stream.of(jobs)
-                   .groupBy(jobSpec -> {
-                     String queueKey = jobSpec.getQueueKey();
-                     if (queueKey != null) {
-                       return queueKey;
-                     } else {
-                       return jobSpec.getId();
-                     }
-                   })
-                   .map(byQueueKey ->
-                     Stream.of(byQueueKey.getValue()).sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                           .findFirst()
-                           .orElse(null)
-                   )
-                   .withoutNulls()
-                   .filter(j -> {
-                     List<DependencySpec> dependencies = dependenciesByJobId.get(j.getId());
-                     return dependencies == null || dependencies.isEmpty();
-                   })
-                   .filterNot(JobSpec::isRunning)
-                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                   .toList();
+      List<JobSpec> ready = new ArrayList<>();
+
+      for (JobSpec jobSpec : readyHeads) {
+        if (jobSpec.getNextRunAttemptTime() > currentTime) {
+          break;
+        }
+        ready.add(jobSpec);
+      }
+
+      Collections.sort(ready, createdOrder);
+
+      return ready;
     }
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
-    return Stream.of(jobs)
-                 .filter(j -> queue.equals(j.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList();
-  }
-
-  private Optional<JobSpec> getMigrationJob() {
-    return Optional.fromNullable(Stream.of(jobs)
-                                       .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                       .filter(this::firstInQueue)
-                                       .findFirst()
-                                       .orElse(null));
+    TreeSet<JobSpec> queued = jobsByQueue.get(queue);
+    return queued != null ? new ArrayList<>(queued) : new ArrayList<>();
   }
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
-    }
-
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+  private @Nullable JobSpec getQueueHead(@NonNull String queue) {
+    TreeSet<JobSpec> queued = jobsByQueue.get(queue);
+    return queued != null ? queued.first() : null;
   }
 
   @Override
   public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobs.values())
                        .filter(j -> j.getFactoryKey().equals(factoryKey))
                        .count();
   }
 
   @Override
   public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
-    return (int) Stream.of(jobs)
-                       .filter(j -> factoryKey.equals(j.getFactoryKey()) &&
-                                    queueKey.equals(j.getQueueKey()))
+    return (int) Stream.of(getJobsInQueue(queueKey))
+                       .filter(j -> factoryKey.equals(j.getFactoryKey()))
                        .count();
   }
 
   @Override
-  public boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return Stream.of(jobs)
-                 .noneMatch(j -> j.getQueueKey() != null && queueKeys.contains(j.getQueueKey()));
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (jobsByQueue.containsKey(queueKey)) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   @Override
@@ -188,25 +194,19 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.updateJobRunningState(id, isRunning);
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      existing.getSerializedData(),
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (job != null) {
+      replaceJob(job, new JobSpec(job.getId(),
+                                  job.getFactoryKey(),
+                                  job.getQueueKey(),
+                                  job.getCreateTime(),
+                                  job.getNextRunAttemptTime(),
+                                  job.getRunAttempt(),
+                                  job.getMaxAttempts(),
+                                  job.getLifespan(),
+                                  job.getSerializedData(),
+                                  job.getSerializedInputData(),
+                                  isRunning,
+                                  job.isMemoryOnly()));
     }
   }
 
@@ -217,25 +217,19 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      serializedData,
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (job != null) {
+      replaceJob(job, new JobSpec(job.getId(),
+                                  job.getFactoryKey(),
+                                  job.getQueueKey(),
+                                  job.getCreateTime(),
+                                  nextRunAttemptTime,
+                                  runAttempt,
+                                  job.getMaxAttempts(),
+                                  job.getLifespan(),
+                                  serializedData,
+                                  job.getSerializedInputData(),
+                                  isRunning,
+                                  job.isMemoryOnly()));
     }
   }
 
@@ -243,28 +237,25 @@ public class FastJobStorage implements JobStorage {
   public synchronized void updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending();
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getLifespan(),
-                                     existing.getSerializedData(),
-                                     existing.getSerializedInputData(),
-                                     false,
-                                     existing.isMemoryOnly());
-      iter.set(updated);
+    for (JobSpec existing : new ArrayList<>(jobs.values())) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    existing.getSerializedData(),
+                                    existing.getSerializedInputData(),
+                                    false,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
     }
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
     List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
     for (JobSpec update : jobSpecs) {
       JobSpec found = getJobById(update.getId());
@@ -277,15 +268,11 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.updateJobs(durable);
     }
 
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobs.get(update.getId());
 
-      if (update != null) {
-        iter.set(update);
+      if (existing != null) {
+        replaceJob(existing, update);
       }
     }
   }
@@ -309,25 +296,48 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.deleteJobs(durableIds);
     }
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    for (String jobId : jobIds) {
+      JobSpec job = jobs.remove(jobId);
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+      if (job != null) {
+        removeFromQueue(job);
       }
-    }
 
-    for (String jobId : jobIds) {
+      insertionOrder.remove(jobId);
       constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
+      List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+
+      if (dependencies != null) {
+        for (DependencySpec dependency : dependencies) {
+          Set<String> dependents = dependentsByJobId.get(dependency.getDependsOnJobId());
+
+          if (dependents != null) {
+            dependents.remove(jobId);
+          }
+        }
+      }
+
+      Set<String> dependents = dependentsByJobId.remove(jobId);
+
+      if (dependents != null) {
+        for (String dependentId : dependents) {
+          List<DependencySpec> dependentDependencies = dependenciesByJobId.get(dependentId);
+
+          if (dependentDependencies != null) {
+            Iterator<DependencySpec> dependencyIter = dependentDependencies.iterator();
+
+            while (dependencyIter.hasNext()) {
+              if (dependencyIter.next().getDependsOnJobId().equals(jobId)) {
+                dependencyIter.remove();
+              }
+            }
+          }
+
+          JobSpec dependent = jobs.get(dependentId);
 
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+          if (dependent != null) {
+            refreshQueueHead(getQueueKey(dependent));
           }
         }
       }
@@ -369,8 +379,15 @@ public class FastJobStorage implements JobStorage {
   }
 
   private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-                 .map(Map.Entry::getValue)
+    Set<String> dependents = dependentsByJobId.get(jobSpecId);
+
+    if (dependents == null) {
+      return new ArrayList<>();
+    }
+
+    return Stream.of(dependents)
+                 .map(dependenciesByJobId::get)
+                 .withoutNulls()
                  .flatMap(Stream::of)
                  .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
                  .toList();
@@ -385,12 +402,99 @@ public class FastJobStorage implements JobStorage {
   }
 
   private JobSpec getJobById(@NonNull String id) {
-    for (JobSpec job : jobs) {
-      if (job.getId().equals(id)) {
-        return job;
+    JobSpec job = jobs.get(id);
+
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
+    }
+
+    return job;
+  }
+
+  private void addJob(@NonNull JobSpec job) {
+    if (!insertionOrder.containsKey(job.getId())) {
+      insertionOrder.put(job.getId(), nextInsertion++);
+    }
+
+    jobs.put(job.getId(), job);
+    addToQueue(job);
+  }
+
+  /**
+   * Swaps in an updated version of a job, keeping its original insertion order.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    removeFromQueue(existing);
+    jobs.put(updated.getId(), updated);
+    addToQueue(updated);
+  }
+
+  private void addToQueue(@NonNull JobSpec job) {
+    String           queueKey = getQueueKey(job);
+    TreeSet<JobSpec> queued   = jobsByQueue.get(queueKey);
+
+    if (queued == null) {
+      queued = new TreeSet<>(createdOrder);
+      jobsByQueue.put(queueKey, queued);
+    }
+
+    queued.add(job);
+    refreshQueueHead(queueKey);
+  }
+
+  private void removeFromQueue(@NonNull JobSpec job) {
+    String           queueKey = getQueueKey(job);
+    TreeSet<JobSpec> queued   = jobsByQueue.get(queueKey);
+
+    if (queued != null) {
+      queued.remove(job);
+
+      if (queued.isEmpty()) {
+        jobsByQueue.remove(queueKey);
       }
     }
-    Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
-    return null;
+
+    refreshQueueHead(queueKey);
+  }
+
+  /**
+   * Makes sure the ready set holds the head of the queue if, and only if, it can run.
+   */
+  private void refreshQueueHead(@NonNull String queueKey) {
+    JobSpec previous = readyHeadsByQueue.remove(queueKey);
+
+    if (previous != null) {
+      readyHeads.remove(previous);
+    }
+
+    JobSpec head = getQueueHead(queueKey);
+
+    if (head != null && !head.isRunning() && !hasDependencies(head.getId())) {
+      readyHeads.add(head);
+      readyHeadsByQueue.put(queueKey, head);
+    }
+  }
+
+  private boolean hasDependencies(@NonNull String jobId) {
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobId);
+    return dependencies != null && !dependencies.isEmpty();
+  }
+
+  private void addDependent(@NonNull DependencySpec dependencySpec) {
+    Set<String> dependents = dependentsByJobId.get(dependencySpec.getDependsOnJobId());
+
+    if (dependents == null) {
+      dependents = new HashSet<>();
+      dependentsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+    }
+
+    dependents.add(dependencySpec.getJobId());
+  }
+
+  /**
+   * Jobs without a queue are effectively in a queue of their own.
+   */
+  private static @NonNull String getQueueKey(@NonNull JobSpec job) {
+    return job.getQueueKey() != null ? job.getQueueKey() : job.getId();
   }
 }
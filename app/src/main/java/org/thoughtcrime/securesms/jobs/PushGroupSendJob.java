@@ -233,6 +233,7 @@ public final class PushGroupSendJob extends PushSendJob {
         database.markAsSent(messageId, true);
 
         markAttachmentsUploaded(messageId, message);
+        logMediaSendLatency(message);
 
         if (message.getExpiresIn() > 0 && !message.isExpirationUpdate()) {
           database.markExpireStarted(messageId);
@@ -160,6 +160,7 @@ public class PushMediaSendJob extends PushSendJob {
       }
 
       log(TAG, String.valueOf(message.getSentTimeMillis()), "Sent message: " + messageId);
+      logMediaSendLatency(message);
 
     } catch (InsecureFallbackApprovalException ifae) {
       warn(TAG, "Failure", ifae);
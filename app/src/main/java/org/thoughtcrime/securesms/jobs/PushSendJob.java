@@ -187,24 +187,31 @@ public abstract class PushSendJob extends SendJob {
                              .toList());
 
     return new HashSet<>(Stream.of(attachments).map(a -> {
-                                                 AttachmentUploadJob attachmentUploadJob = new AttachmentUploadJob(((DatabaseAttachment) a).getAttachmentId());
-
-                                                 if (message.isGroup()) {
-                                                   jobManager.startChain(AttachmentCompressionJob.fromAttachment((DatabaseAttachment) a, false, -1))
-                                                             .then(attachmentUploadJob)
-                                                             .enqueue();
-                                                 } else {
-                                                   jobManager.startChain(AttachmentCompressionJob.fromAttachment((DatabaseAttachment) a, false, -1))
-                                                             .then(new ResumableUploadSpecJob())
-                                                             .then(attachmentUploadJob)
-                                                             .enqueue();
-                                                 }
-
-                                                 return attachmentUploadJob.getId();
+                                                 AttachmentUploadChain chain = new AttachmentUploadChain((DatabaseAttachment) a, !message.isGroup());
+
+                                                 chain.enqueue(jobManager);
+
+                                                 return chain.getUploadJobId();
                                                })
                                                .toList());
   }
 
+  /**
+   * Logs how long it took from the user pressing send until the message, including all of its
+   * attachments, was delivered to the server.
+   */
+  protected void logMediaSendLatency(@NonNull OutgoingMediaMessage message) {
+    int attachmentCount = message.getAttachments().size();
+
+    if (attachmentCount == 0) {
+      return;
+    }
+
+    long latency = System.currentTimeMillis() - message.getSentTimeMillis();
+
+    log(TAG, String.valueOf(message.getSentTimeMillis()), "Sent " + attachmentCount + " attachment(s) in " + latency + " ms end to end.");
+  }
+
   protected @NonNull List<SignalServiceAttachment> getAttachmentPointersFor(List<Attachment> attachments) {
     return Stream.of(attachments).map(this::getAttachmentPointerFor).filter(a -> a != null).toList();
   }
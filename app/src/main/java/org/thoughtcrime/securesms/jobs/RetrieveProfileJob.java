@@ -20,6 +20,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.UnidentifiedAccessMode;
+import org.thoughtcrime.securesms.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
@@ -32,6 +33,7 @@ import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.recipients.RecipientUtil;
 import org.thoughtcrime.securesms.transport.RetryLaterException;
 import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.BoundedFetcher;
 import org.thoughtcrime.securesms.util.IdentityUtil;
 import org.thoughtcrime.securesms.util.ProfileUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
@@ -48,7 +50,6 @@ import org.whispersystems.signalservice.api.profiles.ProfileAndCredential;
 import org.whispersystems.signalservice.api.profiles.SignalServiceProfile;
 import org.whispersystems.signalservice.api.push.exceptions.NotFoundException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
-import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -59,7 +60,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -74,6 +74,9 @@ public class RetrieveProfileJob extends BaseJob {
 
   private static final String KEY_RECIPIENTS = "recipients";
 
+  private static final int MAX_CONCURRENT_FETCHES = 8;
+  private static final int BATCH_SIZE             = 20;
+
   private final Set<RecipientId> recipientIds;
 
   /**
@@ -249,42 +252,41 @@ public class RetrieveProfileJob extends BaseJob {
     List<Recipient> recipients = Recipient.resolvedList(recipientIds);
     stopwatch.split("resolve-ensure");
 
-    List<Pair<Recipient, ListenableFuture<ProfileAndCredential>>> futures = Stream.of(recipients)
-                                                                                  .filter(Recipient::hasServiceIdentifier)
-                                                                                  .map(r -> new Pair<>(r, ProfileUtil.retrieveProfile(context, r, getRequestType(r))))
-                                                                                  .toList();
-    stopwatch.split("futures");
-
-    List<Pair<Recipient, ProfileAndCredential>> profiles = Stream.of(futures)
-                                                                 .map(pair -> {
-                                                                   Recipient recipient = pair.first();
-
-                                                                   try {
-                                                                     ProfileAndCredential profile = pair.second().get(10, TimeUnit.SECONDS);
-                                                                     return new Pair<>(recipient, profile);
-                                                                   } catch (InterruptedException | TimeoutException e) {
-                                                                     retries.add(recipient.getId());
-                                                                   } catch (ExecutionException e) {
-                                                                     if (e.getCause() instanceof PushNetworkException) {
-                                                                       retries.add(recipient.getId());
-                                                                     } else if (e.getCause() instanceof NotFoundException) {
-                                                                       Log.w(TAG, "Failed to find a profile for " + recipient.getId());
-                                                                       if (recipient.isRegistered()) {
-                                                                         unregistered.add(recipient.getId());
-                                                                       }
-                                                                     } else {
-                                                                       Log.w(TAG, "Failed to retrieve profile for " + recipient.getId());
-                                                                     }
-                                                                   }
-                                                                   return null;
-                                                                 })
-                                                                 .withoutNulls()
-                                                                 .toList();
-    stopwatch.split("network");
+    List<Recipient>                             fetchable = Stream.of(recipients).filter(Recipient::hasServiceIdentifier).toList();
+    List<Pair<Recipient, ProfileAndCredential>> profiles  = new ArrayList<>(fetchable.size());
 
-    for (Pair<Recipient, ProfileAndCredential> profile : profiles) {
-      process(profile.first(), profile.second());
-    }
+    BoundedFetcher<Recipient, ProfileAndCredential> fetcher = new BoundedFetcher<>(MAX_CONCURRENT_FETCHES,
+                                                                                   TimeUnit.SECONDS.toMillis(10),
+                                                                                   BATCH_SIZE,
+                                                                                   r -> ProfileUtil.retrieveProfile(context, r, getRequestType(r)));
+
+    long fetchStartTime = System.currentTimeMillis();
+
+    fetcher.fetch(fetchable, new BoundedFetcher.Listener<Recipient, ProfileAndCredential>() {
+      @Override
+      public void onBatch(@NonNull List<Pair<Recipient, ProfileAndCredential>> results) {
+        processBatch(results);
+        profiles.addAll(results);
+      }
+
+      @Override
+      public void onFailure(@NonNull Recipient recipient, @NonNull Throwable error) {
+        if (error instanceof PushNetworkException || error instanceof TimeoutException || error instanceof InterruptedException) {
+          retries.add(recipient.getId());
+        } else if (error instanceof NotFoundException) {
+          Log.w(TAG, "Failed to find a profile for " + recipient.getId());
+          if (recipient.isRegistered()) {
+            unregistered.add(recipient.getId());
+          }
+        } else {
+          Log.w(TAG, "Failed to retrieve profile for " + recipient.getId());
+        }
+      }
+    });
+    stopwatch.split("network-process");
+
+    long fetchDuration = Math.max(1, System.currentTimeMillis() - fetchStartTime);
+    Log.d(TAG, String.format(Locale.US, "Fetched and saved %d profile(s) in %d ms (%.1f/s).", profiles.size(), fetchDuration, profiles.size() * 1000f / fetchDuration));
 
     Set<RecipientId> success = SetUtil.difference(recipientIds, retries);
     recipientDatabase.markProfilesFetched(success, System.currentTimeMillis());
@@ -300,7 +302,7 @@ public class RetrieveProfileJob extends BaseJob {
       recipientDatabase.bulkUpdatedRegisteredStatus(newlyRegistered, unregistered);
     }
 
-    stopwatch.split("process");
+    stopwatch.split("registered");
 
     long keyCount = Stream.of(profiles).map(Pair::first).map(Recipient::getProfileKey).withoutNulls().count();
     Log.d(TAG, String.format(Locale.US, "Started with %d recipient(s). Found %d profile(s), and had keys for %d of them. Will retry %d.", recipients.size(), profiles.size(), keyCount, retries.size()));
@@ -323,6 +325,29 @@ public class RetrieveProfileJob extends BaseJob {
   @Override
   public void onFailure() {}
 
+  /**
+   * Writes a batch of profiles in a single transaction. Identity keys are saved after it's
+   * committed, because that takes the session lock, and message processing takes the two in the
+   * opposite order.
+   */
+  private void processBatch(@NonNull List<Pair<Recipient, ProfileAndCredential>> profiles) {
+    SQLiteDatabase db = DatabaseFactory.getInstance(context).getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (Pair<Recipient, ProfileAndCredential> profile : profiles) {
+        process(profile.first(), profile.second());
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (Pair<Recipient, ProfileAndCredential> profile : profiles) {
+      setIdentityKey(profile.first(), profile.second().getProfile().getIdentityKey());
+    }
+  }
+
   private void process(Recipient recipient, ProfileAndCredential profileAndCredential) {
     SignalServiceProfile profile              = profileAndCredential.getProfile();
     ProfileKey           recipientProfileKey  = ProfileKeyUtil.profileKeyOrNull(recipient.getProfileKey());
@@ -332,7 +357,6 @@ public class RetrieveProfileJob extends BaseJob {
     setProfileAvatar(recipient, profile.getAvatar());
     clearUsername(recipient);
     setProfileCapabilities(recipient, profile.getCapabilities());
-    setIdentityKey(recipient, profile.getIdentityKey());
     setUnidentifiedAccessMode(recipient, profile.getUnidentifiedAccess(), profile.isUnrestrictedUnidentifiedAccess());
 
     if (recipientProfileKey != null) {
@@ -118,6 +118,14 @@ public final class KeyValueStore implements KeyValueReader {
     return copy;
   }
 
+  /**
+   * Loads the data set now rather than on first read.
+   */
+  @AnyThread
+  synchronized void preload() {
+    initializeIfNecessary();
+  }
+
   /**
    * Ensures that any pending writes (such as those made via {@link Writer#apply()}) are finished.
    */
@@ -99,6 +99,14 @@ public final class SignalStore {
     return keys;
   }
 
+  /**
+   * Reads all of the store's data from the database, so that the first real read doesn't have to.
+   * Intended to be called off the main thread during app startup.
+   */
+  public static void preload() {
+    getStore().preload();
+  }
+
   /**
    * Forces the store to re-fetch all of it's data from the database.
    * Should only be used for testing!
@@ -4,9 +4,17 @@ import android.content.Context;
 
 import androidx.annotation.NonNull;
 
+import org.signal.core.util.logging.Log;
+import org.signal.core.util.logging.PersistentLogger;
 import org.thoughtcrime.securesms.ApplicationContext;
 
-public class LogSectionLogger implements LogSection {
+import java.io.IOException;
+
+public class LogSectionLogger implements StreamingLogSection {
+
+  private static final String TAG = Log.tag(LogSectionLogger.class);
+
+  private static final int LINES_PER_CHUNK = 1000;
 
   @Override
   public @NonNull String getTitle() {
@@ -18,4 +26,39 @@ public class LogSectionLogger implements LogSection {
     CharSequence logs = ApplicationContext.getInstance(context).getPersistentLogger().getLogs();
     return logs != null ? logs : "Unable to retrieve logs.";
   }
+
+  @Override
+  public void streamContent(@NonNull Context context, @NonNull ChunkConsumer consumer) {
+    PersistentLogger logger = ApplicationContext.getInstance(context).getPersistentLogger();
+
+    try (PersistentLogger.LogReader reader = logger.openLogReader()) {
+      StringBuilder chunk     = new StringBuilder();
+      int           lineCount = 0;
+      String        line;
+
+      while ((line = reader.readLine()) != null) {
+        if (lineCount > 0) {
+          chunk.append('\n');
+        }
+
+        chunk.append(line);
+        lineCount++;
+
+        if (lineCount >= LINES_PER_CHUNK) {
+          consumer.onChunk(chunk);
+          chunk     = new StringBuilder();
+          lineCount = 0;
+        }
+      }
+
+      if (lineCount > 0) {
+        consumer.onChunk(chunk);
+      }
+
+      Log.d(TAG, logger.getStats().toString());
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read logs.", e);
+      consumer.onChunk("Unable to retrieve logs.");
+    }
+  }
 }
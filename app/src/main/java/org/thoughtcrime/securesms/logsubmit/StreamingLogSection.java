@@ -0,0 +1,24 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * A {@link LogSection} whose content is too large to comfortably hold in memory all at once. The
+ * content is handed out in chunks that can each be scrubbed on their own.
+ */
+interface StreamingLogSection extends LogSection {
+
+  /**
+   * Hands the content to the consumer in order, a chunk at a time. Every chunk ends on a line
+   * boundary.
+   */
+  @WorkerThread
+  void streamContent(@NonNull Context context, @NonNull ChunkConsumer consumer);
+
+  interface ChunkConsumer {
+    void onChunk(@NonNull CharSequence chunk);
+  }
+}
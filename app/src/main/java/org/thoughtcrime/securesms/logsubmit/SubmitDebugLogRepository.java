@@ -202,20 +202,24 @@ public class SubmitDebugLogRepository {
     List<LogLine> out = new ArrayList<>();
     out.add(new SimpleLogLine(formatTitle(section.getTitle(), maxTitleLength), LogLine.Style.NONE, LogLine.Placeholder.NONE));
 
-    CharSequence content = Scrubber.scrub(section.getContent(context));
-
-    List<LogLine> lines = Stream.of(Pattern.compile("\\n").split(content))
-                                .map(s -> new SimpleLogLine(s, LogStyleParser.parseStyle(s), LogStyleParser.parsePlaceholderType(s)))
-                                .map(line -> (LogLine) line)
-                                .toList();
-
-    out.addAll(lines);
+    if (section instanceof StreamingLogSection) {
+      ((StreamingLogSection) section).streamContent(context, chunk -> out.addAll(toLogLines(Scrubber.scrub(chunk))));
+    } else {
+      out.addAll(toLogLines(Scrubber.scrub(section.getContent(context))));
+    }
 
     Log.d(TAG, "[" + section.getTitle() + "] Took " + (System.currentTimeMillis() - startTime) + " ms");
 
     return out;
   }
 
+  private static @NonNull List<LogLine> toLogLines(@NonNull CharSequence content) {
+    return Stream.of(Pattern.compile("\\n").split(content))
+                 .map(s -> new SimpleLogLine(s, LogStyleParser.parseStyle(s), LogStyleParser.parsePlaceholderType(s)))
+                 .map(line -> (LogLine) line)
+                 .toList();
+  }
+
   private static @NonNull String formatTitle(@NonNull String title, int maxTitleLength) {
     int neededPadding = maxTitleLength - title.length();
     int leftPadding   = neededPadding  / 2;
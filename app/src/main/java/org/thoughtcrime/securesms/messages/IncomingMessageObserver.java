@@ -27,7 +27,6 @@ import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesms.util.AppForegroundObserver;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.libsignal.InvalidVersionException;
-import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceMessagePipe;
 import org.whispersystems.signalservice.api.SignalServiceMessageReceiver;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
@@ -45,6 +44,7 @@ public class IncomingMessageObserver {
 
   public  static final  int FOREGROUND_ID            = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES  = 1;
+  private static final int  MAX_ENVELOPE_BATCH_SIZE  = 50;
 
   private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger(0);
 
@@ -239,14 +239,14 @@ public class IncomingMessageObserver {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = localPipe.readOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelope -> {
-                Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+              List<SignalServiceEnvelope> result = localPipe.readBatchOrEmpty(MAX_ENVELOPE_BATCH_SIZE, REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelopes -> {
+                Log.i(TAG, "Retrieved " + envelopes.size() + " envelope(s)!");
                 try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-                  processor.processEnvelope(envelope);
+                  processor.processEnvelopes(envelopes);
                 }
               });
 
-              if (!result.isPresent() && !networkDrained) {
+              if (result.isEmpty() && !networkDrained) {
                 Log.i(TAG, "Network was newly-drained. Enqueuing a job to listen for decryption draining.");
                 networkDrained = true;
                 ApplicationDependencies.getJobManager().add(new PushDecryptDrainedJob());
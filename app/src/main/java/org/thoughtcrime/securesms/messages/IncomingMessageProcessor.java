@@ -6,11 +6,14 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.annimon.stream.Stream;
+
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSessionLock;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
+import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
@@ -36,6 +39,9 @@ import org.whispersystems.signalservice.api.messages.SignalServiceGroupContext;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -84,6 +90,50 @@ public class IncomingMessageProcessor {
      *         one was created. Otherwise null.
      */
     public @Nullable String processEnvelope(@NonNull SignalServiceEnvelope envelope) {
+      return processEnvelope(envelope, null);
+    }
+
+    /**
+     * Processes a batch of envelopes while holding the processor lock once. Each envelope goes
+     * through the same path as {@link #processEnvelope(SignalServiceEnvelope)}, but inside a single
+     * database transaction, and the decrypt jobs for every message are persisted in a single write.
+     * This blocks until those jobs have been saved, so it is safe to acknowledge the whole batch when
+     * it returns.
+     *
+     * @return The ids of the {@link PushDecryptMessageJob}s that were scheduled, in envelope order.
+     */
+    public @NonNull List<String> processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      long            startTime = System.currentTimeMillis();
+      List<Job>       jobs      = new ArrayList<>(envelopes.size());
+      MessageDatabase database  = DatabaseFactory.getSmsDatabase(context);
+
+      database.beginTransaction();
+      try {
+        for (SignalServiceEnvelope envelope : envelopes) {
+          processEnvelope(envelope, jobs);
+        }
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
+      if (jobs.size() > 0) {
+        jobManager.addAll(jobs);
+        jobManager.flush();
+      }
+
+      long duration = Math.max(1, System.currentTimeMillis() - startTime);
+      Log.i(TAG, String.format(Locale.US, "Processed a batch of %d envelope(s) (%d message(s)) in %d ms (%.1f envelopes/sec)",
+                               envelopes.size(), jobs.size(), duration, envelopes.size() * 1000f / duration));
+
+      return Stream.of(jobs).map(Job::getId).toList();
+    }
+
+    /**
+     * @param deferredJobs If present, jobs for messages are added here for the caller to enqueue,
+     *                     rather than being enqueued right away.
+     */
+    private @Nullable String processEnvelope(@NonNull SignalServiceEnvelope envelope, @Nullable List<Job> deferredJobs) {
       if (envelope.hasSource()) {
         Recipient.externalHighTrustPush(context, envelope.getSourceAddress());
       }
@@ -92,20 +142,26 @@ public class IncomingMessageProcessor {
         processReceipt(envelope);
         return null;
       } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
-        return processMessage(envelope);
+        return processMessage(envelope, deferredJobs);
       } else {
         Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
         return null;
       }
     }
 
-    private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
-      return processMessageDeferred(envelope);
+    private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope, @Nullable List<Job> deferredJobs) {
+      return processMessageDeferred(envelope, deferredJobs);
     }
 
-    private @Nullable String processMessageDeferred(@NonNull SignalServiceEnvelope envelope) {
+    private @Nullable String processMessageDeferred(@NonNull SignalServiceEnvelope envelope, @Nullable List<Job> deferredJobs) {
       Job job = new PushDecryptMessageJob(context, envelope);
-      jobManager.add(job);
+
+      if (deferredJobs != null) {
+        deferredJobs.add(job);
+      } else {
+        jobManager.add(job);
+      }
+
       return job.getId();
     }
 
@@ -64,27 +64,27 @@ public class OptimizedMessageNotifier implements MessageNotifier {
 
   @Override
   public void updateNotification(@NonNull Context context) {
-    runOnLimiter(() -> getNotifier().updateNotification(context));
+    runOnLimiter(-1, () -> getNotifier().updateNotification(context));
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId) {
-    runOnLimiter(() -> getNotifier().updateNotification(context, threadId));
+    runOnLimiter(threadId, () -> getNotifier().updateNotification(context, threadId));
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId, @NonNull BubbleUtil.BubbleState defaultBubbleState) {
-    runOnLimiter(() -> getNotifier().updateNotification(context, threadId, defaultBubbleState));
+    runOnLimiter(threadId, () -> getNotifier().updateNotification(context, threadId, defaultBubbleState));
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId, boolean signal) {
-    runOnLimiter(() -> getNotifier().updateNotification(context, threadId, signal));
+    runOnLimiter(threadId, () -> getNotifier().updateNotification(context, threadId, signal));
   }
 
   @Override
   public void updateNotification(@NonNull Context context, long threadId, boolean signal, int reminderCount, @NonNull BubbleUtil.BubbleState defaultBubbleState) {
-    runOnLimiter(() -> getNotifier().updateNotification(context, threadId, signal, reminderCount, defaultBubbleState));
+    runOnLimiter(threadId, () -> getNotifier().updateNotification(context, threadId, signal, reminderCount, defaultBubbleState));
   }
 
   @Override
@@ -102,7 +102,15 @@ public class OptimizedMessageNotifier implements MessageNotifier {
     getNotifier().removeStickyThread(threadId);
   }
 
-  private void runOnLimiter(@NonNull Runnable runnable) {
+  /**
+   * The limiter drops all but the most recent of the updates it's holding back, so the thread each
+   * update is for has to be recorded before it gets there.
+   */
+  private void runOnLimiter(long threadId, @NonNull Runnable runnable) {
+    if (FeatureFlags.useNewNotificationSystem()) {
+      messageNotifierV2.onThreadChanged(threadId);
+    }
+
     Throwable prettyException = new Throwable();
     limiter.run(() -> {
       try {
@@ -27,6 +27,7 @@ import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.service.KeyCachingService
 import org.thoughtcrime.securesms.util.BubbleUtil.BubbleState
 import org.thoughtcrime.securesms.util.ServiceUtil
+import org.thoughtcrime.securesms.util.Stopwatch
 import org.thoughtcrime.securesms.util.TextSecurePreferences
 import org.thoughtcrime.securesms.webrtc.CallNotificationBuilder
 import org.whispersystems.signalservice.internal.util.Util
@@ -48,15 +49,22 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   @Volatile private var lastScheduledReminder: Long = 0
   @Volatile private var previousLockedStatus: Boolean = KeyCachingService.isLocked(context)
   @Volatile private var previousPrivacyPreference: NotificationPrivacyPreference = TextSecurePreferences.getNotificationPrivacy(context)
+  @Volatile private var previousState: NotificationStateV2? = null
+  @Volatile private var lastFullUpdate: Long = 0
 
   private val threadReminders: MutableMap<Long, Reminder> = ConcurrentHashMap()
   private val stickyThreads: MutableMap<Long, StickyThread> = mutableMapOf()
 
+  private val changedThreads: MutableSet<Long> = mutableSetOf()
+  private var fullUpdatePending: Boolean = true
+
   private val executor = CancelableExecutor()
 
   override fun setVisibleThread(threadId: Long) {
     visibleThread = threadId
-    stickyThreads.remove(threadId)
+    if (stickyThreads.remove(threadId) != null) {
+      onThreadChanged(-1)
+    }
   }
 
   override fun getVisibleThread(): Long {
@@ -101,9 +109,42 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   }
 
   /**
+   * Records that [threadId] has changed and needs to be re-read by the next update, or that every
+   * thread has if it's -1. Updates can be coalesced before they get here, so this has to be called
+   * for every update request as it's made.
+   */
+  fun onThreadChanged(threadId: Long) {
+    synchronized(changedThreads) {
+      if (threadId > 0) {
+        changedThreads += threadId
+      } else {
+        fullUpdatePending = true
+      }
+    }
+  }
+
+  /**
+   * @return The threads that changed since the last update, or null if everything needs to be rebuilt.
+   */
+  private fun takeChangedThreads(): Set<Long>? {
+    synchronized(changedThreads) {
+      val changed: Set<Long>? = if (fullUpdatePending) null else changedThreads.toSet()
+      changedThreads.clear()
+      fullUpdatePending = false
+      return changed
+    }
+  }
+
+  /**
+   * When only some threads can have changed, only their conversations are re-read and the rest of
+   * the state is carried over from the previous update. Anything that could affect other threads
+   * (reads, deletes, settings) comes through without a thread id and rebuilds everything, as does
+   * the first update after [FULL_UPDATE_INTERVAL] to pick up changes we weren't told about.
+   *
    * @param signal is no longer used
    * @param reminderCount is not longer used
    */
+  @Synchronized
   override fun updateNotification(
     context: Context,
     threadId: Long,
@@ -111,7 +152,10 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
     reminderCount: Int,
     defaultBubbleState: BubbleState
   ) {
+    onThreadChanged(threadId)
+
     if (!TextSecurePreferences.isNotificationsEnabled(context)) {
+      onThreadChanged(-1)
       return
     }
 
@@ -125,8 +169,21 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       stickyThreads.clear()
     }
 
+    val changedThreadIds: Set<Long>? = takeChangedThreads()
+    val incremental: Boolean = !changedThreadIds.isNullOrEmpty() && !notificationConfigurationChanged && System.currentTimeMillis() - lastFullUpdate < FULL_UPDATE_INTERVAL
+    val baseState: NotificationStateV2? = if (incremental) previousState else null
+    previousState = null
+
+    val stopwatch = Stopwatch(if (baseState != null) "incremental-notification-update" else "full-notification-update")
+
     Log.internal().i(TAG, "sticky thread: $stickyThreads")
-    var state: NotificationStateV2 = NotificationStateProvider.constructNotificationState(context, stickyThreads)
+    var state: NotificationStateV2 = if (baseState != null && changedThreadIds != null) {
+      baseState.withUpdatedThreads(changedThreadIds, NotificationStateProvider.constructNotificationState(context, stickyThreads, changedThreadIds))
+    } else {
+      lastFullUpdate = System.currentTimeMillis()
+      NotificationStateProvider.constructNotificationState(context, stickyThreads)
+    }
+    stopwatch.split("state")
     Log.internal().i(TAG, "state: $state")
 
     val displayedNotifications: Set<Int>? = ServiceUtil.getNotificationManager(context).getDisplayedNotificationIds().getOrNull()
@@ -147,13 +204,16 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
     }
 
     val retainStickyThreadIds: Set<Long> = state.getThreadsWithMostRecentNotificationFromSelf()
-    stickyThreads.keys.retainAll { retainStickyThreadIds.contains(it) }
+    val stickyThreadsChanged: Boolean = stickyThreads.keys.retainAll { retainStickyThreadIds.contains(it) }
 
     if (state.isEmpty) {
       Log.i(TAG, "State is empty, cancelling all notifications")
       NotificationCancellationHelper.cancelAllMessageNotifications(context, stickyThreads.map { it.value.notificationId }.toSet())
       updateBadge(context, 0)
       clearReminderInternal(context)
+      if (!stickyThreadsChanged) {
+        previousState = state
+      }
       return
     }
 
@@ -171,6 +231,7 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
     )
 
     lastAudibleNotification = System.currentTimeMillis()
+    stopwatch.split("notify")
 
     updateReminderTimestamps(context, alertOverrides, threadsThatAlerted)
 
@@ -187,8 +248,14 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
       }
     }
     DatabaseFactory.getMmsSmsDatabase(context).setNotifiedTimestamp(System.currentTimeMillis(), smsIds, mmsIds)
+    stopwatch.split("mark-notified")
+
+    if (!stickyThreadsChanged) {
+      previousState = state.asNotified()
+    }
 
     Log.i(TAG, "threads: ${state.threadCount} messages: ${state.messageCount}")
+    stopwatch.stop(TAG)
   }
 
   override fun clearReminder(context: Context) {
@@ -197,10 +264,12 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
 
   override fun addStickyThread(threadId: Long, earliestTimestamp: Long) {
     stickyThreads[threadId] = StickyThread(threadId, NotificationIds.getNotificationIdForThread(threadId), earliestTimestamp)
+    onThreadChanged(-1)
   }
 
   override fun removeStickyThread(threadId: Long) {
     stickyThreads.remove(threadId)
+    onThreadChanged(-1)
   }
 
   private fun updateReminderTimestamps(context: Context, alertOverrides: Set<Long>, threadsThatAlerted: Set<Long>) {
@@ -258,6 +327,7 @@ class MessageNotifierV2(context: Application) : MessageNotifier {
   companion object {
     val TAG: String = Log.tag(MessageNotifierV2::class.java)
     private val REMINDER_TIMEOUT: Long = TimeUnit.MINUTES.toMillis(2)
+    private val FULL_UPDATE_INTERVAL: Long = TimeUnit.MINUTES.toMillis(1)
 
     private fun updateBadge(context: Context, count: Int) {
       try {
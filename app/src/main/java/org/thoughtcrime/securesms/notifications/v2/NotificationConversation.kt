@@ -31,7 +31,8 @@ import org.thoughtcrime.securesms.util.Util
 data class NotificationConversation(
   val recipient: Recipient,
   val threadId: Long,
-  val notificationItems: List<NotificationItemV2>
+  val notificationItems: List<NotificationItemV2>,
+  private val alreadyNotified: Boolean = false
 ) {
   val mostRecentNotification: NotificationItemV2 = notificationItems.last()
   val notificationId: Int = NotificationIds.getNotificationIdForThread(threadId)
@@ -103,7 +104,15 @@ data class NotificationConversation(
   }
 
   fun hasNewNotifications(): Boolean {
-    return notificationItems.any { it.isNewNotification }
+    return !alreadyNotified && notificationItems.any { it.isNewNotification }
+  }
+
+  /**
+   * The items keep the notified timestamps they were read with, so once this conversation has been
+   * shown and its items marked as notified, a copy kept around for later has to be told so.
+   */
+  fun asNotified(): NotificationConversation {
+    return copy(alreadyNotified = true)
   }
 
   fun getChannelId(context: Context): String {
@@ -16,11 +16,16 @@ import org.thoughtcrime.securesms.util.CursorUtil
  */
 object NotificationStateProvider {
 
+  /**
+   * @param threadIds If non-null, the state is only constructed for these threads, to be merged
+   *                  into a previous state with [NotificationStateV2.withUpdatedThreads].
+   */
   @WorkerThread
-  fun constructNotificationState(context: Context, stickyThreads: Map<Long, MessageNotifierV2.StickyThread>): NotificationStateV2 {
+  fun constructNotificationState(context: Context, stickyThreads: Map<Long, MessageNotifierV2.StickyThread>, threadIds: Set<Long>? = null): NotificationStateV2 {
     val messages: MutableList<NotificationMessage> = mutableListOf()
+    val threadRecipients: MutableMap<Long, Recipient> = mutableMapOf()
 
-    DatabaseFactory.getMmsSmsDatabase(context).getMessagesForNotificationState(stickyThreads.values).use { unreadMessages ->
+    DatabaseFactory.getMmsSmsDatabase(context).getMessagesForNotificationState(stickyThreads.values, threadIds).use { unreadMessages ->
       if (unreadMessages.count == 0) {
         return NotificationStateV2.EMPTY
       }
@@ -28,9 +33,10 @@ object NotificationStateProvider {
       MmsSmsDatabase.readerFor(unreadMessages).use { reader ->
         var record: MessageRecord? = reader.next
         while (record != null) {
+          val threadId: Long = record.threadId
           messages += NotificationMessage(
             messageRecord = record,
-            threadRecipient = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(record.threadId)?.resolve() ?: Recipient.UNKNOWN,
+            threadRecipient = threadRecipients.getOrPut(threadId) { DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId)?.resolve() ?: Recipient.UNKNOWN },
             threadId = record.threadId,
             stickyThread = stickyThreads.containsKey(record.threadId),
             isUnreadMessage = CursorUtil.requireInt(unreadMessages, MmsSmsColumns.READ) == 0,
@@ -81,6 +81,32 @@ data class NotificationStateV2(val conversations: List<NotificationConversation>
     return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT)
   }
 
+  /**
+   * Replaces the conversations for [threadIds] with those in [updated], which should have been
+   * constructed for just those threads. Conversations for other threads are kept as they are.
+   */
+  fun withUpdatedThreads(threadIds: Set<Long>, updated: NotificationStateV2): NotificationStateV2 {
+    val updatedConversations: Map<Long, NotificationConversation> = updated.conversations.associateBy { it.threadId }
+    val existingThreadIds: Set<Long> = conversations.map { it.threadId }.toSet()
+    val merged: MutableList<NotificationConversation> = mutableListOf()
+
+    conversations.forEach { conversation ->
+      if (threadIds.contains(conversation.threadId)) {
+        updatedConversations[conversation.threadId]?.let { merged += it }
+      } else {
+        merged += conversation
+      }
+    }
+
+    merged += updated.conversations.filterNot { existingThreadIds.contains(it.threadId) }
+
+    return NotificationStateV2(merged)
+  }
+
+  fun asNotified(): NotificationStateV2 {
+    return NotificationStateV2(conversations.map { it.asNotified() })
+  }
+
   fun getThreadsWithMostRecentNotificationFromSelf(): Set<Long> {
     return conversations.filter { it.mostRecentNotification.individualRecipient.isSelf }
       .map { it.threadId }
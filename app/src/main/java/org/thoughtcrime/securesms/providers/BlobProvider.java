@@ -31,9 +31,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -64,7 +64,7 @@ public class BlobProvider {
 
   private static final BlobProvider INSTANCE = new BlobProvider();
 
-  private final Map<Uri, byte[]> memoryBlobs = new HashMap<>();
+  private final Map<Uri, byte[]> memoryBlobs = new ConcurrentHashMap<>();
 
   private volatile boolean initialized = false;
 
@@ -91,7 +91,7 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
     waitUntilInitialized();
     return getStream(context, uri, 0L);
   }
@@ -100,16 +100,15 @@ public class BlobProvider {
    * Retrieve a stream for the content with the specified URI starting from the specified position.
    * @throws IOException If the stream fails to open or the spec of the URI doesn't match.
    */
-  public synchronized @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri, long position) throws IOException {
+  public @NonNull InputStream getStream(@NonNull Context context, @NonNull Uri uri, long position) throws IOException {
     waitUntilInitialized();
     return getBlobRepresentation(context,
                                  uri,
                                  bytes -> {
-                                   ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-                                   if (byteArrayInputStream.skip(position) != position) {
+                                   if (position > bytes.length) {
                                      throw new IOException("Failed to skip to position " + position + " for: " + uri);
                                    }
-                                   return byteArrayInputStream;
+                                   return new ByteArrayInputStream(bytes, (int) position, bytes.length - (int) position);
                                  },
                                  file -> ModernDecryptingPartInputStream.createFor(getAttachmentSecret(context),
                                                                                    file,
@@ -117,7 +116,7 @@ public class BlobProvider {
   }
 
   @RequiresApi(23)
-  public synchronized @NonNull MediaDataSource getMediaDataSource(@NonNull Context context, @NonNull Uri uri) throws IOException {
+  public @NonNull MediaDataSource getMediaDataSource(@NonNull Context context, @NonNull Uri uri) throws IOException {
     waitUntilInitialized();
     return getBlobRepresentation(context,
                                  uri,
@@ -125,22 +124,23 @@ public class BlobProvider {
                                  file -> EncryptedMediaDataSource.createForDiskBlob(getAttachmentSecret(context), file));
   }
 
-  private synchronized @NonNull <T> T getBlobRepresentation(@NonNull Context context,
-                                                            @NonNull Uri uri,
-                                                            @NonNull IOFunction<byte[], T> getByteRepresentation,
-                                                            @NonNull IOFunction<File, T> getFileRepresentation)
+  /**
+   * Not synchronized, so that opening one blob never waits on another being read or written. The
+   * memory blobs live in a concurrent map, and single-use blobs are claimed with an atomic remove.
+   */
+  private @NonNull <T> T getBlobRepresentation(@NonNull Context context,
+                                               @NonNull Uri uri,
+                                               @NonNull IOFunction<byte[], T> getByteRepresentation,
+                                               @NonNull IOFunction<File, T> getFileRepresentation)
       throws IOException
   {
     if (isAuthority(uri)) {
       StorageType storageType = StorageType.decode(uri.getPathSegments().get(STORAGE_TYPE_PATH_SEGMENT));
 
       if (storageType.isMemory()) {
-        byte[] data = memoryBlobs.get(uri);
+        byte[] data = storageType == StorageType.SINGLE_USE_MEMORY ? memoryBlobs.remove(uri) : memoryBlobs.get(uri);
 
         if (data != null) {
-          if (storageType == StorageType.SINGLE_USE_MEMORY) {
-            memoryBlobs.remove(uri);
-          }
           return getByteRepresentation.apply(data);
         } else {
           throw new IOException("Failed to find in-memory blob for: " + uri);
@@ -157,7 +157,7 @@ public class BlobProvider {
     }
   }
 
-  private synchronized AttachmentSecret getAttachmentSecret(@NonNull Context context) {
+  private AttachmentSecret getAttachmentSecret(@NonNull Context context) {
     return AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
   }
 
@@ -440,7 +440,7 @@ public class BlobProvider {
     }
   }
 
-  private synchronized void waitUntilInitialized() {
+  private void waitUntilInitialized() {
     if (!initialized) {
       Log.i(TAG, "Waiting for initialization...");
       synchronized (this) {
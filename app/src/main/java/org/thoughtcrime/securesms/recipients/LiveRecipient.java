@@ -131,7 +131,26 @@ public final class LiveRecipient {
       Log.w(TAG, "[Resolve][MAIN] " + getId(), new Throwable());
     }
 
-    Recipient       updated      = fetchAndCacheRecipientFromDisk(getId());
+    return resolveParticipantsAndSet(fetchAndCacheRecipientFromDisk(getId()));
+  }
+
+  /**
+   * Same as {@link #resolve()}, but uses settings that were already read from disk (e.g. as part of
+   * a bulk lookup) instead of querying for them again.
+   */
+  @WorkerThread
+  @NonNull Recipient resolve(@NonNull RecipientSettings settings) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return current;
+    }
+
+    return resolveParticipantsAndSet(buildAndCacheRecipient(settings));
+  }
+
+  @WorkerThread
+  private @NonNull Recipient resolveParticipantsAndSet(@NonNull Recipient updated) {
     List<Recipient> participants = Stream.of(updated.getParticipants())
                                          .filter(Recipient::isResolving)
                                          .map(Recipient::getId)
@@ -190,9 +209,16 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientSettings settings = recipientDatabase.getRecipientSettings(id);
-    RecipientDetails  details  = settings.getGroupId() != null ? getGroupRecipientDetails(settings)
-                                                               : RecipientDetails.forIndividual(context, settings);
+    return buildAndCacheRecipient(id, recipientDatabase.getRecipientSettings(id));
+  }
+
+  private @NonNull Recipient buildAndCacheRecipient(@NonNull RecipientSettings settings) {
+    return buildAndCacheRecipient(settings.getId(), settings);
+  }
+
+  private @NonNull Recipient buildAndCacheRecipient(@NonNull RecipientId id, @NonNull RecipientSettings settings) {
+    RecipientDetails details = settings.getGroupId() != null ? getGroupRecipientDetails(settings)
+                                                             : RecipientDetails.forIndividual(context, settings);
 
     Recipient recipient = new Recipient(id, details, true);
     RecipientIdCache.INSTANCE.put(recipient);
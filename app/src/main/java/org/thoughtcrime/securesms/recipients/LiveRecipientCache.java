@@ -5,6 +5,7 @@ import android.content.Context;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
@@ -13,69 +14,95 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.MissingRecipientException;
+import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.DeviceProperties;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
-  private static final int CACHE_MAX      = 1000;
-  private static final int CACHE_WARM_MAX = 500;
-
-  private final Context                         context;
-  private final RecipientDatabase               recipientDatabase;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        executor;
-  private final SQLiteDatabase                  db;
+  private static final int CACHE_MIN           = 500;
+  private static final int CACHE_MAX           = 5000;
+  private static final int CACHE_PER_MEMORY_MB = 10;
+  private static final int CACHE_WARM_MAX      = 500;
+  private static final int SEGMENT_COUNT       = 16;
+  private static final int MAX_RESOLVE_BATCH   = 500;
+
+  private final Context           context;
+  private final RecipientDatabase recipientDatabase;
+  private final Segment[]         segments;
+  private final LiveRecipient     unknown;
+  private final Executor          executor;
+  private final SQLiteDatabase    db;
+  private final PendingResolves   pendingResolves;
+  private final AtomicBoolean     warmedUp;
+  private final AtomicLong        hits;
+  private final AtomicLong        misses;
+  private final AtomicLong        evictions;
 
   private volatile RecipientId localRecipientId;
 
-  private boolean warmedUp;
-
   @SuppressLint("UseSparseArrays")
   public LiveRecipientCache(@NonNull Context context) {
     this.context           = context.getApplicationContext();
     this.recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
-    this.recipients        = new LRUCache<>(CACHE_MAX);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
+    this.executor          = SignalExecutors.BOUNDED;
     this.db                = DatabaseFactory.getInstance(context).getRawDatabase();
-    this.executor          = new FilteredExecutor(SignalExecutors.BOUNDED, () -> !db.isDbLockedByCurrentThread());
+    this.pendingResolves   = new PendingResolves();
+    this.warmedUp          = new AtomicBoolean(false);
+    this.hits              = new AtomicLong();
+    this.misses            = new AtomicLong();
+    this.evictions         = new AtomicLong();
+
+    int capacity        = getCapacity(context);
+    int segmentCapacity = Math.max(1, capacity / SEGMENT_COUNT);
+
+    this.segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment(segmentCapacity, evictions);
+    }
+
+    Log.i(TAG, "Cache capacity: " + capacity);
   }
 
   @AnyThread
-  synchronized @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
+  @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live = recipients.get(id);
-
-    if (live == null) {
-      final LiveRecipient newLive = new LiveRecipient(context, new Recipient(id));
-
-      recipients.put(id, newLive);
+    Segment       segment = segmentFor(id);
+    LiveRecipient live;
+    boolean       created = false;
 
-      MissingRecipientException prettyStackTraceError = new MissingRecipientException(newLive.getId());
+    synchronized (segment) {
+      live = segment.get(id);
 
-      executor.execute(() -> {
-        try {
-          newLive.resolve();
-        } catch (MissingRecipientException e) {
-          throw prettyStackTraceError;
-        }
-      });
+      if (live == null) {
+        live = new LiveRecipient(context, new Recipient(id));
+        segment.put(id, live);
+        created = true;
+      }
+    }
 
-      live = newLive;
+    if (created) {
+      misses.incrementAndGet();
+      enqueueResolve(live);
+    } else {
+      hits.incrementAndGet();
     }
 
     return live;
@@ -88,29 +115,27 @@ public final class LiveRecipientCache {
    * If the recipient you add is unresolved, this will enqueue a resolve on a background thread.
    */
   @AnyThread
-  public synchronized void addToCache(@NonNull Collection<Recipient> newRecipients) {
+  public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     for (Recipient recipient : newRecipients) {
-      LiveRecipient live         = recipients.get(recipient.getId());
+      Segment       segment      = segmentFor(recipient.getId());
+      LiveRecipient live;
       boolean       needsResolve = false;
 
-      if (live == null) {
-        live = new LiveRecipient(context, recipient);
-        recipients.put(recipient.getId(), live);
-        needsResolve = recipient.isResolving();
-      } else if (live.get().isResolving() || !recipient.isResolving()) {
-        live.set(recipient);
-        needsResolve = recipient.isResolving();
+      synchronized (segment) {
+        live = segment.get(recipient.getId());
+
+        if (live == null) {
+          live = new LiveRecipient(context, recipient);
+          segment.put(recipient.getId(), live);
+          needsResolve = recipient.isResolving();
+        } else if (live.get().isResolving() || !recipient.isResolving()) {
+          live.set(recipient);
+          needsResolve = recipient.isResolving();
+        }
       }
 
       if (needsResolve) {
-        MissingRecipientException prettyStackTraceError = new MissingRecipientException(recipient.getId());
-        executor.execute(() -> {
-          try {
-            recipient.resolve();
-          } catch (MissingRecipientException e) {
-            throw prettyStackTraceError;
-          }
-        });
+        enqueueResolve(live);
       }
     }
   }
@@ -137,11 +162,9 @@ public final class LiveRecipientCache {
   }
 
   @AnyThread
-  public synchronized void warmUp() {
-    if (warmedUp) {
+  public void warmUp() {
+    if (!warmedUp.compareAndSet(false, true)) {
       return;
-    } else {
-      warmedUp = true;
     }
 
     executor.execute(() -> {
@@ -164,12 +187,205 @@ public final class LiveRecipientCache {
   }
 
   @AnyThread
-  public synchronized void clearSelf() {
+  public void clearSelf() {
     localRecipientId = null;
   }
 
   @AnyThread
-  public synchronized void clear() {
-    recipients.clear();
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return A snapshot of the cache hit, miss and eviction counts since the cache was created.
+   */
+  @AnyThread
+  public @NonNull Stats getStats() {
+    return new Stats(hits.get(), misses.get(), evictions.get());
+  }
+
+  private @NonNull Segment segmentFor(@NonNull RecipientId id) {
+    int hash = id.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Queues the recipient to be resolved. Misses that arrive while a resolve is already scheduled
+   * are folded into the same batch, so they can be read with a single query.
+   *
+   * If the caller holds the database lock, the recipient is resolved inline instead. It may have
+   * been inserted in the caller's open transaction, which the read connections can't see yet.
+   */
+  private void enqueueResolve(@NonNull LiveRecipient live) {
+    MissingRecipientException prettyStackTraceError = new MissingRecipientException(live.getId());
+
+    if (db.isDbLockedByCurrentThread()) {
+      try {
+        live.resolve();
+      } catch (MissingRecipientException e) {
+        throw prettyStackTraceError;
+      }
+    } else if (pendingResolves.add(live, prettyStackTraceError)) {
+      executor.execute(this::resolvePending);
+    }
+  }
+
+  /**
+   * Resolves one batch of pending recipients. If a full batch was taken, the next one is handed to
+   * another task before this one starts reading, so large backlogs are resolved in parallel.
+   */
+  @WorkerThread
+  private void resolvePending() {
+    Map<RecipientId, PendingResolve> batch = pendingResolves.drain(MAX_RESOLVE_BATCH);
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    if (batch.size() >= MAX_RESOLVE_BATCH) {
+      executor.execute(this::resolvePending);
+    }
+
+    Map<RecipientId, RecipientSettings> settings = recipientDatabase.getRecipientSettings(batch.keySet());
+    MissingRecipientException           error    = null;
+
+    for (PendingResolve pending : batch.values()) {
+      RecipientSettings recipientSettings = settings.get(pending.live.getId());
+
+      try {
+        if (recipientSettings != null) {
+          pending.live.resolve(recipientSettings);
+        } else {
+          pending.live.resolve();
+        }
+      } catch (MissingRecipientException e) {
+        if (error == null) {
+          error = pending.prettyStackTraceError;
+        }
+      }
+    }
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static int getCapacity(@NonNull Context context) {
+    if (DeviceProperties.isLowMemoryDevice(context)) {
+      return CACHE_MIN;
+    }
+
+    return Util.clamp(DeviceProperties.getMemoryClass(context) * CACHE_PER_MEMORY_MB, CACHE_MIN, CACHE_MAX);
+  }
+
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    private Stats(long hits, long misses, long evictions) {
+      this.hits      = hits;
+      this.misses    = misses;
+      this.evictions = evictions;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+  }
+
+  /**
+   * An access-ordered LRU map guarded by its own monitor, so lookups for different recipients
+   * rarely contend with each other.
+   */
+  private static final class Segment extends LinkedHashMap<RecipientId, LiveRecipient> {
+
+    private final int        maxSize;
+    private final AtomicLong evictions;
+
+    private Segment(int maxSize, @NonNull AtomicLong evictions) {
+      super(16, 0.75f, true);
+      this.maxSize   = maxSize;
+      this.evictions = evictions;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<RecipientId, LiveRecipient> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static final class PendingResolves {
+
+    private final LinkedHashMap<RecipientId, PendingResolve> pending = new LinkedHashMap<>();
+
+    private boolean scheduled;
+
+    /**
+     * @return True if the caller needs to schedule a drain, otherwise one is already scheduled.
+     */
+    synchronized boolean add(@NonNull LiveRecipient live, @NonNull MissingRecipientException prettyStackTraceError) {
+      if (!pending.containsKey(live.getId())) {
+        pending.put(live.getId(), new PendingResolve(live, prettyStackTraceError));
+      }
+
+      if (scheduled) {
+        return false;
+      } else {
+        scheduled = true;
+        return true;
+      }
+    }
+
+    /**
+     * @return Up to the requested number of pending resolves. Once nothing is left pending, the
+     *         next call to {@link #add(LiveRecipient, MissingRecipientException)} will schedule a
+     *         new drain. Otherwise the caller is responsible for scheduling the next one.
+     */
+    synchronized @NonNull Map<RecipientId, PendingResolve> drain(int max) {
+      Map<RecipientId, PendingResolve> batch = new LinkedHashMap<>();
+
+      for (Map.Entry<RecipientId, PendingResolve> entry : pending.entrySet()) {
+        if (batch.size() >= max) break;
+        batch.put(entry.getKey(), entry.getValue());
+      }
+
+      pending.keySet().removeAll(batch.keySet());
+
+      scheduled = !pending.isEmpty();
+
+      return batch;
+    }
+  }
+
+  private static final class PendingResolve {
+    private final LiveRecipient             live;
+    private final MissingRecipientException prettyStackTraceError;
+
+    private PendingResolve(@NonNull LiveRecipient live, @NonNull MissingRecipientException prettyStackTraceError) {
+      this.live                  = live;
+      this.prettyStackTraceError = prettyStackTraceError;
+    }
   }
 }
@@ -9,12 +9,24 @@ import androidx.annotation.NonNull;
 
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
+import org.signal.core.util.tracing.Tracer;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Manages our app startup flow.
+ * <p>
+ * Blocking tasks form a small dependency graph. Main thread tasks run in the order they were added.
+ * Background tasks start as soon as the main thread task added before them, and anything they
+ * explicitly depend on, has finished. All blocking tasks finish before {@link #execute()} returns.
  */
 public final class AppStartup {
 
@@ -55,21 +67,64 @@ public final class AppStartup {
   }
 
   /**
-   * Schedules a task that must happen during app startup in a blocking fashion.
+   * Schedules a task that must happen on the main thread during app startup in a blocking fashion.
+   *
+   * @param dependencies Names of earlier background tasks that must finish before this one starts.
    */
   @MainThread
-  public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Runnable task) {
-    blocking.add(new Task(name, task));
+  public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Runnable task, @NonNull String... dependencies) {
+    blocking.add(new Task(name, task, getDependencies(name, dependencies), false));
     return this;
   }
 
+  /**
+   * Schedules a task that must finish during app startup, but doesn't need the main thread. It
+   * starts after the previously-added main thread task and the provided dependencies, and runs in
+   * parallel with everything else.
+   *
+   * @param dependencies Names of earlier tasks that must finish before this one starts.
+   */
+  @MainThread
+  public @NonNull AppStartup addBlockingInBackground(@NonNull String name, @NonNull Runnable task, @NonNull String... dependencies) {
+    blocking.add(new Task(name, task, getDependencies(name, dependencies), true));
+    return this;
+  }
+
+  private @NonNull Set<String> getDependencies(@NonNull String name, @NonNull String[] dependencies) {
+    Set<String> all   = new HashSet<>(Arrays.asList(dependencies));
+    Set<String> known = new HashSet<>();
+
+    for (Task task : blocking) {
+      known.add(task.getName());
+    }
+
+    if (known.contains(name)) {
+      throw new IllegalArgumentException("Duplicate startup task: " + name);
+    }
+
+    for (String dependency : all) {
+      if (!known.contains(dependency)) {
+        throw new IllegalArgumentException("Startup task " + name + " depends on " + dependency + ", which hasn't been added yet.");
+      }
+    }
+
+    for (int i = blocking.size() - 1; i >= 0; i--) {
+      if (!blocking.get(i).isBackground()) {
+        all.add(blocking.get(i).getName());
+        break;
+      }
+    }
+
+    return all;
+  }
+
   /**
    * Schedules a task that should not block app startup, but should still happen as quickly as
    * possible.
    */
   @MainThread
   public @NonNull AppStartup addNonBlocking(@NonNull Runnable task) {
-    nonBlocking.add(new Task("", task));
+    nonBlocking.add(new Task("", task, Collections.emptySet(), true));
     return this;
   }
 
@@ -82,7 +137,7 @@ public final class AppStartup {
    */
   @MainThread
   public @NonNull AppStartup addPostRender(@NonNull Runnable task) {
-    postRender.add(new Task("", task));
+    postRender.add(new Task("", task, Collections.emptySet(), true));
     return this;
   }
 
@@ -136,12 +191,22 @@ public final class AppStartup {
    */
   @MainThread
   public void execute() {
-    Stopwatch stopwatch = new Stopwatch("init");
+    Stopwatch     stopwatch = new Stopwatch("init");
+    BlockingGraph graph     = new BlockingGraph(blocking);
+
+    graph.scheduleReadyBackgroundTasks();
 
     for (Task task : blocking) {
-      task.getRunnable().run();
-      stopwatch.split(task.getName());
+      if (!task.isBackground()) {
+        graph.awaitDependencies(task);
+        runTraced(task);
+        graph.onFinished(task);
+        stopwatch.split(task.getName());
+      }
     }
+
+    graph.awaitAll();
+    stopwatch.split("join-background");
     blocking.clear();
 
     for (Task task : nonBlocking) {
@@ -158,6 +223,17 @@ public final class AppStartup {
     }, UI_WAIT_TIME);
   }
 
+  private static void runTraced(@NonNull Task task) {
+    String traceName = "AppStartup#" + task.getName();
+
+    Tracer.getInstance().start(traceName);
+    try {
+      task.getRunnable().run();
+    } finally {
+      Tracer.getInstance().end(traceName);
+    }
+  }
+
   private void executePostRender() {
     for (Task task : postRender) {
       SignalExecutors.BOUNDED.execute(task.getRunnable());
@@ -165,13 +241,111 @@ public final class AppStartup {
     postRender.clear();
   }
 
-  private class Task {
-    private final String   name;
-    private final Runnable runnable;
+  /**
+   * Tracks which blocking tasks have finished and hands background tasks to an executor once
+   * everything they depend on is done. Dependencies can only name tasks added earlier, so the
+   * graph can't have cycles.
+   */
+  private static final class BlockingGraph {
+    private final int               total;
+    private final List<Task>        waiting;
+    private final Set<String>       finished;
+    private final Map<String, Long> backgroundTimes;
+    private       Throwable         failure;
+
+    BlockingGraph(@NonNull List<Task> tasks) {
+      this.total           = tasks.size();
+      this.waiting         = new LinkedList<>();
+      this.finished        = new HashSet<>();
+      this.backgroundTimes = new LinkedHashMap<>();
+
+      for (Task task : tasks) {
+        if (task.isBackground()) {
+          waiting.add(task);
+        }
+      }
+    }
+
+    synchronized void scheduleReadyBackgroundTasks() {
+      Iterator<Task> iterator = waiting.iterator();
+
+      while (iterator.hasNext()) {
+        Task task = iterator.next();
+
+        if (finished.containsAll(task.getDependencies())) {
+          iterator.remove();
+          SignalExecutors.BOUNDED.execute(() -> runInBackground(task));
+        }
+      }
+    }
+
+    synchronized void onFinished(@NonNull Task task) {
+      finished.add(task.getName());
+      scheduleReadyBackgroundTasks();
+      notifyAll();
+    }
+
+    synchronized void awaitDependencies(@NonNull Task task) {
+      while (!finished.containsAll(task.getDependencies())) {
+        waitForProgress();
+      }
+    }
+
+    synchronized void awaitAll() {
+      while (finished.size() < total) {
+        waitForProgress();
+      }
+
+      if (backgroundTimes.size() > 0) {
+        Log.d(TAG, "[init] Background tasks: " + backgroundTimes);
+      }
+    }
+
+    private void runInBackground(@NonNull Task task) {
+      long startTime = System.currentTimeMillis();
+
+      try {
+        runTraced(task);
+      } catch (Throwable t) {
+        synchronized (this) {
+          failure = t;
+          notifyAll();
+        }
+        return;
+      }
+
+      synchronized (this) {
+        backgroundTimes.put(task.getName(), System.currentTimeMillis() - startTime);
+        onFinished(task);
+      }
+    }
+
+    private void waitForProgress() {
+      if (failure != null) {
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error)            throw (Error) failure;
+        throw new AssertionError(failure);
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
 
-    protected Task(@NonNull String name, @NonNull Runnable runnable) {
-      this.name = name;
-      this.runnable = runnable;
+  private static class Task {
+    private final String      name;
+    private final Runnable    runnable;
+    private final Set<String> dependencies;
+    private final boolean     background;
+
+    protected Task(@NonNull String name, @NonNull Runnable runnable, @NonNull Set<String> dependencies, boolean background) {
+      this.name         = name;
+      this.runnable     = runnable;
+      this.dependencies = dependencies;
+      this.background   = background;
     }
 
     @NonNull String getName() {
@@ -181,5 +355,13 @@ public final class AppStartup {
     public @NonNull Runnable getRunnable() {
       return runnable;
     }
+
+    @NonNull Set<String> getDependencies() {
+      return dependencies;
+    }
+
+    boolean isBackground() {
+      return background;
+    }
   }
 }
@@ -33,6 +33,7 @@ import java.io.InputStream;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -43,11 +44,11 @@ public class BitmapUtil {
 
   private static final String TAG = Log.tag(BitmapUtil.class);
 
-  private static final int MAX_COMPRESSION_QUALITY          = 90;
-  private static final int MIN_COMPRESSION_QUALITY          = 45;
-  private static final int MAX_COMPRESSION_ATTEMPTS         = 5;
-  private static final int MIN_COMPRESSION_QUALITY_DECREASE = 5;
-  private static final int MAX_IMAGE_HALF_SCALES            = 3;
+  private static final int MAX_COMPRESSION_ATTEMPTS = 5;
+  private static final int MAX_POOLED_BUFFER_SIZE   = 2 * 1024 * 1024;
+
+  /** A single spare encode buffer, shared by all threads, so at most one is ever held on to. */
+  private static final AtomicReference<PooledOutputStream> COMPRESSION_BUFFER = new AtomicReference<>();
 
   /**
    * @deprecated You probably want to use {@link ImageCompressionUtil} instead, which has a clearer
@@ -92,83 +93,132 @@ public class BitmapUtil {
                                                   @NonNull CompressFormat format)
       throws BitmapDecodingException
   {
-    return createScaledBytes(context, model, maxImageWidth, maxImageHeight, maxImageSize, format, 1, 0);
+    return createScaledBytesWithPlanner(context, model, maxImageWidth, maxImageHeight, maxImageSize, format);
   }
 
+  /**
+   * Loads the image once, then lets {@link ImageCompressionPlanner} pick the quality and scale.
+   * Any rescaling is done from the loaded bitmap rather than by loading the image again, and every
+   * attempt encodes into the same buffer. Most images need one or two encodes.
+   *
+   * An encode that fits but uses well under the limit means the estimate was too pessimistic, so
+   * it's re-planned from the measured size and, if that allows a higher quality or scale, encoded
+   * again. The larger result is kept if it still fits, so images don't end up worse than the old
+   * loop, which always started at {@link ImageCompressionPlanner#MAX_QUALITY}.
+   */
   @WorkerThread
-  private static <T> ScaleResult createScaledBytes(@NonNull Context context,
-                                                   @NonNull T model,
-                                                   final int maxImageWidth,
-                                                   final int maxImageHeight,
-                                                   final int maxImageSize,
-                                                   @NonNull CompressFormat format,
-                                                   final int sizeAttempt,
-                                                   int totalAttempts)
+  private static <T> ScaleResult createScaledBytesWithPlanner(@NonNull Context context,
+                                                              @NonNull T model,
+                                                              final int maxImageWidth,
+                                                              final int maxImageHeight,
+                                                              final int maxImageSize,
+                                                              @NonNull CompressFormat format)
       throws BitmapDecodingException
   {
+    Bitmap loadedBitmap;
+
     try {
-      int    quality  = MAX_COMPRESSION_QUALITY;
-      int    attempts = 0;
-      byte[] bytes;
-
-      Bitmap scaledBitmap = GlideApp.with(context.getApplicationContext())
-                                    .asBitmap()
-                                    .load(model)
-                                    .skipMemoryCache(true)
-                                    .diskCacheStrategy(DiskCacheStrategy.NONE)
-                                    .centerInside()
-                                    .submit(maxImageWidth, maxImageHeight)
-                                    .get();
-
-      if (scaledBitmap == null) {
-        throw new BitmapDecodingException("Unable to decode image");
-      }
+      loadedBitmap = GlideApp.with(context.getApplicationContext())
+                             .asBitmap()
+                             .load(model)
+                             .skipMemoryCache(true)
+                             .diskCacheStrategy(DiskCacheStrategy.NONE)
+                             .centerInside()
+                             .submit(maxImageWidth, maxImageHeight)
+                             .get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new BitmapDecodingException(e);
+    }
 
-      Log.i(TAG, String.format(Locale.US,"Initial scaled bitmap has size of %d bytes.", scaledBitmap.getByteCount()));
-      Log.i(TAG, String.format(Locale.US, "Max dimensions %d x %d, %d bytes", maxImageWidth, maxImageHeight, maxImageSize));
+    if (loadedBitmap == null) {
+      throw new BitmapDecodingException("Unable to decode image");
+    }
 
-      try {
-        do {
-          totalAttempts++;
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          scaledBitmap.compress(format, quality, baos);
-          bytes = baos.toByteArray();
+    Log.i(TAG, String.format(Locale.US,"Initial scaled bitmap has size of %d bytes.", loadedBitmap.getByteCount()));
+    Log.i(TAG, String.format(Locale.US, "Max dimensions %d x %d, %d bytes", maxImageWidth, maxImageHeight, maxImageSize));
 
-          Log.d(TAG, "iteration with quality " + quality + " size " + bytes.length + " bytes.");
-          if (quality == MIN_COMPRESSION_QUALITY) break;
+    boolean                      qualityAdjustable = format != CompressFormat.PNG;
+    double                       bytesPerPixel     = ImageCompressionPlanner.estimateBytesPerPixel(loadedBitmap);
+    PooledOutputStream           buffer            = obtainCompressionBuffer(maxImageSize);
+    Bitmap                       scaledBitmap      = loadedBitmap;
+    int                          attempts          = 0;
+    ImageCompressionPlanner.Plan fittedPlan        = null;
+    byte[]                       fittedBytes       = null;
+    int                          fittedWidth       = 0;
+    int                          fittedHeight      = 0;
 
-          int nextQuality = (int)Math.floor(quality * Math.sqrt((double)maxImageSize / bytes.length));
-          if (quality - nextQuality < MIN_COMPRESSION_QUALITY_DECREASE) {
-            nextQuality = quality - MIN_COMPRESSION_QUALITY_DECREASE;
-          }
-          quality = Math.max(nextQuality, MIN_COMPRESSION_QUALITY);
+    try {
+      while (true) {
+        ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(loadedBitmap.getWidth(), loadedBitmap.getHeight(), bytesPerPixel, maxImageSize, qualityAdjustable);
+
+        if (fittedPlan != null && !plan.isLargerThan(fittedPlan)) {
+          break;
+        }
+
+        if (scaledBitmap != loadedBitmap) {
+          scaledBitmap.recycle();
         }
-        while (bytes.length > maxImageSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
 
-        if (bytes.length > maxImageSize) {
-          if (sizeAttempt <= MAX_IMAGE_HALF_SCALES) {
-            scaledBitmap.recycle();
-            scaledBitmap = null;
+        scaledBitmap = plan.getScale() < 1 ? Bitmap.createScaledBitmap(loadedBitmap, plan.scaleDimension(loadedBitmap.getWidth()), plan.scaleDimension(loadedBitmap.getHeight()), true)
+                                           : loadedBitmap;
 
-            Log.i(TAG, "Halving dimensions and retrying.");
-            return createScaledBytes(context, model, maxImageWidth / 2, maxImageHeight / 2, maxImageSize, format, sizeAttempt + 1, totalAttempts);
-          } else {
-            throw new BitmapDecodingException("Unable to scale image below " + bytes.length + " bytes.");
-          }
+        buffer.reset();
+        scaledBitmap.compress(format, plan.getQuality(), buffer);
+        attempts++;
+
+        int size = buffer.size();
+
+        Log.d(TAG, String.format(Locale.US, "Attempt %d with quality %d at %d x %d: %d bytes.", attempts, plan.getQuality(), scaledBitmap.getWidth(), scaledBitmap.getHeight(), size));
+
+        if (size <= 0) {
+          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + size + " bytes.");
         }
 
-        if (bytes.length <= 0) {
-          throw new BitmapDecodingException("Decoding failed. Bitmap has a length of " + bytes.length + " bytes.");
+        if (size <= maxImageSize) {
+          fittedPlan   = plan;
+          fittedBytes  = buffer.toByteArray();
+          fittedWidth  = scaledBitmap.getWidth();
+          fittedHeight = scaledBitmap.getHeight();
+
+          if (!ImageCompressionPlanner.isUnderfilled(size, maxImageSize) || attempts >= MAX_COMPRESSION_ATTEMPTS) {
+            break;
+          }
+        } else if (fittedPlan != null) {
+          break;
+        } else if (attempts >= MAX_COMPRESSION_ATTEMPTS || plan.getScale() <= ImageCompressionPlanner.MIN_SCALE) {
+          throw new BitmapDecodingException("Unable to scale image below " + size + " bytes.");
         }
 
-        Log.i(TAG, String.format(Locale.US, "createScaledBytes(%s) -> quality %d, %d attempt(s) over %d sizes.", model.getClass().getName(), quality, totalAttempts, sizeAttempt));
+        bytesPerPixel = ImageCompressionPlanner.measuredBytesPerPixel(size, scaledBitmap.getWidth(), scaledBitmap.getHeight(), plan.getQuality(), qualityAdjustable);
+      }
 
-        return new ScaleResult(bytes, scaledBitmap.getWidth(), scaledBitmap.getHeight());
-      } finally {
-        if (scaledBitmap != null) scaledBitmap.recycle();
+      Log.i(TAG, String.format(Locale.US, "createScaledBytes(%s) -> quality %d, scale %.2f, %d attempt(s).", model.getClass().getName(), fittedPlan.getQuality(), fittedPlan.getScale(), attempts));
+      return new ScaleResult(fittedBytes, fittedWidth, fittedHeight, attempts);
+    } finally {
+      releaseCompressionBuffer(buffer);
+
+      if (scaledBitmap != loadedBitmap) {
+        scaledBitmap.recycle();
       }
-    } catch (InterruptedException | ExecutionException e) {
-      throw new BitmapDecodingException(e);
+
+      loadedBitmap.recycle();
+    }
+  }
+
+  private static @NonNull PooledOutputStream obtainCompressionBuffer(int expectedSize) {
+    PooledOutputStream buffer = COMPRESSION_BUFFER.getAndSet(null);
+
+    if (buffer == null) {
+      buffer = new PooledOutputStream(Math.min(expectedSize, MAX_POOLED_BUFFER_SIZE));
+    }
+
+    return buffer;
+  }
+
+  private static void releaseCompressionBuffer(@NonNull PooledOutputStream buffer) {
+    if (buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+      buffer.reset();
+      COMPRESSION_BUFFER.set(buffer);
     }
   }
 
@@ -453,11 +503,13 @@ public class BitmapUtil {
     private final byte[] bitmap;
     private final int    width;
     private final int    height;
+    private final int    compressionAttempts;
 
-    public ScaleResult(byte[] bitmap, int width, int height) {
-      this.bitmap = bitmap;
-      this.width  = width;
-      this.height = height;
+    public ScaleResult(byte[] bitmap, int width, int height, int compressionAttempts) {
+      this.bitmap              = bitmap;
+      this.width               = width;
+      this.height              = height;
+      this.compressionAttempts = compressionAttempts;
     }
 
 
@@ -472,5 +524,25 @@ public class BitmapUtil {
     public int getHeight() {
       return height;
     }
+
+    /**
+     * @return How many times the image was encoded to get under the size limit.
+     */
+    public int getCompressionAttempts() {
+      return compressionAttempts;
+    }
+  }
+
+  /**
+   * Exposes its capacity, so an oversized buffer can be dropped instead of pooled.
+   */
+  private static final class PooledOutputStream extends ByteArrayOutputStream {
+    PooledOutputStream(int size) {
+      super(size);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
   }
 }
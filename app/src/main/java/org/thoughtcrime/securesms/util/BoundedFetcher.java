@@ -0,0 +1,157 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs an asynchronous fetch for each of a set of keys, keeping at most a fixed number of them in
+ * flight at once. Results are handed back on the calling thread in the order they complete, in
+ * batches, so the caller can do its follow-up work (like writing to the database) for several
+ * results at a time.
+ */
+public final class BoundedFetcher<K, V> {
+
+  private final int           maxInFlight;
+  private final long          timeout;
+  private final int           batchSize;
+  private final Fetcher<K, V> fetcher;
+
+  /**
+   * @param timeout How long, in milliseconds, each fetch may take before it's reported as failed
+   *                with a {@link TimeoutException}.
+   */
+  public BoundedFetcher(int maxInFlight, long timeout, int batchSize, @NonNull Fetcher<K, V> fetcher) {
+    this.maxInFlight = maxInFlight;
+    this.timeout     = timeout;
+    this.batchSize   = batchSize;
+    this.fetcher     = fetcher;
+  }
+
+  /**
+   * Fetches every key, blocking until each one has either completed or failed. Every key is
+   * reported to the listener exactly once. Keys are expected to be unique.
+   *
+   * A fetch that times out still counts towards the in-flight limit until its future settles, so a
+   * slow server can't be handed more concurrent requests than the limit allows.
+   *
+   * If the calling thread is interrupted, all keys that haven't completed yet are failed with an
+   * {@link InterruptedException}, and the interrupt flag is restored.
+   */
+  public void fetch(@NonNull Collection<K> keys, @NonNull Listener<K, V> listener) {
+    Iterator<K>               remaining   = keys.iterator();
+    BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    Map<K, Long>              deadlines   = new LinkedHashMap<>();
+    Set<K>                    unsettled   = new HashSet<>();
+    List<Pair<K, V>>          batch       = new ArrayList<>(batchSize);
+
+    try {
+      while (remaining.hasNext() || !deadlines.isEmpty()) {
+        while (unsettled.size() < maxInFlight && remaining.hasNext()) {
+          K key = remaining.next();
+
+          unsettled.add(key);
+          deadlines.put(key, System.currentTimeMillis() + timeout);
+          fetcher.fetch(key).addListener(new ListenableFuture.Listener<V>() {
+            @Override
+            public void onSuccess(V result) {
+              completions.add(new Completion(key, result, null));
+            }
+
+            @Override
+            public void onFailure(ExecutionException e) {
+              completions.add(new Completion(key, null, e.getCause() != null ? e.getCause() : e));
+            }
+          });
+        }
+
+        if (deadlines.isEmpty()) {
+          unsettled.remove(completions.take().key);
+          continue;
+        }
+
+        Map.Entry<K, Long> oldest     = deadlines.entrySet().iterator().next();
+        Completion         completion = completions.poll(Math.max(0, oldest.getValue() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+        if (completion == null) {
+          deadlines.remove(oldest.getKey());
+          listener.onFailure(oldest.getKey(), new TimeoutException());
+          continue;
+        }
+
+        unsettled.remove(completion.key);
+
+        if (deadlines.remove(completion.key) != null) {
+          if (completion.error != null) {
+            listener.onFailure(completion.key, completion.error);
+          } else {
+            batch.add(new Pair<>(completion.key, completion.result));
+          }
+
+          if (batch.size() >= batchSize) {
+            listener.onBatch(new ArrayList<>(batch));
+            batch.clear();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      for (K key : deadlines.keySet()) {
+        listener.onFailure(key, e);
+      }
+
+      while (remaining.hasNext()) {
+        listener.onFailure(remaining.next(), e);
+      }
+    }
+
+    if (batch.size() > 0) {
+      listener.onBatch(batch);
+    }
+  }
+
+  public interface Fetcher<K, V> {
+    @NonNull ListenableFuture<V> fetch(@NonNull K key);
+  }
+
+  public interface Listener<K, V> {
+    /**
+     * Called with successful results, in the order they completed.
+     */
+    void onBatch(@NonNull List<Pair<K, V>> results);
+
+    /**
+     * @param error The cause of the fetch's failure, a {@link TimeoutException} if it took too long,
+     *              or an {@link InterruptedException} if the fetch was abandoned.
+     */
+    void onFailure(@NonNull K key, @NonNull Throwable error);
+  }
+
+  private final class Completion {
+    private final K         key;
+    private final V         result;
+    private final Throwable error;
+
+    private Completion(@NonNull K key, V result, Throwable error) {
+      this.key    = key;
+      this.result = result;
+      this.error  = error;
+    }
+  }
+}
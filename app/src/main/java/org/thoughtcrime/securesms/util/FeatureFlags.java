@@ -18,6 +18,7 @@ import org.thoughtcrime.securesms.jobs.RemoteConfigRefreshJob;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.messageprocessingalarm.MessageProcessReceiver;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -77,6 +78,8 @@ public final class FeatureFlags {
   private static final String MESSAGE_PROCESSOR_DELAY           = "android.messageProcessor.foregroundDelayMs";
   private static final String NOTIFICATION_REWRITE              = "android.notificationRewrite";
   private static final String MP4_GIF_SEND_SUPPORT              = "android.mp4GifSendSupport";
+  private static final String TRACE_STREAMING_SAMPLE_PERCENT    = "android.tracing.streamingSamplePercent";
+  private static final String TRACE_CATEGORIES                  = "android.tracing.categories";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -109,7 +112,9 @@ public final class FeatureFlags {
       MESSAGE_PROCESSOR_ALARM_INTERVAL,
       MESSAGE_PROCESSOR_DELAY,
       NOTIFICATION_REWRITE,
-      MP4_GIF_SEND_SUPPORT
+      MP4_GIF_SEND_SUPPORT,
+      TRACE_STREAMING_SAMPLE_PERCENT,
+      TRACE_CATEGORIES
   );
 
   @VisibleForTesting
@@ -350,6 +355,29 @@ public final class FeatureFlags {
     return getBoolean(MP4_GIF_SEND_SUPPORT, false);
   }
 
+  /** The percentage of top-level trace slices to stream to disk. Zero keeps tracing in memory. */
+  public static int traceStreamingSamplePercent() {
+    return getInteger(TRACE_STREAMING_SAMPLE_PERCENT, 0);
+  }
+
+  /** A comma-separated list of trace categories to record. Empty records everything. */
+  public static @NonNull Set<String> traceCategories() {
+    String categories = getString(TRACE_CATEGORIES, "");
+
+    if (TextUtils.isEmpty(categories)) {
+      return Collections.emptySet();
+    }
+
+    Set<String> out = new HashSet<>();
+    for (String category : categories.split(",")) {
+      if (!TextUtils.isEmpty(category.trim())) {
+        out.add(category.trim());
+      }
+    }
+
+    return out;
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
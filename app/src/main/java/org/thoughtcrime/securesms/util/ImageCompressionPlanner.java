@@ -0,0 +1,161 @@
+package org.thoughtcrime.securesms.util;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Picks a compression quality and scale that should land an image just under a size limit on the
+ * first encode.
+ *
+ * The model is that encoded size is proportional to pixel count, and to the square of the quality
+ * (the same relationship the old quality loop used to pick its next step). The bytes per pixel at
+ * maximum quality are first guessed from how busy the image is, then replaced by what an actual
+ * encode measured, so a second plan is usually exact enough to be the last.
+ */
+final class ImageCompressionPlanner {
+
+  static final int    MAX_QUALITY = 90;
+  static final int    MIN_QUALITY = 45;
+  static final double MIN_SCALE   = 1 / 8.0;
+
+  /** Aim a little below the limit so estimation error doesn't cost another encode. */
+  private static final double TARGET_FILL = 0.9;
+
+  /** Below this much of the limit, the estimate was far enough off that it's worth encoding again. */
+  private static final double MIN_FILL = 0.6;
+
+  private static final double BASE_BYTES_PER_PIXEL       = 0.08;
+  private static final double BYTES_PER_PIXEL_PER_DETAIL = 0.03;
+  private static final double MAX_BYTES_PER_PIXEL        = 1.5;
+
+  private static final int SAMPLE_ROWS    = 64;
+  private static final int SAMPLE_COLUMNS = 256;
+
+  private ImageCompressionPlanner() {}
+
+  /**
+   * @param bytesPerPixel    Estimated or measured encoded bytes per pixel at {@link #MAX_QUALITY}.
+   * @param qualityAdjustable False for lossless formats, where only the scale can change the size.
+   */
+  static @NonNull Plan plan(int width, int height, double bytesPerPixel, int maxBytes, boolean qualityAdjustable) {
+    double target           = maxBytes * TARGET_FILL;
+    double predictedAtMax   = (double) width * height * bytesPerPixel;
+    double predictedAtFloor = predictedAtMax;
+    int    qualityFloor     = MAX_QUALITY;
+
+    if (predictedAtMax <= target) {
+      return new Plan(MAX_QUALITY, 1);
+    }
+
+    if (qualityAdjustable) {
+      int quality = (int) Math.floor(MAX_QUALITY * Math.sqrt(target / predictedAtMax));
+
+      if (quality >= MIN_QUALITY) {
+        return new Plan(quality, 1);
+      }
+
+      qualityFloor     = MIN_QUALITY;
+      predictedAtFloor = predictedAtMax * square(MIN_QUALITY / (double) MAX_QUALITY);
+    }
+
+    double scale = Math.max(MIN_SCALE, Math.sqrt(target / predictedAtFloor));
+
+    return new Plan(qualityFloor, scale);
+  }
+
+  /**
+   * @return The bytes per pixel at {@link #MAX_QUALITY} implied by an actual encode.
+   */
+  static double measuredBytesPerPixel(int encodedBytes, int width, int height, int quality, boolean qualityAdjustable) {
+    double bytesPerPixel = encodedBytes / ((double) width * height);
+
+    if (qualityAdjustable) {
+      bytesPerPixel /= square(quality / (double) MAX_QUALITY);
+    }
+
+    return bytesPerPixel;
+  }
+
+  /**
+   * @return True if an encode of this size that fits is still small enough that a re-plan from its
+   *         measured size is likely to allow a noticeably better image.
+   */
+  static boolean isUnderfilled(int encodedBytes, int maxBytes) {
+    return encodedBytes < maxBytes * MIN_FILL;
+  }
+
+  /**
+   * Guesses bytes per pixel at {@link #MAX_QUALITY} from the average difference between
+   * neighbouring pixels, over an evenly spaced sample of rows and columns.
+   */
+  static double estimateBytesPerPixel(@NonNull Bitmap bitmap) {
+    int width  = bitmap.getWidth();
+    int height = bitmap.getHeight();
+
+    if (width < 2 || height < 2) {
+      return BASE_BYTES_PER_PIXEL;
+    }
+
+    int   rowStep    = Math.max(1, (height - 1) / SAMPLE_ROWS);
+    int   columnStep = Math.max(1, (width - 1) / SAMPLE_COLUMNS);
+    int[] rows       = new int[width * 2];
+    long  total      = 0;
+    long  samples    = 0;
+
+    for (int y = 0; y + 1 < height; y += rowStep) {
+      bitmap.getPixels(rows, 0, width, 0, y, width, 2);
+
+      for (int x = 0; x + 1 < width; x += columnStep) {
+        int luma = luma(rows[x]);
+
+        total   += Math.abs(luma - luma(rows[x + 1])) + Math.abs(luma - luma(rows[width + x]));
+        samples += 2;
+      }
+    }
+
+    return bytesPerPixelForDetail(total / (double) samples);
+  }
+
+  static double bytesPerPixelForDetail(double averageDifference) {
+    return Math.min(MAX_BYTES_PER_PIXEL, BASE_BYTES_PER_PIXEL + BYTES_PER_PIXEL_PER_DETAIL * averageDifference);
+  }
+
+  private static int luma(int pixel) {
+    return (((pixel >> 16) & 0xff) * 3 + ((pixel >> 8) & 0xff) * 6 + (pixel & 0xff)) / 10;
+  }
+
+  private static double square(double value) {
+    return value * value;
+  }
+
+  static final class Plan {
+    private final int    quality;
+    private final double scale;
+
+    Plan(int quality, double scale) {
+      this.quality = quality;
+      this.scale   = scale;
+    }
+
+    int getQuality() {
+      return quality;
+    }
+
+    double getScale() {
+      return scale;
+    }
+
+    int scaleDimension(int dimension) {
+      return Math.max(1, (int) Math.round(dimension * scale));
+    }
+
+    /**
+     * @return True if this plan keeps more of the image than the other, through a higher quality or
+     *         a larger scale.
+     */
+    boolean isLargerThan(@NonNull Plan other) {
+      return quality > other.quality || scale > other.scale;
+    }
+  }
+}
@@ -7,11 +7,10 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartChannel;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Create via {@link EncryptedMediaDataSource}.
@@ -20,6 +19,9 @@ import java.io.InputStream;
  * <p>
  * It is "modern" compared to the {@link ClassicEncryptedMediaDataSource}. And "modern" refers to
  * the presence of a random part of the key supplied in the constructor.
+ * <p>
+ * The file is opened once, and every {@link #readAt} decrypts just the requested range, so seeking
+ * while scrubbing doesn't re-open the file or re-derive the key.
  */
 @RequiresApi(23)
 final class ModernEncryptedMediaDataSource extends MediaDataSource {
@@ -29,6 +31,8 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private volatile ModernDecryptingPartChannel channel;
+
   ModernEncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -42,27 +46,7 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
       return -1;
     }
 
-    try (InputStream inputStream = createInputStream(position)) {
-      int totalRead = 0;
-
-      while (length > 0) {
-        int read = inputStream.read(bytes, offset, length);
-
-        if (read == -1) {
-          if (totalRead == 0) {
-            return -1;
-          } else {
-            return totalRead;
-          }
-        }
-
-        length    -= read;
-        offset    += read;
-        totalRead += read;
-      }
-
-      return totalRead;
-    }
+    return getChannel().read(position, bytes, offset, (int) Math.min(length, this.length - position));
   }
 
   @Override
@@ -71,14 +55,30 @@ final class ModernEncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() {
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
   }
 
-  private InputStream createInputStream(long position) throws IOException {
-    if (random == null) {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, mediaFile, position);
-    } else {
-      return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
+  private @NonNull ModernDecryptingPartChannel getChannel() throws IOException {
+    ModernDecryptingPartChannel current = channel;
+
+    if (current == null) {
+      synchronized (this) {
+        if (channel == null) {
+          if (random == null) {
+            channel = ModernDecryptingPartChannel.open(attachmentSecret, mediaFile);
+          } else {
+            channel = ModernDecryptingPartChannel.open(attachmentSecret, random, mediaFile);
+          }
+        }
+
+        current = channel;
+      }
     }
+
+    return current;
   }
 }
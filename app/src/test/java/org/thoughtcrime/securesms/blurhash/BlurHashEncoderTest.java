@@ -0,0 +1,56 @@
+package org.thoughtcrime.securesms.blurhash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class BlurHashEncoderTest {
+
+  @Test
+  public void encode_smallImage() {
+    assertEquals("LEHewc31|fO?z6NFn]aNhSftfTf.", BlurHashEncoder.encode(gradient(32, 24), 32, 24, 4, 3));
+  }
+
+  @Test
+  public void encode_largeImage_splitIntoBands() {
+    assertEquals("LIHV9w2Y|cFchpazjtf7hVfjfQfj", BlurHashEncoder.encode(gradient(300, 300), 300, 300, 4, 3));
+  }
+
+  @Test
+  public void encode_singleComponent() {
+    assertEquals(6, BlurHashEncoder.encode(gradient(8, 8), 8, 8, 1, 1).length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void encode_tooManyComponents() {
+    BlurHashEncoder.encode(gradient(8, 8), 8, 8, 10, 3);
+  }
+
+  @Test
+  public void linearTosRGBFast_matchesLinearTosRGB() {
+    for (int i = -100; i <= 1100; i++) {
+      double value = i / 1000.0;
+      assertEquals(BlurHashUtil.linearTosRGB(value), BlurHashUtil.linearTosRGBFast(value));
+    }
+
+    for (int i = 0; i < 256; i++) {
+      assertEquals(i, BlurHashUtil.linearTosRGBFast(BlurHashUtil.sRGBToLinear(i)));
+    }
+  }
+
+  private static int[] gradient(int width, int height) {
+    int[] pixels = new int[width * height];
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r = x * 255 / (width - 1);
+        int g = y * 255 / (height - 1);
+        int b = (x * 7 + y * 13) % 256;
+
+        pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+
+    return pixels;
+  }
+}
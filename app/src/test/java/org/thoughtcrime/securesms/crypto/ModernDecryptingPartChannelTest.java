@@ -0,0 +1,113 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class ModernDecryptingPartChannelTest {
+
+  private static final int PLAINTEXT_LENGTH = 100_003;
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           random;
+  private byte[]           plaintext;
+  private File             file;
+
+  @Before
+  public void setUp() throws Exception {
+    attachmentSecret = new AttachmentSecret(new byte[32], new byte[32], randomBytes(32, 1));
+    random           = randomBytes(32, 2);
+    plaintext        = randomBytes(PLAINTEXT_LENGTH, 3);
+    file             = File.createTempFile("channel", "test");
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(random);
+      outputStream.write(cipher.doFinal(plaintext));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void size_excludes_header() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.open(attachmentSecret, file)) {
+      assertEquals(PLAINTEXT_LENGTH, channel.size());
+    }
+  }
+
+  @Test
+  public void read_at_random_positions_matches_plaintext() throws IOException {
+    Random positions = new Random(4);
+
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.open(attachmentSecret, file)) {
+      for (int i = 0; i < 500; i++) {
+        int    position = positions.nextInt(PLAINTEXT_LENGTH);
+        byte[] out      = new byte[positions.nextInt(5000) + 1];
+        int    read     = channel.read(position, out, 0, out.length);
+
+        assertEquals(Math.min(out.length, PLAINTEXT_LENGTH - position), read);
+        assertArrayEquals(slice(plaintext, position, read), slice(out, 0, read));
+      }
+    }
+  }
+
+  @Test
+  public void read_past_end_returns_negative_one() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.open(attachmentSecret, file)) {
+      assertEquals(-1, channel.read(PLAINTEXT_LENGTH, new byte[10], 0, 10));
+    }
+  }
+
+  @Test
+  public void input_stream_from_offset_matches_plaintext() throws IOException {
+    try (ModernDecryptingPartChannel channel     = ModernDecryptingPartChannel.open(attachmentSecret, file);
+         InputStream                 inputStream = channel.createInputStream(17))
+    {
+      byte[] out    = new byte[PLAINTEXT_LENGTH - 17];
+      int    offset = 0;
+      int    read;
+
+      while ((read = inputStream.read(out, offset, out.length - offset)) > 0) {
+        offset += read;
+      }
+
+      assertEquals(out.length, offset);
+      assertArrayEquals(slice(plaintext, 17, out.length), out);
+    }
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] slice(byte[] source, int offset, int length) {
+    byte[] out = new byte[length];
+    System.arraycopy(source, offset, out, 0, length);
+    return out;
+  }
+}
@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class FtsUtilTest {
+
+  @Test
+  public void createPrefixQuery_singleWord() {
+    assertEquals("{name} : \"jo\"*", FtsUtil.createPrefixQuery("jo", "name"));
+  }
+
+  @Test
+  public void createPrefixQuery_everyWordMustMatch() {
+    assertEquals("{name email} : \"jo\"* AND {name email} : \"sm\"*", FtsUtil.createPrefixQuery("  jo   sm ", "name", "email"));
+  }
+
+  @Test
+  public void createPrefixQuery_escapesQuotesAndSyntax() {
+    assertEquals("{name} : \"a\"\"b\"* AND {name} : \"OR\"* AND {name} : \"c*\"*", FtsUtil.createPrefixQuery("a\"b OR c*", "name"));
+  }
+
+  @Test
+  public void createPrefixQuery_skipsWordsWithoutLetters() {
+    assertEquals("{name} : \"bob\"*", FtsUtil.createPrefixQuery("@ bob -", "name"));
+  }
+
+  @Test
+  public void createPrefixQuery_nothingToIndex() {
+    assertNull(FtsUtil.createPrefixQuery("", "name"));
+    assertNull(FtsUtil.createPrefixQuery("  @ -- ", "name"));
+  }
+
+  @Test
+  public void createPrefixQuery_nonLatin() {
+    assertEquals("{name} : \"Ärger\"*", FtsUtil.createPrefixQuery("Ärger", "name"));
+    assertEquals("{name} : \"😀a\"*", FtsUtil.createPrefixQuery("😀a", "name"));
+  }
+
+  @Test
+  public void hasDigit() {
+    assertTrue(FtsUtil.hasDigit("+1555"));
+    assertFalse(FtsUtil.hasDigit("bob"));
+  }
+}
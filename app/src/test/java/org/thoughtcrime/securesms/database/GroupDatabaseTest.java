@@ -0,0 +1,120 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import net.sqlcipher.MatrixCursor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class GroupDatabaseTest {
+
+  private static final GroupId GROUP_ID = GroupId.v1orThrow(new byte[16]);
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = mock(SQLiteDatabase.class);
+  }
+
+  @Test
+  public void updateMemberships_onlyWritesChangedRows() {
+    givenMemberships(1, 2);
+
+    GroupDatabase.updateMemberships(db, GROUP_ID, Arrays.asList(RecipientId.from(2), RecipientId.from(3)));
+
+    ArgumentCaptor<ContentValues> inserted = ArgumentCaptor.forClass(ContentValues.class);
+
+    verify(db).delete(eq(GroupDatabase.MEMBERSHIP_TABLE_NAME), anyString(), eq(new String[] { GROUP_ID.toString(), "1" }));
+    verify(db, never()).delete(eq(GroupDatabase.MEMBERSHIP_TABLE_NAME), anyString(), eq(new String[] { GROUP_ID.toString(), "2" }));
+    verify(db).insert(eq(GroupDatabase.MEMBERSHIP_TABLE_NAME), isNull(), inserted.capture());
+
+    assertEquals(GROUP_ID.toString(), inserted.getValue().getAsString("group_id"));
+    assertEquals("3", inserted.getValue().getAsString(GroupDatabase.MEMBERSHIP_RECIPIENT_ID));
+  }
+
+  @Test
+  public void updateMemberships_unchanged_writesNothing() {
+    givenMemberships(1, 2);
+
+    GroupDatabase.updateMemberships(db, GROUP_ID, Arrays.asList(RecipientId.from(1), RecipientId.from(2)));
+
+    verify(db, never()).delete(anyString(), anyString(), any());
+    verify(db, never()).insert(anyString(), any(), any());
+  }
+
+  @Test
+  public void getGroupsContainingAnyMember_queriesMembershipTable() {
+    GroupDatabase groupDatabase = givenGroupDatabase();
+
+    when(db.query(anyString(), isNull(), anyString(), any(), isNull(), isNull(), anyString())).thenReturn(new MatrixCursor(new String[] { "_id" }));
+
+    groupDatabase.getGroupsContainingAnyMember(Arrays.asList(RecipientId.from(4), RecipientId.from(5)), true, false);
+
+    ArgumentCaptor<String>   selection = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<String[]> args      = ArgumentCaptor.forClass(String[].class);
+
+    verify(db).query(anyString(), isNull(), selection.capture(), args.capture(), isNull(), isNull(), anyString());
+
+    assertTrue(selection.getValue().contains("FROM " + GroupDatabase.MEMBERSHIP_TABLE_NAME + " WHERE " + GroupDatabase.MEMBERSHIP_RECIPIENT_ID + " IN (?, ?)"));
+    assertArrayEquals(new String[] { "4", "5", "0", "1" }, args.getValue());
+  }
+
+  @Test
+  public void getGroupsContainingAnyMember_noRecipients_doesNotQuery() {
+    GroupDatabase groupDatabase = givenGroupDatabase();
+
+    List<GroupDatabase.GroupRecord> groups = groupDatabase.getGroupsContainingAnyMember(Collections.emptyList(), false, true);
+
+    assertTrue(groups.isEmpty());
+    verifyZeroInteractions(db);
+  }
+
+  private void givenMemberships(long... recipientIds) {
+    MatrixCursor cursor = new MatrixCursor(new String[] { GroupDatabase.MEMBERSHIP_RECIPIENT_ID });
+
+    for (long recipientId : recipientIds) {
+      cursor.addRow(new Object[] { recipientId });
+    }
+
+    when(db.query(eq(GroupDatabase.MEMBERSHIP_TABLE_NAME), any(), anyString(), eq(new String[] { GROUP_ID.toString() }), isNull(), isNull(), isNull())).thenReturn(cursor);
+  }
+
+  private GroupDatabase givenGroupDatabase() {
+    SQLCipherOpenHelper helper = mock(SQLCipherOpenHelper.class);
+
+    when(helper.getReadableDatabase()).thenReturn(db);
+
+    return new GroupDatabase(ApplicationProvider.getApplicationContext(), helper);
+  }
+}
@@ -0,0 +1,141 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.signal.core.util.tracing.Tracer;
+import org.thoughtcrime.securesms.database.helpers.ReadConnectionPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Tracer.class, ReadConnectionPool.class })
+public class SQLiteDatabaseTest {
+
+  private net.sqlcipher.database.SQLiteDatabase writer;
+  private net.sqlcipher.database.SQLiteDatabase reader;
+  private ReadConnectionPool                    readPool;
+  private SQLiteDatabase                        subject;
+
+  @Before
+  public void setUp() {
+    mockStatic(Tracer.class);
+    when(Tracer.getInstance()).thenReturn(mock(Tracer.class));
+
+    writer   = mock(net.sqlcipher.database.SQLiteDatabase.class);
+    reader   = mock(net.sqlcipher.database.SQLiteDatabase.class);
+    readPool = mock(ReadConnectionPool.class);
+    subject  = new SQLiteDatabase(writer, readPool);
+
+    when(readPool.getConnection()).thenReturn(reader);
+  }
+
+  @Test
+  public void rawQuery_withoutLock_usesReader() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+
+    subject.rawQuery("SELECT 1", (String[]) null);
+
+    verify(reader).rawQuery(anyString(), (String[]) any());
+    verify(writer, never()).rawQuery(anyString(), (String[]) any());
+  }
+
+  @Test
+  public void rawQuery_whenCurrentThreadHoldsLock_usesWriter() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(true);
+
+    subject.rawQuery("SELECT 1", (String[]) null);
+
+    verify(writer).rawQuery(anyString(), (String[]) any());
+    verify(readPool, never()).getConnection();
+  }
+
+  @Test
+  public void rawQuery_whenNoReaderAvailable_usesWriter() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+    when(readPool.getConnection()).thenReturn(null);
+
+    subject.rawQuery("SELECT 1", (String[]) null);
+
+    verify(writer).rawQuery(anyString(), (String[]) any());
+  }
+
+  @Test
+  public void rawQuery_withoutPool_usesWriter() {
+    SQLiteDatabase withoutPool = new SQLiteDatabase(writer);
+
+    withoutPool.rawQuery("SELECT 1", (String[]) null);
+
+    verify(writer).rawQuery(anyString(), (String[]) any());
+  }
+
+  @Test
+  public void endTransaction_outermost_schedulesCheckpoint() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+
+    subject.beginTransaction();
+    subject.endTransaction();
+
+    verify(readPool).onWrite();
+  }
+
+  @Test
+  public void endTransaction_nested_doesNotScheduleCheckpoint() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(true);
+
+    subject.beginTransaction();
+    subject.endTransaction();
+
+    verify(readPool, never()).onWrite();
+  }
+
+  @Test
+  public void queryOnWriter_withoutLock_usesWriter() {
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+
+    subject.queryOnWriter("recipient", null, null, null, null, null, null);
+
+    verify(writer).query(anyString(), any(String[].class), any(), any(String[].class), any(), any(), any());
+    verify(readPool, never()).getConnection();
+  }
+
+  @Test
+  public void runPostTransaction_outsideTransaction_runsImmediately() {
+    AtomicInteger runs = new AtomicInteger();
+
+    subject.runPostTransaction(runs::incrementAndGet);
+
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void runPostTransaction_insideTransaction_runsAfterOutermostEnd() {
+    AtomicInteger runs = new AtomicInteger();
+
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+    subject.beginTransaction();
+
+    when(writer.isDbLockedByCurrentThread()).thenReturn(true);
+    subject.beginTransaction();
+    subject.runPostTransaction(runs::incrementAndGet);
+    subject.endTransaction();
+
+    assertEquals(0, runs.get());
+
+    when(writer.isDbLockedByCurrentThread()).thenReturn(false);
+    subject.endTransaction();
+
+    assertEquals(1, runs.get());
+  }
+}
@@ -0,0 +1,55 @@
+package org.thoughtcrime.securesms.database.helpers;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import net.sqlcipher.MatrixCursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class SQLCipherOpenHelperTest {
+
+  @Test
+  public void backfillGroupMemberships_writesOneRowPerMember() {
+    SQLiteDatabase db     = mock(SQLiteDatabase.class);
+    MatrixCursor   groups = new MatrixCursor(new String[] { "group_id", "members" });
+
+    groups.addRow(new Object[] { "group-a", "1,2" });
+    groups.addRow(new Object[] { "group-b", "3, 4," });
+
+    when(db.query(eq("groups"), any(String[].class), anyString(), isNull(), isNull(), isNull(), isNull())).thenReturn(groups);
+
+    int rows = SQLCipherOpenHelper.backfillGroupMemberships(db);
+
+    ArgumentCaptor<ContentValues> values = ArgumentCaptor.forClass(ContentValues.class);
+    verify(db, times(4)).insert(eq("group_membership"), isNull(), values.capture());
+
+    List<ContentValues> inserted = values.getAllValues();
+
+    assertEquals(4, rows);
+    assertEquals("group-a", inserted.get(0).getAsString("group_id"));
+    assertEquals(Long.valueOf(1), inserted.get(0).getAsLong("recipient_id"));
+    assertEquals(Long.valueOf(2), inserted.get(1).getAsLong("recipient_id"));
+    assertEquals("group-b", inserted.get(3).getAsString("group_id"));
+    assertEquals(Long.valueOf(4), inserted.get(3).getAsLong("recipient_id"));
+  }
+}
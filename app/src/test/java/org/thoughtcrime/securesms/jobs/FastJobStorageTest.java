@@ -14,6 +14,7 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -435,6 +436,84 @@ public class FastJobStorageTest {
     assertTrue(jobs.isEmpty());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextInQueueAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterDependencyDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1", false)));
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_notEligibleUntilNextRunTimeAfterRetry() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+    subject.updateJobAfterRetry("1", false, 1, 50, EMPTY_DATA);
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(49).size());
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(50).size());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_manyQueuedJobs() {
+    List<FullSpec> fullSpecs = new ArrayList<>();
+
+    for (int i = 0; i < 10_000; i++) {
+      fullSpecs.add(new FullSpec(new JobSpec("id" + i, "f", "q" + (i % 100), i, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                 Collections.emptyList(),
+                                 Collections.emptyList()));
+    }
+
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+    subject.init();
+    subject.insertJobs(fullSpecs);
+
+    for (int i = 0; i < 10_000; i++) {
+      List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+      assertEquals(Math.min(100, 10_000 - i), jobs.size());
+      assertEquals("id" + i, jobs.get(0).getId());
+
+      subject.deleteJob(jobs.get(0).getId());
+    }
+
+    assertTrue(subject.getAllJobSpecs().isEmpty());
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
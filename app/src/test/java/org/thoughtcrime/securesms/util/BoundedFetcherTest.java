@@ -0,0 +1,218 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class BoundedFetcherTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void fetch_neverExceedsMaxInFlight() {
+    AtomicInteger     inFlight    = new AtomicInteger();
+    AtomicInteger     maxInFlight = new AtomicInteger();
+    List<Integer>     keys        = range(100);
+    RecordingListener listener    = new RecordingListener();
+
+    new BoundedFetcher<Integer, String>(4, 5000, 10, key -> {
+      SettableFuture<String> future = new SettableFuture<>();
+
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      executor.execute(() -> {
+        sleep(2);
+        inFlight.decrementAndGet();
+        future.set("value-" + key);
+      });
+
+      return future;
+    }).fetch(keys, listener);
+
+    assertTrue(maxInFlight.get() <= 4);
+    assertEquals(100, listener.results.size());
+    assertEquals(10, listener.batchSizes.size());
+    assertEquals("value-42", listener.results.get(42));
+  }
+
+  @Test
+  public void fetch_deliversInCompletionOrder() {
+    RecordingListener                    listener     = new RecordingListener();
+    Map<Integer, SettableFuture<String>> futures      = new ConcurrentHashMap<>();
+    CountDownLatch                       allListening = new CountDownLatch(3);
+
+    executor.execute(() -> {
+      await(allListening);
+      futures.get(2).set("value-2");
+      futures.get(1).set("value-1");
+      futures.get(0).set("value-0");
+    });
+
+    new BoundedFetcher<Integer, String>(3, 5000, 10, key -> {
+      SettableFuture<String> future = new SettableFuture<String>() {
+        @Override
+        public void addListener(Listener<String> futureListener) {
+          super.addListener(futureListener);
+          allListening.countDown();
+        }
+      };
+
+      futures.put(key, future);
+
+      return future;
+    }).fetch(Arrays.asList(0, 1, 2), listener);
+
+    assertEquals(Arrays.asList(2, 1, 0), listener.order);
+    assertEquals(Arrays.asList(3), listener.batchSizes);
+  }
+
+  @Test
+  public void fetch_timedOutFetch_countsAgainstMaxInFlightUntilSettled() {
+    SettableFuture<String> slow        = new SettableFuture<>();
+    CountDownLatch         timedOut    = new CountDownLatch(1);
+    CountDownLatch         nextFetched = new CountDownLatch(1);
+    AtomicBoolean          settled     = new AtomicBoolean();
+
+    executor.execute(() -> {
+      await(timedOut);
+
+      try {
+        nextFetched.await(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      slow.set("late");
+    });
+
+    new BoundedFetcher<Integer, String>(1, 10, 10, key -> {
+      if (key == 0) {
+        return slow;
+      }
+
+      settled.set(slow.isDone());
+      nextFetched.countDown();
+
+      SettableFuture<String> future = new SettableFuture<>();
+      future.set("value-" + key);
+      return future;
+    }).fetch(Arrays.asList(0, 1), new BoundedFetcher.Listener<Integer, String>() {
+      @Override
+      public void onBatch(@NonNull List<Pair<Integer, String>> results) {
+      }
+
+      @Override
+      public void onFailure(@NonNull Integer key, @NonNull Throwable error) {
+        timedOut.countDown();
+      }
+    });
+
+    assertTrue(settled.get());
+  }
+
+  @Test
+  public void fetch_failuresAndTimeouts_areReportedPerKey() {
+    RecordingListener listener = new RecordingListener();
+
+    new BoundedFetcher<Integer, String>(2, 100, 10, key -> {
+      SettableFuture<String> future = new SettableFuture<>();
+
+      if (key == 0) {
+        future.setException(new IOException());
+      } else if (key == 1) {
+        future.set("value-1");
+      }
+
+      return future;
+    }).fetch(Arrays.asList(0, 1, 2), listener);
+
+    assertEquals(1, listener.results.size());
+    assertTrue(listener.failures.get(0) instanceof IOException);
+    assertTrue(listener.failures.get(2) instanceof TimeoutException);
+  }
+
+  @Test
+  public void fetch_interrupted_failsEverythingOutstanding() {
+    RecordingListener listener = new RecordingListener();
+
+    Thread.currentThread().interrupt();
+
+    new BoundedFetcher<Integer, String>(2, 5000, 10, key -> new SettableFuture<>()).fetch(range(5), listener);
+
+    assertTrue(Thread.interrupted());
+    assertEquals(5, listener.failures.size());
+    assertTrue(listener.failures.get(4) instanceof InterruptedException);
+  }
+
+  private static List<Integer> range(int count) {
+    List<Integer> keys = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      keys.add(i);
+    }
+    return keys;
+  }
+
+  private static void await(@NonNull CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class RecordingListener implements BoundedFetcher.Listener<Integer, String> {
+
+    private final Map<Integer, String>    results    = new HashMap<>();
+    private final Map<Integer, Throwable> failures   = new HashMap<>();
+    private final List<Integer>           order      = new ArrayList<>();
+    private final List<Integer>           batchSizes = new ArrayList<>();
+
+    @Override
+    public void onBatch(@NonNull List<Pair<Integer, String>> batch) {
+      batchSizes.add(batch.size());
+
+      for (Pair<Integer, String> result : batch) {
+        results.put(result.first(), result.second());
+        order.add(result.first());
+      }
+    }
+
+    @Override
+    public void onFailure(@NonNull Integer key, @NonNull Throwable error) {
+      failures.put(key, error);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ImageCompressionPlannerTest {
+
+  private static final int MAX_BYTES = 1024 * 1024;
+
+  @Test
+  public void plan_smallImage_usesMaxQuality() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(1000, 1000, 0.5, MAX_BYTES, true);
+
+    assertEquals(ImageCompressionPlanner.MAX_QUALITY, plan.getQuality());
+    assertEquals(1, plan.getScale(), 0);
+  }
+
+  @Test
+  public void plan_largeImage_lowersQualityOnly() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(2000, 2000, 0.5, MAX_BYTES, true);
+
+    assertTrue(plan.getQuality() < ImageCompressionPlanner.MAX_QUALITY);
+    assertTrue(plan.getQuality() >= ImageCompressionPlanner.MIN_QUALITY);
+    assertEquals(1, plan.getScale(), 0);
+    assertTrue(predictedBytes(2000, 2000, 0.5, plan) <= MAX_BYTES);
+  }
+
+  @Test
+  public void plan_hugeImage_scalesAtMinQuality() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(4000, 4000, 1.0, MAX_BYTES, true);
+
+    assertEquals(ImageCompressionPlanner.MIN_QUALITY, plan.getQuality());
+    assertTrue(plan.getScale() < 1);
+    assertTrue(predictedBytes(4000, 4000, 1.0, plan) <= MAX_BYTES);
+  }
+
+  @Test
+  public void plan_lossless_onlyScales() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(2000, 2000, 1.0, MAX_BYTES, false);
+
+    assertEquals(ImageCompressionPlanner.MAX_QUALITY, plan.getQuality());
+    assertTrue(plan.getScale() < 1);
+    assertTrue(plan.scaleDimension(2000) * plan.scaleDimension(2000) * 1.0 <= MAX_BYTES);
+  }
+
+  @Test
+  public void plan_neverScalesBelowMinimum() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(10000, 10000, 1.5, 1024, true);
+
+    assertEquals(ImageCompressionPlanner.MIN_SCALE, plan.getScale(), 0);
+  }
+
+  @Test
+  public void measuredBytesPerPixel_replansToFit() {
+    double                       measured = ImageCompressionPlanner.measuredBytesPerPixel(1_500_000, 2000, 2000, 60, true);
+    ImageCompressionPlanner.Plan plan     = ImageCompressionPlanner.plan(2000, 2000, measured, MAX_BYTES, true);
+
+    assertTrue(predictedBytes(2000, 2000, measured, plan) <= MAX_BYTES);
+  }
+
+  @Test
+  public void measuredBytesPerPixel_pessimisticEstimate_replansUpward() {
+    ImageCompressionPlanner.Plan first    = ImageCompressionPlanner.plan(2000, 2000, 1.0, MAX_BYTES, true);
+    double                       measured = ImageCompressionPlanner.measuredBytesPerPixel(MAX_BYTES / 4, 2000, 2000, first.getQuality(), true);
+    ImageCompressionPlanner.Plan second   = ImageCompressionPlanner.plan(2000, 2000, measured, MAX_BYTES, true);
+
+    assertTrue(ImageCompressionPlanner.isUnderfilled(MAX_BYTES / 4, MAX_BYTES));
+    assertTrue(second.isLargerThan(first));
+    assertTrue(predictedBytes(2000, 2000, measured, second) <= MAX_BYTES);
+  }
+
+  @Test
+  public void isUnderfilled_nearLimit_isFalse() {
+    assertFalse(ImageCompressionPlanner.isUnderfilled((int) (MAX_BYTES * 0.85), MAX_BYTES));
+  }
+
+  @Test
+  public void isLargerThan_samePlan_isFalse() {
+    ImageCompressionPlanner.Plan plan = ImageCompressionPlanner.plan(1000, 1000, 0.5, MAX_BYTES, true);
+
+    assertFalse(plan.isLargerThan(ImageCompressionPlanner.plan(1000, 1000, 0.5, MAX_BYTES, true)));
+  }
+
+  @Test
+  public void bytesPerPixelForDetail_isCapped() {
+    assertTrue(ImageCompressionPlanner.bytesPerPixelForDetail(0) > 0);
+    assertTrue(ImageCompressionPlanner.bytesPerPixelForDetail(10) > ImageCompressionPlanner.bytesPerPixelForDetail(1));
+    assertEquals(ImageCompressionPlanner.bytesPerPixelForDetail(1000), ImageCompressionPlanner.bytesPerPixelForDetail(2000), 0);
+  }
+
+  private static double predictedBytes(int width, int height, double bytesPerPixel, ImageCompressionPlanner.Plan plan) {
+    double qualityFactor = plan.getQuality() / (double) ImageCompressionPlanner.MAX_QUALITY;
+
+    return plan.scaleDimension(width) * plan.scaleDimension(height) * bytesPerPixel * qualityFactor * qualityFactor;
+  }
+}
@@ -1,12 +1,14 @@
 package org.signal.core.util.logging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,19 +27,28 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-class LogFile {
+/**
+ * An append-only file of encrypted frames. Used for the persistent log, and reused by other
+ * on-disk diagnostics that need the same at-rest encryption.
+ */
+public class LogFile {
 
+  /**
+   * Each frame is an IV, a ciphertext length, and the ciphertext. A frame may hold a single entry or
+   * a batch of newline-separated entries; readers can't tell the difference.
+   */
   public static class Writer {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final SecureRandom  random           = new SecureRandom();
 
     private final byte[]               secret;
     private final File                 file;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
-    Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
+    public Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
       this.secret       = secret;
       this.file         = file;
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
@@ -49,37 +60,51 @@ class LogFile {
       }
     }
 
-    void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
-
+    /**
+     * @return The number of bytes written to disk.
+     */
+    int writeEntry(@NonNull String entry) throws IOException {
       byte[] plaintext = entry.getBytes();
+      return writeFrame(plaintext, 0, plaintext.length);
+    }
+
+    /**
+     * Encrypts the given bytes as a single frame.
+     *
+     * @return The number of bytes written to disk.
+     */
+    public int writeFrame(@NonNull byte[] plaintext, int offset, int length) throws IOException {
+      random.nextBytes(ivBuffer);
+
       try {
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
 
-        int    cipherLength = cipher.getOutputSize(plaintext.length);
+        int    cipherLength = cipher.getOutputSize(length);
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
-        cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
+        cipherLength = cipher.doFinal(plaintext, offset, length, ciphertext);
 
         outputStream.write(ivBuffer);
         outputStream.write(Conversions.intToByteArray(cipherLength));
         outputStream.write(ciphertext, 0, cipherLength);
 
         outputStream.flush();
+
+        return ivBuffer.length + 4 + cipherLength;
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
       }
     }
 
-    long getLogSize() {
+    public long getLogSize() {
       return file.length();
     }
 
-    void close() {
+    public void close() {
       StreamUtil.close(outputStream);
     }
   }
 
-  static class Reader {
+  public static class Reader implements Closeable {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final byte[]        intBuffer        = new byte[4];
@@ -89,7 +114,7 @@ class LogFile {
     private final Cipher              cipher;
     private final BufferedInputStream inputStream;
 
-    Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
+    public Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
       this.secret      = secret;
       this.inputStream = new BufferedInputStream(new FileInputStream(file));
 
@@ -111,7 +136,19 @@ class LogFile {
       return builder.toString();
     }
 
-    private String readEntry() throws IOException {
+    /**
+     * @return The next frame, which may contain several newline-separated entries, or null at the
+     *         end of the file.
+     */
+    @Nullable String readEntry() throws IOException {
+      byte[] frame = readFrame();
+      return frame != null ? new String(frame) : null;
+    }
+
+    /**
+     * @return The decrypted contents of the next frame, or null at the end of the file.
+     */
+    public @Nullable byte[] readFrame() throws IOException {
       try {
         StreamUtil.readFully(inputStream, ivBuffer);
         StreamUtil.readFully(inputStream, intBuffer);
@@ -123,9 +160,7 @@ class LogFile {
 
         try {
           cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-          byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
-
-          return new String(plaintext);
+          return cipher.doFinal(ciphertext, 0, length);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
           throw new AssertionError(e);
         }
@@ -133,5 +168,10 @@ class LogFile {
         return null;
       }
     }
+
+    @Override
+    public void close() {
+      StreamUtil.close(inputStream);
+    }
   }
 }
@@ -0,0 +1,122 @@
+package org.signal.core.util.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer ring buffer of log entries.
+ *
+ * All slots are allocated up front and reused, so appending an entry never allocates. When the
+ * buffer is full, new entries are dropped and counted rather than blocking the caller.
+ */
+final class LogRingBuffer {
+
+  private final Slot[]     slots;
+  private final int        mask;
+  private final AtomicLong producerIndex = new AtomicLong();
+  private final AtomicLong dropped       = new AtomicLong();
+
+  private volatile long consumerIndex;
+
+  LogRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two!");
+    }
+
+    this.slots = new Slot[capacity];
+    this.mask  = capacity - 1;
+
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * Safe to call from any thread.
+   *
+   * @return False if the buffer was full and the entry was dropped.
+   */
+  boolean offer(@NonNull String level, String tag, String message, @Nullable Throwable throwable, @NonNull String threadString, long timestamp) {
+    long index;
+
+    do {
+      index = producerIndex.get();
+
+      if (index - consumerIndex >= slots.length) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    } while (!producerIndex.compareAndSet(index, index + 1));
+
+    Slot slot = slots[(int) index & mask];
+
+    slot.level        = level;
+    slot.tag          = tag;
+    slot.message      = message;
+    slot.throwable    = throwable;
+    slot.threadString = threadString;
+    slot.timestamp    = timestamp;
+    slot.sequence     = index + 1;
+
+    return true;
+  }
+
+  /**
+   * Must only be called from the single consumer thread. Hands every published entry to the
+   * consumer, in order, until it reaches one that hasn't been published yet.
+   *
+   * @return The number of entries drained.
+   */
+  int drain(@NonNull Consumer consumer) {
+    long index   = consumerIndex;
+    int  drained = 0;
+
+    while (true) {
+      Slot slot = slots[(int) index & mask];
+
+      if (slot.sequence != index + 1) {
+        break;
+      }
+
+      consumer.accept(slot.level, slot.tag, slot.message, slot.throwable, slot.threadString, slot.timestamp);
+
+      slot.tag       = null;
+      slot.message   = null;
+      slot.throwable = null;
+
+      index++;
+      drained++;
+      consumerIndex = index;
+    }
+
+    return drained;
+  }
+
+  /**
+   * @return The number of entries that have been offered but not yet drained.
+   */
+  long size() {
+    return producerIndex.get() - consumerIndex;
+  }
+
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  interface Consumer {
+    void accept(@NonNull String level, String tag, String message, @Nullable Throwable throwable, @NonNull String threadString, long timestamp);
+  }
+
+  private static final class Slot {
+    private volatile long sequence;
+
+    private String    level;
+    private String    tag;
+    private String    message;
+    private Throwable throwable;
+    private String    threadString;
+    private long      timestamp;
+  }
+}
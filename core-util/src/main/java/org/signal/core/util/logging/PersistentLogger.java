@@ -10,19 +10,22 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 @SuppressLint("LogNotSignal")
 public final class PersistentLogger extends Log.Logger {
@@ -40,12 +43,23 @@ public final class PersistentLogger extends Log.Logger {
   private static final String           FILENAME_PREFIX = "log-";
   private static final int              MAX_LOG_FILES   = 7;
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
+  private static final int              BUFFER_CAPACITY = 8192;
+  private static final int              MAX_FRAME_SIZE  = 16 * 1024;
+  private static final long             IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
   private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US);
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
-  private final String   logTag;
+  private final Context               context;
+  private final byte[]                secret;
+  private final String                logTag;
+  private final LogRingBuffer         buffer;
+  private final Thread                writerThread;
+  private final Queue<CountDownLatch> flushRequests;
+  private final StringBuilder         pendingFrame;
+  private final Date                  date;
+  private final AtomicLong            bytesWritten;
+  private final AtomicLong            framesWritten;
+  private final AtomicLong            lastFlushLatencyMs;
+  private final AtomicLong            maxFlushLatencyMs;
 
   private LogFile.Writer writer;
 
@@ -56,13 +70,19 @@ public final class PersistentLogger extends Log.Logger {
     this.secret             = secret;
     this.logTag             = logTag;
     this.cachedThreadString = new ThreadLocal<>();
-    this.executor           = Executors.newSingleThreadExecutor(r -> {
-      Thread thread = new Thread(r, "signal-PersistentLogger");
-      thread.setPriority(Thread.MIN_PRIORITY);
-      return thread;
-    });
-
-    executor.execute(this::initializeWriter);
+    this.buffer             = new LogRingBuffer(BUFFER_CAPACITY);
+    this.flushRequests      = new ConcurrentLinkedQueue<>();
+    this.pendingFrame       = new StringBuilder(MAX_FRAME_SIZE);
+    this.date               = new Date();
+    this.bytesWritten       = new AtomicLong();
+    this.framesWritten      = new AtomicLong();
+    this.lastFlushLatencyMs = new AtomicLong();
+    this.maxFlushLatencyMs  = new AtomicLong();
+    this.writerThread       = new Thread(this::runWriter, "signal-PersistentLogger");
+
+    writerThread.setPriority(Thread.MIN_PRIORITY);
+    writerThread.setDaemon(true);
+    writerThread.start();
   }
 
   @Override
@@ -99,7 +119,8 @@ public final class PersistentLogger extends Log.Logger {
   public void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    executor.execute(latch::countDown);
+    flushRequests.add(latch);
+    LockSupport.unpark(writerThread);
 
     try {
       latch.await();
@@ -108,40 +129,82 @@ public final class PersistentLogger extends Log.Logger {
     }
   }
 
+  /**
+   * Reads every log file into memory. Prefer {@link #openLogReader()} when the logs don't need to
+   * be held all at once.
+   */
   @WorkerThread
   public @Nullable CharSequence getLogs() {
-    CountDownLatch                latch = new CountDownLatch(1);
-    AtomicReference<CharSequence> logs  = new AtomicReference<>();
+    StringBuilder builder = new StringBuilder();
 
-    executor.execute(() -> {
-      StringBuilder builder = new StringBuilder();
+    try (LogReader reader = openLogReader()) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append('\n');
+      }
+      return builder;
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to read logs.", e);
+      return null;
+    }
+  }
 
-      try {
-        File[] logFiles = getSortedLogFiles();
-        for (int i = logFiles.length - 1; i >= 0; i--) {
-          try {
-            LogFile.Reader reader = new LogFile.Reader(secret, logFiles[i]);
-            builder.append(reader.readAll());
-          } catch (IOException e) {
-            android.util.Log.w(TAG, "Failed to read log at index " + i + ". Removing reference.");
-            logFiles[i].delete();
-          }
-        }
+  /**
+   * Flushes any buffered entries, then returns a reader that streams log lines, oldest first, one
+   * frame at a time.
+   */
+  @WorkerThread
+  public @NonNull LogReader openLogReader() throws IOException {
+    blockUntilAllWritesFinished();
+    return new LogReader(secret, getSortedLogFiles());
+  }
 
-        logs.set(builder);
-      } catch (IOException e) {
-        logs.set(null);
+  public @NonNull Stats getStats() {
+    return new Stats(buffer.getDroppedCount(), bytesWritten.get(), framesWritten.get(), lastFlushLatencyMs.get(), maxFlushLatencyMs.get());
+  }
+
+  @AnyThread
+  private void write(String level, String tag, String message, Throwable t) {
+    String threadString = cachedThreadString.get();
+
+    if (threadString == null) {
+      if (Looper.myLooper() == Looper.getMainLooper()) {
+        threadString = "main ";
+      } else {
+        threadString = String.format("%-5s", Thread.currentThread().getId());
       }
 
-      latch.countDown();
-    });
+      cachedThreadString.set(threadString);
+    }
 
-    try {
-      latch.await();
-      return logs.get();
-    } catch (InterruptedException e) {
-      android.util.Log.w(TAG, "Failed to wait for logs to be retrieved.");
-      return null;
+    if (buffer.offer(level, tag, message, t, threadString, System.currentTimeMillis()) && buffer.size() >= BUFFER_CAPACITY / 2) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  @WorkerThread
+  private void runWriter() {
+    initializeWriter();
+
+    //noinspection InfiniteLoopStatement
+    while (true) {
+      List<CountDownLatch> requests = new ArrayList<>();
+
+      CountDownLatch request;
+      while ((request = flushRequests.poll()) != null) {
+        requests.add(request);
+      }
+
+      int drained = buffer.drain(this::appendEntry);
+      writePendingFrame();
+
+      for (CountDownLatch latch : requests) {
+        latch.countDown();
+      }
+
+      if (drained == 0 && flushRequests.isEmpty()) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
     }
   }
 
@@ -154,44 +217,75 @@ public final class PersistentLogger extends Log.Logger {
     }
   }
 
-  @AnyThread
-  private void write(String level, String tag, String message, Throwable t) {
-    String threadString = cachedThreadString.get();
+  @WorkerThread
+  private void appendEntry(@NonNull String level, String tag, String message, @Nullable Throwable t, @NonNull String threadString, long timestamp) {
+    date.setTime(timestamp);
 
-    if (cachedThreadString.get() == null) {
-      if (Looper.myLooper() == Looper.getMainLooper()) {
-        threadString = "main ";
-      } else {
-        threadString = String.format("%-5s", Thread.currentThread().getId());
+    appendLine(buildEntry(level, tag, message, date, threadString));
+
+    if (t != null) {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      t.printStackTrace(new PrintStream(outputStream));
+
+      String   trace = new String(outputStream.toByteArray());
+      String[] lines = trace.split("\\n");
+
+      for (String line : lines) {
+        appendLine(buildEntry(level, tag, line, date, threadString));
       }
+    }
+  }
 
-      cachedThreadString.set(threadString);
+  @WorkerThread
+  private void appendLine(@NonNull String line) {
+    if (pendingFrame.length() > 0 && pendingFrame.length() + line.length() + 1 > MAX_FRAME_SIZE) {
+      writePendingFrame();
+    }
+
+    if (pendingFrame.length() > 0) {
+      pendingFrame.append('\n');
     }
 
-    final String finalThreadString = threadString;
+    pendingFrame.append(line);
+  }
 
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
+  /**
+   * Encrypts everything appended since the last call as a single frame.
+   */
+  @WorkerThread
+  private void writePendingFrame() {
+    if (pendingFrame.length() == 0) {
+      return;
+    }
 
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
-        }
+    long startTime = System.currentTimeMillis();
 
-        for (String entry : buildLogEntries(level, tag, message, t, finalThreadString)) {
-          writer.writeEntry(entry);
-        }
+    try {
+      if (writer == null) {
+        return;
+      }
+
+      if (writer.getLogSize() >= MAX_LOG_SIZE) {
+        writer.close();
+        writer = new LogFile.Writer(secret, createNewLogFile());
+        trimLogFilesOverMax();
+      }
 
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+      bytesWritten.addAndGet(writer.writeEntry(pendingFrame.toString()));
+      framesWritten.incrementAndGet();
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    } finally {
+      pendingFrame.setLength(0);
+
+      long latency = System.currentTimeMillis() - startTime;
+      lastFlushLatencyMs.set(latency);
+      if (latency > maxFlushLatencyMs.get()) {
+        maxFlushLatencyMs.set(latency);
       }
-    });
+    }
   }
 
   private void trimLogFilesOverMax() throws IOException {
@@ -245,28 +339,133 @@ public final class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t, String threadString) {
-    List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
+  private String buildEntry(String level, String tag, String message, Date date, String threadString) {
+    return '[' + logTag + "] [" + threadString + "] " + DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
+  }
 
-    entries.add(buildEntry(level, tag, message, date, threadString));
+  /**
+   * Streams log lines across all log files, oldest first. Only a single frame is held in memory at
+   * a time.
+   */
+  public static final class LogReader implements Closeable {
 
-    if (t != null) {
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      t.printStackTrace(new PrintStream(outputStream));
+    private final byte[] secret;
+    private final File[] files;
 
-      String   trace = new String(outputStream.toByteArray());
-      String[] lines = trace.split("\\n");
+    private int            fileIndex;
+    private LogFile.Reader reader;
+    private String[]       frameLines;
+    private int            frameIndex;
 
-      for (String line : lines) {
-        entries.add(buildEntry(level, tag, line, date, threadString));
+    private LogReader(@NonNull byte[] secret, @NonNull File[] newestFirst) {
+      this.secret    = secret;
+      this.files     = newestFirst;
+      this.fileIndex = newestFirst.length;
+    }
+
+    /**
+     * @return The next line, or null once every file has been read.
+     */
+    public @Nullable String readLine() throws IOException {
+      while (true) {
+        if (frameLines != null && frameIndex < frameLines.length) {
+          return frameLines[frameIndex++];
+        }
+
+        String frame = nextFrame();
+
+        if (frame == null) {
+          return null;
+        }
+
+        frameLines = frame.split("\\n", -1);
+        frameIndex = 0;
+      }
+    }
+
+    private @Nullable String nextFrame() throws IOException {
+      while (true) {
+        if (reader == null) {
+          if (fileIndex == 0) {
+            return null;
+          }
+
+          fileIndex--;
+
+          try {
+            reader = new LogFile.Reader(secret, files[fileIndex]);
+          } catch (IOException e) {
+            android.util.Log.w(TAG, "Failed to open log at index " + fileIndex + ". Skipping.");
+            continue;
+          }
+        }
+
+        String frame;
+
+        try {
+          frame = reader.readEntry();
+        } catch (IOException e) {
+          android.util.Log.w(TAG, "Failed to read log at index " + fileIndex + ". Skipping the rest of it.");
+          frame = null;
+        }
+
+        if (frame != null) {
+          return frame;
+        }
+
+        reader.close();
+        reader = null;
       }
     }
 
-    return entries;
+    @Override
+    public void close() {
+      if (reader != null) {
+        reader.close();
+        reader = null;
+      }
+    }
   }
 
-  private String buildEntry(String level, String tag, String message, Date date, String threadString) {
-    return '[' + logTag + "] [" + threadString + "] " + DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
+  public static final class Stats {
+    private final long droppedLines;
+    private final long bytesWritten;
+    private final long framesWritten;
+    private final long lastFlushLatencyMs;
+    private final long maxFlushLatencyMs;
+
+    private Stats(long droppedLines, long bytesWritten, long framesWritten, long lastFlushLatencyMs, long maxFlushLatencyMs) {
+      this.droppedLines       = droppedLines;
+      this.bytesWritten       = bytesWritten;
+      this.framesWritten      = framesWritten;
+      this.lastFlushLatencyMs = lastFlushLatencyMs;
+      this.maxFlushLatencyMs  = maxFlushLatencyMs;
+    }
+
+    public long getDroppedLines() {
+      return droppedLines;
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    public long getFramesWritten() {
+      return framesWritten;
+    }
+
+    public long getLastFlushLatencyMs() {
+      return lastFlushLatencyMs;
+    }
+
+    public long getMaxFlushLatencyMs() {
+      return maxFlushLatencyMs;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "Dropped lines: " + droppedLines + ", Bytes written: " + bytesWritten + ", Frames written: " + framesWritten +
+             ", Last flush: " + lastFlushLatencyMs + " ms, Max flush: " + maxFlushLatencyMs + " ms";
+    }
   }
 }
@@ -0,0 +1,103 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded single-producer/single-consumer ring of packets. Each traced thread owns one, so
+ * recording a packet never touches state shared with other threads. When the buffer is full the
+ * packet is dropped and counted, so the consumer can report it.
+ */
+final class TraceBuffer {
+
+  private final TracePacket[]         packets;
+  private final int                   mask;
+  private final WeakReference<Thread> owner;
+  private final AtomicInteger         dropped;
+
+  private volatile long head;
+  private volatile long tail;
+
+  TraceBuffer(int capacity, @NonNull Thread owner) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two!");
+    }
+
+    this.packets = new TracePacket[capacity];
+    this.mask    = capacity - 1;
+    this.owner   = new WeakReference<>(owner);
+    this.dropped = new AtomicInteger();
+  }
+
+  /**
+   * Must only be called from the owning thread.
+   *
+   * @return False if the buffer was full and the packet was dropped.
+   */
+  boolean offer(@NonNull TracePacket packet) {
+    long index = head;
+
+    if (index - tail >= packets.length) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    packets[(int) index & mask] = packet;
+    head = index + 1;
+
+    return true;
+  }
+
+  /**
+   * Must only be called from the single consumer thread.
+   *
+   * @return The number of packets drained.
+   */
+  int drain(@NonNull Consumer consumer) {
+    long index = tail;
+    long end   = head;
+
+    while (index < end) {
+      int slot = (int) index & mask;
+
+      consumer.accept(packets[slot]);
+      packets[slot] = null;
+
+      index++;
+    }
+
+    int drained = (int) (index - tail);
+    tail = index;
+
+    return drained;
+  }
+
+  /**
+   * Must only be called from the single consumer thread.
+   *
+   * @return The number of packets dropped since the last call.
+   */
+  int takeDropped() {
+    return dropped.getAndSet(0);
+  }
+
+  boolean isEmpty() {
+    return head == tail;
+  }
+
+  /**
+   * @return True once the owning thread has finished and can no longer add packets.
+   */
+  boolean isOwnerGone() {
+    Thread thread = owner.get();
+    return thread == null || !thread.isAlive();
+  }
+
+  interface Consumer {
+    void accept(@NonNull TracePacket packet);
+  }
+}
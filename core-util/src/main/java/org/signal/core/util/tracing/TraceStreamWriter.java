@@ -0,0 +1,234 @@
+package org.signal.core.util.tracing;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.google.protobuf.CodedOutputStream;
+
+import org.signal.core.util.logging.LogFile;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodically drains every thread's {@link TraceBuffer} into a set of rotating, encrypted files.
+ *
+ * Each packet is written as a length-delimited {@code Trace.packet} field, so the decrypted
+ * contents of the files can be concatenated as-is to form a valid Perfetto trace. Track
+ * descriptors are re-written at the start of every file, so rotating out old files never leaves
+ * events without a named track.
+ */
+@SuppressLint("LogNotSignal")
+final class TraceStreamWriter {
+
+  private static final String TAG = TraceStreamWriter.class.getSimpleName();
+
+  private static final String FILENAME_PREFIX = "trace-";
+  private static final int    MAX_FILES       = 3;
+  private static final long   MAX_FILE_SIZE   = 2 * 1024 * 1024;
+  private static final long   FLUSH_INTERVAL  = TimeUnit.SECONDS.toNanos(1);
+
+  private final File                   directory;
+  private final byte[]                 secret;
+  private final Map<Long, TracePacket> trackPackets;
+  private final List<TraceBuffer>      buffers;
+  private final Queue<CountDownLatch>  flushRequests;
+  private final Set<Long>              writtenTracks;
+  private final ByteArrayOutputStream  frame;
+  private final CodedOutputStream      frameOutput;
+  private final Thread                 thread;
+
+  private LogFile.Writer writer;
+  private long           droppedPackets;
+
+  TraceStreamWriter(@NonNull File directory, @NonNull byte[] secret, @NonNull Map<Long, TracePacket> trackPackets) {
+    this.directory     = directory;
+    this.secret        = secret;
+    this.trackPackets  = trackPackets;
+    this.buffers       = new CopyOnWriteArrayList<>();
+    this.flushRequests = new ConcurrentLinkedQueue<>();
+    this.writtenTracks = new HashSet<>();
+    this.frame         = new ByteArrayOutputStream();
+    this.frameOutput   = CodedOutputStream.newInstance(frame);
+    this.thread        = new Thread(this::run, "signal-TraceStreamWriter");
+
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void register(@NonNull TraceBuffer buffer) {
+    buffers.add(buffer);
+  }
+
+  /**
+   * Blocks until everything buffered at the time of the call has been written, then returns the
+   * decrypted contents of every trace file, oldest first.
+   */
+  @WorkerThread
+  @NonNull byte[] readAll() {
+    CountDownLatch latch = new CountDownLatch(1);
+
+    flushRequests.add(latch);
+    LockSupport.unpark(thread);
+
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      android.util.Log.w(TAG, "Interrupted while waiting for a flush.");
+    }
+
+    ByteArrayOutputStream out   = new ByteArrayOutputStream();
+    File[]                files = getSortedFiles();
+
+    for (int i = files.length - 1; i >= 0; i--) {
+      try (LogFile.Reader reader = new LogFile.Reader(secret, files[i])) {
+        byte[] frame;
+        while ((frame = reader.readFrame()) != null) {
+          out.write(frame, 0, frame.length);
+        }
+      } catch (IOException e) {
+        android.util.Log.w(TAG, "Failed to read trace file at index " + i + ". Skipping the rest of it.");
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  @WorkerThread
+  private void run() {
+    //noinspection InfiniteLoopStatement
+    while (true) {
+      List<CountDownLatch> requests = new ArrayList<>();
+
+      CountDownLatch request;
+      while ((request = flushRequests.poll()) != null) {
+        requests.add(request);
+      }
+
+      drainAndWrite();
+
+      for (CountDownLatch latch : requests) {
+        latch.countDown();
+      }
+
+      if (flushRequests.isEmpty()) {
+        LockSupport.parkNanos(this, FLUSH_INTERVAL);
+      }
+    }
+  }
+
+  @WorkerThread
+  private void drainAndWrite() {
+    try {
+      frame.reset();
+
+      if (writer == null || writer.getLogSize() >= MAX_FILE_SIZE) {
+        rotate();
+      }
+
+      for (Map.Entry<Long, TracePacket> entry : trackPackets.entrySet()) {
+        if (writtenTracks.add(entry.getKey())) {
+          frameOutput.writeMessage(1, entry.getValue());
+        }
+      }
+
+      int drained = 0;
+      int dropped = 0;
+
+      for (TraceBuffer buffer : buffers) {
+        boolean ownerGone = buffer.isOwnerGone();
+
+        drained += buffer.drain(this::writePacket);
+        dropped += buffer.takeDropped();
+
+        if (ownerGone && buffer.isEmpty()) {
+          buffers.remove(buffer);
+        }
+      }
+
+      if (dropped > 0) {
+        droppedPackets += dropped;
+        android.util.Log.w(TAG, "Dropped " + dropped + " packets because a thread's buffer was full. Total dropped: " + droppedPackets);
+      }
+
+      if (drained > 0) {
+        frameOutput.writeMessage(1, Tracer.forSynchronization(Tracer.getInstance().getTimeNanos()));
+      }
+
+      frameOutput.flush();
+
+      if (frame.size() > 0) {
+        writer.writeFrame(frame.toByteArray(), 0, frame.size());
+      }
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write trace. Deleting all trace files and starting over.", e);
+      deleteAll();
+      writer = null;
+    }
+  }
+
+  @WorkerThread
+  private void writePacket(@NonNull TracePacket packet) {
+    try {
+      frameOutput.writeMessage(1, packet);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @WorkerThread
+  private void rotate() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create trace directory.");
+    }
+
+    writer = new LogFile.Writer(secret, new File(directory, FILENAME_PREFIX + System.currentTimeMillis()));
+    writtenTracks.clear();
+
+    File[] files = getSortedFiles();
+    for (int i = MAX_FILES; i < files.length; i++) {
+      files[i].delete();
+    }
+  }
+
+  private void deleteAll() {
+    for (File file : getSortedFiles()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * @return All trace files, newest first.
+   */
+  private @NonNull File[] getSortedFiles() {
+    File[] files = directory.listFiles((dir, name) -> name.startsWith(FILENAME_PREFIX));
+
+    if (files == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(files, (o1, o2) -> o2.getName().compareTo(o1.getName()));
+    return files;
+  }
+}
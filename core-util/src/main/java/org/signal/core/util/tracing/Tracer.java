@@ -6,25 +6,34 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import org.signal.core.util.tracing.TraceProtos.Trace;
 import org.signal.core.util.tracing.TraceProtos.TracePacket;
 import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
 import org.signal.core.util.tracing.TraceProtos.TrackEvent;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A class to create Perfetto-compatible traces. Currently keeps the entire trace in memory to
- * avoid weirdness with synchronizing to disk.
+ * A class to create Perfetto-compatible traces. By default, keeps the trace in memory. Once
+ * {@link #startStreaming(File, byte[], float, Set)} is called, packets are instead recorded into
+ * per-thread buffers and periodically written to disk by a {@link TraceStreamWriter}, so much
+ * longer windows can be captured.
  *
  * Some general info on how the Perfetto format works:
  * - The file format is just a Trace proto (see Trace.proto)
@@ -40,6 +49,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * Serializing is just a matter of throwing all the TracePackets we have into a proto.
  *
+ * While streaming, tracing can be sampled and filtered by category (the part of the method name
+ * before a '#', or the whole name if there isn't one). Sampling is decided once per top-level slice
+ * on a track, and nested slices follow that decision, so a trace never has half of a call tree. The
+ * decision lives with the track rather than the thread, so a slice ended on another thread is
+ * treated the same way as the start. When not streaming, none of this bookkeeping happens.
+ *
  * Note: This class aims to be largely-thread-safe, but prioritizes speed and memory efficiency
  * above all else. These methods are going to be called very quickly from every thread imaginable,
  * and we want to create as little overhead as possible. The idea being that it's ok if we don't,
@@ -60,20 +75,33 @@ public final class Tracer {
   private static final int    TRUSTED_SEQUENCE_ID      = 1;
   private static final byte[] SYNCHRONIZATION_MARKER   = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
   private static final long   SYNCHRONIZATION_INTERVAL = TimeUnit.SECONDS.toNanos(3);
+  private static final int    THREAD_BUFFER_SIZE       = 1024;
 
-  private final Clock                  clock;
-  private final Map<Long, TracePacket> threadPackets;
-  private final Queue<TracePacket>     eventPackets;
-  private final AtomicInteger          eventCount;
+  private final Clock                    clock;
+  private final Map<Long, TracePacket>   threadPackets;
+  private final Queue<TracePacket>       eventPackets;
+  private final AtomicInteger            eventCount;
+  private final Map<Long, SliceStack>    trackSlices;
+  private final ThreadLocal<TraceBuffer> threadBuffers;
 
   private long lastSyncTime;
   private long maxBufferSize;
 
+  /**
+   * Deliberately not volatile, so the default in-memory path reads it without any extra
+   * synchronization. Other threads may take a moment to notice that streaming has started, which
+   * just means a few more packets end up in the in-memory buffer. Its fields are final, so any
+   * thread that does see it sees it fully built.
+   */
+  private Streaming streaming;
+
   private Tracer() {
     this.clock         = SystemClock::elapsedRealtimeNanos;
     this.threadPackets = new ConcurrentHashMap<>();
     this.eventPackets  = new ConcurrentLinkedQueue<>();
     this.eventCount    = new AtomicInteger(0);
+    this.trackSlices   = new ConcurrentHashMap<>();
+    this.threadBuffers = new ThreadLocal<>();
     this.maxBufferSize = 3_500;
   }
 
@@ -85,6 +113,21 @@ public final class Tracer {
     this.maxBufferSize = maxBufferSize;
   }
 
+  /**
+   * Switches from the in-memory buffer to streaming packets into rotating, encrypted files in the
+   * provided directory. Only the first call has any effect.
+   *
+   * @param sampleRate The fraction (0-1) of top-level slices that should be recorded.
+   * @param categories The only categories that should be recorded, or null to record everything.
+   */
+  public synchronized void startStreaming(@NonNull File directory, @NonNull byte[] secret, float sampleRate, @Nullable Set<String> categories) {
+    if (streaming == null) {
+      streaming = new Streaming(new TraceStreamWriter(directory, secret, threadPackets),
+                                Math.max(0f, Math.min(1f, sampleRate)),
+                                categories != null ? new HashSet<>(categories) : null);
+    }
+  }
+
   public void start(@NonNull String methodName) {
     start(methodName, Thread.currentThread().getId(), null);
   }
@@ -106,6 +149,13 @@ public final class Tracer {
   }
 
   public void start(@NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
+    Streaming streaming = this.streaming;
+
+    if (streaming != null) {
+      startStreamed(streaming, methodName, trackId, values);
+      return;
+    }
+
     long time = clock.getTimeNanos();
 
     if (time - lastSyncTime > SYNCHRONIZATION_INTERVAL) {
@@ -121,14 +171,27 @@ public final class Tracer {
   }
 
   public void end(@NonNull String methodName) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+    end(methodName, Thread.currentThread().getId());
   }
 
   public void end(@NonNull String methodName, long trackId) {
+    Streaming streaming = this.streaming;
+
+    if (streaming != null) {
+      endStreamed(streaming, methodName, trackId);
+      return;
+    }
+
     addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
   }
 
   public @NonNull byte[] serialize() {
+    Streaming streaming = this.streaming;
+
+    if (streaming != null) {
+      return serializeStream(streaming.writer);
+    }
+
     Trace.Builder trace = Trace.newBuilder();
 
     for (TracePacket thread : threadPackets.values()) {
@@ -144,6 +207,85 @@ public final class Tracer {
     return trace.build().toByteArray();
   }
 
+  /**
+   * Track descriptors go first, followed by the streamed packets. The streamed packets are already
+   * encoded as {@code Trace.packet} fields, so they can be copied over without being parsed.
+   */
+  private @NonNull byte[] serializeStream(@NonNull TraceStreamWriter writer) {
+    byte[]                streamed = writer.readAll();
+    ByteArrayOutputStream out      = new ByteArrayOutputStream(streamed.length + 1024);
+    CodedOutputStream     output   = CodedOutputStream.newInstance(out);
+
+    try {
+      for (TracePacket thread : threadPackets.values()) {
+        output.writeMessage(1, thread);
+      }
+
+      output.writeRawBytes(streamed);
+      output.writeMessage(1, forSynchronization(clock.getTimeNanos()));
+      output.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+
+    return out.toByteArray();
+  }
+
+  long getTimeNanos() {
+    return clock.getTimeNanos();
+  }
+
+  private void startStreamed(@NonNull Streaming streaming, @NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
+    if (!slicesFor(trackId).push(streaming.isCategoryEnabled(methodName), streaming.sampleRate)) {
+      return;
+    }
+
+    if (!threadPackets.containsKey(trackId)) {
+      threadPackets.put(trackId, forTrackId(trackId));
+    }
+
+    record(streaming.writer, forMethodStart(methodName, clock.getTimeNanos(), trackId, values));
+  }
+
+  private void endStreamed(@NonNull Streaming streaming, @NonNull String methodName, long trackId) {
+    if (!slicesFor(trackId).pop(streaming.isCategoryEnabled(methodName), streaming.sampleRate)) {
+      return;
+    }
+
+    record(streaming.writer, forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+  }
+
+  private @NonNull SliceStack slicesFor(long trackId) {
+    SliceStack slices = trackSlices.get(trackId);
+
+    if (slices == null) {
+      SliceStack created = new SliceStack();
+
+      slices = trackSlices.putIfAbsent(trackId, created);
+
+      if (slices == null) {
+        slices = created;
+      }
+    }
+
+    return slices;
+  }
+
+  /**
+   * Packets go into the calling thread's own buffer and are never shared with other producers.
+   */
+  private void record(@NonNull TraceStreamWriter writer, @NonNull TracePacket packet) {
+    TraceBuffer buffer = threadBuffers.get();
+
+    if (buffer == null) {
+      buffer = new TraceBuffer(THREAD_BUFFER_SIZE, Thread.currentThread());
+      threadBuffers.set(buffer);
+      writer.register(buffer);
+    }
+
+    buffer.offer(packet);
+  }
+
   /**
    * Attempts to add a packet to our list while keeping the size of our circular buffer in-check.
    * The tracking of the event count is not perfectly thread-safe, but doing it in a thread-safe
@@ -220,7 +362,7 @@ public final class Tracer {
                       .build();
   }
 
-  private static TracePacket forSynchronization(long time) {
+  static TracePacket forSynchronization(long time) {
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
                       .setTimestamp(time)
@@ -239,4 +381,61 @@ public final class Tracer {
   private interface Clock {
     long getTimeNanos();
   }
+
+  private static final class Streaming {
+    private final TraceStreamWriter writer;
+    private final float             sampleRate;
+    private final Set<String>       enabledCategories;
+
+    private Streaming(@NonNull TraceStreamWriter writer, float sampleRate, @Nullable Set<String> enabledCategories) {
+      this.writer            = writer;
+      this.sampleRate        = sampleRate;
+      this.enabledCategories = enabledCategories;
+    }
+
+    boolean isCategoryEnabled(@NonNull String methodName) {
+      if (enabledCategories == null) {
+        return true;
+      }
+
+      int separator = methodName.indexOf('#');
+      return enabledCategories.contains(separator >= 0 ? methodName.substring(0, separator) : methodName);
+    }
+  }
+
+  /**
+   * Remembers whether each open slice on a track was recorded, so the matching end is treated the
+   * same way. Synchronized because a slice may be ended on a different thread than it was started
+   * on, but only threads sharing a track ever contend for it.
+   */
+  private static final class SliceStack {
+    private boolean[] recorded = new boolean[16];
+    private int       depth;
+    private boolean   sampled;
+
+    synchronized boolean push(boolean categoryEnabled, float sampleRate) {
+      if (depth == 0) {
+        sampled = sampleRate >= 1f || ThreadLocalRandom.current().nextFloat() < sampleRate;
+      }
+
+      if (depth == recorded.length) {
+        boolean[] grown = new boolean[recorded.length * 2];
+        System.arraycopy(recorded, 0, grown, 0, recorded.length);
+        recorded = grown;
+      }
+
+      boolean record = sampled && categoryEnabled;
+      recorded[depth++] = record;
+
+      return record;
+    }
+
+    synchronized boolean pop(boolean categoryEnabled, float sampleRate) {
+      if (depth == 0) {
+        return categoryEnabled && sampleRate >= 1f;
+      }
+
+      return recorded[--depth];
+    }
+  }
 }
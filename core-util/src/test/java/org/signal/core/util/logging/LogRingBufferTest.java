@@ -0,0 +1,62 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class LogRingBufferTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void capacity_must_be_power_of_two() {
+    new LogRingBuffer(10);
+  }
+
+  @Test
+  public void drain_returns_entries_in_order() {
+    LogRingBuffer buffer = new LogRingBuffer(4);
+
+    buffer.offer("I", "Tag", "one", null, "main ", 1);
+    buffer.offer("W", "Tag", "two", null, "main ", 2);
+
+    List<String> messages = new ArrayList<>();
+    int          drained  = buffer.drain((level, tag, message, throwable, threadString, timestamp) -> messages.add(message));
+
+    assertEquals(2, drained);
+    assertEquals(2, messages.size());
+    assertEquals("one", messages.get(0));
+    assertEquals("two", messages.get(1));
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void offer_drops_when_full() {
+    LogRingBuffer buffer = new LogRingBuffer(2);
+
+    assertTrue(buffer.offer("I", "Tag", "one", null, "main ", 1));
+    assertTrue(buffer.offer("I", "Tag", "two", null, "main ", 2));
+    assertFalse(buffer.offer("I", "Tag", "three", null, "main ", 3));
+
+    assertEquals(1, buffer.getDroppedCount());
+    assertEquals(2, buffer.size());
+  }
+
+  @Test
+  public void slots_are_reused_after_drain() {
+    LogRingBuffer buffer   = new LogRingBuffer(2);
+    List<String>  messages = new ArrayList<>();
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(buffer.offer("I", "Tag", String.valueOf(i), null, "main ", i));
+      buffer.drain((level, tag, message, throwable, threadString, timestamp) -> messages.add(message));
+    }
+
+    assertEquals(10, messages.size());
+    assertEquals("9", messages.get(9));
+    assertEquals(0, buffer.getDroppedCount());
+  }
+}
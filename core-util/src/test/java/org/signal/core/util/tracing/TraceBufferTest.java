@@ -0,0 +1,62 @@
+package org.signal.core.util.tracing;
+
+import org.junit.Test;
+import org.signal.core.util.tracing.TraceProtos.TracePacket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TraceBufferTest {
+
+  @Test
+  public void drain_returns_packets_in_order() {
+    TraceBuffer       buffer  = new TraceBuffer(4, Thread.currentThread());
+    List<TracePacket> drained = new ArrayList<>();
+
+    buffer.offer(packet(1));
+    buffer.offer(packet(2));
+
+    assertEquals(2, buffer.drain(drained::add));
+    assertEquals(1, drained.get(0).getTimestamp());
+    assertEquals(2, drained.get(1).getTimestamp());
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void offer_drops_when_full() {
+    TraceBuffer buffer = new TraceBuffer(2, Thread.currentThread());
+
+    assertTrue(buffer.offer(packet(1)));
+    assertTrue(buffer.offer(packet(2)));
+    assertFalse(buffer.offer(packet(3)));
+
+    assertEquals(2, buffer.drain(packet -> {}));
+    assertTrue(buffer.offer(packet(4)));
+  }
+
+  @Test
+  public void takeDropped_counts_packets_dropped_since_last_call() {
+    TraceBuffer buffer = new TraceBuffer(1, Thread.currentThread());
+
+    buffer.offer(packet(1));
+    buffer.offer(packet(2));
+    buffer.offer(packet(3));
+
+    assertEquals(2, buffer.takeDropped());
+    assertEquals(0, buffer.takeDropped());
+  }
+
+  @Test
+  public void owner_is_not_gone_while_running() {
+    TraceBuffer buffer = new TraceBuffer(2, Thread.currentThread());
+    assertFalse(buffer.isOwnerGone());
+  }
+
+  private static TracePacket packet(long timestamp) {
+    return TracePacket.newBuilder().setTimestamp(timestamp).build();
+  }
+}
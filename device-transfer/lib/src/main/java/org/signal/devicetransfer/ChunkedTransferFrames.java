@@ -0,0 +1,118 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Wire format for the chunked transfer used between {@link ChunkedTransferSender} and
+ * {@link ChunkedTransferReceiver}.
+ * <p>
+ * Every frame starts with a type byte and a sequence number. Data frames follow that with a length,
+ * a CRC32 of the payload and the payload itself. The sender only writes data and end frames, the
+ * receiver only writes acknowledgements and the final complete frame.
+ */
+final class ChunkedTransferFrames {
+
+  /** Sent by each side after verification when it can only speak the original single stream protocol. */
+  static final int PROTOCOL_SINGLE_STREAM = 0x43;
+
+  /** Sent by each side after verification when it can speak the chunked protocol. */
+  static final int PROTOCOL_CHUNKED = 0x44;
+
+  static final int SESSION_TOKEN_LENGTH = 32;
+
+  static final byte TYPE_DATA     = 1;
+  static final byte TYPE_END      = 2;
+  static final byte TYPE_ACK      = 3;
+  static final byte TYPE_COMPLETE = 4;
+
+  private static final int MAX_PAYLOAD_SIZE = 4 * 1024 * 1024;
+
+  private ChunkedTransferFrames() {}
+
+  static void writeData(@NonNull DataOutputStream out, long sequence, @NonNull byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    out.writeByte(TYPE_DATA);
+    out.writeLong(sequence);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc.getValue());
+    out.write(payload);
+  }
+
+  static void writeEnd(@NonNull DataOutputStream out, long sequence) throws IOException {
+    out.writeByte(TYPE_END);
+    out.writeLong(sequence);
+  }
+
+  static void writeAck(@NonNull DataOutputStream out, long sequence) throws IOException {
+    out.writeByte(TYPE_ACK);
+    out.writeLong(sequence);
+  }
+
+  static void writeComplete(@NonNull DataOutputStream out) throws IOException {
+    out.writeByte(TYPE_COMPLETE);
+    out.writeLong(0);
+  }
+
+  static @NonNull Frame read(@NonNull DataInputStream in) throws IOException {
+    byte type     = in.readByte();
+    long sequence = in.readLong();
+
+    if (type != TYPE_DATA) {
+      if (type != TYPE_END && type != TYPE_ACK && type != TYPE_COMPLETE) {
+        throw new IOException("Unknown frame type: " + type);
+      }
+      return new Frame(type, sequence, null);
+    }
+
+    int length      = in.readInt();
+    int expectedCrc = in.readInt();
+
+    if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+      throw new IOException("Bad frame length: " + length);
+    }
+
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    if ((int) crc.getValue() != expectedCrc) {
+      throw new IOException("Checksum mismatch for chunk " + sequence);
+    }
+
+    return new Frame(type, sequence, payload);
+  }
+
+  static final class Frame {
+    private final byte   type;
+    private final long   sequence;
+    private final byte[] payload;
+
+    private Frame(byte type, long sequence, @Nullable byte[] payload) {
+      this.type     = type;
+      this.sequence = sequence;
+      this.payload  = payload;
+    }
+
+    byte getType() {
+      return type;
+    }
+
+    long getSequence() {
+      return sequence;
+    }
+
+    @Nullable byte[] getPayload() {
+      return payload;
+    }
+  }
+}
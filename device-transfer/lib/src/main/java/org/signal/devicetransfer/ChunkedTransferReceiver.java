@@ -0,0 +1,367 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Reassembles the chunks written by a {@link ChunkedTransferSender} into a single input stream.
+ * <p>
+ * Chunks may arrive on any lane, in any order, and more than once. A chunk is acknowledged when the
+ * input stream moves past it, not when it arrives, so the sender's window also limits how much is
+ * buffered here. Lanes can be added at any point, which is how a dropped transfer resumes.
+ */
+final class ChunkedTransferReceiver implements Closeable {
+
+  private static final String TAG = Log.tag(ChunkedTransferReceiver.class);
+
+  private final long                 resumeTimeout;
+  private final TransferThroughput   throughput;
+  private final List<Lane>           lanes    = new ArrayList<>();
+  private final TreeMap<Long, Chunk> received = new TreeMap<>();
+
+  private long    nextSequence;
+  private long    endSequence = -1;
+  private long    noLanesSince;
+  private int     laneCount;
+  private int     duplicateChunks;
+  private boolean closed;
+
+  private final ReassemblingInputStream inputStream;
+
+  /**
+   * @param resumeTimeout How long to wait for a new lane after all of them have dropped.
+   */
+  ChunkedTransferReceiver(long resumeTimeout) {
+    this.resumeTimeout = resumeTimeout;
+    this.throughput    = new TransferThroughput(TAG);
+    this.inputStream   = new ReassemblingInputStream();
+    this.noLanesSince  = System.currentTimeMillis();
+  }
+
+  /**
+   * Reads the sender's stream in order. Returns end of stream once everything before the sender's
+   * end marker has been read.
+   */
+  @NonNull InputStream getInputStream() {
+    return inputStream;
+  }
+
+  synchronized void addLane(@NonNull InputStream in, @NonNull OutputStream out, @NonNull Closeable connection) {
+    if (closed) {
+      close(connection);
+      return;
+    }
+
+    Lane lane = new Lane(++laneCount, in, out, connection);
+    lanes.add(lane);
+    notifyAll();
+
+    Log.i(TAG, "Lane " + lane.id + " added, " + lanes.size() + " open");
+
+    new Thread(() -> readLoop(lane), "ChunkedTransferReceiver-lane-" + lane.id).start();
+  }
+
+  /**
+   * Tells the sender that everything it sent has been handled, which lets it finish.
+   */
+  void complete() {
+    boolean sent = false;
+
+    for (Lane lane : getLanes()) {
+      try {
+        lane.writeComplete();
+        sent = true;
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to send complete on lane " + lane.id, e);
+      }
+    }
+
+    if (!sent) {
+      Log.w(TAG, "No lane to send complete on");
+    }
+
+    Log.i(TAG, "Transfer finished: " + throughput + ", " + getDuplicateChunks() + " duplicate chunks");
+  }
+
+  @Override
+  public void close() {
+    List<Lane> toClose;
+
+    synchronized (this) {
+      closed  = true;
+      toClose = new ArrayList<>(lanes);
+      lanes.clear();
+      notifyAll();
+    }
+
+    for (Lane lane : toClose) {
+      close(lane.connection);
+    }
+  }
+
+  synchronized int getLaneCount() {
+    return lanes.size();
+  }
+
+  synchronized int getDuplicateChunks() {
+    return duplicateChunks;
+  }
+
+  private synchronized @NonNull List<Lane> getLanes() {
+    return new ArrayList<>(lanes);
+  }
+
+  private void readLoop(@NonNull Lane lane) {
+    try {
+      while (true) {
+        ChunkedTransferFrames.Frame frame = ChunkedTransferFrames.read(lane.in);
+
+        switch (frame.getType()) {
+          case ChunkedTransferFrames.TYPE_DATA:
+            if (!onData(lane, frame.getSequence(), frame.getPayload())) {
+              lane.writeAck(frame.getSequence());
+            }
+            break;
+          case ChunkedTransferFrames.TYPE_END:
+            onEnd(frame.getSequence());
+            break;
+          default:
+            throw new IOException("Unexpected frame type from sender: " + frame.getType());
+        }
+      }
+    } catch (IOException e) {
+      onLaneFailed(lane, e);
+    }
+  }
+
+  /**
+   * @return False if the chunk was already read, in which case the earlier acknowledgement was lost
+   *         and needs to be sent again.
+   */
+  private synchronized boolean onData(@NonNull Lane lane, long sequence, @NonNull byte[] data) {
+    if (sequence < nextSequence) {
+      duplicateChunks++;
+      return false;
+    }
+
+    if (received.containsKey(sequence)) {
+      duplicateChunks++;
+    } else {
+      received.put(sequence, new Chunk(lane, data));
+      notifyAll();
+    }
+
+    return true;
+  }
+
+  private synchronized void onEnd(long sequence) {
+    endSequence = sequence;
+    notifyAll();
+  }
+
+  private void onLaneFailed(@NonNull Lane lane, @NonNull IOException e) {
+    synchronized (this) {
+      if (!lanes.remove(lane)) {
+        return;
+      }
+
+      if (lanes.isEmpty()) {
+        noLanesSince = System.currentTimeMillis();
+      }
+
+      if (!closed) {
+        Log.w(TAG, "Lane " + lane.id + " failed, " + lanes.size() + " open", e);
+      }
+
+      notifyAll();
+    }
+
+    close(lane.connection);
+  }
+
+  /**
+   * @return The next chunk in sequence, or null at the end of the stream.
+   */
+  private synchronized @Nullable Chunk takeNext() throws IOException {
+    while (true) {
+      if (endSequence >= 0 && nextSequence >= endSequence) {
+        return null;
+      }
+
+      Chunk chunk = received.remove(nextSequence);
+
+      if (chunk != null) {
+        chunk.sequence = nextSequence++;
+        return chunk;
+      }
+
+      if (closed) {
+        throw new IOException("Transfer closed");
+      }
+
+      long waited = System.currentTimeMillis() - noLanesSince;
+
+      if (lanes.isEmpty() && waited >= resumeTimeout) {
+        throw new IOException("No connection for " + waited + " ms");
+      }
+
+      try {
+        wait(lanes.isEmpty() ? Math.max(1, resumeTimeout - waited) : 0);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private void acknowledge(@NonNull Chunk chunk) {
+    if (tryAcknowledge(chunk.lane, chunk.sequence)) {
+      return;
+    }
+
+    for (Lane lane : getLanes()) {
+      if (lane != chunk.lane && tryAcknowledge(lane, chunk.sequence)) {
+        return;
+      }
+    }
+
+    Log.w(TAG, "No lane to acknowledge chunk " + chunk.sequence + " on, the sender will resend it");
+  }
+
+  private boolean tryAcknowledge(@NonNull Lane lane, long sequence) {
+    synchronized (this) {
+      if (!lanes.contains(lane)) {
+        return false;
+      }
+    }
+
+    try {
+      lane.writeAck(sequence);
+      return true;
+    } catch (IOException e) {
+      onLaneFailed(lane, e);
+      return false;
+    }
+  }
+
+  private static void close(@NonNull Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to close lane", e);
+    }
+  }
+
+  private static final class Lane {
+    private final int              id;
+    private final DataInputStream  in;
+    private final DataOutputStream out;
+    private final Closeable        connection;
+
+    private Lane(int id, @NonNull InputStream in, @NonNull OutputStream out, @NonNull Closeable connection) {
+      this.id         = id;
+      this.in         = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+      this.out        = new DataOutputStream(out);
+      this.connection = connection;
+    }
+
+    private synchronized void writeAck(long sequence) throws IOException {
+      ChunkedTransferFrames.writeAck(out, sequence);
+      out.flush();
+    }
+
+    private synchronized void writeComplete() throws IOException {
+      ChunkedTransferFrames.writeComplete(out);
+      out.flush();
+    }
+  }
+
+  private static final class Chunk {
+    private final Lane   lane;
+    private final byte[] data;
+
+    private long sequence;
+
+    private Chunk(@NonNull Lane lane, @NonNull byte[] data) {
+      this.lane = lane;
+      this.data = data;
+    }
+  }
+
+  private final class ReassemblingInputStream extends InputStream {
+
+    private Chunk   current;
+    private int     position;
+    private boolean finished;
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+
+      return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+
+      if (!fill()) {
+        return -1;
+      }
+
+      int read = Math.min(len, current.data.length - position);
+
+      System.arraycopy(current.data, position, b, off, read);
+      position += read;
+
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return current != null ? current.data.length - position : 0;
+    }
+
+    private boolean fill() throws IOException {
+      while (current == null || position == current.data.length) {
+        if (finished) {
+          return false;
+        }
+
+        if (current != null) {
+          acknowledge(current);
+          current = null;
+        }
+
+        Chunk next = takeNext();
+
+        if (next == null) {
+          finished = true;
+          return false;
+        }
+
+        current  = next;
+        position = 0;
+        throughput.add(next.data.length);
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,449 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sends a byte stream to a {@link ChunkedTransferReceiver} as sequence numbered chunks spread over
+ * any number of connections ("lanes").
+ * <p>
+ * Chunks are kept until the receiver acknowledges them, which it does once they have been consumed.
+ * That bounds memory on both sides, and means that when a lane drops, whatever it had in flight can
+ * be sent again over the lanes that are left, or over a replacement lane from the
+ * {@link LaneConnector}. The transfer only fails if there are no lanes at all for longer than the
+ * resume timeout.
+ */
+final class ChunkedTransferSender implements Closeable {
+
+  private static final String TAG = Log.tag(ChunkedTransferSender.class);
+
+  private static final long RECONNECT_INTERVAL = 1000;
+
+  private final LaneConnector      connector;
+  private final int                targetLanes;
+  private final int                chunkSize;
+  private final int                maxUnacknowledged;
+  private final long               resumeTimeout;
+  private final TransferThroughput throughput;
+
+  private final Map<Long, Chunk>     unacknowledged = new HashMap<>();
+  private final PriorityQueue<Chunk> pending        = new PriorityQueue<>(16, (a, b) -> Long.compare(a.sequence, b.sequence));
+  private final List<Lane>           lanes          = new ArrayList<>();
+
+  private long    nextSequence;
+  private long    noLanesSince;
+  private int     laneCount;
+  private int     connectingLanes;
+  private int     resentChunks;
+  private boolean complete;
+  private boolean closed;
+
+  private final ChunkingOutputStream outputStream;
+
+  /**
+   * @param targetLanes       How many lanes to keep open, including the one passed to {@link #addLane}.
+   * @param maxUnacknowledged How many chunks may be in flight or buffered at the receiver at once.
+   * @param resumeTimeout     How long to wait for a new lane after all of them have dropped.
+   */
+  ChunkedTransferSender(@NonNull LaneConnector connector, int targetLanes, int chunkSize, int maxUnacknowledged, long resumeTimeout) {
+    this.connector         = connector;
+    this.targetLanes       = targetLanes;
+    this.chunkSize         = chunkSize;
+    this.maxUnacknowledged = maxUnacknowledged;
+    this.resumeTimeout     = resumeTimeout;
+    this.throughput        = new TransferThroughput(TAG);
+    this.outputStream      = new ChunkingOutputStream();
+    this.noLanesSince      = System.currentTimeMillis();
+  }
+
+  /**
+   * Everything written here is delivered, in order, by the receiver's input stream. Closing it does
+   * not finish the transfer, call {@link #finish()} for that.
+   */
+  @NonNull OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  synchronized void addLane(@NonNull InputStream in, @NonNull OutputStream out, @NonNull Closeable connection) {
+    if (closed) {
+      close(connection);
+      return;
+    }
+
+    Lane lane = new Lane(++laneCount, in, out, connection);
+    lanes.add(lane);
+    notifyAll();
+
+    Log.i(TAG, "Lane " + lane.id + " added, " + lanes.size() + " open");
+
+    new Thread(() -> writeLoop(lane), "ChunkedTransferSender-lane-" + lane.id + "-write").start();
+    new Thread(() -> readLoop(lane), "ChunkedTransferSender-lane-" + lane.id + "-read").start();
+  }
+
+  /**
+   * Opens lanes through the connector in the background until there are as many as requested.
+   */
+  synchronized void openAdditionalLanes() {
+    while (lanes.size() + connectingLanes < targetLanes) {
+      connectingLanes++;
+      new Thread(this::connectLane, "ChunkedTransferSender-connect").start();
+    }
+  }
+
+  /**
+   * Sends whatever is left in the output stream, marks the end of the stream, and blocks until the
+   * receiver reports that it has finished with it.
+   */
+  void finish() throws IOException {
+    outputStream.flushChunk();
+    enqueue(new Chunk(Chunk.END, nextSequence(), null));
+
+    synchronized (this) {
+      while (!complete) {
+        awaitLanes();
+      }
+    }
+
+    Log.i(TAG, "Transfer finished: " + throughput + ", " + getResentChunks() + " chunks resent");
+    close();
+  }
+
+  @Override
+  public void close() {
+    List<Lane> toClose;
+
+    synchronized (this) {
+      closed  = true;
+      toClose = new ArrayList<>(lanes);
+      lanes.clear();
+      notifyAll();
+    }
+
+    for (Lane lane : toClose) {
+      close(lane.connection);
+    }
+  }
+
+  synchronized int getLaneCount() {
+    return lanes.size();
+  }
+
+  synchronized int getResentChunks() {
+    return resentChunks;
+  }
+
+  private synchronized long nextSequence() {
+    return nextSequence++;
+  }
+
+  private synchronized void enqueue(@NonNull Chunk chunk) throws IOException {
+    while (unacknowledged.size() >= maxUnacknowledged) {
+      awaitLanes();
+    }
+
+    unacknowledged.put(chunk.sequence, chunk);
+    pending.add(chunk);
+    notifyAll();
+  }
+
+  /**
+   * Waits for a change in state, failing if the sender is closed or has been without lanes for too
+   * long.
+   */
+  private void awaitLanes() throws IOException {
+    if (closed) {
+      throw new IOException("Transfer closed");
+    }
+
+    long waited = System.currentTimeMillis() - noLanesSince;
+
+    if (lanes.isEmpty() && waited >= resumeTimeout) {
+      throw new IOException("No connection for " + waited + " ms");
+    }
+
+    try {
+      wait(lanes.isEmpty() ? Math.max(1, resumeTimeout - waited) : 0);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void writeLoop(@NonNull Lane lane) {
+    try {
+      Chunk chunk;
+
+      while ((chunk = takePending(lane)) != null) {
+        if (chunk.type == Chunk.END) {
+          ChunkedTransferFrames.writeEnd(lane.out, chunk.sequence);
+        } else {
+          ChunkedTransferFrames.writeData(lane.out, chunk.sequence, chunk.data);
+          throughput.add(chunk.data.length);
+        }
+
+        if (!hasPending()) {
+          lane.out.flush();
+        }
+      }
+    } catch (IOException e) {
+      onLaneFailed(lane, e);
+    }
+  }
+
+  private void readLoop(@NonNull Lane lane) {
+    try {
+      while (true) {
+        ChunkedTransferFrames.Frame frame = ChunkedTransferFrames.read(lane.in);
+
+        if (frame.getType() == ChunkedTransferFrames.TYPE_ACK) {
+          onAcknowledged(frame.getSequence());
+        } else if (frame.getType() == ChunkedTransferFrames.TYPE_COMPLETE) {
+          onComplete();
+          return;
+        } else {
+          throw new IOException("Unexpected frame type from receiver: " + frame.getType());
+        }
+      }
+    } catch (IOException e) {
+      onLaneFailed(lane, e);
+    }
+  }
+
+  private void connectLane() {
+    long start = System.currentTimeMillis();
+
+    while (true) {
+      synchronized (this) {
+        if (closed || complete || lanes.size() >= targetLanes) {
+          connectingLanes--;
+          return;
+        }
+      }
+
+      try {
+        LaneConnector.Connection connection = connector.connect();
+
+        synchronized (this) {
+          connectingLanes--;
+          addLane(connection.getInputStream(), connection.getOutputStream(), connection);
+        }
+        return;
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to open lane", e);
+      }
+
+      if (System.currentTimeMillis() - start > resumeTimeout) {
+        synchronized (this) {
+          connectingLanes--;
+        }
+        return;
+      }
+
+      try {
+        Thread.sleep(RECONNECT_INTERVAL);
+      } catch (InterruptedException e) {
+        synchronized (this) {
+          connectingLanes--;
+        }
+        return;
+      }
+    }
+  }
+
+  private synchronized Chunk takePending(@NonNull Lane lane) {
+    while (!lane.failed && !closed && !complete) {
+      Chunk chunk = pending.poll();
+
+      if (chunk == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return null;
+        }
+      } else if (unacknowledged.containsKey(chunk.sequence)) {
+        chunk.lane = lane;
+        return chunk;
+      }
+    }
+
+    return null;
+  }
+
+  private synchronized boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  private synchronized void onAcknowledged(long sequence) {
+    if (unacknowledged.remove(sequence) != null) {
+      notifyAll();
+    }
+  }
+
+  private synchronized void onComplete() {
+    complete = true;
+    notifyAll();
+  }
+
+  private void onLaneFailed(@NonNull Lane lane, @NonNull IOException e) {
+    synchronized (this) {
+      if (lane.failed) {
+        return;
+      }
+
+      lane.failed = true;
+      lanes.remove(lane);
+
+      if (closed || complete) {
+        close(lane.connection);
+        return;
+      }
+
+      int resent = 0;
+
+      for (Chunk chunk : unacknowledged.values()) {
+        if (chunk.lane == lane) {
+          chunk.lane = null;
+          pending.add(chunk);
+          resent++;
+        }
+      }
+
+      resentChunks += resent;
+
+      if (lanes.isEmpty()) {
+        noLanesSince = System.currentTimeMillis();
+      }
+
+      Log.w(TAG, "Lane " + lane.id + " failed, requeued " + resent + " chunks, " + lanes.size() + " open", e);
+      notifyAll();
+    }
+
+    close(lane.connection);
+    openAdditionalLanes();
+  }
+
+  private static void close(@NonNull Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to close lane", e);
+    }
+  }
+
+  /**
+   * Opens replacement lanes to the same receiver.
+   */
+  interface LaneConnector {
+    @NonNull Connection connect() throws IOException;
+
+    interface Connection extends Closeable {
+      @NonNull InputStream getInputStream() throws IOException;
+
+      @NonNull OutputStream getOutputStream() throws IOException;
+    }
+  }
+
+  private static final class Lane {
+    private final int              id;
+    private final DataInputStream  in;
+    private final DataOutputStream out;
+    private final Closeable        connection;
+
+    private boolean failed;
+
+    private Lane(int id, @NonNull InputStream in, @NonNull OutputStream out, @NonNull Closeable connection) {
+      this.id         = id;
+      this.in         = new DataInputStream(new BufferedInputStream(in));
+      this.out        = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+      this.connection = connection;
+    }
+  }
+
+  private static final class Chunk {
+    private static final int DATA = 0;
+    private static final int END  = 1;
+
+    private final int    type;
+    private final long   sequence;
+    private final byte[] data;
+
+    private Lane lane;
+
+    private Chunk(int type, long sequence, byte[] data) {
+      this.type     = type;
+      this.sequence = sequence;
+      this.data     = data;
+    }
+  }
+
+  private final class ChunkingOutputStream extends OutputStream {
+
+    private byte[] buffer = new byte[chunkSize];
+    private int    count;
+
+    @Override
+    public void write(int b) throws IOException {
+      buffer[count++] = (byte) b;
+
+      if (count == buffer.length) {
+        flushChunk();
+      }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int copy = Math.min(len, buffer.length - count);
+
+        System.arraycopy(b, off, buffer, count, copy);
+        count += copy;
+        off   += copy;
+        len   -= copy;
+
+        if (count == buffer.length) {
+          flushChunk();
+        }
+      }
+    }
+
+    /**
+     * Chunks are only cut when full, so frequent flushes from the writer don't turn into tiny frames.
+     */
+    @Override
+    public void flush() {
+    }
+
+    private void flushChunk() throws IOException {
+      if (count == 0) {
+        return;
+      }
+
+      byte[] data;
+
+      if (count == buffer.length) {
+        data   = buffer;
+        buffer = new byte[chunkSize];
+      } else {
+        data = new byte[count];
+        System.arraycopy(buffer, 0, data, 0, count);
+      }
+
+      count = 0;
+      enqueue(new Chunk(Chunk.DATA, nextSequence(), data));
+    }
+  }
+}
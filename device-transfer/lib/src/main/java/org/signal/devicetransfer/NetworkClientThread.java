@@ -10,10 +10,13 @@ import org.signal.core.util.StreamUtil;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -34,9 +37,15 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private static final int  LANES              = 4;
+  private static final int  CHUNK_SIZE         = 128 * 1024;
+  private static final int  MAX_UNACKNOWLEDGED = 64;
+  private static final long RESUME_TIMEOUT     = TimeUnit.SECONDS.toMillis(30);
+
+  private volatile SSLSocket             client;
+  private volatile ChunkedTransferSender sender;
+  private volatile boolean               isRunning;
+  private volatile Boolean               isVerified;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -92,10 +101,11 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(ChunkedTransferFrames.PROTOCOL_CHUNKED);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
@@ -106,15 +116,21 @@ final class NetworkClientThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
-          outputStream.flush();
 
-          Log.d(TAG, "Waiting for server to tell us they got everything");
-          try {
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read();
-          } catch (IOException e) {
-            Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+          if (result == ChunkedTransferFrames.PROTOCOL_CHUNKED) {
+            runChunked(inputStream, outputStream, x509.getEncoded());
+          } else {
+            Log.i(TAG, "Server only supports a single stream");
+            clientTask.run(context, outputStream);
+            outputStream.flush();
+
+            Log.d(TAG, "Waiting for server to tell us they got everything");
+            try {
+              //noinspection ResultOfMethodCallIgnored
+              inputStream.read();
+            } catch (IOException e) {
+              Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+            }
           }
           success   = true;
           isRunning = false;
@@ -143,6 +159,62 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  /**
+   * Spreads the client task's output over several connections to the server, reconnecting any that
+   * drop. Extra connections go to the lane port the server sent on the verified one, prove they
+   * belong to this transfer with the session token sent alongside it, and must present the same
+   * certificate it did.
+   */
+  private void runChunked(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, @NonNull byte[] serverCertificate) throws IOException {
+    DataInputStream dataInputStream = new DataInputStream(inputStream);
+    byte[]          sessionToken    = new byte[ChunkedTransferFrames.SESSION_TOKEN_LENGTH];
+
+    dataInputStream.readFully(sessionToken);
+    int lanePort = dataInputStream.readInt();
+
+    ChunkedTransferSender chunkedSender = new ChunkedTransferSender(() -> openLane(lanePort, sessionToken, serverCertificate), LANES, CHUNK_SIZE, MAX_UNACKNOWLEDGED, RESUME_TIMEOUT);
+    chunkedSender.addLane(inputStream, outputStream, client);
+    chunkedSender.openAdditionalLanes();
+    sender = chunkedSender;
+
+    try {
+      clientTask.run(context, chunkedSender.getOutputStream());
+      Log.d(TAG, "Waiting for server to tell us they got everything");
+      chunkedSender.finish();
+    } finally {
+      chunkedSender.close();
+      sender = null;
+    }
+  }
+
+  private @NonNull ChunkedTransferSender.LaneConnector.Connection openLane(int lanePort, @NonNull byte[] sessionToken, @NonNull byte[] serverCertificate) throws IOException {
+    SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+    SSLSocket                                socket       = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+
+    try {
+      socket.bind(null);
+      socket.connect(new InetSocketAddress(serverHostAddress, lanePort), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !MessageDigest.isEqual(x509.getEncoded(), serverCertificate)) {
+        throw new SSLHandshakeException("server certificate changed");
+      }
+
+      OutputStream outputStream = socket.getOutputStream();
+      outputStream.write(sessionToken);
+      outputStream.flush();
+
+      return new SocketConnection(socket);
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      throw e;
+    } catch (CertificateEncodingException e) {
+      StreamUtil.close(socket);
+      throw new SSLHandshakeException(e.getMessage());
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -170,10 +242,35 @@ final class NetworkClientThread extends Thread {
   public void shutdown() {
     isRunning = false;
     StreamUtil.close(client);
+    StreamUtil.close(sender);
     interrupt();
   }
 
   private boolean shouldKeepRunning() {
     return !isInterrupted() && isRunning;
   }
+
+  private static final class SocketConnection implements ChunkedTransferSender.LaneConnector.Connection {
+
+    private final SSLSocket socket;
+
+    SocketConnection(@NonNull SSLSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public @NonNull InputStream getInputStream() throws IOException {
+      return socket.getInputStream();
+    }
+
+    @Override
+    public @NonNull OutputStream getOutputStream() throws IOException {
+      return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
 }
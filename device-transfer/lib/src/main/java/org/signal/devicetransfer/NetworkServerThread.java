@@ -9,12 +9,16 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
@@ -31,10 +35,14 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
-  private volatile ServerSocket serverSocket;
-  private volatile Socket       clientSocket;
-  private volatile boolean      isRunning;
-  private volatile Boolean      isVerified;
+  private static final long RESUME_TIMEOUT         = TimeUnit.SECONDS.toMillis(30);
+  private static final int  LANE_HANDSHAKE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private volatile ServerSocket            serverSocket;
+  private volatile Socket                  clientSocket;
+  private volatile ChunkedTransferReceiver receiver;
+  private volatile boolean                 isRunning;
+  private volatile Boolean                 isVerified;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
@@ -81,10 +89,11 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(ChunkedTransferFrames.PROTOCOL_CHUNKED);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
@@ -95,10 +104,16 @@ final class NetworkServerThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
 
-          outputStream.write(0x53);
-          outputStream.flush();
+          if (result == ChunkedTransferFrames.PROTOCOL_CHUNKED) {
+            runChunked(inputStream, outputStream);
+          } else {
+            Log.i(TAG, "Client only supports a single stream");
+            serverTask.run(context, inputStream);
+
+            outputStream.write(0x53);
+            outputStream.flush();
+          }
         } catch (IOException e) {
           if (isRunning) {
             Log.i(TAG, "Error connecting with client or server socket closed.", e);
@@ -121,6 +136,44 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  /**
+   * Hands the client a random session token and the port of a separate lane server socket, then
+   * accepts further connections there that present the token as extra lanes for the transfer, for as
+   * long as the server task is reading.
+   */
+  private void runChunked(@NonNull InputStream inputStream, @NonNull OutputStream outputStream) throws IOException {
+    byte[] sessionToken = new byte[ChunkedTransferFrames.SESSION_TOKEN_LENGTH];
+    new SecureRandom().nextBytes(sessionToken);
+
+    ServerSocket laneServerSocket = SelfSignedIdentity.getServerSocketFactory(keys).createServerSocket(0);
+
+    try {
+      DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+      dataOutputStream.write(sessionToken);
+      dataOutputStream.writeInt(laneServerSocket.getLocalPort());
+      dataOutputStream.flush();
+    } catch (IOException e) {
+      StreamUtil.close(laneServerSocket);
+      throw e;
+    }
+
+    ChunkedTransferReceiver chunkedReceiver = new ChunkedTransferReceiver(RESUME_TIMEOUT);
+    chunkedReceiver.addLane(inputStream, outputStream, clientSocket);
+    receiver = chunkedReceiver;
+
+    LaneAcceptThread laneAcceptThread = new LaneAcceptThread(laneServerSocket, sessionToken, chunkedReceiver);
+    laneAcceptThread.start();
+
+    try {
+      serverTask.run(context, chunkedReceiver.getInputStream());
+      chunkedReceiver.complete();
+    } finally {
+      laneAcceptThread.shutdown();
+      chunkedReceiver.close();
+      receiver = null;
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -161,7 +214,88 @@ final class NetworkServerThread extends Thread {
   public void shutdown() {
     isRunning = false;
     StreamUtil.close(clientSocket);
+    StreamUtil.close(receiver);
     StreamUtil.close(serverSocket);
     interrupt();
   }
+
+  /**
+   * Accepts the client's extra and replacement lanes during a chunked transfer, on a server socket
+   * of its own. Connections that don't present the session token are dropped.
+   * <p>
+   * {@link #shutdown()} closes the lane server socket and any lane still being checked, so the
+   * thread is never left blocked in accept or a read.
+   */
+  private static final class LaneAcceptThread extends Thread {
+
+    private final ServerSocket            serverSocket;
+    private final byte[]                  sessionToken;
+    private final ChunkedTransferReceiver receiver;
+
+    private volatile Socket  handshakeSocket;
+    private volatile boolean isRunning = true;
+
+    LaneAcceptThread(@NonNull ServerSocket serverSocket, @NonNull byte[] sessionToken, @NonNull ChunkedTransferReceiver receiver) {
+      super("LaneAcceptThread");
+      this.serverSocket = serverSocket;
+      this.sessionToken = sessionToken;
+      this.receiver     = receiver;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (isRunning && !serverSocket.isClosed()) {
+          Socket socket = serverSocket.accept();
+
+          handshakeSocket = socket;
+
+          if (!isRunning) {
+            StreamUtil.close(socket);
+            break;
+          }
+
+          try {
+            socket.setSoTimeout(LANE_HANDSHAKE_TIMEOUT);
+
+            byte[] token = new byte[sessionToken.length];
+            StreamUtil.readFully(socket.getInputStream(), token);
+
+            if (!MessageDigest.isEqual(token, sessionToken)) {
+              Log.w(TAG, "Lane presented the wrong session token");
+              StreamUtil.close(socket);
+              continue;
+            }
+
+            socket.setSoTimeout(0);
+            receiver.addLane(socket.getInputStream(), socket.getOutputStream(), socket);
+          } catch (IOException e) {
+            if (isRunning) {
+              Log.w(TAG, "Unable to accept lane", e);
+            }
+            StreamUtil.close(socket);
+          } finally {
+            handshakeSocket = null;
+          }
+        }
+      } catch (IOException e) {
+        if (isRunning) {
+          Log.w(TAG, "Lane accept failed", e);
+        }
+      } finally {
+        StreamUtil.close(serverSocket);
+      }
+    }
+
+    void shutdown() {
+      isRunning = false;
+      StreamUtil.close(serverSocket);
+      StreamUtil.close(handshakeSocket);
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
 }
@@ -0,0 +1,55 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts bytes moved by a transfer and periodically logs the rate.
+ */
+final class TransferThroughput {
+
+  private static final long LOG_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+  private final String tag;
+  private final long   startTime;
+
+  private long bytes;
+  private long lastLogTime;
+
+  TransferThroughput(@NonNull String tag) {
+    this.tag         = tag;
+    this.startTime   = System.currentTimeMillis();
+    this.lastLogTime = startTime;
+  }
+
+  synchronized void add(long count) {
+    bytes += count;
+
+    long now = System.currentTimeMillis();
+
+    if (now - lastLogTime >= LOG_INTERVAL) {
+      lastLogTime = now;
+      Log.i(tag, "Progress: " + this);
+    }
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized long getBytesPerSecond() {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    return bytes * 1000 / elapsed;
+  }
+
+  @Override
+  public synchronized @NonNull String toString() {
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    return String.format(Locale.US, "%.1f MB in %.1f s (%.2f MB/s)", bytes / 1e6, elapsed / 1e3, getBytesPerSecond() / 1e6);
+  }
+}
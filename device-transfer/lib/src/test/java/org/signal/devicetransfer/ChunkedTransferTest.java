@@ -0,0 +1,184 @@
+package org.signal.devicetransfer;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class ChunkedTransferTest {
+
+  private static final int  CHUNK_SIZE         = 16 * 1024;
+  private static final int  MAX_UNACKNOWLEDGED = 8;
+  private static final long RESUME_TIMEOUT     = 5000;
+
+  private final List<Socket> clientSockets = new CopyOnWriteArrayList<>();
+
+  private ServerSocket            serverSocket;
+  private ChunkedTransferReceiver receiver;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    receiver     = new ChunkedTransferReceiver(RESUME_TIMEOUT);
+
+    new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = serverSocket.accept();
+          receiver.addLane(socket.getInputStream(), socket.getOutputStream(), socket);
+        }
+      } catch (IOException e) {
+        // Closed by tearDown
+      }
+    }).start();
+  }
+
+  @After
+  public void tearDown() {
+    StreamUtil.close(serverSocket);
+    receiver.close();
+
+    for (Socket socket : clientSockets) {
+      StreamUtil.close(socket);
+    }
+  }
+
+  @Test
+  public void transfer_overSeveralLanes_arrivesIntact() throws Exception {
+    byte[] data = randomBytes(2 * 1024 * 1024 + 123);
+
+    assertArrayEquals(data, transfer(data, 4, () -> {}));
+  }
+
+  @Test
+  public void transfer_emptyStream() throws Exception {
+    assertArrayEquals(new byte[0], transfer(new byte[0], 2, () -> {}));
+  }
+
+  @Test
+  public void transfer_laneDropped_continuesOnOtherLanes() throws Exception {
+    byte[] data = randomBytes(2 * 1024 * 1024);
+
+    assertArrayEquals(data, transfer(data, 3, () -> StreamUtil.close(clientSockets.get(0))));
+  }
+
+  @Test
+  public void transfer_allLanesDropped_resumesOnNewLanes() throws Exception {
+    byte[] data = randomBytes(2 * 1024 * 1024);
+
+    assertArrayEquals(data, transfer(data, 2, () -> {
+      for (Socket socket : clientSockets) {
+        StreamUtil.close(socket);
+      }
+    }));
+  }
+
+  /**
+   * Sends the data through a sender with the given number of lanes, running the interruption
+   * halfway through, and returns what the receiver read.
+   */
+  private byte[] transfer(@NonNull byte[] data, int lanes, @NonNull Runnable interruption) throws Exception {
+    AtomicReference<Throwable> readError = new AtomicReference<>();
+    ByteArrayOutputStream      read      = new ByteArrayOutputStream();
+
+    Thread readThread = new Thread(() -> {
+      try {
+        StreamUtil.copy(receiver.getInputStream(), read);
+        receiver.complete();
+      } catch (IOException e) {
+        readError.set(e);
+      }
+    });
+    readThread.start();
+
+    ChunkedTransferSender sender = new ChunkedTransferSender(this::connect, lanes, CHUNK_SIZE, MAX_UNACKNOWLEDGED, RESUME_TIMEOUT);
+
+    LaneConnection first = connect();
+    sender.addLane(first.getInputStream(), first.getOutputStream(), first);
+    sender.openAdditionalLanes();
+
+    OutputStream out      = sender.getOutputStream();
+    Random       random   = new Random(42);
+    int          position = 0;
+    boolean      dropped  = false;
+
+    while (position < data.length) {
+      int length = Math.min(data.length - position, 1 + random.nextInt(40000));
+
+      out.write(data, position, length);
+      position += length;
+
+      if (!dropped && position >= data.length / 2) {
+        interruption.run();
+        dropped = true;
+      }
+    }
+
+    sender.finish();
+    readThread.join();
+
+    assertNull(readError.get());
+
+    return read.toByteArray();
+  }
+
+  private @NonNull LaneConnection connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    clientSockets.add(socket);
+    return new LaneConnection(socket);
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class LaneConnection implements ChunkedTransferSender.LaneConnector.Connection {
+
+    private final Socket socket;
+
+    LaneConnection(@NonNull Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public @NonNull InputStream getInputStream() throws IOException {
+      return socket.getInputStream();
+    }
+
+    @Override
+    public @NonNull OutputStream getOutputStream() throws IOException {
+      return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}
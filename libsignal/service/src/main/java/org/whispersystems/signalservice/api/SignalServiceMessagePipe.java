@@ -43,6 +43,8 @@ import org.whispersystems.util.Base64;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
@@ -69,6 +71,8 @@ public class SignalServiceMessagePipe {
   private final Optional<CredentialsProvider> credentialsProvider;
   private final ClientZkProfileOperations     clientZkProfile;
 
+  private boolean pendingEmptyResponse;
+
   SignalServiceMessagePipe(WebSocketConnection websocket,
                            Optional<CredentialsProvider> credentialsProvider,
                            ClientZkProfileOperations clientZkProfile)
@@ -145,23 +149,17 @@ public class SignalServiceMessagePipe {
       throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
     }
 
+    if (pendingEmptyResponse) {
+      pendingEmptyResponse = false;
+      return Optional.absent();
+    }
+
     while (true) {
       WebSocketRequestMessage  request  = websocket.readRequest(unit.toMillis(timeout));
       WebSocketResponseMessage response = createWebSocketResponse(request);
       try {
         if (isSignalServiceEnvelope(request)) {
-          Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
-          long             timestamp       = 0;
-
-          if (timestampHeader.isPresent()) {
-            try {
-              timestamp = Long.parseLong(timestampHeader.get());
-            } catch (NumberFormatException e) {
-              Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
-            }
-          }
-
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+          SignalServiceEnvelope envelope = toEnvelope(request);
 
           callback.onMessage(envelope);
           return Optional.of(envelope);
@@ -174,6 +172,71 @@ public class SignalServiceMessagePipe {
     }
   }
 
+  /**
+   * Similar to {@link #readOrEmpty(long, TimeUnit, MessagePipeCallback)}, except that once the first
+   * envelope arrives, any envelopes that are already buffered are read as well (up to
+   * {@code maxEnvelopes}) and handed to the callback together. None of them are acknowledged until
+   * the callback returns, so the callback can persist the whole batch at once. If reading the batch
+   * or the callback throws, nothing is acknowledged and the server will deliver the batch again.
+   *
+   * An empty list is returned when an empty response is hit. If the empty response arrives after
+   * some envelopes were already read, those envelopes are returned and the next call will return
+   * the empty list instead.
+   */
+  public List<SignalServiceEnvelope> readBatchOrEmpty(int maxEnvelopes, long timeout, TimeUnit unit, MessagePipeBatchCallback callback)
+      throws TimeoutException, IOException
+  {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    if (pendingEmptyResponse) {
+      pendingEmptyResponse = false;
+      return Collections.emptyList();
+    }
+
+    List<SignalServiceEnvelope>    envelopes = new ArrayList<>(maxEnvelopes);
+    List<WebSocketResponseMessage> responses = new ArrayList<>(maxEnvelopes);
+    WebSocketRequestMessage        request   = websocket.readRequest(unit.toMillis(timeout));
+    boolean                        empty     = false;
+
+    while (request != null) {
+      responses.add(createWebSocketResponse(request));
+
+      if (isSignalServiceEnvelope(request)) {
+        envelopes.add(toEnvelope(request));
+      } else if (isSocketEmptyRequest(request)) {
+        if (envelopes.isEmpty()) {
+          sendResponses(responses);
+          return Collections.emptyList();
+        }
+
+        empty = true;
+        break;
+      }
+
+      if (envelopes.size() >= maxEnvelopes) {
+        break;
+      }
+
+      request = envelopes.isEmpty() ? websocket.readRequest(unit.toMillis(timeout))
+                                    : websocket.readRequestIfAvailable().orNull();
+    }
+
+    callback.onMessages(envelopes);
+    sendResponses(responses);
+
+    pendingEmptyResponse = empty;
+
+    return envelopes;
+  }
+
+  private void sendResponses(List<WebSocketResponseMessage> responses) throws IOException {
+    for (WebSocketResponseMessage response : responses) {
+      websocket.sendResponse(response);
+    }
+  }
+
   public Future<SendMessageResponse> send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
     List<String> headers = new LinkedList<String>() {{
       add("content-type:application/json");
@@ -320,6 +383,21 @@ public class SignalServiceMessagePipe {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
 
+  private SignalServiceEnvelope toEnvelope(WebSocketRequestMessage request) throws IOException {
+    Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
+    long             timestamp       = 0;
+
+    if (timestampHeader.isPresent()) {
+      try {
+        timestamp = Long.parseLong(timestampHeader.get());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
+      }
+    }
+
+    return new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+  }
+
   private boolean isSocketEmptyRequest(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/queue/empty".equals(message.getPath());
   }
@@ -365,6 +443,10 @@ public class SignalServiceMessagePipe {
     void onMessage(SignalServiceEnvelope envelope);
   }
 
+  public interface MessagePipeBatchCallback {
+    void onMessages(List<SignalServiceEnvelope> envelopes);
+  }
+
   private static class NullMessagePipeCallback implements MessagePipeCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
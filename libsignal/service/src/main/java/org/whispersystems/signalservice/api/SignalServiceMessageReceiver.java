@@ -194,6 +194,22 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, long, ProgressListener)},
+   * but the downloaded file is verified while it is decrypted rather than in a separate pass.
+   *
+   * The returned stream throws an {@link IOException} when it reaches the end of the ciphertext if
+   * the MAC or digest doesn't match, so callers must only commit the plaintext once the stream has
+   * been read to completion.
+   */
+  public InputStream retrieveAttachmentStreaming(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(pointer.getCdnNumber(), pointer.getRemoteId(), destination, maxSizeBytes, listener);
+    return AttachmentCipherInputStream.createStreamingForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
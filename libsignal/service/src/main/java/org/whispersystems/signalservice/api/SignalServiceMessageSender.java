@@ -56,8 +56,6 @@ import org.whispersystems.signalservice.api.push.exceptions.AuthorizationFailedE
 import org.whispersystems.signalservice.api.push.exceptions.MalformedResponseException;
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
-import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
-import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.api.util.Uint64RangeException;
 import org.whispersystems.signalservice.api.util.Uint64Util;
@@ -65,6 +63,7 @@ import org.whispersystems.signalservice.internal.configuration.SignalServiceConf
 import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
 import org.whispersystems.signalservice.internal.push.AttachmentV2UploadAttributes;
 import org.whispersystems.signalservice.internal.push.AttachmentV3UploadAttributes;
+import org.whispersystems.signalservice.internal.push.MessageSendFanOut;
 import org.whispersystems.signalservice.internal.push.MismatchedDevices;
 import org.whispersystems.signalservice.internal.push.OutgoingPushMessage;
 import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
@@ -72,6 +71,7 @@ import org.whispersystems.signalservice.internal.push.ProvisioningProtos;
 import org.whispersystems.signalservice.internal.push.PushAttachmentData;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.SendMessageResponse;
+import org.whispersystems.signalservice.internal.push.SendStageTimings;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.AttachmentPointer;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.CallMessage;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Content;
@@ -88,6 +88,7 @@ import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevic
 import org.whispersystems.signalservice.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
 import org.whispersystems.signalservice.internal.push.http.CancelationSignal;
+import org.whispersystems.signalservice.internal.push.http.PartialSendCompleteListener;
 import org.whispersystems.signalservice.internal.push.http.ResumableUploadSpec;
 import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -99,14 +100,12 @@ import java.io.InputStream;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -123,6 +122,12 @@ public class SignalServiceMessageSender {
 
   private static final int RETRY_COUNT = 4;
 
+  /** Leaves room on the shared executor for other sends while a large group is being sent to */
+  private static final int MAX_CONCURRENT_RECIPIENT_SENDS = 12;
+
+  /** Times a recipient is retried after a network failure, without retrying the whole group */
+  private static final int MAX_RECIPIENT_NETWORK_RETRIES = 1;
+
   private final PushServiceSocket                                   socket;
   private final SignalServiceProtocolStore                          store;
   private final SignalSessionLock                                   sessionLock;
@@ -135,6 +140,7 @@ public class SignalServiceMessageSender {
 
   private final ExecutorService                                     executor;
   private final long                                                maxEnvelopeSize;
+  private final SendStageTimings                                    stageTimings;
 
   /**
    * Construct a SignalServiceMessageSender.
@@ -187,6 +193,7 @@ public class SignalServiceMessageSender {
     this.eventListener    = eventListener;
     this.executor         = executor != null ? executor : Executors.newSingleThreadExecutor();
     this.maxEnvelopeSize  = maxEnvelopeSize;
+    this.stageTimings     = new SendStageTimings();
   }
 
   /**
@@ -232,7 +239,7 @@ public class SignalServiceMessageSender {
       throws IOException
   {
     byte[] content = createTypingContent(message);
-    sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, cancelationSignal);
+    sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, cancelationSignal, null);
   }
 
 
@@ -317,10 +324,28 @@ public class SignalServiceMessageSender {
                                              boolean                                isRecipientUpdate,
                                              SignalServiceDataMessage               message)
       throws IOException, UntrustedIdentityException
+  {
+    return sendMessage(recipients, unidentifiedAccess, isRecipientUpdate, message, null);
+  }
+
+  /**
+   * Send a message to a group.
+   *
+   * @param recipients The group members.
+   * @param message The group message.
+   * @param partialListener Optionally told about each recipient's result as soon as it is known.
+   * @throws IOException
+   */
+  public List<SendMessageResult> sendMessage(List<SignalServiceAddress>             recipients,
+                                             List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                                             boolean                                isRecipientUpdate,
+                                             SignalServiceDataMessage               message,
+                                             PartialSendCompleteListener            partialListener)
+      throws IOException, UntrustedIdentityException
   {
     byte[]                  content            = createMessageContent(message);
     long                    timestamp          = message.getTimestamp();
-    List<SendMessageResult> results            = sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, null);
+    List<SendMessageResult> results            = sendMessage(recipients, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, null, partialListener);
     boolean                 needsSyncInResults = false;
 
     for (SendMessageResult result : results) {
@@ -396,6 +421,14 @@ public class SignalServiceMessageSender {
     socket.cancelInFlightRequests();
   }
 
+  /**
+   * @return Time spent encrypting, transmitting and handling device mismatches, summed over every
+   *         send made by this sender.
+   */
+  public SendStageTimings getStageTimings() {
+    return stageTimings;
+  }
+
   public void update(SignalServiceMessagePipe pipe, SignalServiceMessagePipe unidentifiedPipe, boolean isMultiDevice) {
     this.pipe.set(Optional.fromNullable(pipe));
     this.unidentifiedPipe.set(Optional.fromNullable(unidentifiedPipe));
@@ -1388,49 +1421,19 @@ public class SignalServiceMessageSender {
                                               long                               timestamp,
                                               byte[]                             content,
                                               boolean                            online,
-                                              CancelationSignal                  cancelationSignal)
+                                              CancelationSignal                  cancelationSignal,
+                                              PartialSendCompleteListener        partialListener)
       throws IOException
   {
     enforceMaxContentSize(content);
 
-    long                                   startTime                  = System.currentTimeMillis();
-    List<Future<SendMessageResult>>        futureResults              = new LinkedList<>();
-    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
-    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
-
-    while (recipientIterator.hasNext()) {
-      SignalServiceAddress         recipient = recipientIterator.next();
-      Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
-      futureResults.add(executor.submit(() -> sendMessage(recipient, access, timestamp, content, online, cancelationSignal)));
-    }
-
-    List<SendMessageResult> results = new ArrayList<>(futureResults.size());
-    recipientIterator = recipients.iterator();
-
-    for (Future<SendMessageResult> futureResult : futureResults) {
-      SignalServiceAddress recipient = recipientIterator.next();
-      try {
-        results.add(futureResult.get());
-      } catch (ExecutionException e) {
-        if (e.getCause() instanceof UntrustedIdentityException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e.getCause()).getIdentityKey()));
-        } else if (e.getCause() instanceof UnregisteredUserException) {
-          Log.w(TAG, "Found unregistered user.");
-          results.add(SendMessageResult.unregisteredFailure(recipient));
-        } else if (e.getCause() instanceof PushNetworkException) {
-          Log.w(TAG, e);
-          results.add(SendMessageResult.networkFailure(recipient));
-        } else if (e.getCause() instanceof ServerRejectedException) {
-          Log.w(TAG, e);
-          throw ((ServerRejectedException) e.getCause());
-        } else {
-          throw new IOException(e);
-        }
-      } catch (InterruptedException e) {
-        throw new IOException(e);
-      }
-    }
+    long                               startTime     = System.currentTimeMillis();
+    List<Optional<UnidentifiedAccess>> accessList    = new ArrayList<>(unidentifiedAccess);
+    SendStageTimings                   fanOutTimings = new SendStageTimings(stageTimings);
+    MessageSendFanOut                  fanOut        = new MessageSendFanOut(executor, MAX_CONCURRENT_RECIPIENT_SENDS, MAX_RECIPIENT_NETWORK_RETRIES);
+    List<SendMessageResult>            results       = fanOut.send(recipients,
+                                                                   index -> sendMessage(recipients.get(index), accessList.get(index), timestamp, content, online, cancelationSignal, fanOutTimings),
+                                                                   partialListener);
 
     double sendsForAverage = 0;
     for (SendMessageResult result : results) {
@@ -1448,7 +1451,7 @@ public class SignalServiceMessageSender {
       }
     }
 
-    Log.d(TAG, "Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send.");
+    Log.d(TAG, "Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send. Stages: " + fanOutTimings);
     return results;
   }
 
@@ -1459,6 +1462,18 @@ public class SignalServiceMessageSender {
                                         boolean                      online,
                                         CancelationSignal            cancelationSignal)
       throws UntrustedIdentityException, IOException
+  {
+    return sendMessage(recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, stageTimings);
+  }
+
+  private SendMessageResult sendMessage(SignalServiceAddress         recipient,
+                                        Optional<UnidentifiedAccess> unidentifiedAccess,
+                                        long                         timestamp,
+                                        byte[]                       content,
+                                        boolean                      online,
+                                        CancelationSignal            cancelationSignal,
+                                        SendStageTimings             timings)
+      throws UntrustedIdentityException, IOException
   {
     enforceMaxContentSize(content);
 
@@ -1470,41 +1485,22 @@ public class SignalServiceMessageSender {
       }
 
       try {
-        OutgoingPushMessageList messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online);
-
-        if (cancelationSignal != null && cancelationSignal.isCanceled()) {
-          throw new CancelationException();
-        }
+        long                    encryptStart = System.nanoTime();
+        OutgoingPushMessageList messages     = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online);
 
-        Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
-        Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
-
-        if (pipe.isPresent() && !unidentifiedAccess.isPresent()) {
-          try {
-            SendMessageResponse response = pipe.get().send(messages, Optional.absent()).get(10, TimeUnit.SECONDS);
-            return SendMessageResult.success(recipient, false, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
-          } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
-            Log.w(TAG, e);
-            Log.w(TAG, "[sendMessage] Pipe failed, falling back...");
-          }
-        } else if (unidentifiedPipe.isPresent() && unidentifiedAccess.isPresent()) {
-          try {
-            SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess).get(10, TimeUnit.SECONDS);
-            return SendMessageResult.success(recipient, true, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
-          } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
-            Log.w(TAG, e);
-            Log.w(TAG, "[sendMessage] Unidentified pipe failed, falling back...");
-          }
-        }
+        timings.record(SendStageTimings.Stage.ENCRYPT, System.nanoTime() - encryptStart);
 
         if (cancelationSignal != null && cancelationSignal.isCanceled()) {
           throw new CancelationException();
         }
 
-        SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
-
-        return SendMessageResult.success(recipient, unidentifiedAccess.isPresent(), response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+        long transmitStart = System.nanoTime();
 
+        try {
+          return transmit(recipient, unidentifiedAccess, messages, cancelationSignal, startTime);
+        } finally {
+          timings.record(SendStageTimings.Stage.TRANSMIT, System.nanoTime() - transmitStart);
+        }
       } catch (InvalidKeyException ike) {
         Log.w(TAG, ike);
         unidentifiedAccess = Optional.absent();
@@ -1517,16 +1513,60 @@ public class SignalServiceMessageSender {
         }
       } catch (MismatchedDevicesException mde) {
         Log.w(TAG, mde);
+        long mismatchStart = System.nanoTime();
         handleMismatchedDevices(socket, recipient, mde.getMismatchedDevices());
+        timings.record(SendStageTimings.Stage.HANDLE_MISMATCH, System.nanoTime() - mismatchStart);
       } catch (StaleDevicesException ste) {
         Log.w(TAG, ste);
+        long staleStart = System.nanoTime();
         handleStaleDevices(recipient, ste.getStaleDevices());
+        timings.record(SendStageTimings.Stage.HANDLE_MISMATCH, System.nanoTime() - staleStart);
       }
     }
 
     throw new IOException("Failed to resolve conflicts after 3 attempts!");
   }
 
+  /**
+   * Sends already-encrypted messages over whichever pipe fits, falling back to REST.
+   */
+  private SendMessageResult transmit(SignalServiceAddress         recipient,
+                                     Optional<UnidentifiedAccess> unidentifiedAccess,
+                                     OutgoingPushMessageList      messages,
+                                     CancelationSignal            cancelationSignal,
+                                     long                         startTime)
+      throws IOException
+  {
+    Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
+    Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
+
+    if (pipe.isPresent() && !unidentifiedAccess.isPresent()) {
+      try {
+        SendMessageResponse response = pipe.get().send(messages, Optional.absent()).get(10, TimeUnit.SECONDS);
+        return SendMessageResult.success(recipient, false, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+      } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
+        Log.w(TAG, e);
+        Log.w(TAG, "[sendMessage] Pipe failed, falling back...");
+      }
+    } else if (unidentifiedPipe.isPresent() && unidentifiedAccess.isPresent()) {
+      try {
+        SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess).get(10, TimeUnit.SECONDS);
+        return SendMessageResult.success(recipient, true, response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+      } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
+        Log.w(TAG, e);
+        Log.w(TAG, "[sendMessage] Unidentified pipe failed, falling back...");
+      }
+    }
+
+    if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+      throw new CancelationException();
+    }
+
+    SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
+
+    return SendMessageResult.success(recipient, unidentifiedAccess.isPresent(), response.getNeedsSync() || isMultiDevice.get(), System.currentTimeMillis() - startTime);
+  }
+
   private List<AttachmentPointer> createAttachmentPointers(Optional<List<SignalServiceAttachment>> attachments) throws IOException {
     List<AttachmentPointer> pointers = new LinkedList<>();
 
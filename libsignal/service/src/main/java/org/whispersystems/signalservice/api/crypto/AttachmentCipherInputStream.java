@@ -85,6 +85,47 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[])}, but reads the file only once.
+   * The MAC and digest are computed over the ciphertext as it is decrypted, and are verified before
+   * the final block of plaintext is released. If verification fails, the read that reaches the end
+   * of the ciphertext throws an {@link IOException} caused by an {@link InvalidMacException}.
+   *
+   * Callers must treat everything read from this stream as unverified until it has been read to
+   * completion, and should therefore write it to a staging location that is only committed once
+   * the stream has been fully consumed without error.
+   */
+  public static InputStream createStreamingForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac      mac   = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (digest == null) {
+        throw new InvalidMacException("Missing digest!");
+      }
+
+      InputStream verifyingStream = new MacVerifyingInputStream(new FileInputStream(file), file.length() - mac.getMacLength(), mac, digest);
+      InputStream inputStream     = new AttachmentCipherInputStream(verifyingStream, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
+
+      if (plaintextLength != 0) {
+        inputStream = new DrainingContentLengthInputStream(inputStream, plaintextLength);
+      }
+
+      return inputStream;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidMacException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
@@ -258,6 +299,124 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Passes the IV and ciphertext through while feeding them to the MAC and digest, then reads and
+   * checks the trailing MAC as soon as the last ciphertext byte has been handed out.
+   */
+  private static final class MacVerifyingInputStream extends FilterInputStream {
+
+    private final Mac           mac;
+    private final MessageDigest digest;
+    private final byte[]        theirDigest;
+
+    private long remainingData;
+
+    private MacVerifyingInputStream(InputStream inputStream, long dataLength, Mac mac, byte[] theirDigest) {
+      super(inputStream);
+
+      try {
+        this.mac           = mac;
+        this.digest        = MessageDigest.getInstance("SHA256");
+        this.theirDigest   = theirDigest;
+        this.remainingData = dataLength;
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+      return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remainingData == 0) return -1;
+
+      int read = super.read(buffer, offset, (int) Math.min(length, remainingData));
+
+      if (read == -1) {
+        throw new IOException("Unexpected end of ciphertext!");
+      }
+
+      mac.update(buffer, offset, read);
+      digest.update(buffer, offset, read);
+      remainingData -= read;
+
+      if (remainingData == 0) {
+        verify();
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      throw new IOException("Skip not supported while verifying!");
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void verify() throws IOException {
+      byte[] ourMac   = mac.doFinal();
+      byte[] theirMac = new byte[mac.getMacLength()];
+      Util.readFully(in, theirMac);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new IOException(new InvalidMacException("MAC doesn't match!"));
+      }
+
+      byte[] ourDigest = digest.digest(theirMac);
+
+      if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+        throw new IOException(new InvalidMacException("Digest doesn't match!"));
+      }
+    }
+  }
+
+  /**
+   * Stops at the plaintext length like {@link ContentLengthInputStream}, but consumes any trailing
+   * padding before reporting EOF so that the MAC is always verified.
+   */
+  private static final class DrainingContentLengthInputStream extends ContentLengthInputStream {
+
+    private DrainingContentLengthInputStream(InputStream inputStream, long contentLength) {
+      super(inputStream, contentLength);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result == -1) drain();
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int result = super.read(buffer, offset, length);
+      if (result == -1) drain();
+      return result;
+    }
+
+    private void drain() throws IOException {
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer, 0, buffer.length) != -1) {
+        // Discard padding
+      }
+    }
+  }
+
   private void readFully(byte[] buffer) throws IOException {
     int offset = 0;
 
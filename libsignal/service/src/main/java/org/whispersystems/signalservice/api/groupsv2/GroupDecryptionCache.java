@@ -0,0 +1,84 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.zkgroup.profiles.ProfileKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A bounded, least-recently-used cache of decrypted uuid and profile key ciphertexts for a single
+ * group. Ciphertexts are deterministic for a given {@link org.signal.zkgroup.groups.GroupSecretParams},
+ * so replaying a long run of group changes keeps hitting the same few entries.
+ * <p>
+ * Only successful decryptions are cached. Safe to use from multiple threads.
+ */
+class GroupDecryptionCache {
+
+  private final Map<ByteString, UUID>             uuids;
+  private final Map<ByteString, CachedProfileKey> profileKeys;
+
+  GroupDecryptionCache(int maxEntries) {
+    this.uuids       = new LruMap<>(maxEntries);
+    this.profileKeys = new LruMap<>(maxEntries);
+  }
+
+  UUID getUuid(ByteString ciphertext) {
+    synchronized (uuids) {
+      return uuids.get(ciphertext);
+    }
+  }
+
+  void putUuid(ByteString ciphertext, UUID uuid) {
+    synchronized (uuids) {
+      uuids.put(ciphertext, uuid);
+    }
+  }
+
+  /**
+   * A profile key ciphertext only decrypts when paired with the uuid it was encrypted for, so the
+   * uuid is part of what must match for a hit.
+   */
+  ProfileKey getProfileKey(ByteString ciphertext, UUID uuid) {
+    CachedProfileKey cached;
+
+    synchronized (profileKeys) {
+      cached = profileKeys.get(ciphertext);
+    }
+
+    return cached != null && cached.uuid.equals(uuid) ? cached.profileKey : null;
+  }
+
+  void putProfileKey(ByteString ciphertext, UUID uuid, ProfileKey profileKey) {
+    synchronized (profileKeys) {
+      profileKeys.put(ciphertext, new CachedProfileKey(uuid, profileKey));
+    }
+  }
+
+  private static final class CachedProfileKey {
+    private final UUID       uuid;
+    private final ProfileKey profileKey;
+
+    private CachedProfileKey(UUID uuid, ProfileKey profileKey) {
+      this.uuid       = uuid;
+      this.profileKey = profileKey;
+    }
+  }
+
+  static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private final int maxEntries;
+
+    LruMap(int maxEntries) {
+      super(16, 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxEntries;
+    }
+  }
+}
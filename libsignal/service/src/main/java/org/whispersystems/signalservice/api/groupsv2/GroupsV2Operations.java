@@ -42,11 +42,20 @@ import org.whispersystems.signalservice.api.util.UuidUtil;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Contains operations to create, modify and validate groups and group changes.
@@ -61,16 +70,30 @@ public final class GroupsV2Operations {
   /** Highest change epoch this class knows now to decrypt */
   public static final int HIGHEST_KNOWN_EPOCH = 1;
 
-  private final ServerPublicParams        serverPublicParams;
-  private final ClientZkProfileOperations clientZkProfileOperations;
-  private final ClientZkAuthOperations    clientZkAuthOperations;
-  private final SecureRandom              random;
+  /** Groups whose decrypted member ciphertexts are kept around */
+  private static final int MAX_CACHED_GROUPS = 8;
+
+  /** Comfortably more than the largest group, including pending and requesting members */
+  private static final int MAX_CACHED_CIPHERTEXTS_PER_GROUP = 2500;
+
+  /** Below this, handing work to other threads costs more than it saves */
+  private static final int MIN_PARALLEL_DECRYPTS = 16;
+
+  private static final int             DECRYPTION_THREADS  = Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static final ExecutorService DECRYPTION_EXECUTOR = createDecryptionExecutor();
+
+  private final ServerPublicParams                    serverPublicParams;
+  private final ClientZkProfileOperations             clientZkProfileOperations;
+  private final ClientZkAuthOperations                clientZkAuthOperations;
+  private final SecureRandom                          random;
+  private final Map<ByteString, GroupDecryptionCache> decryptionCaches;
 
   public GroupsV2Operations(ClientZkOperations clientZkOperations) {
     this.serverPublicParams        = clientZkOperations.getServerPublicParams();
     this.clientZkProfileOperations = clientZkOperations.getProfileOperations();
     this.clientZkAuthOperations    = clientZkOperations.getAuthOperations();
     this.random                    = new SecureRandom();
+    this.decryptionCaches          = new GroupDecryptionCache.LruMap<>(MAX_CACHED_GROUPS);
   }
 
   /**
@@ -119,7 +142,7 @@ public final class GroupsV2Operations {
   }
 
   public GroupOperations forGroup(final GroupSecretParams groupSecretParams) {
-    return new GroupOperations(groupSecretParams);
+    return new GroupOperations(groupSecretParams, getDecryptionCache(groupSecretParams));
   }
 
   public ClientZkProfileOperations getProfileOperations() {
@@ -130,17 +153,161 @@ public final class GroupsV2Operations {
     return clientZkAuthOperations;
   }
 
+  private GroupDecryptionCache getDecryptionCache(GroupSecretParams groupSecretParams) {
+    ByteString key = ByteString.copyFrom(groupSecretParams.serialize());
+
+    synchronized (decryptionCaches) {
+      GroupDecryptionCache cache = decryptionCaches.get(key);
+
+      if (cache == null) {
+        cache = new GroupDecryptionCache(MAX_CACHED_CIPHERTEXTS_PER_GROUP);
+        decryptionCaches.put(key, cache);
+      }
+
+      return cache;
+    }
+  }
+
+  /**
+   * Decrypts every item, spreading larger lists across {@link #DECRYPTION_EXECUTOR}. The calling
+   * thread takes items too, so it still makes progress if the executor is busy with another group.
+   *
+   * @return The decrypted items, in the same order as the input.
+   */
+  private static <I, O> List<O> decryptAll(List<I> items, Decryptor<I, O> decryptor)
+      throws InvalidGroupStateException, VerificationFailedException
+  {
+    int size    = items.size();
+    int helpers = Math.min(DECRYPTION_THREADS, size / MIN_PARALLEL_DECRYPTS) - 1;
+
+    if (helpers <= 0) {
+      List<O> results = new ArrayList<>(size);
+
+      for (I item : items) {
+        results.add(decrypt(decryptor, item));
+      }
+
+      return results;
+    }
+
+    Object[]           results = new Object[size];
+    AtomicInteger      next    = new AtomicInteger();
+    List<Future<Void>> futures = new ArrayList<>(helpers);
+
+    for (int i = 0; i < helpers; i++) {
+      futures.add(DECRYPTION_EXECUTOR.submit(() -> {
+        decryptRemaining(items, decryptor, results, next);
+        return null;
+      }));
+    }
+
+    decryptRemaining(items, decryptor, results, next);
+
+    for (Future<Void> future : futures) {
+      try {
+        getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof InvalidGroupStateException) {
+          throw (InvalidGroupStateException) cause;
+        } else if (cause instanceof VerificationFailedException) {
+          throw (VerificationFailedException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        } else {
+          throw new AssertionError(cause);
+        }
+      }
+    }
+
+    //noinspection unchecked
+    return (List<O>) Arrays.asList(results);
+  }
+
+  /**
+   * Claims and decrypts items until there are none left. On failure, the remaining items are
+   * abandoned so that the other threads stop early too.
+   */
+  private static <I, O> void decryptRemaining(List<I> items, Decryptor<I, O> decryptor, Object[] results, AtomicInteger next)
+      throws InvalidGroupStateException, VerificationFailedException
+  {
+    int size = items.size();
+    int index;
+
+    while ((index = next.getAndIncrement()) < size) {
+      try {
+        results[index] = decrypt(decryptor, items.get(index));
+      } catch (InvalidGroupStateException | VerificationFailedException | RuntimeException e) {
+        next.set(size);
+        throw e;
+      }
+    }
+  }
+
+  private static <I, O> O decrypt(Decryptor<I, O> decryptor, I item)
+      throws InvalidGroupStateException, VerificationFailedException
+  {
+    try {
+      return decryptor.decrypt(item);
+    } catch (InvalidInputException e) {
+      throw new InvalidGroupStateException(e);
+    }
+  }
+
+  private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private interface Decryptor<I, O> {
+    O decrypt(I item) throws InvalidGroupStateException, VerificationFailedException, InvalidInputException;
+  }
+
+  private static ExecutorService createDecryptionExecutor() {
+    AtomicInteger      threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor    = new ThreadPoolExecutor(DECRYPTION_THREADS,
+                                                            DECRYPTION_THREADS,
+                                                            1,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue<>(),
+                                                            runnable -> {
+                                                              Thread thread = new Thread(runnable, "signal-GroupDecryption-" + threadCount.getAndIncrement());
+                                                              thread.setDaemon(true);
+                                                              return thread;
+                                                            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   /**
    * Operations on a single group.
    */
   public final class GroupOperations {
 
-    private final GroupSecretParams   groupSecretParams;
-    private final ClientZkGroupCipher clientZkGroupCipher;
+    private final GroupSecretParams    groupSecretParams;
+    private final ClientZkGroupCipher  clientZkGroupCipher;
+    private final GroupDecryptionCache decryptionCache;
 
-    private GroupOperations(GroupSecretParams groupSecretParams) {
+    GroupOperations(GroupSecretParams groupSecretParams, GroupDecryptionCache decryptionCache) {
       this.groupSecretParams   = groupSecretParams;
       this.clientZkGroupCipher = new ClientZkGroupCipher(groupSecretParams);
+      this.decryptionCache     = decryptionCache;
     }
 
     public GroupChange.Actions.Builder createModifyGroupTitle(final String title) {
@@ -356,28 +523,9 @@ public final class GroupsV2Operations {
     public DecryptedGroup decryptGroup(Group group)
         throws VerificationFailedException, InvalidGroupStateException
     {
-      List<Member>                    membersList                = group.getMembersList();
-      List<PendingMember>             pendingMembersList         = group.getPendingMembersList();
-      List<RequestingMember>          requestingMembersList      = group.getRequestingMembersList();
-      List<DecryptedMember>           decryptedMembers           = new ArrayList<>(membersList.size());
-      List<DecryptedPendingMember>    decryptedPendingMembers    = new ArrayList<>(pendingMembersList.size());
-      List<DecryptedRequestingMember> decryptedRequestingMembers = new ArrayList<>(requestingMembersList.size());
-
-      for (Member member : membersList) {
-        try {
-          decryptedMembers.add(decryptMember(member).build());
-        } catch (InvalidInputException e) {
-          throw new InvalidGroupStateException(e);
-        }
-      }
-
-      for (PendingMember member : pendingMembersList) {
-        decryptedPendingMembers.add(decryptMember(member));
-      }
-
-      for (RequestingMember member : requestingMembersList) {
-        decryptedRequestingMembers.add(decryptRequestingMember(member));
-      }
+      List<DecryptedMember>           decryptedMembers           = decryptAll(group.getMembersList(), member -> decryptMember(member).build());
+      List<DecryptedPendingMember>    decryptedPendingMembers    = decryptAll(group.getPendingMembersList(), this::decryptMember);
+      List<DecryptedRequestingMember> decryptedRequestingMembers = decryptAll(group.getRequestingMembersList(), this::decryptRequestingMember);
 
       return DecryptedGroup.newBuilder()
                            .setTitle(decryptTitle(group.getTitle()))
@@ -505,8 +653,8 @@ public final class GroupsV2Operations {
         } catch (InvalidInputException e) {
           throw new InvalidGroupStateException(e);
         }
-        UUID       uuid       = clientZkGroupCipher.decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
-        ProfileKey profileKey = clientZkGroupCipher.decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
+        UUID       uuid       = decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
+        ProfileKey profileKey = decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
         builder.addPromotePendingMembers(DecryptedMember.newBuilder()
                                                         .setJoinedAtRevision(-1)
                                                         .setRole(Member.Role.DEFAULT)
@@ -592,8 +740,8 @@ public final class GroupsV2Operations {
                               .setRole(member.getRole());
       } else {
         ProfileKeyCredentialPresentation profileKeyCredentialPresentation = new ProfileKeyCredentialPresentation(member.getPresentation().toByteArray());
-        UUID                             uuid                             = clientZkGroupCipher.decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
-        ProfileKey                       profileKey                       = clientZkGroupCipher.decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
+        UUID                             uuid                             = decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
+        ProfileKey                       profileKey                       = decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
 
         return DecryptedMember.newBuilder()
                               .setUuid(UuidUtil.toByteString(uuid))
@@ -644,8 +792,8 @@ public final class GroupsV2Operations {
           throw new InvalidGroupStateException(e);
         }
 
-        UUID       uuid       = clientZkGroupCipher.decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
-        ProfileKey profileKey = clientZkGroupCipher.decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
+        UUID       uuid       = decryptUuid(profileKeyCredentialPresentation.getUuidCiphertext());
+        ProfileKey profileKey = decryptProfileKey(profileKeyCredentialPresentation.getProfileKeyCiphertext(), uuid);
 
         return DecryptedRequestingMember.newBuilder()
                                         .setUuid(UuidUtil.toByteString(uuid))
@@ -655,14 +803,34 @@ public final class GroupsV2Operations {
     }
 
     private ProfileKey decryptProfileKey(ByteString profileKey, UUID uuid) throws VerificationFailedException, InvalidGroupStateException {
+      ProfileKey cached = decryptionCache.getProfileKey(profileKey, uuid);
+
+      if (cached != null) {
+        return cached;
+      }
+
       try {
         ProfileKeyCiphertext profileKeyCiphertext = new ProfileKeyCiphertext(profileKey.toByteArray());
-        return clientZkGroupCipher.decryptProfileKey(profileKeyCiphertext, uuid);
+        return decryptAndCacheProfileKey(profileKeyCiphertext, profileKey, uuid);
       } catch (InvalidInputException e) {
         throw new InvalidGroupStateException(e);
       }
     }
 
+    private ProfileKey decryptProfileKey(ProfileKeyCiphertext profileKeyCiphertext, UUID uuid) throws VerificationFailedException {
+      ByteString key    = ByteString.copyFrom(profileKeyCiphertext.serialize());
+      ProfileKey cached = decryptionCache.getProfileKey(key, uuid);
+
+      return cached != null ? cached : decryptAndCacheProfileKey(profileKeyCiphertext, key, uuid);
+    }
+
+    private ProfileKey decryptAndCacheProfileKey(ProfileKeyCiphertext profileKeyCiphertext, ByteString key, UUID uuid) throws VerificationFailedException {
+      ProfileKey profileKey = clientZkGroupCipher.decryptProfileKey(profileKeyCiphertext, uuid);
+
+      decryptionCache.putProfileKey(key, uuid, profileKey);
+      return profileKey;
+    }
+
     private ByteString decryptProfileKeyToByteString(ByteString profileKey, UUID uuid) throws VerificationFailedException, InvalidGroupStateException {
       return ByteString.copyFrom(decryptProfileKey(profileKey, uuid).serialize());
     }
@@ -676,20 +844,40 @@ public final class GroupsV2Operations {
     }
 
     private UUID decryptUuid(ByteString userId) throws InvalidGroupStateException, VerificationFailedException {
+      UUID cached = decryptionCache.getUuid(userId);
+
+      if (cached != null) {
+        return cached;
+      }
+
       try {
-        return clientZkGroupCipher.decryptUuid(new UuidCiphertext(userId.toByteArray()));
+        return decryptAndCacheUuid(new UuidCiphertext(userId.toByteArray()), userId);
       } catch (InvalidInputException e) {
         throw new InvalidGroupStateException(e);
       }
     }
 
+    private UUID decryptUuid(UuidCiphertext uuidCiphertext) throws VerificationFailedException {
+      ByteString key    = ByteString.copyFrom(uuidCiphertext.serialize());
+      UUID       cached = decryptionCache.getUuid(key);
+
+      return cached != null ? cached : decryptAndCacheUuid(uuidCiphertext, key);
+    }
+
+    private UUID decryptAndCacheUuid(UuidCiphertext uuidCiphertext, ByteString key) throws VerificationFailedException {
+      UUID uuid = clientZkGroupCipher.decryptUuid(uuidCiphertext);
+
+      decryptionCache.putUuid(key, uuid);
+      return uuid;
+    }
+
     /**
      * Attempts to decrypt a UUID, but will return {@link #UNKNOWN_UUID} if it cannot.
      */
     private UUID decryptUuidOrUnknown(ByteString userId) {
       try {
-        return clientZkGroupCipher.decryptUuid(new UuidCiphertext(userId.toByteArray()));
-      } catch (InvalidInputException | VerificationFailedException e) {
+        return decryptUuid(userId);
+      } catch (InvalidGroupStateException | VerificationFailedException e) {
         return UNKNOWN_UUID;
       }
     }
@@ -0,0 +1,164 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+import org.whispersystems.signalservice.internal.push.http.PartialSendCompleteListener;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Sends one message to many recipients on a shared executor.
+ * <p>
+ * At most {@code maxConcurrency} recipients are in flight at once, so a large group doesn't take
+ * every thread of an executor that other sends rely on. Results are handed to the listener in the
+ * order they complete, so one slow recipient doesn't hold up the others. A recipient that fails
+ * with a network error goes to the back of the queue and is retried a limited number of times
+ * before it is reported as a network failure.
+ * <p>
+ * A failure for one recipient never stops the send to the others. If any recipient fails in a way
+ * that can't be expressed as a {@link SendMessageResult}, the first such failure (in recipient
+ * order) is thrown once every recipient has been attempted.
+ */
+public final class MessageSendFanOut {
+
+  private static final String TAG = MessageSendFanOut.class.getSimpleName();
+
+  private final Executor executor;
+  private final int      maxConcurrency;
+  private final int      maxNetworkRetries;
+
+  public MessageSendFanOut(Executor executor, int maxConcurrency, int maxNetworkRetries) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be at least 1!");
+    }
+
+    this.executor          = executor;
+    this.maxConcurrency    = maxConcurrency;
+    this.maxNetworkRetries = maxNetworkRetries;
+  }
+
+  /**
+   * Blocks until every recipient has been attempted.
+   *
+   * @param sender   Performs the send for the recipient at the provided index. Called on the executor.
+   * @param listener Called on the calling thread, once per recipient that has a result, as results
+   *                 come in.
+   * @return The results, in the same order as the recipients.
+   */
+  public List<SendMessageResult> send(List<SignalServiceAddress> recipients,
+                                      RecipientSender sender,
+                                      PartialSendCompleteListener listener)
+      throws IOException
+  {
+    int                        size       = recipients.size();
+    SendMessageResult[]        results    = new SendMessageResult[size];
+    IOException[]              fatal      = new IOException[size];
+    int[]                      attempts   = new int[size];
+    Queue<Integer>             pending    = new ArrayDeque<>(size);
+    CompletionService<Outcome> completion = new ExecutorCompletionService<>(executor);
+    int                        inFlight   = 0;
+
+    for (int i = 0; i < size; i++) {
+      pending.add(i);
+    }
+
+    while (inFlight > 0 || !pending.isEmpty()) {
+      while (inFlight < maxConcurrency && !pending.isEmpty()) {
+        int index = pending.remove();
+
+        attempts[index]++;
+        completion.submit(() -> {
+          try {
+            return new Outcome(index, sender.send(index), null);
+          } catch (Exception e) {
+            return new Outcome(index, null, e);
+          }
+        });
+        inFlight++;
+      }
+
+      Outcome outcome;
+
+      try {
+        outcome = completion.take().get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new IOException(e);
+      }
+
+      inFlight--;
+
+      if (outcome.error instanceof PushNetworkException && attempts[outcome.index] <= maxNetworkRetries) {
+        Log.w(TAG, "Network failure on attempt " + attempts[outcome.index] + ", retrying later.", outcome.error);
+        pending.add(outcome.index);
+        continue;
+      }
+
+      try {
+        results[outcome.index] = outcome.result != null ? outcome.result
+                                                        : toFailureResult(recipients.get(outcome.index), outcome.error);
+      } catch (IOException e) {
+        fatal[outcome.index] = e;
+        continue;
+      }
+
+      if (listener != null) {
+        listener.onPartialSendComplete(results[outcome.index]);
+      }
+    }
+
+    for (IOException e : fatal) {
+      if (e != null) {
+        throw e;
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  private static SendMessageResult toFailureResult(SignalServiceAddress recipient, Exception e) throws IOException {
+    if (e instanceof UntrustedIdentityException) {
+      Log.w(TAG, e);
+      return SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e).getIdentityKey());
+    } else if (e instanceof UnregisteredUserException) {
+      Log.w(TAG, "Found unregistered user.");
+      return SendMessageResult.unregisteredFailure(recipient);
+    } else if (e instanceof PushNetworkException) {
+      Log.w(TAG, e);
+      return SendMessageResult.networkFailure(recipient);
+    } else if (e instanceof ServerRejectedException) {
+      Log.w(TAG, e);
+      throw (ServerRejectedException) e;
+    } else {
+      throw new IOException(e);
+    }
+  }
+
+  public interface RecipientSender {
+    SendMessageResult send(int index) throws UntrustedIdentityException, IOException;
+  }
+
+  private static final class Outcome {
+    private final int               index;
+    private final SendMessageResult result;
+    private final Exception         error;
+
+    private Outcome(int index, SendMessageResult result, Exception error) {
+      this.index  = index;
+      this.result = result;
+      this.error  = error;
+    }
+  }
+}
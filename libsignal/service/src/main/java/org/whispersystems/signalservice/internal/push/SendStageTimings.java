@@ -0,0 +1,73 @@
+package org.whispersystems.signalservice.internal.push;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates how long message sends spend in each stage. Safe to record into from multiple
+ * threads at once.
+ * <p>
+ * Anything recorded is also recorded into the parent, if there is one, so a single send can feed
+ * both a per-fan-out and a long-lived total.
+ */
+public final class SendStageTimings {
+
+  public enum Stage {
+    ENCRYPT("encrypt"),
+    TRANSMIT("transmit"),
+    HANDLE_MISMATCH("handle-mismatch");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  private final SendStageTimings parent;
+  private final AtomicLongArray  totalNanos;
+  private final AtomicLongArray  counts;
+
+  public SendStageTimings() {
+    this(null);
+  }
+
+  public SendStageTimings(SendStageTimings parent) {
+    this.parent     = parent;
+    this.totalNanos = new AtomicLongArray(Stage.values().length);
+    this.counts     = new AtomicLongArray(Stage.values().length);
+  }
+
+  public void record(Stage stage, long durationNanos) {
+    totalNanos.addAndGet(stage.ordinal(), durationNanos);
+    counts.incrementAndGet(stage.ordinal());
+
+    if (parent != null) {
+      parent.record(stage, durationNanos);
+    }
+  }
+
+  public long getTotalMs(Stage stage) {
+    return TimeUnit.NANOSECONDS.toMillis(totalNanos.get(stage.ordinal()));
+  }
+
+  public long getCount(Stage stage) {
+    return counts.get(stage.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+
+    for (Stage stage : Stage.values()) {
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+
+      builder.append(String.format(Locale.US, "%s: %d ms (%d)", stage.label, getTotalMs(stage), getCount(stage)));
+    }
+
+    return builder.toString();
+  }
+}
@@ -0,0 +1,11 @@
+package org.whispersystems.signalservice.internal.push.http;
+
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+
+/**
+ * Used to hear about each recipient of a multi-recipient send as soon as it completes, in whatever
+ * order they finish.
+ */
+public interface PartialSendCompleteListener {
+  void onPartialSendComplete(SendMessageResult result);
+}
@@ -0,0 +1,88 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram that can be recorded to from any thread without locking.
+ */
+public final class LatencyHistogram {
+
+  private static final long[] BUCKET_UPPER_BOUNDS_MS = { 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, Long.MAX_VALUE };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_UPPER_BOUNDS_MS.length);
+
+  public void record(long latencyMs) {
+    counts.incrementAndGet(bucketFor(latencyMs));
+  }
+
+  public Snapshot snapshot() {
+    long[] values = new long[counts.length()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = counts.get(i);
+    }
+
+    return new Snapshot(values);
+  }
+
+  private static int bucketFor(long latencyMs) {
+    for (int i = 0; i < BUCKET_UPPER_BOUNDS_MS.length; i++) {
+      if (latencyMs <= BUCKET_UPPER_BOUNDS_MS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_UPPER_BOUNDS_MS.length - 1;
+  }
+
+  public static final class Snapshot {
+
+    private final long[] counts;
+
+    private Snapshot(long[] counts) {
+      this.counts = counts;
+    }
+
+    public long getTotalCount() {
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      return total;
+    }
+
+    /**
+     * @return The upper bound of the bucket that contains the requested percentile (0-100), or 0
+     *         if nothing has been recorded. {@link Long#MAX_VALUE} means "above the largest bucket".
+     */
+    public long getPercentileUpperBoundMs(double percentile) {
+      long total = getTotalCount();
+
+      if (total == 0) {
+        return 0;
+      }
+
+      long threshold  = (long) Math.ceil(total * (percentile / 100d));
+      long cumulative = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        cumulative += counts[i];
+
+        if (cumulative >= threshold) {
+          return BUCKET_UPPER_BOUNDS_MS[i];
+        }
+      }
+
+      return BUCKET_UPPER_BOUNDS_MS[BUCKET_UPPER_BOUNDS_MS.length - 1];
+    }
+
+    @Override
+    public String toString() {
+      return "LatencyHistogram{count=" + getTotalCount() +
+             ", p50<=" + getPercentileUpperBoundMs(50) +
+             ", p90<=" + getPercentileUpperBoundMs(90) +
+             ", p99<=" + getPercentileUpperBoundMs(99) +
+             ", buckets=" + Arrays.toString(counts) + "}";
+    }
+  }
+}
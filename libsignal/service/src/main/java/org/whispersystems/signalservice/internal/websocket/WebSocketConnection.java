@@ -20,12 +20,12 @@ import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -53,9 +53,22 @@ public class WebSocketConnection extends WebSocketListener {
 
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
-
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest> outgoingRequests = new HashMap<>();
+  private static final int    MAX_INCOMING_REQUESTS     = 1000;
+  private static final long   OUTGOING_REQUEST_TIMEOUT  = TimeUnit.MINUTES.toMillis(1);
+
+  /** Placed on the incoming queue to wake up a blocked reader when the connection goes away. */
+  private static final IncomingRequest WAKE_UP = new IncomingRequest(null, null);
+
+  /**
+   * Filled only by OkHttp's reader thread and drained only by the pipe's reader, so its locks are
+   * rarely contended. The reader needs a blocking poll with a timeout, which the lock-free queues
+   * don't offer, and the bound is what tells {@link #onMessage(WebSocket, ByteString)} that the
+   * reader has fallen behind.
+   */
+  private final BlockingQueue<IncomingRequest> incomingRequests  = new LinkedBlockingQueue<>(MAX_INCOMING_REQUESTS);
+  private final Map<Long, WebSocket>           deliveredRequests = new ConcurrentHashMap<>();
+  private final Map<Long, OutgoingRequest>     outgoingRequests  = new ConcurrentHashMap<>();
+  private final LatencyHistogram               requestLatencies  = new LatencyHistogram();
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -67,10 +80,11 @@ public class WebSocketConnection extends WebSocketListener {
   private final Optional<Dns>                 dns;
   private final Optional<SignalProxy>         signalProxy;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private volatile WebSocket client;
+  private volatile WebSocket overflowedSocket;
+  private volatile boolean   connected;
+  private KeepAliveSender    keepAliveSender;
+  private int                attempts;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -160,28 +174,84 @@ public class WebSocketConnection extends WebSocketListener {
       keepAliveSender = null;
     }
 
+    failOutgoingRequests(new IOException("Disconnected"));
+    deliveredRequests.clear();
+    incomingRequests.offer(WAKE_UP);
     notifyAll();
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  /**
+   * Blocks until a request from the server arrives. This does not hold the connection's monitor
+   * while waiting, so it won't hold up the OkHttp reader thread or anyone sending requests.
+   *
+   * Requests still buffered from a socket that has since been closed or replaced are dropped
+   * without being returned. They can't be acknowledged on a later socket, so the server will
+   * deliver them again.
+   */
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
-    if (client == null) {
-      throw new IOException("Connection closed!");
+    long startTime = System.currentTimeMillis();
+
+    try {
+      while (client != null && elapsedTime(startTime) < timeoutMillis) {
+        IncomingRequest request = incomingRequests.poll(Math.max(1, timeoutMillis - elapsedTime(startTime)), TimeUnit.MILLISECONDS);
+
+        if (request != null && request != WAKE_UP && !isStale(request)) {
+          return deliver(request);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
     }
 
-    long startTime = System.currentTimeMillis();
+    WebSocketRequestMessage buffered = pollBufferedRequest();
+
+    if      (buffered != null) return buffered;
+    else if (client == null)   throw new IOException("Connection closed!");
+    else                       throw new TimeoutException("Timeout exceeded");
+  }
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
+  /**
+   * Non-blocking version of {@link #readRequest(long)}.
+   *
+   * @return The next buffered request, or absent if none has arrived yet.
+   */
+  public Optional<WebSocketRequestMessage> readRequestIfAvailable() throws IOException {
+    WebSocketRequestMessage request = pollBufferedRequest();
+
+    if (request == null && client == null) {
+      throw new IOException("Connection closed!");
     }
 
-    if      (incomingRequests.isEmpty() && client == null) throw new IOException("Connection closed!");
-    else if (incomingRequests.isEmpty())                   throw new TimeoutException("Timeout exceeded");
-    else                                                   return incomingRequests.removeFirst();
+    return Optional.fromNullable(request);
   }
 
-  public synchronized ListenableFuture<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+  private WebSocketRequestMessage pollBufferedRequest() {
+    IncomingRequest request;
+
+    do {
+      request = incomingRequests.poll();
+    } while (request != null && (request == WAKE_UP || isStale(request)));
+
+    return request != null ? deliver(request) : null;
+  }
+
+  private boolean isStale(IncomingRequest request) {
+    return request.socket != client || request.socket == overflowedSocket;
+  }
+
+  /**
+   * Remembers which socket the request came in on, so that its response goes back on that socket.
+   */
+  private WebSocketRequestMessage deliver(IncomingRequest request) {
+    deliveredRequests.put(request.message.getId(), request.socket);
+    return request.message;
+  }
+
+  public ListenableFuture<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
     WebSocketMessage message = WebSocketMessage.newBuilder()
@@ -193,13 +263,22 @@ public class WebSocketConnection extends WebSocketListener {
     outgoingRequests.put(request.getId(), new OutgoingRequest(future, System.currentTimeMillis()));
 
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("Write failed!");
     }
 
     return future;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  /**
+   * Responses to requests read from this connection are sent on the socket the request arrived on.
+   * If that socket has since closed, the write fails rather than acknowledging the request on its
+   * replacement.
+   */
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket delivered = deliveredRequests.remove(response.getId());
+    WebSocket client    = delivered != null ? delivered : this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -244,39 +323,51 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  /**
+   * Called on OkHttp's reader thread, which also delivers responses and close events, so this must
+   * never block. OkHttp can't pause reads, so if the consumer falls so far behind that the incoming
+   * queue fills up, the connection is closed instead. Requests that don't fit, and any that arrive
+   * on that socket after them, haven't been acknowledged, so the server delivers them again in order
+   * after we reconnect. Requests already buffered from that socket are dropped for the same reason.
+   */
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
-        incomingRequests.add(message.getRequest());
+        if (webSocket != overflowedSocket && !incomingRequests.offer(new IncomingRequest(webSocket, message.getRequest()))) {
+          Log.w(TAG, "Incoming request queue is full! Closing the connection until we catch up.");
+          overflowedSocket = webSocket;
+          webSocket.close(1000, "OK");
+        }
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        OutgoingRequest listener = outgoingRequests.get(message.getResponse().getId());
+        OutgoingRequest listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) {
+          requestLatencies.record(System.currentTimeMillis() - listener.getStartTimestamp());
           listener.getResponseFuture().set(new WebsocketResponse(message.getResponse().getStatus(),
                                                                  new String(message.getResponse().getBody().toByteArray())));
         }
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
     }
   }
 
+  /**
+   * @return A snapshot of round-trip latencies for requests sent over this connection.
+   */
+  public LatencyHistogram.Snapshot getRequestLatencies() {
+    return requestLatencies.snapshot();
+  }
+
   @Override
   public synchronized void onClosed(WebSocket webSocket, int code, String reason) {
     Log.i(TAG, "onClose()");
     this.connected = false;
 
-    Iterator<Map.Entry<Long, OutgoingRequest>> iterator = outgoingRequests.entrySet().iterator();
-
-    while (iterator.hasNext()) {
-      Map.Entry<Long, OutgoingRequest> entry = iterator.next();
-      entry.getValue().getResponseFuture().setException(new IOException("Closed: " + code + ", " + reason));
-      iterator.remove();
-    }
+    failOutgoingRequests(new IOException("Closed: " + code + ", " + reason));
+    forgetDeliveredRequests(webSocket);
 
     if (keepAliveSender != null) {
       keepAliveSender.shutdown();
@@ -296,6 +387,7 @@ public class WebSocketConnection extends WebSocketListener {
       connect();
     }
 
+    incomingRequests.offer(WAKE_UP);
     notifyAll();
   }
 
@@ -331,6 +423,53 @@ public class WebSocketConnection extends WebSocketListener {
     webSocket.close(1000, "OK");
   }
 
+  private void failOutgoingRequests(IOException exception) {
+    Iterator<Map.Entry<Long, OutgoingRequest>> iterator = outgoingRequests.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Long, OutgoingRequest> entry = iterator.next();
+      entry.getValue().getResponseFuture().setException(exception);
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Drops the record of requests read from a closed socket that were never responded to.
+   */
+  private void forgetDeliveredRequests(WebSocket webSocket) {
+    Iterator<WebSocket> iterator = deliveredRequests.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next() == webSocket) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Fails any outgoing request that has been waiting for a response for too long, so that the map
+   * doesn't grow without bound when the server never answers.
+   */
+  private void sweepTimedOutRequests() {
+    long                                       now      = System.currentTimeMillis();
+    Iterator<Map.Entry<Long, OutgoingRequest>> iterator = outgoingRequests.entrySet().iterator();
+    int                                        swept    = 0;
+
+    while (iterator.hasNext()) {
+      OutgoingRequest request = iterator.next().getValue();
+
+      if (now - request.getStartTimestamp() > OUTGOING_REQUEST_TIMEOUT) {
+        request.getResponseFuture().setException(new IOException(new TimeoutException("No response after " + OUTGOING_REQUEST_TIMEOUT + " ms")));
+        iterator.remove();
+        swept++;
+      }
+    }
+
+    if (swept > 0) {
+      Log.w(TAG, "Timed out " + swept + " outgoing request(s).");
+    }
+  }
+
   private long elapsedTime(long startTime) {
     return System.currentTimeMillis() - startTime;
   }
@@ -356,8 +495,9 @@ public class WebSocketConnection extends WebSocketListener {
         try {
           sleepTimer.sleep(TimeUnit.SECONDS.toMillis(KEEPALIVE_TIMEOUT_SECONDS));
 
-          Log.d(TAG, "Sending keep alive...");
+          Log.d(TAG, "Sending keep alive... " + requestLatencies.snapshot());
           sendKeepAlive();
+          sweepTimedOutRequests();
         } catch (Throwable e) {
           Log.w(TAG, e);
         }
@@ -369,6 +509,16 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  private static class IncomingRequest {
+    private final WebSocket               socket;
+    private final WebSocketRequestMessage message;
+
+    private IncomingRequest(WebSocket socket, WebSocketRequestMessage message) {
+      this.socket  = socket;
+      this.message = message;
+    }
+  }
+
   private static class OutgoingRequest {
     private final SettableFuture<WebsocketResponse> responseFuture;
     private final long                              startTimestamp;
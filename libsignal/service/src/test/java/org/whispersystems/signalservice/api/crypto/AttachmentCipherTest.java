@@ -2,6 +2,7 @@ package org.whispersystems.signalservice.api.crypto;
 
 import org.conscrypt.Conscrypt;
 import org.junit.Test;
+import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -154,6 +155,93 @@ public final class AttachmentCipherTest {
     assertTrue(hitCorrectException);
   }
 
+  @Test
+  public void attachment_streaming_encryptDecrypt() throws IOException, InvalidMessageException {
+    byte[]        key             = Util.getSecretBytes(64);
+    byte[]        plaintextInput  = Util.getSecretBytes(100_000);
+    EncryptResult encryptResult   = encryptData(plaintextInput, key);
+    File          cipherFile      = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream     = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]        plaintextOutput = readInputStreamFully(inputStream);
+
+    assertArrayEquals(plaintextInput, plaintextOutput);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_streaming_encryptDecryptEmpty() throws IOException, InvalidMessageException {
+    byte[]        key             = Util.getSecretBytes(64);
+    byte[]        plaintextInput  = "".getBytes();
+    EncryptResult encryptResult   = encryptData(plaintextInput, key);
+    File          cipherFile      = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream     = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]        plaintextOutput = readInputStreamFully(inputStream);
+
+    assertArrayEquals(plaintextInput, plaintextOutput);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_streaming_decryptShorterThanPadded() throws IOException, InvalidMessageException {
+    byte[]        key             = Util.getSecretBytes(64);
+    byte[]        plaintextInput  = "Miles Morales".getBytes();
+    byte[]        paddedInput     = Arrays.copyOf(plaintextInput, 64);
+    EncryptResult encryptResult   = encryptData(paddedInput, key);
+    File          cipherFile      = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream     = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]        plaintextOutput = readInputStreamFully(inputStream);
+
+    assertArrayEquals(plaintextInput, plaintextOutput);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadMac() throws IOException, InvalidMessageException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult    = encryptData(plaintextInput, key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] += 1;
+
+    File    cipherFile          = writeToFile(badMacCiphertext);
+    boolean hitCorrectException = false;
+
+    try {
+      readInputStreamFully(AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest));
+    } catch (IOException e) {
+      hitCorrectException = e.getCause() instanceof InvalidMacException;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadDigest() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    byte[]        badDigest      = new byte[32];
+
+    File    cipherFile          = writeToFile(encryptResult.ciphertext);
+    boolean hitCorrectException = false;
+
+    try {
+      readInputStreamFully(AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, badDigest));
+    } catch (IOException e) {
+      hitCorrectException = e.getCause() instanceof InvalidMacException;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
   @Test
   public void sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     assumeLibSignalSupportedOnOS();
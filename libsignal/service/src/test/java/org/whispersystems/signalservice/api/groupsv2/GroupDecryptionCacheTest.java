@@ -0,0 +1,145 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.storageservice.protos.groups.Group;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.zkgroup.InvalidInputException;
+import org.signal.zkgroup.VerificationFailedException;
+import org.signal.zkgroup.groups.ClientZkGroupCipher;
+import org.signal.zkgroup.groups.GroupMasterKey;
+import org.signal.zkgroup.groups.GroupSecretParams;
+import org.signal.zkgroup.profiles.ProfileKey;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.testutil.ZkGroupLibraryUtil;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class GroupDecryptionCacheTest {
+
+  private GroupSecretParams  groupSecretParams;
+  private GroupsV2Operations groupsV2Operations;
+
+  @Before
+  public void setup() throws InvalidInputException {
+    ZkGroupLibraryUtil.assumeZkGroupSupportedOnOS();
+
+    TestZkGroupServer  server             = new TestZkGroupServer();
+    ClientZkOperations clientZkOperations = new ClientZkOperations(server.getServerPublicParams());
+
+    groupSecretParams  = GroupSecretParams.deriveFromMasterKey(new GroupMasterKey(Util.getSecretBytes(32)));
+    groupsV2Operations = new GroupsV2Operations(clientZkOperations);
+  }
+
+  @Test
+  public void decryptGroup_second_time_does_not_decrypt_members_again() throws VerificationFailedException, InvalidGroupStateException {
+    CountingCache                      cache      = new CountingCache();
+    GroupsV2Operations.GroupOperations operations = groupsV2Operations.new GroupOperations(groupSecretParams, cache);
+    Group.Builder                      group      = Group.newBuilder();
+
+    for (int i = 0; i < 50; i++) {
+      UUID member = UUID.randomUUID();
+
+      group.addMembers(Member.newBuilder()
+                             .setRole(Member.Role.DEFAULT)
+                             .setUserId(operations.encryptUuid(member))
+                             .setProfileKey(encryptProfileKey(member, newProfileKey())));
+    }
+
+    DecryptedGroup first = operations.decryptGroup(group.build());
+
+    assertEquals(50, cache.uuidDecryptions.get());
+    assertEquals(50, cache.profileKeyDecryptions.get());
+
+    DecryptedGroup second = operations.decryptGroup(group.build());
+
+    assertEquals(50, cache.uuidDecryptions.get());
+    assertEquals(50, cache.profileKeyDecryptions.get());
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void getProfileKey_for_a_different_uuid_misses() {
+    GroupDecryptionCache cache      = new GroupDecryptionCache(10);
+    ByteString           ciphertext = ByteString.copyFrom(Util.getSecretBytes(16));
+    ProfileKey           profileKey = newProfileKey();
+    UUID                 uuid       = UUID.randomUUID();
+
+    cache.putProfileKey(ciphertext, uuid, profileKey);
+
+    assertEquals(profileKey, cache.getProfileKey(ciphertext, uuid));
+    assertNull(cache.getProfileKey(ciphertext, UUID.randomUUID()));
+  }
+
+  @Test
+  public void least_recently_used_entry_is_evicted() {
+    GroupDecryptionCache cache = new GroupDecryptionCache(2);
+    ByteString           a     = ByteString.copyFrom(new byte[] { 1 });
+    ByteString           b     = ByteString.copyFrom(new byte[] { 2 });
+    ByteString           c     = ByteString.copyFrom(new byte[] { 3 });
+
+    cache.putUuid(a, UUID.randomUUID());
+    cache.putUuid(b, UUID.randomUUID());
+    cache.getUuid(a);
+    cache.putUuid(c, UUID.randomUUID());
+
+    assertNull(cache.getUuid(b));
+    assertEquals(2, countPresent(cache, a, b, c));
+  }
+
+  private static int countPresent(GroupDecryptionCache cache, ByteString... ciphertexts) {
+    int present = 0;
+
+    for (ByteString ciphertext : ciphertexts) {
+      if (cache.getUuid(ciphertext) != null) {
+        present++;
+      }
+    }
+
+    return present;
+  }
+
+  private ByteString encryptProfileKey(UUID uuid, ProfileKey profileKey) {
+    return ByteString.copyFrom(new ClientZkGroupCipher(groupSecretParams).encryptProfileKey(profileKey, uuid).serialize());
+  }
+
+  private static ProfileKey newProfileKey() {
+    try {
+      return new ProfileKey(Util.getSecretBytes(32));
+    } catch (InvalidInputException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Only successful decryptions are put into the cache, so counting puts counts decryptions.
+   */
+  private static final class CountingCache extends GroupDecryptionCache {
+
+    private final AtomicInteger uuidDecryptions       = new AtomicInteger();
+    private final AtomicInteger profileKeyDecryptions = new AtomicInteger();
+
+    private CountingCache() {
+      super(1000);
+    }
+
+    @Override
+    void putUuid(ByteString ciphertext, UUID uuid) {
+      uuidDecryptions.incrementAndGet();
+      super.putUuid(ciphertext, uuid);
+    }
+
+    @Override
+    void putProfileKey(ByteString ciphertext, UUID uuid, ProfileKey profileKey) {
+      profileKeyDecryptions.incrementAndGet();
+      super.putProfileKey(ciphertext, uuid, profileKey);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class MessageSendFanOutTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(8);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void send_returnsResultsInRecipientOrder() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(50);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 4, 0);
+
+    List<SendMessageResult> results = fanOut.send(recipients, index -> success(recipients.get(index)), null);
+
+    assertEquals(recipients.size(), results.size());
+
+    for (int i = 0; i < recipients.size(); i++) {
+      assertEquals(recipients.get(i), results.get(i).getAddress());
+    }
+  }
+
+  @Test
+  public void send_neverExceedsConcurrencyLimit() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(100);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 3, 0);
+    AtomicInteger              inFlight   = new AtomicInteger();
+    AtomicInteger              maxSeen    = new AtomicInteger();
+
+    fanOut.send(recipients, index -> {
+      int current = inFlight.incrementAndGet();
+      maxSeen.accumulateAndGet(current, Math::max);
+      sleep(1);
+      inFlight.decrementAndGet();
+      return success(recipients.get(index));
+    }, null);
+
+    assertTrue(maxSeen.get() <= 3);
+  }
+
+  @Test
+  public void send_reportsResultsInCompletionOrder() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(3);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 3, 0);
+    CountDownLatch             slowGate   = new CountDownLatch(1);
+    List<SignalServiceAddress> completed  = Collections.synchronizedList(new ArrayList<>());
+
+    fanOut.send(recipients, index -> {
+      if (index == 0) {
+        await(slowGate);
+      }
+      return success(recipients.get(index));
+    }, result -> {
+      completed.add(result.getAddress());
+
+      if (completed.size() == 2) {
+        slowGate.countDown();
+      }
+    });
+
+    assertEquals(recipients.get(0), completed.get(2));
+  }
+
+  @Test
+  public void send_throughSocket_streamsResultsInCompletionOrderWithinConcurrencyLimit() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(6);
+    PushServiceSocket          socket     = mock(PushServiceSocket.class);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 2, 0);
+    CountDownLatch             slowGate   = new CountDownLatch(1);
+    AtomicInteger              inFlight   = new AtomicInteger();
+    AtomicInteger              maxSeen    = new AtomicInteger();
+    List<SignalServiceAddress> completed  = Collections.synchronizedList(new ArrayList<>());
+
+    when(socket.sendMessage(any(OutgoingPushMessageList.class), any())).thenAnswer(invocation -> {
+      OutgoingPushMessageList messages = invocation.getArgument(0);
+
+      maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+
+      try {
+        if (messages.getDestination().equals(recipients.get(0).getIdentifier())) {
+          await(slowGate);
+        } else {
+          sleep(1);
+        }
+        return new SendMessageResponse(false);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    });
+
+    List<SendMessageResult> results = fanOut.send(recipients, index -> {
+      SignalServiceAddress recipient = recipients.get(index);
+
+      socket.sendMessage(new OutgoingPushMessageList(recipient.getIdentifier(), 0, Collections.emptyList(), false), Optional.absent());
+      return success(recipient);
+    }, result -> {
+      completed.add(result.getAddress());
+
+      if (completed.size() == recipients.size() - 1) {
+        slowGate.countDown();
+      }
+    });
+
+    verify(socket, times(recipients.size())).sendMessage(any(OutgoingPushMessageList.class), any());
+
+    assertEquals(recipients.get(0), completed.get(recipients.size() - 1));
+    assertTrue(maxSeen.get() <= 2);
+
+    for (int i = 0; i < recipients.size(); i++) {
+      assertEquals(recipients.get(i), results.get(i).getAddress());
+    }
+  }
+
+  @Test
+  public void send_retriesNetworkFailureForSingleRecipient() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(5);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 2, 1);
+    AtomicInteger              attempts   = new AtomicInteger();
+
+    List<SendMessageResult> results = fanOut.send(recipients, index -> {
+      if (index == 2 && attempts.getAndIncrement() == 0) {
+        throw new PushNetworkException("Flaky");
+      }
+      return success(recipients.get(index));
+    }, null);
+
+    assertEquals(2, attempts.get());
+    assertNotNull(results.get(2).getSuccess());
+  }
+
+  @Test
+  public void send_reportsNetworkFailureAfterRetriesRunOut() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(3);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 2, 2);
+    AtomicInteger              attempts   = new AtomicInteger();
+
+    List<SendMessageResult> results = fanOut.send(recipients, index -> {
+      if (index == 1) {
+        attempts.incrementAndGet();
+        throw new PushNetworkException("Down");
+      }
+      return success(recipients.get(index));
+    }, null);
+
+    assertEquals(3, attempts.get());
+    assertTrue(results.get(1).isNetworkFailure());
+    assertNotNull(results.get(0).getSuccess());
+    assertNotNull(results.get(2).getSuccess());
+  }
+
+  @Test
+  public void send_mapsUnregisteredUsersToResults() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(2);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 2, 1);
+
+    List<SendMessageResult> results = fanOut.send(recipients, index -> {
+      if (index == 0) {
+        throw new UnregisteredUserException("+15555550100", new IOException());
+      }
+      return success(recipients.get(index));
+    }, null);
+
+    assertTrue(results.get(0).isUnregisteredFailure());
+    assertFalse(results.get(1).isUnregisteredFailure());
+  }
+
+  @Test
+  public void send_serverRejection_stillSendsToEveryoneElse() throws IOException {
+    List<SignalServiceAddress> recipients = recipients(4);
+    MessageSendFanOut          fanOut     = new MessageSendFanOut(executor, 2, 1);
+    AtomicInteger              sent       = new AtomicInteger();
+
+    try {
+      fanOut.send(recipients, index -> {
+        if (index == 1) {
+          throw new ServerRejectedException();
+        }
+        sent.incrementAndGet();
+        return success(recipients.get(index));
+      }, null);
+      fail();
+    } catch (ServerRejectedException e) {
+      assertEquals(3, sent.get());
+    }
+  }
+
+  private static List<SignalServiceAddress> recipients(int count) {
+    List<SignalServiceAddress> recipients = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      recipients.add(new SignalServiceAddress(UUID.randomUUID(), null));
+    }
+
+    return recipients;
+  }
+
+  private static SendMessageResult success(SignalServiceAddress recipient) {
+    return SendMessageResult.success(recipient, false, false, 1);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class LatencyHistogramTest {
+
+  @Test
+  public void empty_histogram_has_no_percentiles() {
+    LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+    assertEquals(0, snapshot.getTotalCount());
+    assertEquals(0, snapshot.getPercentileUpperBoundMs(50));
+  }
+
+  @Test
+  public void percentiles_fall_in_expected_buckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 0; i < 90; i++) {
+      histogram.record(3);
+    }
+
+    for (int i = 0; i < 9; i++) {
+      histogram.record(200);
+    }
+
+    histogram.record(4_000);
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    assertEquals(100, snapshot.getTotalCount());
+    assertEquals(5, snapshot.getPercentileUpperBoundMs(50));
+    assertEquals(5, snapshot.getPercentileUpperBoundMs(90));
+    assertEquals(250, snapshot.getPercentileUpperBoundMs(99));
+    assertEquals(5_000, snapshot.getPercentileUpperBoundMs(100));
+  }
+
+  @Test
+  public void very_slow_requests_land_in_overflow_bucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.record(Long.MAX_VALUE / 2);
+
+    assertEquals(Long.MAX_VALUE, histogram.snapshot().getPercentileUpperBoundMs(100));
+  }
+}
@@ -7,10 +7,12 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import org.signal.paging.PagingController;
 
@@ -19,6 +21,12 @@ import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
+  private static final String TAG = MainActivity.class.getSimpleName();
+
+  private static final int BENCHMARK_FRAMES           = 300;
+  private static final int BENCHMARK_PIXELS_PER_FRAME = 400;
+  private static final int BENCHMARK_FRAME_DELAY_MS   = 16;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -54,6 +62,37 @@ public class MainActivity extends AppCompatActivity {
     findViewById(R.id.append_btn).setOnClickListener(v -> {
       viewModel.appendItems();
     });
+
+    findViewById(R.id.benchmark_btn).setOnClickListener(v -> {
+      runBenchmark(list, adapter, viewModel);
+    });
+  }
+
+  /**
+   * Flings down the list at a constant speed, then reports how many of the items that were bound
+   * along the way were still placeholders, along with how long the loads took.
+   */
+  private void runBenchmark(@NonNull RecyclerView list, @NonNull MyAdapter adapter, @NonNull MainViewModel viewModel) {
+    list.scrollToPosition(0);
+    adapter.resetStats();
+    viewModel.resetLoadStats();
+
+    list.post(new Runnable() {
+      private int frame = 0;
+
+      @Override
+      public void run() {
+        if (frame < BENCHMARK_FRAMES && list.canScrollVertically(1)) {
+          list.scrollBy(0, BENCHMARK_PIXELS_PER_FRAME);
+          frame++;
+          list.postDelayed(this, BENCHMARK_FRAME_DELAY_MS);
+        } else {
+          String result = "Placeholders: " + adapter.getPlaceholderBinds() + "/" + adapter.getTotalBinds() + ", " + viewModel.getLoadStats();
+          Log.i(TAG, "Benchmark: " + result);
+          Toast.makeText(MainActivity.this, result, Toast.LENGTH_LONG).show();
+        }
+      }
+    });
   }
 
   static class MyAdapter extends RecyclerView.Adapter<MyViewHolder> {
@@ -62,6 +101,8 @@ public class MainActivity extends AppCompatActivity {
     private final static int TYPE_PLACEHOLDER = -1;
 
     private PagingController controller;
+    private int              totalBinds;
+    private int              placeholderBinds;
 
     private final List<String> data = new ArrayList<>();
 
@@ -98,7 +139,27 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public void onBindViewHolder(@NonNull MyViewHolder holder, int position) {
-      holder.bind(getItem(position));
+      String item = getItem(position);
+
+      totalBinds++;
+      if (item == null) {
+        placeholderBinds++;
+      }
+
+      holder.bind(item);
+    }
+
+    void resetStats() {
+      totalBinds       = 0;
+      placeholderBinds = 0;
+    }
+
+    int getTotalBinds() {
+      return totalBinds;
+    }
+
+    int getPlaceholderBinds() {
+      return placeholderBinds;
     }
 
     private String getItem(int index) {
@@ -11,6 +11,7 @@ import org.signal.paging.PagedData;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MainViewModel extends ViewModel {
 
@@ -32,6 +33,14 @@ public class MainViewModel extends ViewModel {
     return pagedData.getController();
   }
 
+  public void resetLoadStats() {
+    dataSource.resetStats();
+  }
+
+  public @NonNull String getLoadStats() {
+    return dataSource.getStats();
+  }
+
   public void appendItems() {
     dataSource.setSize(dataSource.size() + 1);
     pagedData.getController().onDataInvalidated();
@@ -39,6 +48,13 @@ public class MainViewModel extends ViewModel {
 
   private static class MyDataSource implements PagedDataSource<String> {
 
+    private static final long BASE_LOAD_MS     = 100;
+    private static final long PER_ITEM_LOAD_MS = 8;
+
+    private final AtomicLong loadCount   = new AtomicLong();
+    private final AtomicLong totalLoadMs = new AtomicLong();
+    private final AtomicLong maxLoadMs   = new AtomicLong();
+
     private int size;
 
     MyDataSource(int size) {
@@ -56,8 +72,10 @@ public class MainViewModel extends ViewModel {
 
     @Override
     public List<String> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      long startTime = System.currentTimeMillis();
+
       try {
-        Thread.sleep(500);
+        Thread.sleep(BASE_LOAD_MS + PER_ITEM_LOAD_MS * length);
       } catch (InterruptedException e) {
         e.printStackTrace();
       }
@@ -68,7 +86,26 @@ public class MainViewModel extends ViewModel {
         data.add(String.valueOf(start + i) + "     (" + System.currentTimeMillis() + ")");
       }
 
+      long duration = System.currentTimeMillis() - startTime;
+
+      loadCount.incrementAndGet();
+      totalLoadMs.addAndGet(duration);
+      maxLoadMs.set(Math.max(maxLoadMs.get(), duration));
+
       return data;
     }
+
+    void resetStats() {
+      loadCount.set(0);
+      totalLoadMs.set(0);
+      maxLoadMs.set(0);
+    }
+
+    @NonNull String getStats() {
+      long count = loadCount.get();
+      long avg   = count > 0 ? totalLoadMs.get() / count : 0;
+
+      return "loads: " + count + ", avg: " + avg + " ms, max: " + maxLoadMs.get() + " ms";
+    }
   }
 }
@@ -8,7 +8,10 @@ import org.signal.core.util.logging.Log;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The workhorse of managing page requests.
@@ -17,6 +20,13 @@ import java.util.concurrent.Executor;
  * a fixed size throughout. It assumes that all interface methods are called on a single thread,
  * which allows it to keep track of pending requests in a thread-safe way, while spinning off
  * tasks to fetch data on its own executor.
+ *
+ * To keep up with fast scrolling, the controller tracks the velocity and direction of requested
+ * indices and extends the load window ahead of the scroll by roughly as many items as will scroll
+ * past during one load. Loads are split into pages that are enqueued nearest-first, page sizes
+ * adapt to how long the data source actually takes, and pages that have scrolled far out of view
+ * by the time they reach the front of the queue are skipped and left unmarked so they can be
+ * requested again later.
  */
 class FixedSizePagingController<E> implements PagingController {
 
@@ -25,25 +35,48 @@ class FixedSizePagingController<E> implements PagingController {
   private static final Executor FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-FixedSizePagingController");
   private static final boolean  DEBUG          = false;
 
+  private static final long   TARGET_LOAD_MS      = 50;
+  private static final int    MIN_PAGE_DIVISOR    = 2;
+  private static final int    MAX_PAGE_MULTIPLIER = 4;
+  private static final int    MAX_PREFETCH_PAGES  = 6;
+  private static final long   VELOCITY_RESET_MS   = 500;
+  private static final double SMOOTHING           = 0.5;
+
   private final PagedDataSource<E>       dataSource;
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final DataStatus               loadState;
+  private final Queue<int[]>             skippedRanges;
+  private final int                      minPageSize;
+  private final int                      maxPageSize;
 
   private List<E> data;
 
+  private int    lastAroundIndex;
+  private long   lastAroundTime;
+  private double velocity;
+
   private volatile boolean invalidated;
+  private volatile int     latestAroundIndex;
+  private volatile int     adaptivePageSize;
+  private volatile double  msPerItem;
 
   FixedSizePagingController(@NonNull PagedDataSource<E> dataSource,
                             @NonNull PagingConfig config,
                             @NonNull MutableLiveData<List<E>> liveData,
                             int size)
   {
-    this.dataSource = dataSource;
-    this.config     = config;
-    this.liveData   = liveData;
-    this.loadState  = DataStatus.obtain(size);
-    this.data       = new CompressedList<>(loadState.size());
+    this.dataSource        = dataSource;
+    this.config            = config;
+    this.liveData          = liveData;
+    this.loadState         = DataStatus.obtain(size);
+    this.data              = new CompressedList<>(loadState.size());
+    this.skippedRanges     = new ConcurrentLinkedQueue<>();
+    this.minPageSize       = Math.max(1, config.pageSize() / MIN_PAGE_DIVISOR);
+    this.maxPageSize       = config.pageSize() * MAX_PAGE_MULTIPLIER;
+    this.adaptivePageSize  = config.pageSize();
+    this.lastAroundIndex   = config.startIndex();
+    this.latestAroundIndex = config.startIndex();
   }
 
   /**
@@ -63,12 +96,24 @@ class FixedSizePagingController<E> implements PagingController {
       return;
     }
 
-    int leftPageBoundary  = (aroundIndex / config.pageSize()) * config.pageSize();
-    int rightPageBoundary = leftPageBoundary + config.pageSize();
-    int buffer            = config.bufferPages() * config.pageSize();
+    latestAroundIndex = aroundIndex;
+
+    int[] skipped;
+    while ((skipped = skippedRanges.poll()) != null) {
+      loadState.unmarkRange(skipped[0], skipped[1]);
+    }
+
+    updateVelocity(aroundIndex);
+
+    int pageSize = adaptivePageSize;
+    int prefetch = getPrefetchCount(pageSize);
+
+    int leftPageBoundary  = (aroundIndex / pageSize) * pageSize;
+    int rightPageBoundary = leftPageBoundary + pageSize;
+    int buffer            = config.bufferPages() * pageSize;
 
-    int leftLoadBoundary  = Math.max(0, leftPageBoundary - buffer);
-    int rightLoadBoundary = Math.min(loadState.size(), rightPageBoundary + buffer);
+    int leftLoadBoundary  = Math.max(0, leftPageBoundary - buffer - (velocity < 0 ? prefetch : 0));
+    int rightLoadBoundary = Math.min(loadState.size(), rightPageBoundary + buffer + (velocity > 0 ? prefetch : 0));
 
     int loadStart = loadState.getEarliestUnmarkedIndexInRange(leftLoadBoundary, rightLoadBoundary);
 
@@ -88,18 +133,65 @@ class FixedSizePagingController<E> implements PagingController {
 
     loadState.markRange(loadStart, loadEnd);
 
-    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
+    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize + ", pageSize: " + pageSize + ", prefetch: " + prefetch));
+
+    enqueuePagesNearestFirst(aroundIndex, loadStart, loadEnd, pageSize);
+  }
+
+  @Override
+  public void onDataInvalidated() {
+    if (invalidated) {
+      return;
+    }
+
+    invalidated = true;
+    loadState.recycle();
+  }
+
+  /**
+   * Splits the range into pages and enqueues them in order of distance from the requested index,
+   * so whatever is on screen is loaded first.
+   */
+  private void enqueuePagesNearestFirst(int aroundIndex, int loadStart, int loadEnd, int pageSize) {
+    int pivot = Math.max(loadStart, Math.min(loadEnd, (aroundIndex / pageSize) * pageSize));
+    int left  = pivot;
+    int right = pivot;
 
+    while (left > loadStart || right < loadEnd) {
+      if (right < loadEnd) {
+        int end = Math.min(loadEnd, right + pageSize);
+        enqueueLoad(right, end);
+        right = end;
+      }
+
+      if (left > loadStart) {
+        int start = Math.max(loadStart, left - pageSize);
+        enqueueLoad(start, left);
+        left = start;
+      }
+    }
+  }
+
+  private void enqueueLoad(int loadStart, int loadEnd) {
     FETCH_EXECUTOR.execute(() -> {
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! At beginning of load task."));
+        Log.w(TAG, buildLog(loadStart, "Invalidated! At beginning of load task."));
+        return;
+      }
+
+      if (isFarFromView(loadStart, loadEnd)) {
+        if (DEBUG) Log.i(TAG, buildLog(loadStart, "Skipping, scrolled out of view. end: " + loadEnd + ", latest: " + latestAroundIndex));
+        skippedRanges.add(new int[] { loadStart, loadEnd });
         return;
       }
 
-      List<E> loaded = dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
+      long    startTime = System.nanoTime();
+      List<E> loaded    = dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
+
+      onLoadFinished(loadEnd - loadStart, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
 
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
+        Log.w(TAG, buildLog(loadStart, "Invalidated! Just after data was loaded."));
         return;
       }
 
@@ -114,14 +206,65 @@ class FixedSizePagingController<E> implements PagingController {
     });
   }
 
-  @Override
-  public void onDataInvalidated() {
-    if (invalidated) {
+  /**
+   * Keeps an exponentially-smoothed estimate of how many items the user moves per millisecond.
+   * Positive values mean the user is moving towards the end of the data set.
+   */
+  private void updateVelocity(int aroundIndex) {
+    long now     = System.currentTimeMillis();
+    long elapsed = now - lastAroundTime;
+
+    if (lastAroundTime == 0 || elapsed > VELOCITY_RESET_MS) {
+      velocity = 0;
+    } else if (elapsed > 0) {
+      double instant = (aroundIndex - lastAroundIndex) / (double) elapsed;
+      velocity = SMOOTHING * velocity + (1 - SMOOTHING) * instant;
+    }
+
+    lastAroundIndex = aroundIndex;
+    lastAroundTime  = now;
+  }
+
+  /**
+   * @return How many extra items to load in the direction of travel. This is roughly how far the
+   *         user will move while a page is being loaded, rounded up to a whole page.
+   */
+  private int getPrefetchCount(int pageSize) {
+    double expectedLoadMs = Math.max(TARGET_LOAD_MS, msPerItem * pageSize);
+    int    items          = (int) Math.ceil(Math.abs(velocity) * expectedLoadMs * 2);
+
+    if (items == 0) {
+      return 0;
+    }
+
+    int pages = Math.min(MAX_PREFETCH_PAGES, (items + pageSize - 1) / pageSize);
+    return pages * pageSize;
+  }
+
+  /**
+   * Called on the fetch thread. Adjusts the page size so a single load takes roughly
+   * {@link #TARGET_LOAD_MS}.
+   */
+  private void onLoadFinished(int itemCount, long durationMs) {
+    if (itemCount <= 0) {
       return;
     }
 
-    invalidated = true;
-    loadState.recycle();
+    double instant = Math.max(durationMs, 1) / (double) itemCount;
+
+    msPerItem        = msPerItem == 0 ? instant : SMOOTHING * msPerItem + (1 - SMOOTHING) * instant;
+    adaptivePageSize = Math.max(minPageSize, Math.min(maxPageSize, (int) (TARGET_LOAD_MS / msPerItem)));
+  }
+
+  /**
+   * A range is far from view if even the largest possible load window around the most recently
+   * requested index wouldn't include it.
+   */
+  private boolean isFarFromView(int loadStart, int loadEnd) {
+    int latest   = latestAroundIndex;
+    int distance = (config.bufferPages() + MAX_PREFETCH_PAGES + 1) * adaptivePageSize;
+
+    return loadEnd < latest - distance || loadStart > latest + distance;
   }
 
   private static String buildLog(int aroundIndex, String message) {